@@ -35,16 +35,31 @@ package fr.paris.lutece.portal.service.template;
 
 import java.io.File;
 import java.io.IOException;
+import java.io.OutputStream;
 import java.io.StringWriter;
 import java.io.UnsupportedEncodingException;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
 import java.security.MessageDigest;
 import java.security.NoSuchAlgorithmException;
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.HashMap;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Locale;
 import java.util.Map;
 import java.util.Map.Entry;
+import java.util.Objects;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.regex.Pattern;
 
 import fr.paris.lutece.util.html.HtmlTemplate;
 import fr.paris.lutece.util.html.exception.LuteceFreemarkerException;
@@ -52,6 +67,7 @@ import freemarker.cache.FileTemplateLoader;
 import freemarker.cache.MultiTemplateLoader;
 import freemarker.cache.StringTemplateLoader;
 import freemarker.cache.TemplateLoader;
+import freemarker.core.Environment;
 import freemarker.template.Configuration;
 import freemarker.template.Template;
 import freemarker.template.TemplateException;
@@ -68,16 +84,57 @@ public abstract class AbstractFreeMarkerTemplateService implements IFreeMarkerTe
     private static final String SETTING_DATE_FORMAT = "date_format";
     private static final String CONSTANT_HASH_ENCODING = "UTF-8";
     private static final String CONSTANT_HASH_DIGEST = "MD5";
+    private static final Pattern PATTERN_CONTENT_KEY = Pattern.compile( "[0-9a-f]{32}" );
+    private static final int MAX_WARM_TEMPLATES = 256;
+    private static final int DEFAULT_WORKING_SET_SAMPLING = 16;
+    private static final String ATTRIBUTE_COMPILATION = "lutece.compilation";
+    private static final String ATTRIBUTE_MODEL_REQUIREMENTS = "lutece.modelRequirements";
     
 
     /** the list contains plugins specific macros */
     private List<String> _listPluginsAutoIncludes = new ArrayList<>( );
     private Map<String, String> _mapPluginsAutoImports = new HashMap<>( );
     private Map<String, Object> _mapSharedVariables = new HashMap<>( );
-    private Map<String, Configuration> _mapConfigurations = new HashMap<>( );
+    private volatile Map<String, Configuration> _mapConfigurations = new ConcurrentHashMap<>( );
     private String _strDefaultPath;
     private int _nTemplateUpdateDelay;
     private boolean _bAcceptIncompatibleImprovements;
+    private EncodedTextCache _encodedTextCache = new EncodedTextCache( StandardCharsets.UTF_8 );
+    private OutputCompressionStage _outputCompressionStage;
+    private boolean _bMinifyTemplates;
+    private boolean _bHtmlAutoEscaping;
+    private boolean _bFastFormatting;
+    private boolean _bSharedVariableFolding;
+    private boolean _bIncludeInlining;
+    private long _lTemplateCacheBudget = TieredCacheStorage.DEFAULT_MEMORY_BUDGET;
+    private List<ITemplateSourceTransformer> _listSourceTransformers = new ArrayList<>( );
+    private List<Class<?>> _listModelClasses = new ArrayList<>( );
+    private LuteceObjectWrapper _objectWrapper;
+    private Version _objectWrapperVersion;
+    private boolean _bAutoImportSnapshot;
+    private AtomicLong _lConfigurationRevision = new AtomicLong( );
+    private AtomicLong _lTemplateInvalidations = new AtomicLong( );
+    private Map<Locale, LocaleRenderSettings> _mapLocaleRenderSettings = new ConcurrentHashMap<>( );
+    private volatile LocaleRenderSettings _defaultRenderSettings;
+    private Executor _renderExecutor;
+    private volatile ExecutorService _renderPool;
+    private volatile ScheduledExecutorService _timeoutScheduler;
+    private volatile ExecutorService _softResetExecutor;
+    private long _lRenderTimeout;
+    private RenderLimits _renderLimits;
+    private volatile CompilationBulkhead _compilationBulkhead;
+    private volatile boolean _bSoftReset;
+    private TemplateWorkingSet _workingSet = newWorkingSet( );
+    private CompletableFuture<Void> _pendingReset = CompletableFuture.completedFuture( null );
+    private volatile TemplateInvalidationService _invalidationService;
+    private SharedSourceCache _sharedSourceCache;
+    private volatile long _lSharedSourceReset;
+    private JdbcTemplateLoader _jdbcTemplateLoader;
+    private volatile int _nCompileThreshold;
+    private volatile RenderAccounting _renderAccounting;
+    private final IncludeAccounting _includeAccounting = new IncludeAccounting( ( ) -> _renderAccounting );
+    private AtomicLong _lCompiledRenders = new AtomicLong( );
+    private AtomicLong _lInterpretedRenders = new AtomicLong( );
     
 
     /**
@@ -122,52 +179,753 @@ public abstract class AbstractFreeMarkerTemplateService implements IFreeMarkerTe
     @Override
     public void setSharedVariable( String name, Object obj )
     {
-        _mapSharedVariables.put( name, obj );
+        Object previous = _mapSharedVariables.put( name, obj );
+
+        // the templates loaded by the current configurations have been folded with the previous value
+        if ( _bSharedVariableFolding && !_mapConfigurations.isEmpty( ) && !Objects.equals( previous, obj ) )
+        {
+            doResetConfiguration( );
+        }
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public synchronized void addContentEncoder( IContentEncoder encoder )
+    {
+        if ( _outputCompressionStage == null )
+        {
+            _outputCompressionStage = new OutputCompressionStage( );
+        }
+
+        _outputCompressionStage.addEncoder( encoder );
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void setMinifyTemplates( boolean bMinifyTemplates )
+    {
+        _bMinifyTemplates = bMinifyTemplates;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void setHtmlAutoEscaping( boolean bHtmlAutoEscaping )
+    {
+        _bHtmlAutoEscaping = bHtmlAutoEscaping;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void setFastFormatting( boolean bFastFormatting )
+    {
+        _bFastFormatting = bFastFormatting;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void setSharedVariableFolding( boolean bSharedVariableFolding )
+    {
+        _bSharedVariableFolding = bSharedVariableFolding;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void setIncludeInlining( boolean bIncludeInlining )
+    {
+        _bIncludeInlining = bIncludeInlining;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void setTemplateCacheBudget( long lTemplateCacheBudget )
+    {
+        _lTemplateCacheBudget = lTemplateCacheBudget;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void addTemplateSourceTransformer( ITemplateSourceTransformer transformer )
+    {
+        _listSourceTransformers.add( transformer );
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public synchronized void registerModelClass( Class<?> clazz )
+    {
+        _listModelClasses.add( clazz );
+
+        if ( _objectWrapper != null )
+        {
+            _objectWrapper.registerModelClass( clazz );
+        }
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void setAutoImportSnapshot( boolean bAutoImportSnapshot )
+    {
+        _bAutoImportSnapshot = bAutoImportSnapshot;
+
+        if ( !bAutoImportSnapshot )
+        {
+            for ( Configuration cfg : _mapConfigurations.values( ) )
+            {
+                ( (LuteceConfiguration) cfg ).setAutoImportSnapshot( null );
+            }
+        }
+    }
+
+    /**
+     * Returns the executor of the asynchronous renders
+     * 
+     * @return The executor set, or the pool dedicated to the renders
+     */
+    private Executor getRenderExecutor( )
+    {
+        Executor executor = _renderExecutor;
+
+        return ( executor != null ) ? executor : getRenderPool( );
+    }
+
+    /**
+     * Returns the pool dedicated to the renders, created on the first asynchronous render and shut down by {@link #shutdown()}
+     * 
+     * @return The pool
+     */
+    private ExecutorService getRenderPool( )
+    {
+        ExecutorService pool = _renderPool;
+
+        if ( pool == null )
+        {
+            synchronized( this )
+            {
+                pool = _renderPool;
+
+                if ( pool == null )
+                {
+                    pool = AsyncRenderTask.newRenderPool( );
+                    _renderPool = pool;
+                }
+            }
+        }
+
+        return pool;
+    }
+
+    /**
+     * Returns the scheduler of the timeouts of the renders, created on the first render with a timeout and shut down by {@link #shutdown()}
+     * 
+     * @return The scheduler
+     */
+    private ScheduledExecutorService getTimeoutScheduler( )
+    {
+        ScheduledExecutorService scheduler = _timeoutScheduler;
+
+        if ( scheduler == null )
+        {
+            synchronized( this )
+            {
+                scheduler = _timeoutScheduler;
+
+                if ( scheduler == null )
+                {
+                    scheduler = AsyncRenderTask.newTimeoutScheduler( );
+                    _timeoutScheduler = scheduler;
+                }
+            }
+        }
+
+        return scheduler;
+    }
+
+    /**
+     * Returns the single thread building the soft resets, created on the first soft reset and shut down by {@link #shutdown()}. The soft resets do
+     * not take the threads of the renders.
+     * 
+     * @return The executor
+     */
+    private ExecutorService getSoftResetExecutor( )
+    {
+        ExecutorService executor = _softResetExecutor;
+
+        if ( executor == null )
+        {
+            synchronized( this )
+            {
+                executor = _softResetExecutor;
+
+                if ( executor == null )
+                {
+                    executor = Executors.newSingleThreadExecutor( runnable -> {
+                        Thread thread = new Thread( runnable, "freemarker-soft-reset" );
+                        thread.setDaemon( true );
+                        return thread;
+                    } );
+                    _softResetExecutor = executor;
+                }
+            }
+        }
+
+        return executor;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void shutdown( )
+    {
+        ExecutorService pool;
+        ScheduledExecutorService scheduler;
+        ExecutorService softResetExecutor;
+
+        synchronized( this )
+        {
+            pool = _renderPool;
+            scheduler = _timeoutScheduler;
+            softResetExecutor = _softResetExecutor;
+            _renderPool = null;
+            _timeoutScheduler = null;
+            _softResetExecutor = null;
+        }
+
+        // the executor set by setRenderExecutor belongs to the caller and is left running
+        if ( pool != null )
+        {
+            pool.shutdownNow( );
+        }
+
+        if ( scheduler != null )
+        {
+            scheduler.shutdownNow( );
+        }
+
+        if ( softResetExecutor != null )
+        {
+            softResetExecutor.shutdownNow( );
+        }
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void setRenderExecutor( Executor executor )
+    {
+        _renderExecutor = executor;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void setRenderTimeout( long lRenderTimeout )
+    {
+        _lRenderTimeout = lRenderTimeout;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void setRenderLimits( RenderLimits limits )
+    {
+        _renderLimits = limits;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public synchronized void setMaxConcurrentCompilations( int nMaxConcurrentCompilations )
+    {
+        _compilationBulkhead = ( nMaxConcurrentCompilations > 0 ) ? new CompilationBulkhead( nMaxConcurrentCompilations ) : null;
+
+        for ( Configuration cfg : _mapConfigurations.values( ) )
+        {
+            ( (PipelineTemplateLoader) cfg.getTemplateLoader( ) ).setCompilationBulkhead( _compilationBulkhead );
+        }
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void setSoftReset( boolean bSoftReset )
+    {
+        _bSoftReset = bSoftReset;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void setWorkingSetSampling( int nSampling )
+    {
+        _workingSet.setSampling( nSampling );
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public List<TemplateKey> getHotTemplates( int nMax )
+    {
+        return _workingSet.getHotSet( nMax );
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void saveWorkingSet( File file )
+    {
+        try
+        {
+            _workingSet.save( file );
+        }
+        catch( IOException e )
+        {
+            throw new LuteceFreemarkerException( "Unable to save the template working set to " + file, e );
+        }
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void loadWorkingSet( File file )
+    {
+        List<TemplateKey> listTemplates;
+
+        try
+        {
+            listTemplates = _workingSet.load( file );
+        }
+        catch( IOException e )
+        {
+            throw new LuteceFreemarkerException( "Unable to load the template working set from " + file, e );
+        }
+
+        warmUp( getConfiguration( _strDefaultPath ), listTemplates );
+    }
+
+    /**
+     * Create the working set of the requested templates, sampling the requests of the named templates
+     * 
+     * @return The working set
+     */
+    private static TemplateWorkingSet newWorkingSet( )
+    {
+        TemplateWorkingSet workingSet = new TemplateWorkingSet( AbstractFreeMarkerTemplateService::isNamedTemplate );
+        workingSet.setSampling( DEFAULT_WORKING_SET_SAMPLING );
+
+        return workingSet;
+    }
+
+    /**
+     * Returns the working set of the requested templates
+     * 
+     * @return The working set
+     */
+    public TemplateWorkingSet getWorkingSet( )
+    {
+        return _workingSet;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void setSharedSourceCache( SharedSourceCache sharedSourceCache )
+    {
+        _sharedSourceCache = sharedSourceCache;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void setJdbcTemplateLoader( JdbcTemplateLoader jdbcTemplateLoader )
+    {
+        _jdbcTemplateLoader = jdbcTemplateLoader;
+    }
+
+    /**
+     * Returns the cache of the template sources shared by the configurations
+     * 
+     * @return The shared source cache or null if the sources are not shared
+     */
+    public SharedSourceCache getSharedSourceCache( )
+    {
+        return _sharedSourceCache;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void setCompileThreshold( int nCompileThreshold )
+    {
+        _nCompileThreshold = nCompileThreshold;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void setRenderAccounting( boolean bRenderAccounting, boolean bIncludeAccounting )
+    {
+        _renderAccounting = bRenderAccounting ? new RenderAccounting( bIncludeAccounting ) : null;
+    }
+
+    /**
+     * Returns the accounting of the renders, giving the bytes allocated and the CPU time used by each template
+     * 
+     * @return The render accounting or null if the renders are not accounted
+     */
+    public RenderAccounting getRenderAccounting( )
+    {
+        return _renderAccounting;
+    }
+
+    /**
+     * Returns the number of renders done by compiled templates
+     * 
+     * @return The number of compiled renders
+     */
+    public long getCompiledRenderCount( )
+    {
+        return _lCompiledRenders.get( );
+    }
+
+    /**
+     * Returns the number of renders of templates eligible to the compilation that fell back to the interpreter
+     * 
+     * @return The number of interpreted renders
+     */
+    public long getInterpretedRenderCount( )
+    {
+        return _lInterpretedRenders.get( );
+    }
+
+    /**
+     * Returns the completion of the last soft reset
+     * 
+     * @return The future completed once the last requested soft reset has been applied
+     */
+    public synchronized CompletableFuture<Void> getPendingReset( )
+    {
+        return _pendingReset;
+    }
+
+    /**
+     * Returns the compilation bulkhead, giving the metrics of the template loads
+     * 
+     * @return The compilation bulkhead or null if the concurrent compilations are not limited
+     */
+    public CompilationBulkhead getCompilationBulkhead( )
+    {
+        return _compilationBulkhead;
+    }
+
+    /**
+     * Get the default datetime pattern. The datetime format of the configuration is kept if no pattern is provided.
+     * 
+     * @param locale
+     *            the locale
+     * @return the default datetime pattern or null
+     */
+    protected String getDefaultDateTimePattern( Locale locale )
+    {
+        return null;
+    }
+
+    /**
+     * Get the default time pattern. The time format of the configuration is kept if no pattern is provided.
+     * 
+     * @param locale
+     *            the locale
+     * @return the default time pattern or null
+     */
+    protected String getDefaultTimePattern( Locale locale )
+    {
+        return null;
+    }
+
+    /**
+     * Get the number format
+     * 
+     * @param locale
+     *            the locale
+     * @return the number format
+     */
+    protected String getNumberFormat( Locale locale )
+    {
+        return NUMBER_FORMAT_PATTERN;
+    }
+
+    /**
+     * Get the render settings of a locale, computing them on the first call
+     * 
+     * @param locale
+     *            the locale, may be null
+     * @return the render settings
+     */
+    public LocaleRenderSettings getLocaleRenderSettings( Locale locale )
+    {
+        if ( locale == null )
+        {
+            LocaleRenderSettings settings = _defaultRenderSettings;
+
+            if ( settings == null )
+            {
+                settings = createLocaleRenderSettings( null );
+                _defaultRenderSettings = settings;
+            }
+
+            return settings;
+        }
+
+        return _mapLocaleRenderSettings.computeIfAbsent( locale, this::createLocaleRenderSettings );
+    }
+
+    /**
+     * Compute the render settings of a locale
+     * 
+     * @param locale
+     *            the locale, may be null
+     * @return the render settings
+     */
+    private LocaleRenderSettings createLocaleRenderSettings( Locale locale )
+    {
+        return new LocaleRenderSettings( getDateFormatString( getDefaultPattern( locale ) ), getDateFormatString( getDefaultDateTimePattern( locale ) ),
+                getDateFormatString( getDefaultTimePattern( locale ) ), getNumberFormatString( getNumberFormat( locale ) ) );
+    }
+
+    /**
+     * Get the format string of a date pattern, using the fast formats if they are enabled
+     * 
+     * @param strPattern
+     *            the pattern, may be null
+     * @return the format string
+     */
+    private String getDateFormatString( String strPattern )
+    {
+        return _bFastFormatting ? LuteceDateFormatFactory.toFormatString( strPattern ) : strPattern;
+    }
+
+    /**
+     * Get the format string of a number pattern, using the fast formats if they are enabled
+     * 
+     * @param strPattern
+     *            the pattern, may be null
+     * @return the format string
+     */
+    private String getNumberFormatString( String strPattern )
+    {
+        return _bFastFormatting ? LuteceNumberFormatFactory.toFormatString( strPattern ) : strPattern;
+    }
+
+    /**
+     * Returns the number of properties of the registered model classes read through their generated accessors
+     * 
+     * @return The number of accessor reads, or 0 if no configuration has been created
+     */
+    public long getModelAccessorReadCount( )
+    {
+        LuteceObjectWrapper wrapper = _objectWrapper;
+
+        return ( wrapper != null ) ? wrapper.getAccessorReadCount( ) : 0;
+    }
+
+    /**
+     * Returns the number of model beans and properties read through the reflection of the default bean wrapper, because their class is not
+     * registered or the key has no accessor
+     * 
+     * @return The number of reflective reads, or 0 if no configuration has been created
+     */
+    public long getModelReflectiveReadCount( )
+    {
+        LuteceObjectWrapper wrapper = _objectWrapper;
+
+        return ( wrapper != null ) ? wrapper.getReflectiveReadCount( ) : 0;
+    }
+
+    /**
+     * Returns the object wrapper shared by the configurations
+     * 
+     * @return The object wrapper or null if no configuration has been created
+     */
+    public LuteceObjectWrapper getObjectWrapper( )
+    {
+        return _objectWrapper;
+    }
+
+    /**
+     * Get the object wrapper shared by the configurations, creating it if needed
+     * 
+     * @param version
+     *            The incompatible improvements version of the configuration
+     * @return The object wrapper
+     */
+    private synchronized LuteceObjectWrapper getObjectWrapper( Version version )
+    {
+        if ( _objectWrapper == null || !version.equals( _objectWrapperVersion ) )
+        {
+            _objectWrapper = new LuteceObjectWrapper( version );
+            _objectWrapperVersion = version;
+
+            for ( Class<?> clazz : _listModelClasses )
+            {
+                _objectWrapper.registerModelClass( clazz );
+            }
+        }
+
+        return _objectWrapper;
+    }
+
+    /**
+     * Returns the snapshot of the auto-imported libraries of the configuration of the default path
+     * 
+     * @return The snapshot or null if no snapshot has been taken
+     */
+    public AutoImportSnapshot getAutoImportSnapshot( )
+    {
+        Configuration cfg = _mapConfigurations.get( _strDefaultPath );
+
+        return ( cfg == null ) ? null : ( (LuteceConfiguration) cfg ).getAutoImportSnapshot( );
+    }
+
+    /**
+     * Returns the output compression stage
+     * 
+     * @return The output compression stage or null if no content encoder has been added
+     */
+    public OutputCompressionStage getOutputCompressionStage( )
+    {
+        return _outputCompressionStage;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void init( String strTemplatePath )
+    {
+        _strDefaultPath = strTemplatePath;
+        _bAcceptIncompatibleImprovements = false;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void init( String strTemplatePath, boolean bAcceptIncompatibleImprovements )
+    {
+        _strDefaultPath = strTemplatePath;
+        _bAcceptIncompatibleImprovements = bAcceptIncompatibleImprovements;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public HtmlTemplate loadTemplate( String strPath, String strTemplate )
+    {
+        return loadTemplate( strPath, strTemplate, null, null );
     }
 
     /**
      * {@inheritDoc}
      */
     @Override
-    public void init( String strTemplatePath )
+    public HtmlTemplate loadTemplate( String strPath, String strTemplate, Locale locale, Object rootMap )
     {
-        _strDefaultPath = strTemplatePath;
-        _bAcceptIncompatibleImprovements = false;
+        return processTemplate( getConfiguration( strPath ), strTemplate, rootMap, locale, false );
     }
 
     /**
      * {@inheritDoc}
      */
     @Override
-    public void init( String strTemplatePath, boolean bAcceptIncompatibleImprovements )
+    public CompletableFuture<HtmlTemplate> loadTemplateAsync( String strPath, String strTemplate, Locale locale, Object rootMap )
     {
-        _strDefaultPath = strTemplatePath;
-        _bAcceptIncompatibleImprovements = bAcceptIncompatibleImprovements;
+        return AsyncRenderTask.submit( ( ) -> processTemplate( getConfiguration( strPath ), strTemplate, rootMap, locale, true ), getRenderExecutor( ),
+                this::getTimeoutScheduler, _lRenderTimeout );
     }
 
     /**
      * {@inheritDoc}
      */
     @Override
-    public HtmlTemplate loadTemplate( String strPath, String strTemplate )
+    public TemplateModelRequirements getModelRequirements( String strPath, String strTemplate, Locale locale )
     {
-        return loadTemplate( strPath, strTemplate, null, null );
+        try
+        {
+            Configuration cfg = getConfiguration( strPath );
+            Template ftl = lookupTemplate( cfg, strTemplate, locale );
+            long lRevision = _lConfigurationRevision.get( );
+            long lInvalidations = _lTemplateInvalidations.get( );
+            TemplateModelRequirements requirements = (TemplateModelRequirements) ftl.getCustomAttribute( ATTRIBUTE_MODEL_REQUIREMENTS );
+
+            // the requirements are kept with the parsed template, and checked against its reloaded includes
+            if ( requirements == null || !requirements.isValid( cfg, ftl.getLocale( ), lRevision, lInvalidations ) )
+            {
+                requirements = TemplateModelAnalyzer.analyze( ftl, lRevision, lInvalidations );
+                ftl.setCustomAttribute( ATTRIBUTE_MODEL_REQUIREMENTS, requirements );
+            }
+
+            return requirements;
+        }
+        catch( IOException e )
+        {
+            throw new LuteceFreemarkerException( e.getMessage( ), e );
+        }
     }
 
     /**
      * {@inheritDoc}
      */
     @Override
-    public HtmlTemplate loadTemplate( String strPath, String strTemplate, Locale locale, Object rootMap )
+    public void writeTemplate( String strPath, String strTemplate, Locale locale, Object rootMap, OutputStream out )
     {
-        Configuration cfg = _mapConfigurations.get( strPath );
+        Configuration cfg = getConfiguration( strPath );
 
-        if ( cfg == null )
+        try
         {
-            cfg = initConfig( _strDefaultPath, Locale.getDefault( ) );
-        }
+            Writer writer = new EncodedOutputWriter( out, _encodedTextCache );
+            renderTemplate( getTemplate( cfg, strTemplate, locale ), rootMap, locale, writer );
 
-        return processTemplate( cfg, strTemplate, rootMap, locale );
+            // the writer does not close the stream of the caller
+            writer.close( );
+        }
+        catch( IOException | TemplateException e )
+        {
+            throw new LuteceFreemarkerException( e.getMessage( ), e );
+        }
     }
 
   
@@ -176,18 +934,51 @@ public abstract class AbstractFreeMarkerTemplateService implements IFreeMarkerTe
    */
     @Override
 	public HtmlTemplate loadTemplateFromStringFtl(String strTemplateData, Locale locale, Object rootMap) {
-		try {
-			String strContentKey = getHash(strTemplateData);
-			return loadTemplateFromStringFtl(strContentKey, strTemplateData, locale, rootMap, false);
-		}
-		catch (NoSuchAlgorithmException | UnsupportedEncodingException hashEx) {
+		return loadTemplateFromStringFtl(getContentKey(strTemplateData), strTemplateData, locale, rootMap, false);
+	}
 
-			throw new LuteceFreemarkerException(
-					"Can not create hash for template content " + strTemplateData + hashEx.getMessage(), hashEx);
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public CompletableFuture<HtmlTemplate> loadTemplateFromStringFtlAsync( String strTemplateData, Locale locale, Object rootMap )
+    {
+        return AsyncRenderTask.submit(
+                ( ) -> loadTemplateFromStringFtl( getContentKey( strTemplateData ), strTemplateData, locale, rootMap, false, true ),
+                getRenderExecutor( ), this::getTimeoutScheduler, _lRenderTimeout );
+    }
 
-		}
+    /**
+     * Tell whether a template has a name, unlike the templates provided as strings and named by the hash of their content, which are not
+     * recorded in the working set
+     * 
+     * @param strName
+     *            The name of the template
+     * @return true if the name is not the key of a template provided as a string
+     */
+    private static boolean isNamedTemplate( String strName )
+    {
+        return !PATTERN_CONTENT_KEY.matcher( strName ).matches( );
+    }
 
-	}
+    /**
+     * Get the key of a template provided as a string
+     * 
+     * @param strTemplateData
+     *            The template as a string
+     * @return The key of the template
+     */
+    private static String getContentKey( String strTemplateData )
+    {
+        try
+        {
+            return getHash( strTemplateData );
+        }
+        catch( NoSuchAlgorithmException | UnsupportedEncodingException hashEx )
+        {
+            throw new LuteceFreemarkerException( "Can not create hash for template content " + strTemplateData + hashEx.getMessage( ), hashEx );
+        }
+    }
     
     
 
@@ -196,23 +987,51 @@ public abstract class AbstractFreeMarkerTemplateService implements IFreeMarkerTe
    */
     @Override
 	public HtmlTemplate loadTemplateFromStringFtl(String strTemplateName,String strTemplateData, Locale locale, Object rootMap,boolean bResetCacheTemplate) {
-	
-
-			Configuration cfg = _mapConfigurations.get(_strDefaultPath);
+		return loadTemplateFromStringFtl(strTemplateName, strTemplateData, locale, rootMap, bResetCacheTemplate, false);
+	}
 
-			if (cfg == null) {
-				cfg = initConfig(_strDefaultPath, Locale.getDefault());
-			}
+    /**
+     * Load a template from a String and process a model
+     * 
+     * @param strTemplateName
+     *            the key of the template put in the StringTemplateLoader
+     * @param strTemplateData
+     *            The template as a string
+     * @param locale
+     *            The {@link Locale}
+     * @param rootMap
+     *            the model root
+     * @param bResetCacheTemplate
+     *            force the update of the template data stored in the StringTemplateLoader
+     * @param bInterruptible
+     *            true to stop the render if the thread is interrupted
+     * @return the processed html template
+     */
+    private HtmlTemplate loadTemplateFromStringFtl( String strTemplateName, String strTemplateData, Locale locale, Object rootMap,
+            boolean bResetCacheTemplate, boolean bInterruptible )
+    {
+        Configuration cfg = getConfiguration( _strDefaultPath );
 
-			MultiTemplateLoader mtl = (MultiTemplateLoader) cfg.getTemplateLoader();
-			if ( bResetCacheTemplate || ((StringTemplateLoader) mtl.getTemplateLoader(1)).findTemplateSource(strTemplateName) == null) {
-				((StringTemplateLoader) mtl.getTemplateLoader(1)).putTemplate(strTemplateName, strTemplateData);
-			}
+        StringTemplateLoader stringLoader = getStringTemplateLoader( cfg );
+        Object source = stringLoader.findTemplateSource( strTemplateName );
+        if ( source == null )
+        {
+            stringLoader.putTemplate( strTemplateName, strTemplateData );
+        }
+        else if ( bResetCacheTemplate )
+        {
+            stringLoader.putTemplate( strTemplateName, strTemplateData );
 
-			return processTemplate(cfg, strTemplateName, rootMap, locale);
-		
+            // the cached template is replaced without waiting for the update delay
+            if ( !strTemplateData.equals( readStringTemplate( stringLoader, source ) ) )
+            {
+                removeTemplateFromCaches( strTemplateName );
+                publishInvalidation( TemplateInvalidationEvent.Type.STRING_TEMPLATE_REPLACED, strTemplateName, null, strTemplateData );
+            }
+        }
 
-	}
+        return processTemplate( cfg, strTemplateName, rootMap, locale, bInterruptible );
+    }
     
 
     /**
@@ -221,7 +1040,31 @@ public abstract class AbstractFreeMarkerTemplateService implements IFreeMarkerTe
     @Override
     public void resetConfiguration( )
     {
-        _mapConfigurations = new HashMap<>( );
+        doResetConfiguration( );
+        publishInvalidation( TemplateInvalidationEvent.Type.CONFIGURATION_RESET, null, null, null );
+    }
+
+    /**
+     * Clears the configuration cache, without notifying the other nodes
+     */
+    private void doResetConfiguration( )
+    {
+        Object event = TemplateEvents.beginReset( );
+        clearSharedSourceCache( );
+
+        if ( _bSoftReset )
+        {
+            scheduleSoftReset( false );
+        }
+        else
+        {
+            _mapConfigurations = new ConcurrentHashMap<>( );
+            _mapLocaleRenderSettings.clear( );
+            _defaultRenderSettings = null;
+            _lConfigurationRevision.incrementAndGet( );
+        }
+
+        TemplateEvents.endReset( event, false, _bSoftReset );
     }
 
     /**
@@ -230,9 +1073,398 @@ public abstract class AbstractFreeMarkerTemplateService implements IFreeMarkerTe
     @Override
     public void resetCache( )
     {
+        doResetCache( );
+        publishInvalidation( TemplateInvalidationEvent.Type.CACHE_RESET, null, null, null );
+    }
+
+    /**
+     * Reset the cache, without notifying the other nodes
+     */
+    private void doResetCache( )
+    {
+        Object event = TemplateEvents.beginReset( );
+        clearSharedSourceCache( );
+
+        if ( _bSoftReset )
+        {
+            scheduleSoftReset( true );
+        }
+        else
+        {
+            for ( Configuration cfg : _mapConfigurations.values( ) )
+            {
+                cfg.clearTemplateCache( );
+            }
+
+            _lConfigurationRevision.incrementAndGet( );
+        }
+
+        TemplateEvents.endReset( event, true, _bSoftReset );
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void invalidateTemplate( String strName )
+    {
+        removeTemplateFromCaches( strName );
+        publishInvalidation( TemplateInvalidationEvent.Type.TEMPLATE_CHANGED, strName, null, null );
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public synchronized void setInvalidationTransport( ITemplateInvalidationTransport transport )
+    {
+        if ( _invalidationService != null )
+        {
+            _invalidationService.close( );
+        }
+
+        _invalidationService = ( transport != null ) ? new TemplateInvalidationService( this, transport ) : null;
+    }
+
+    /**
+     * Apply a change received from another node, without notifying the other nodes
+     * 
+     * @param event
+     *            The invalidation event
+     */
+    void applyInvalidation( TemplateInvalidationEvent event )
+    {
+        switch( event.getType( ) )
+        {
+            case TEMPLATE_CHANGED:
+                removeTemplateFromCaches( event.getName( ) );
+                break;
+            case STRING_TEMPLATE_REPLACED:
+                Configuration cfg = _mapConfigurations.get( _strDefaultPath );
+                if ( cfg != null )
+                {
+                    getStringTemplateLoader( cfg ).putTemplate( event.getName( ), event.getData( ) );
+                    removeTemplateFromCaches( event.getName( ) );
+                }
+                break;
+            case AUTO_INCLUDE_ADDED:
+                doAddAutoInclude( event.getName( ) );
+                break;
+            case AUTO_INCLUDE_REMOVED:
+                doRemoveAutoInclude( event.getName( ) );
+                break;
+            case AUTO_IMPORT_ADDED:
+                doAddAutoImport( event.getNamespace( ), event.getName( ) );
+                break;
+            case AUTO_IMPORT_REMOVED:
+                doRemoveAutoImport( event.getNamespace( ) );
+                break;
+            case CACHE_RESET:
+                doResetCache( );
+                break;
+            case CONFIGURATION_RESET:
+                doResetConfiguration( );
+                break;
+            default:
+                break;
+        }
+    }
+
+    /**
+     * Notify the other nodes of a change
+     * 
+     * @param type
+     *            The type of change
+     * @param strName
+     *            The template or file name, or null
+     * @param strNamespace
+     *            The auto-import namespace, or null
+     * @param strData
+     *            The content of the string template, or null
+     */
+    private void publishInvalidation( TemplateInvalidationEvent.Type type, String strName, String strNamespace, String strData )
+    {
+        TemplateInvalidationService invalidationService = _invalidationService;
+
+        if ( invalidationService != null )
+        {
+            invalidationService.publish( type, strName, strNamespace, strData );
+        }
+    }
+
+    /**
+     * Remove a template from the caches of the configurations, for all the locales used by the renders. The state derived from the template
+     * (compiled form, model requirements) is kept with the parsed template and goes with it; the state derived from the whole configuration
+     * is only renewed if the template is an auto-include or an auto-imported library.
+     * 
+     * @param strName
+     *            The template name
+     */
+    private void removeTemplateFromCaches( String strName )
+    {
+        boolean bAutoLoaded = false;
+        _lTemplateInvalidations.incrementAndGet( );
+
         for ( Configuration cfg : _mapConfigurations.values( ) )
         {
-            cfg.clearTemplateCache( );
+            try
+            {
+                cfg.removeTemplateFromCache( strName );
+
+                for ( Locale locale : _mapLocaleRenderSettings.keySet( ) )
+                {
+                    cfg.removeTemplateFromCache( strName, locale );
+                }
+            }
+            catch( IOException e )
+            {
+                throw new LuteceFreemarkerException( e.getMessage( ), e );
+            }
+
+            bAutoLoaded = bAutoLoaded || cfg.getAutoIncludes( ).contains( strName ) || cfg.getAutoImports( ).containsValue( strName );
+        }
+
+        // the snapshot of the auto-imported libraries and the compiled templates folding the auto-includes are renewed
+        if ( bAutoLoaded )
+        {
+            _lConfigurationRevision.incrementAndGet( );
+        }
+    }
+
+    /**
+     * Read the content of a template provided as a string
+     * 
+     * @param stringLoader
+     *            The string template loader
+     * @param source
+     *            The template source
+     * @return The content or null if it can not be read
+     */
+    private static String readStringTemplate( StringTemplateLoader stringLoader, Object source )
+    {
+        try
+        {
+            return PipelineTemplateLoader.read( stringLoader.getReader( source, StandardCharsets.UTF_8.name( ) ) );
+        }
+        catch( IOException e )
+        {
+            return null;
+        }
+    }
+
+    /**
+     * Ignore the sources of the shared source cache read until now, so the reset reloads the files even if their modification time has not
+     * changed. The cache is left as is for the other services sharing it.
+     */
+    private void clearSharedSourceCache( )
+    {
+        SharedSourceCache sharedSourceCache = _sharedSourceCache;
+
+        if ( sharedSourceCache != null )
+        {
+            _lSharedSourceReset = sharedSourceCache.getSequence( );
+        }
+    }
+
+    /**
+     * Schedule a soft reset in the background, after the pending one
+     * 
+     * @param bKeepConfiguration
+     *            true to only renew the template cache (resetCache), false to renew the configuration (resetConfiguration)
+     */
+    private synchronized void scheduleSoftReset( boolean bKeepConfiguration )
+    {
+        _pendingReset = _pendingReset.handle( ( result, ex ) -> (Void) null ).thenRunAsync( ( ) -> softReset( bKeepConfiguration ),
+                getSoftResetExecutor( ) );
+    }
+
+    /**
+     * Build a new generation of the configurations, warm it with the recently requested templates and switch to it. The current configurations
+     * keep serving the renders until the switch, and the configurations, auto-includes and auto-imports added meanwhile are carried over to the new
+     * generation.
+     * 
+     * @param bKeepConfiguration
+     *            true to only renew the template cache (resetCache), false to renew the configuration (resetConfiguration)
+     */
+    private void softReset( boolean bKeepConfiguration )
+    {
+        Map<String, Configuration> mapOldConfigurations = _mapConfigurations;
+        Map<String, Configuration> mapNewConfigurations = new ConcurrentHashMap<>( );
+        Map<String, List<String>> mapOldAutoIncludes = new HashMap<>( );
+        Map<String, Map<String, String>> mapOldAutoImports = new HashMap<>( );
+        List<TemplateKey> listWorkingSet = _workingSet.getHotSet( MAX_WARM_TEMPLATES );
+
+        for ( Entry<String, Configuration> entry : mapOldConfigurations.entrySet( ) )
+        {
+            Configuration cfgOld = entry.getValue( );
+            Configuration cfg;
+
+            synchronized( this )
+            {
+                mapOldAutoIncludes.put( entry.getKey( ), new ArrayList<>( cfgOld.getAutoIncludes( ) ) );
+                mapOldAutoImports.put( entry.getKey( ), new LinkedHashMap<>( cfgOld.getAutoImports( ) ) );
+            }
+
+            if ( bKeepConfiguration )
+            {
+                // a new template cache on the same loaders, with the auto-includes and auto-imports added since the initialization
+                cfg = createConfiguration( entry.getKey( ), Locale.getDefault( ), (PipelineTemplateLoader) cfgOld.getTemplateLoader( ) );
+                cfg.setAutoIncludes( mapOldAutoIncludes.get( entry.getKey( ) ) );
+                cfg.setAutoImports( mapOldAutoImports.get( entry.getKey( ) ) );
+            }
+            else
+            {
+                cfg = createConfiguration( entry.getKey( ), Locale.getDefault( ), null );
+                copyStringTemplates( cfgOld, cfg, listWorkingSet );
+            }
+
+            warmUp( cfg, listWorkingSet );
+            mapNewConfigurations.put( entry.getKey( ), cfg );
+        }
+
+        synchronized( this )
+        {
+            // the changes made during the rebuild, under the same lock as the switch
+            for ( Entry<String, Configuration> entry : _mapConfigurations.entrySet( ) )
+            {
+                String strPath = entry.getKey( );
+
+                if ( entry.getValue( ) != mapOldConfigurations.get( strPath ) )
+                {
+                    // initialized during the rebuild : already a new configuration
+                    mapNewConfigurations.put( strPath, entry.getValue( ) );
+                }
+                else
+                {
+                    replayAutoIncludesAndImports( entry.getValue( ), mapNewConfigurations.get( strPath ), mapOldAutoIncludes.get( strPath ),
+                            mapOldAutoImports.get( strPath ) );
+                }
+            }
+
+            _mapConfigurations = mapNewConfigurations;
+        }
+
+        if ( !bKeepConfiguration )
+        {
+            _mapLocaleRenderSettings.clear( );
+            _defaultRenderSettings = null;
+        }
+
+        _lConfigurationRevision.incrementAndGet( );
+    }
+
+    /**
+     * Apply to a configuration the auto-includes and auto-imports added to or removed from another configuration since a previous state
+     * 
+     * @param cfgFrom
+     *            The changed configuration
+     * @param cfgTo
+     *            The configuration to update
+     * @param listAutoIncludes
+     *            The previous auto-includes of the changed configuration
+     * @param mapAutoImports
+     *            The previous auto-imports of the changed configuration
+     */
+    private static void replayAutoIncludesAndImports( Configuration cfgFrom, Configuration cfgTo, List<String> listAutoIncludes,
+            Map<String, String> mapAutoImports )
+    {
+        List<String> listCurrentIncludes = cfgFrom.getAutoIncludes( );
+        Map<String, String> mapCurrentImports = cfgFrom.getAutoImports( );
+
+        for ( String strFile : listAutoIncludes )
+        {
+            if ( !listCurrentIncludes.contains( strFile ) )
+            {
+                cfgTo.removeAutoInclude( strFile );
+            }
+        }
+
+        for ( String strFile : listCurrentIncludes )
+        {
+            if ( !listAutoIncludes.contains( strFile ) )
+            {
+                cfgTo.addAutoInclude( strFile );
+            }
+        }
+
+        for ( Entry<String, String> entry : mapAutoImports.entrySet( ) )
+        {
+            if ( !entry.getValue( ).equals( mapCurrentImports.get( entry.getKey( ) ) ) )
+            {
+                cfgTo.removeAutoImport( entry.getKey( ) );
+            }
+        }
+
+        for ( Entry<String, String> entry : mapCurrentImports.entrySet( ) )
+        {
+            if ( !entry.getValue( ).equals( mapAutoImports.get( entry.getKey( ) ) ) )
+            {
+                cfgTo.addAutoImport( entry.getKey( ), entry.getValue( ) );
+            }
+        }
+    }
+
+    /**
+     * Copy the templates provided as strings from a configuration to another
+     * 
+     * @param cfgFrom
+     *            The source configuration
+     * @param cfgTo
+     *            The target configuration
+     * @param listTemplates
+     *            The templates to copy, if they have been provided as strings
+     */
+    private static void copyStringTemplates( Configuration cfgFrom, Configuration cfgTo, List<TemplateKey> listTemplates )
+    {
+        StringTemplateLoader loaderFrom = getStringTemplateLoader( cfgFrom );
+        StringTemplateLoader loaderTo = getStringTemplateLoader( cfgTo );
+
+        for ( TemplateKey key : listTemplates )
+        {
+            Object source = loaderFrom.findTemplateSource( key.getName( ) );
+
+            if ( source != null )
+            {
+                try
+                {
+                    loaderTo.putTemplate( key.getName( ), PipelineTemplateLoader.read( loaderFrom.getReader( source, StandardCharsets.UTF_8.name( ) ) ),
+                            loaderFrom.getLastModified( source ) );
+                }
+                catch( IOException e )
+                {
+                    // the template will be provided again by the caller
+                }
+            }
+        }
+    }
+
+    /**
+     * Load templates in the cache of a configuration
+     * 
+     * @param cfg
+     *            The configuration
+     * @param listTemplates
+     *            The templates to load
+     */
+    private static void warmUp( Configuration cfg, List<TemplateKey> listTemplates )
+    {
+        for ( TemplateKey key : listTemplates )
+        {
+            try
+            {
+                if ( key.getLocale( ) == null )
+                {
+                    cfg.getTemplate( key.getName( ) );
+                }
+                else
+                {
+                    cfg.getTemplate( key.getName( ), key.getLocale( ) );
+                }
+            }
+            catch( IOException | RuntimeException e )
+            {
+                // the template has been removed or is invalid : the error is reported when it is requested
+            }
         }
     }
 
@@ -249,6 +1481,25 @@ public abstract class AbstractFreeMarkerTemplateService implements IFreeMarkerTe
         }
     }
     
+    /**
+     * Get the configuration of a path, initializing the configuration of the default path if none is available
+     * 
+     * @param strPath
+     *            The template's path
+     * @return The configuration
+     */
+    private Configuration getConfiguration( String strPath )
+    {
+        Configuration cfg = _mapConfigurations.get( strPath );
+
+        if ( cfg == null )
+        {
+            cfg = initConfig( _strDefaultPath, Locale.getDefault( ) );
+        }
+
+        return cfg;
+    }
+
     /**
      * Initialize a configuration
      * 
@@ -258,32 +1509,130 @@ public abstract class AbstractFreeMarkerTemplateService implements IFreeMarkerTe
      *            The locale
      * @return A configuration object
      */
-    private Configuration initConfig( String strPath, Locale locale )
+    private synchronized Configuration initConfig( String strPath, Locale locale )
+    {
+        // another thread may have initialized the configuration meanwhile
+        Configuration cfgExisting = _mapConfigurations.get( strPath );
+
+        if ( cfgExisting != null )
+        {
+            return cfgExisting;
+        }
+
+        Configuration cfg = createConfiguration( strPath, locale, null );
+        _mapConfigurations.put( strPath, cfg );
+
+        return cfg;
+    }
+
+    /**
+     * Create a configuration
+     * 
+     * @param strPath
+     *            The template's path
+     * @param locale
+     *            The locale
+     * @param pipeline
+     *            The template loader to use, or null to create the loaders of the path
+     * @return A configuration object
+     */
+    private Configuration createConfiguration( String strPath, Locale locale, PipelineTemplateLoader pipeline )
     {
+        Object event = TemplateEvents.beginConfiguration( );
+        boolean bNewLoaders = pipeline == null;
+
         try
         {
             Configuration cfg = buildConfiguration( locale );
-            // set the root directory for template loading
-            File directory = new File( this.getAbsolutePathFromRelativePath( strPath ) );
-            FileTemplateLoader ftl1 = new FileTemplateLoader( directory );
-            StringTemplateLoader stringLoader = new StringTemplateLoader( );
-
-            TemplateLoader [ ] loaders = new TemplateLoader [ ] {
-                    ftl1, stringLoader
-            };
-            
-            MultiTemplateLoader mtl = new MultiTemplateLoader( loaders );
-            cfg.setTemplateLoader( mtl );
-            
-            
-            _mapConfigurations.put( strPath, cfg );
+
+            if ( pipeline == null )
+            {
+                // set the root directory for template loading
+                File directory = new File( this.getAbsolutePathFromRelativePath( strPath ) );
+                TemplateLoader ftl1 = new FileTemplateLoader( directory );
+                StringTemplateLoader stringLoader = new StringTemplateLoader( );
+
+                // the files are read once for all the configurations sharing the source cache
+                if ( _sharedSourceCache != null )
+                {
+                    ftl1 = new SharedSourceTemplateLoader( ftl1, _sharedSourceCache, ( ) -> _lSharedSourceReset );
+                }
+
+                // the templates of the store are looked up last, so the string templates are not queried in the store
+                TemplateLoader [ ] loaders = ( _jdbcTemplateLoader != null ) ? new TemplateLoader [ ] {
+                        ftl1, stringLoader, _jdbcTemplateLoader
+                } : new TemplateLoader [ ] {
+                        ftl1, stringLoader
+                };
+
+                MultiTemplateLoader mtl = new MultiTemplateLoader( loaders );
+                pipeline = new PipelineTemplateLoader( mtl );
+                pipeline.setCompilationBulkhead( _compilationBulkhead );
+                pipeline.setIncludeInlining( _bIncludeInlining );
+
+                // source transformations are applied once, when the template is loaded
+                if ( _bSharedVariableFolding )
+                {
+                    Map<String, Object> mapSharedVariables = new HashMap<>( _mapSharedVariables );
+                    mapSharedVariables.keySet( ).removeAll( _mapPluginsAutoImports.keySet( ) );
+                    pipeline.addTransformer( new SharedVariableFolder( mapSharedVariables, cfg ) );
+                }
+
+                if ( _bMinifyTemplates )
+                {
+                    pipeline.addTransformer( new HtmlMinifier( ) );
+                }
+
+                for ( ITemplateSourceTransformer transformer : _listSourceTransformers )
+                {
+                    pipeline.addTransformer( transformer );
+                }
+
+                RenderAccounting accounting = _renderAccounting;
+
+                if ( accounting != null && accounting.isIncludeAccounting( ) )
+                {
+                    pipeline.addTransformer( _includeAccounting );
+                }
+            }
+
+            // called by the includes wrapped by the include accounting, only defined for the templates loaded through it
+            if ( pipeline.hasTransformer( _includeAccounting ) )
+            {
+                cfg.setSharedVariable( IncludeAccounting.DIRECTIVE_NAME, _includeAccounting );
+            }
+
+            cfg.setTemplateLoader( pipeline );
+            TemplateEvents.endConfiguration( event, strPath, bNewLoaders );
+
             return cfg;
         }
         catch( IOException | TemplateException e )
         {
             throw new LuteceFreemarkerException( e.getMessage( ), e );
         }
+    }
+
+    /**
+     * Get the loader of the templates provided as strings
+     * 
+     * @param cfg
+     *            The configuration
+     * @return The string template loader
+     */
+    private static StringTemplateLoader getStringTemplateLoader( Configuration cfg )
+    {
+        MultiTemplateLoader mtl = (MultiTemplateLoader) ( (PipelineTemplateLoader) cfg.getTemplateLoader( ) ).getDelegate( );
+
+        for ( int i = 0; i < mtl.getTemplateLoaderCount( ); i++ )
+        {
+            if ( mtl.getTemplateLoader( i ) instanceof StringTemplateLoader )
+            {
+                return (StringTemplateLoader) mtl.getTemplateLoader( i );
+            }
+        }
 
+        throw new LuteceFreemarkerException( "No string template loader configured" );
     }
 
     /**
@@ -298,7 +1647,10 @@ public abstract class AbstractFreeMarkerTemplateService implements IFreeMarkerTe
     private Configuration buildConfiguration( Locale locale ) throws TemplateException
     {
         Version version = ( _bAcceptIncompatibleImprovements ) ? Configuration.VERSION_2_3_28 : Configuration.VERSION_2_3_0;
-        Configuration cfg =  new Configuration( version );
+        Configuration cfg = new LuteceConfiguration( version, _encodedTextCache );
+
+        // the object wrapper and its class introspection cache are shared between the configurations
+        cfg.setObjectWrapper( getObjectWrapper( version ) );
 
         // add core and plugin auto-includes such as macros
         for ( String strFileName : _listPluginsAutoIncludes )
@@ -317,6 +1669,17 @@ public abstract class AbstractFreeMarkerTemplateService implements IFreeMarkerTe
             cfg.setSharedVariable( entry.getKey( ), entry.getValue( ) );
         }
 
+        if ( _bHtmlAutoEscaping )
+        {
+            cfg.setOutputFormat( LuteceHtmlOutputFormat.INSTANCE );
+        }
+
+        if ( _bFastFormatting )
+        {
+            cfg.setCustomNumberFormats( Collections.singletonMap( LuteceNumberFormatFactory.NAME, LuteceNumberFormatFactory.INSTANCE ) );
+            cfg.setCustomDateFormats( Collections.singletonMap( LuteceDateFormatFactory.NAME, LuteceDateFormatFactory.INSTANCE ) );
+        }
+
         // activate lazy auto-imports to automatically import just really used templates 
         cfg.setLazyAutoImports( true );
 
@@ -324,13 +1687,16 @@ public abstract class AbstractFreeMarkerTemplateService implements IFreeMarkerTe
         cfg.setLocalizedLookup( false );
 
         // keep control localized number formating (can cause pb on ids, and we don't want to use the ?c directive all the time)
-        cfg.setNumberFormat( NUMBER_FORMAT_PATTERN );
+        cfg.setNumberFormat( getNumberFormatString( NUMBER_FORMAT_PATTERN ) );
 
         // Used to set the default format to display a date and datetime
-        cfg.setSetting( SETTING_DATE_FORMAT, this.getDefaultPattern( locale ) );
+        cfg.setSetting( SETTING_DATE_FORMAT, getDateFormatString( this.getDefaultPattern( locale ) ) );
 
         // Time in seconds that must elapse before checking whether there is a newer version of a template file
         cfg.setTemplateUpdateDelayMilliseconds( ( ( long ) _nTemplateUpdateDelay ) * 1000L );
+
+        // keep the most used templates in memory, within a budget
+        cfg.setCacheStorage( new TieredCacheStorage( _lTemplateCacheBudget ) );
         return cfg;
     }
 
@@ -345,38 +1711,297 @@ public abstract class AbstractFreeMarkerTemplateService implements IFreeMarkerTe
      *            The HashMap model
      * @param locale
      *            The {@link Locale}
+     * @param bInterruptible
+     *            true to stop the render if the thread is interrupted
      * @return The {@link HtmlTemplate}
      */
-    private HtmlTemplate processTemplate( Configuration cfg, String strTemplate, Object rootMap, Locale locale )
+    private HtmlTemplate processTemplate( Configuration cfg, String strTemplate, Object rootMap, Locale locale, boolean bInterruptible )
     {
         HtmlTemplate template = null;
 
         try
         {
-            Template ftl;
+            StringWriter writer = new StringWriter( 1024 );
+            Writer out = bInterruptible ? new CancellableWriter( writer ) : writer;
+            renderTemplate( getTemplate( cfg, strTemplate, locale ), rootMap, locale, out );
+            template = new HtmlTemplate( writer.toString( ) );
 
-            if ( locale == null )
+            if ( _outputCompressionStage != null )
             {
-                ftl = cfg.getTemplate( strTemplate );
+                _outputCompressionStage.apply( template );
             }
-            else
+        }
+        catch( IOException | TemplateException e )
+        {
+            throw new LuteceFreemarkerException( e.getMessage( ), e );
+        }
+
+        return template;
+    }
+
+    /**
+     * Get a template from the configuration
+     * 
+     * @param cfg
+     *            The Freemarker configuration to use
+     * @param strTemplate
+     *            The template name
+     * @param locale
+     *            The {@link Locale}
+     * @return The template
+     * @throws IOException
+     *             if the template can not be loaded
+     */
+    private Template getTemplate( Configuration cfg, String strTemplate, Locale locale ) throws IOException
+    {
+        _workingSet.record( strTemplate, locale );
+
+        return lookupTemplate( cfg, strTemplate, locale );
+    }
+
+    /**
+     * Get a template from the configuration, without recording the request in the working set
+     * 
+     * @param cfg
+     *            The Freemarker configuration to use
+     * @param strTemplate
+     *            The template name
+     * @param locale
+     *            The {@link Locale}
+     * @return The template
+     * @throws IOException
+     *             if the template can not be loaded
+     */
+    private Template lookupTemplate( Configuration cfg, String strTemplate, Locale locale ) throws IOException
+    {
+        Object event = TemplateEvents.beginLookup( );
+        CompilationBulkhead bulkhead = _compilationBulkhead;
+        Template template;
+
+        if ( bulkhead != null )
+        {
+            template = bulkhead.getTemplate( cfg, strTemplate, locale );
+        }
+        else if ( locale == null )
+        {
+            template = cfg.getTemplate( strTemplate );
+        }
+        else
+        {
+            template = cfg.getTemplate( strTemplate, locale );
+        }
+
+        TemplateEvents.endLookup( event, strTemplate, locale );
+
+        return template;
+    }
+
+    /**
+     * Process a template with a model to a writer
+     * 
+     * @param ftl
+     *            The template
+     * @param rootMap
+     *            The HashMap model
+     * @param locale
+     *            The {@link Locale}
+     * @param writer
+     *            The output writer
+     * @throws IOException
+     *             if an error occurs while writing
+     * @throws TemplateException
+     *             if an error occurs while processing the template
+     */
+    private void renderTemplate( Template ftl, Object rootMap, Locale locale, Writer writer ) throws IOException, TemplateException
+    {
+        Object event = TemplateEvents.beginRender( );
+        Writer out = TemplateEvents.countOutput( event, writer );
+        RenderAccounting accounting = _renderAccounting;
+
+        if ( accounting == null )
+        {
+            renderTemplate( ftl, rootMap, locale, out, _renderLimits );
+        }
+        else
+        {
+            long lAllocatedBytes = accounting.getAllocatedBytes( );
+            long lCpuTime = accounting.getCpuTime( );
+
+            try
+            {
+                renderTemplate( ftl, rootMap, locale, out, _renderLimits );
+            }
+            finally
             {
-                ftl = cfg.getTemplate( strTemplate, locale );
+                accounting.record( ftl.getName( ), lAllocatedBytes, lCpuTime );
             }
+        }
 
-            StringWriter writer = new StringWriter( 1024 );
-            // Used to set the default format to display a date and datetime
-            ftl.setDateFormat( this.getDefaultPattern( locale ) );
+        TemplateEvents.endRender( event, ftl.getName( ), locale, out );
+    }
 
-            ftl.process( rootMap, writer );
-            template = new HtmlTemplate( writer.toString( ) );
+    /**
+     * Process a template with a model to a writer, within the render limits
+     * 
+     * @param ftl
+     *            The template
+     * @param rootMap
+     *            The HashMap model
+     * @param locale
+     *            The {@link Locale}
+     * @param writer
+     *            The output writer
+     * @param limits
+     *            The render limits, or null for no limit
+     * @throws IOException
+     *             if an error occurs while writing
+     * @throws TemplateException
+     *             if an error occurs while processing the template
+     */
+    private void renderTemplate( Template ftl, Object rootMap, Locale locale, Writer writer, RenderLimits limits ) throws IOException, TemplateException
+    {
+        if ( limits == null )
+        {
+            processEnvironment( ftl, rootMap, locale, writer );
+            return;
         }
-        catch( IOException | TemplateException e )
+
+        RenderBudget budget = RenderBudget.begin( limits );
+
+        try
         {
-            throw new LuteceFreemarkerException( e.getMessage( ), e );
+            processEnvironment( ftl, rootMap, locale, new RenderBudgetWriter( writer, budget ) );
+        }
+        catch( IOException | TemplateException | RuntimeException e )
+        {
+            // the template engine may have wrapped the breach of the budget
+            budget.rethrowBreach( );
+            throw e;
+        }
+        finally
+        {
+            budget.end( );
         }
 
-        return template;
+        // the breach may have been ignored by the template exception handler
+        budget.rethrowBreach( );
+    }
+
+    /**
+     * Create the processing environment of a template and process it
+     * 
+     * @param ftl
+     *            The template
+     * @param rootMap
+     *            The HashMap model
+     * @param locale
+     *            The {@link Locale}
+     * @param writer
+     *            The output writer
+     * @throws IOException
+     *             if an error occurs while writing
+     * @throws TemplateException
+     *             if an error occurs while processing the template
+     */
+    private void processEnvironment( Template ftl, Object rootMap, Locale locale, Writer writer ) throws IOException, TemplateException
+    {
+        if ( _nCompileThreshold > 0 && renderCompiled( ftl, rootMap, writer ) )
+        {
+            return;
+        }
+
+        Environment env = ftl.createProcessingEnvironment( rootMap, writer );
+
+        // the formats of the locale are set on the environment, so the template shared by all the locales is not modified
+        getLocaleRenderSettings( locale ).applyTo( env );
+
+        if ( _bAutoImportSnapshot )
+        {
+            updateAutoImportSnapshot( (LuteceConfiguration) ftl.getConfiguration( ) );
+        }
+
+        try
+        {
+            env.process( );
+        }
+        finally
+        {
+            // the streams left open by a <#break> or an error
+            StreamedSequence.closeOpened( env );
+        }
+    }
+
+    /**
+     * Render a template with its compiled form, compiling it once it has been rendered enough times
+     * 
+     * @param ftl
+     *            The template
+     * @param rootMap
+     *            The HashMap model
+     * @param writer
+     *            The output writer
+     * @return true if the template has been rendered, false if it must be rendered by the interpreter
+     * @throws IOException
+     *             if an error occurs
+     */
+    private boolean renderCompiled( Template ftl, Object rootMap, Writer writer ) throws IOException
+    {
+        TemplateCompilation compilation = (TemplateCompilation) ftl.getCustomAttribute( ATTRIBUTE_COMPILATION );
+
+        if ( compilation == null )
+        {
+            synchronized( ftl )
+            {
+                compilation = (TemplateCompilation) ftl.getCustomAttribute( ATTRIBUTE_COMPILATION );
+
+                if ( compilation == null )
+                {
+                    compilation = new TemplateCompilation( );
+                    ftl.setCustomAttribute( ATTRIBUTE_COMPILATION, compilation );
+                }
+            }
+        }
+
+        CompiledTemplate compiled = compilation.getCompiledTemplate( ftl, _nCompileThreshold, _lConfigurationRevision.get( ) );
+
+        if ( compiled == null )
+        {
+            return false;
+        }
+
+        if ( compiled.render( rootMap, writer ) )
+        {
+            _lCompiledRenders.incrementAndGet( );
+
+            return true;
+        }
+
+        _lInterpretedRenders.incrementAndGet( );
+
+        return false;
+    }
+
+    /**
+     * Take the snapshot of the auto-imported libraries of a configuration if the configuration has changed
+     * 
+     * @param cfg
+     *            The configuration
+     * @return The snapshot
+     */
+    private AutoImportSnapshot updateAutoImportSnapshot( LuteceConfiguration cfg )
+    {
+        long lRevision = _lConfigurationRevision.get( );
+        AutoImportSnapshot snapshot = cfg.getAutoImportSnapshot( );
+
+        if ( snapshot == null || snapshot.getRevision( ) != lRevision )
+        {
+            // the libraries of the new snapshot are looked up in the template cache, not in the previous snapshot
+            cfg.setAutoImportSnapshot( null );
+            snapshot = new AutoImportSnapshot( cfg, lRevision );
+            cfg.setAutoImportSnapshot( snapshot );
+        }
+
+        return snapshot;
     }
 
     /**
@@ -398,11 +2023,24 @@ public abstract class AbstractFreeMarkerTemplateService implements IFreeMarkerTe
      */
     @Override
     public void addAutoInclude( String strFile )
+    {
+        doAddAutoInclude( strFile );
+        publishInvalidation( TemplateInvalidationEvent.Type.AUTO_INCLUDE_ADDED, strFile, null, null );
+    }
+
+    /**
+     * Add an auto include file, without notifying the other nodes
+     * 
+     * @param strFile
+     *            The file to add
+     */
+    private synchronized void doAddAutoInclude( String strFile )
     {
         Configuration cfg = _mapConfigurations.get( _strDefaultPath );
         if ( cfg != null )
         {
             cfg.addAutoInclude( strFile );
+            _lConfigurationRevision.incrementAndGet( );
         }
     }
 
@@ -411,11 +2049,24 @@ public abstract class AbstractFreeMarkerTemplateService implements IFreeMarkerTe
      */
     @Override
     public void removeAutoInclude( String strFile )
+    {
+        doRemoveAutoInclude( strFile );
+        publishInvalidation( TemplateInvalidationEvent.Type.AUTO_INCLUDE_REMOVED, strFile, null, null );
+    }
+
+    /**
+     * Remove an auto include file, without notifying the other nodes
+     * 
+     * @param strFile
+     *            The file to remove
+     */
+    private synchronized void doRemoveAutoInclude( String strFile )
     {
         Configuration cfg = _mapConfigurations.get( _strDefaultPath );
         if ( cfg != null )
         {
             cfg.removeAutoInclude( strFile );
+            _lConfigurationRevision.incrementAndGet( );
         }
     }
 
@@ -438,11 +2089,26 @@ public abstract class AbstractFreeMarkerTemplateService implements IFreeMarkerTe
      */
     @Override
     public void addAutoImport( String strNamespace, String strFile )
+    {
+        doAddAutoImport( strNamespace, strFile );
+        publishInvalidation( TemplateInvalidationEvent.Type.AUTO_IMPORT_ADDED, strFile, strNamespace, null );
+    }
+
+    /**
+     * Add an auto import file, without notifying the other nodes
+     * 
+     * @param strNamespace
+     *            The namespace corresponding to the import file
+     * @param strFile
+     *            The file to add
+     */
+    private synchronized void doAddAutoImport( String strNamespace, String strFile )
     {
         Configuration cfg = _mapConfigurations.get( _strDefaultPath );
         if ( cfg != null )
         {
             cfg.addAutoImport( strNamespace, strFile );
+            _lConfigurationRevision.incrementAndGet( );
         }
     }
 
@@ -451,11 +2117,24 @@ public abstract class AbstractFreeMarkerTemplateService implements IFreeMarkerTe
      */
     @Override
     public void removeAutoImport( String strNamespace )
+    {
+        doRemoveAutoImport( strNamespace );
+        publishInvalidation( TemplateInvalidationEvent.Type.AUTO_IMPORT_REMOVED, null, strNamespace, null );
+    }
+
+    /**
+     * Remove an auto import file, without notifying the other nodes
+     * 
+     * @param strNamespace
+     *            The namespace corresponding to the import file to remove
+     */
+    private synchronized void doRemoveAutoImport( String strNamespace )
     {
         Configuration cfg = _mapConfigurations.get( _strDefaultPath );
         if ( cfg != null )
         {
             cfg.removeAutoImport( strNamespace );
+            _lConfigurationRevision.incrementAndGet( );
         }
     }
     
@@ -492,6 +2171,53 @@ public abstract class AbstractFreeMarkerTemplateService implements IFreeMarkerTe
 
     }
 
+    /**
+     * Compilation state of a template, kept as a custom attribute of the template
+     */
+    private static final class TemplateCompilation
+    {
+        private final AtomicInteger _nRenders = new AtomicInteger( );
+        private volatile CompiledTemplate _compiled;
+        private volatile long _lUnsupportedRevision = -1;
+
+        /**
+         * Get the compiled form of the template, compiling it if it has been rendered enough times
+         * 
+         * @param ftl
+         *            The template
+         * @param nThreshold
+         *            The number of renders before the compilation
+         * @param lRevision
+         *            The current revision of the configuration
+         * @return The compiled template or null if the template is not compiled
+         * @throws IOException
+         *             if an auto-include can not be loaded
+         */
+        CompiledTemplate getCompiledTemplate( Template ftl, int nThreshold, long lRevision ) throws IOException
+        {
+            CompiledTemplate compiled = _compiled;
+
+            if ( compiled != null && compiled.isValid( ftl, lRevision ) )
+            {
+                return compiled;
+            }
+
+            if ( _lUnsupportedRevision == lRevision || _nRenders.incrementAndGet( ) < nThreshold )
+            {
+                return null;
+            }
+
+            // the auto-includes may have changed since the last compilation
+            compiled = CompiledTemplate.compile( ftl, lRevision );
+
+            if ( compiled == null )
+            {
+                _lUnsupportedRevision = lRevision;
+            }
 
+            _compiled = compiled;
 
+            return compiled;
+        }
+    }
 }
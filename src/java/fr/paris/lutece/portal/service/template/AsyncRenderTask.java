@@ -0,0 +1,247 @@
+/*
+ * Copyright (c) 2002-2020, City of Paris
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ *
+ *  1. Redistributions of source code must retain the above copyright notice
+ *     and the following disclaimer.
+ *
+ *  2. Redistributions in binary form must reproduce the above copyright notice
+ *     and the following disclaimer in the documentation and/or other materials
+ *     provided with the distribution.
+ *
+ *  3. Neither the name of 'Mairie de Paris' nor 'Lutece' nor the names of its
+ *     contributors may be used to endorse or promote products derived from
+ *     this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDERS OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ *
+ * License 1.0
+ */
+package fr.paris.lutece.portal.service.template;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Supplier;
+
+/**
+ * Render of a template run on an executor. Unlike a plain {@link CompletableFuture}, cancelling the future or reaching its timeout interrupts the
+ * rendering thread, so the render stops at its next write or loop iteration. Only the interruption caused by the task is cleared once the render
+ * has ended.
+ *
+ * @param <T>
+ *            The type of the result
+ */
+public class AsyncRenderTask<T> extends CompletableFuture<T> implements Runnable
+{
+    private final Supplier<T> _render;
+    private final Object _lock = new Object( );
+    private Thread _thread;
+    private boolean _bInterrupted;
+
+    /**
+     * Constructor
+     * 
+     * @param render
+     *            The render to run
+     */
+    AsyncRenderTask( Supplier<T> render )
+    {
+        _render = render;
+    }
+
+    /**
+     * Submit a render to an executor
+     * 
+     * @param <T>
+     *            The type of the result
+     * @param render
+     *            The render to run
+     * @param executor
+     *            The executor
+     * @param scheduler
+     *            The scheduler of the timeout, used only with a timeout
+     * @param lTimeoutMillis
+     *            The timeout in milliseconds, or 0 for no timeout
+     * @return The future result of the render
+     */
+    static <T> AsyncRenderTask<T> submit( Supplier<T> render, Executor executor, Supplier<ScheduledExecutorService> scheduler, long lTimeoutMillis )
+    {
+        AsyncRenderTask<T> task = new AsyncRenderTask<>( render );
+
+        if ( lTimeoutMillis > 0 )
+        {
+            ScheduledFuture<?> timeout;
+
+            try
+            {
+                timeout = scheduler.get( ).schedule( ( ) -> task.timeout( lTimeoutMillis ), lTimeoutMillis,
+                        TimeUnit.MILLISECONDS );
+            }
+            catch( RejectedExecutionException e )
+            {
+                task.completeExceptionally( e );
+                return task;
+            }
+
+            task.whenComplete( ( result, ex ) -> timeout.cancel( false ) );
+        }
+
+        try
+        {
+            executor.execute( task );
+        }
+        catch( RejectedExecutionException e )
+        {
+            task.completeExceptionally( e );
+        }
+
+        return task;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void run( )
+    {
+        synchronized( _lock )
+        {
+            // a task cancelled or timed out before it started is not run, and a later cancellation sees the thread to interrupt
+            if ( isDone( ) )
+            {
+                return;
+            }
+
+            _thread = Thread.currentThread( );
+        }
+
+        try
+        {
+            complete( _render.get( ) );
+        }
+        catch( RuntimeException | Error e )
+        {
+            completeExceptionally( e );
+        }
+        finally
+        {
+            synchronized( _lock )
+            {
+                _thread = null;
+
+                // do not leak the interruption of the task to the next task of the executor's thread
+                if ( _bInterrupted )
+                {
+                    Thread.interrupted( );
+                }
+            }
+        }
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public boolean cancel( boolean bMayInterruptIfRunning )
+    {
+        boolean bCancelled = super.cancel( bMayInterruptIfRunning );
+
+        if ( bCancelled && bMayInterruptIfRunning )
+        {
+            interrupt( );
+        }
+
+        return bCancelled;
+    }
+
+    /**
+     * Fail the render with a {@link TimeoutException} and interrupt it
+     * 
+     * @param lTimeoutMillis
+     *            The timeout in milliseconds
+     */
+    private void timeout( long lTimeoutMillis )
+    {
+        if ( completeExceptionally( new TimeoutException( "Template rendering timed out after " + lTimeoutMillis + " ms" ) ) )
+        {
+            interrupt( );
+        }
+    }
+
+    /**
+     * Interrupt the rendering thread, if the render is running
+     */
+    private void interrupt( )
+    {
+        synchronized( _lock )
+        {
+            // a thread already interrupted by someone else keeps its interruption
+            if ( _thread != null && !_thread.isInterrupted( ) )
+            {
+                _bInterrupted = true;
+                _thread.interrupt( );
+            }
+        }
+    }
+
+    /**
+     * Create the pool of the asynchronous renders used when no executor is set: daemon threads dedicated to the renders, bounded to the number of
+     * processors, so the blocking renders and their interruptions do not reach the threads of the common fork join pool. The pool belongs to the
+     * service creating it, which shuts it down on release.
+     * 
+     * @return The pool
+     */
+    static ExecutorService newRenderPool( )
+    {
+        AtomicInteger nThreadCount = new AtomicInteger( );
+
+        return Executors.newFixedThreadPool( Runtime.getRuntime( ).availableProcessors( ), runnable -> {
+            Thread thread = new Thread( runnable, "freemarker-render-" + nThreadCount.incrementAndGet( ) );
+            thread.setDaemon( true );
+            return thread;
+        } );
+    }
+
+    /**
+     * Create the scheduler of the timeouts of the renders: a single daemon thread. The scheduler belongs to the service creating it, which shuts it
+     * down on release.
+     * 
+     * @return The scheduler
+     */
+    static ScheduledExecutorService newTimeoutScheduler( )
+    {
+        ScheduledThreadPoolExecutor scheduler = new ScheduledThreadPoolExecutor( 1, runnable -> {
+            Thread thread = new Thread( runnable, "freemarker-render-timeout" );
+            thread.setDaemon( true );
+            return thread;
+        } );
+
+        // the timeouts of the renders completed in time do not stay in the queue until their delay
+        scheduler.setRemoveOnCancelPolicy( true );
+
+        return scheduler;
+    }
+}
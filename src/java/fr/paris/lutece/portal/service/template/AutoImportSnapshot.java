@@ -0,0 +1,214 @@
+/*
+ * Copyright (c) 2002-2020, City of Paris
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ *
+ *  1. Redistributions of source code must retain the above copyright notice
+ *     and the following disclaimer.
+ *
+ *  2. Redistributions in binary form must reproduce the above copyright notice
+ *     and the following disclaimer in the documentation and/or other materials
+ *     provided with the distribution.
+ *
+ *  3. Neither the name of 'Mairie de Paris' nor 'Lutece' nor the names of its
+ *     contributors may be used to endorse or promote products derived from
+ *     this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDERS OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ *
+ * License 1.0
+ */
+package fr.paris.lutece.portal.service.template;
+
+import java.io.IOException;
+import java.util.Collections;
+import java.util.Enumeration;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.atomic.LongAdder;
+
+import freemarker.core.TemplateElement;
+import freemarker.template.Configuration;
+import freemarker.template.Template;
+
+/**
+ * Snapshot of the auto-imported libraries of a configuration, taken once per configuration revision.
+ * The libraries made only of macros and functions are loaded and parsed when the snapshot is taken. The lazy auto-imports of the configuration
+ * still bind the namespaces of a render, and only initialize the namespaces the render uses : the configuration then gets the libraries from the
+ * snapshot, without any template lookup, freshness check or parsing. The other libraries, and the libraries that fail to load when the snapshot is
+ * taken, are looked up as usual, so a broken library only fails the renders using it.
+ */
+public class AutoImportSnapshot
+{
+    private static final String NODE_MACRO = "Macro";
+    private static final String NODE_COMMENT = "Comment";
+    private static final String NODE_TEXT = "TextBlock";
+    private static final String NODE_MIXED_CONTENT = "MixedContent";
+
+    private final long _lRevision;
+    private final Map<String, Template> _mapMacroLibraries = new LinkedHashMap<>( );
+    private final Map<String, Template> _mapLibrariesByName = new HashMap<>( );
+    private final Set<String> _setSkippedLibraries = new LinkedHashSet<>( );
+    private final LongAdder _lImports = new LongAdder( );
+
+    /**
+     * Constructor
+     * 
+     * @param cfg
+     *            The configuration
+     * @param lRevision
+     *            The revision of the configuration
+     */
+    public AutoImportSnapshot( Configuration cfg, long lRevision )
+    {
+        _lRevision = lRevision;
+
+        for ( Map.Entry<String, String> entry : cfg.getAutoImports( ).entrySet( ) )
+        {
+            Template library;
+
+            try
+            {
+                library = cfg.getTemplate( entry.getValue( ) );
+            }
+            catch( IOException e )
+            {
+                // missing or invalid library : left to the lazy import, which only fails if a render uses its namespace
+                _setSkippedLibraries.add( entry.getKey( ) );
+
+                continue;
+            }
+
+            if ( isMacroLibrary( library ) )
+            {
+                _mapMacroLibraries.put( entry.getKey( ), library );
+                _mapLibrariesByName.put( library.getName( ), library );
+            }
+        }
+    }
+
+    /**
+     * Returns the revision of the configuration when the snapshot was taken
+     * 
+     * @return The revision
+     */
+    public long getRevision( )
+    {
+        return _lRevision;
+    }
+
+    /**
+     * Returns the libraries made only of macros and functions, by namespace
+     * 
+     * @return The libraries
+     */
+    public Map<String, Template> getMacroLibraries( )
+    {
+        return Collections.unmodifiableMap( _mapMacroLibraries );
+    }
+
+    /**
+     * Returns the namespaces of the libraries that could not be loaded when the snapshot was taken
+     * 
+     * @return The namespaces
+     */
+    public Set<String> getSkippedLibraries( )
+    {
+        return Collections.unmodifiableSet( _setSkippedLibraries );
+    }
+
+    /**
+     * Get a macro library of the snapshot, when the namespace of a render importing it is initialized
+     * 
+     * @param strName
+     *            The normalized name of the library
+     * @return The library, or null if it is not a macro library of the snapshot
+     */
+    public Template getLibrary( String strName )
+    {
+        Template library = _mapLibrariesByName.get( strName );
+
+        if ( library != null )
+        {
+            _lImports.increment( );
+        }
+
+        return library;
+    }
+
+    /**
+     * Returns the number of namespaces initialized with a library of the snapshot
+     * 
+     * @return The number of imports
+     */
+    public long getImportCount( )
+    {
+        return _lImports.sum( );
+    }
+
+    /**
+     * Checks if a template only contains macro and function definitions, comments and whitespace
+     * 
+     * @param template
+     *            The template
+     * @return true if the template is a macro library
+     */
+    @SuppressWarnings( "deprecation" )
+    static boolean isMacroLibrary( Template template )
+    {
+        TemplateElement root = template.getRootTreeNode( );
+
+        if ( !NODE_MIXED_CONTENT.equals( root.getNodeName( ) ) )
+        {
+            return isDefinition( root );
+        }
+
+        Enumeration<?> children = root.children( );
+
+        while ( children.hasMoreElements( ) )
+        {
+            if ( !isDefinition( (TemplateElement) children.nextElement( ) ) )
+            {
+                return false;
+            }
+        }
+
+        return true;
+    }
+
+    /**
+     * Checks if an element is a macro or function definition, a comment or whitespace
+     * 
+     * @param element
+     *            The element
+     * @return true if the element has no effect other than defining macros
+     */
+    @SuppressWarnings( "deprecation" )
+    private static boolean isDefinition( TemplateElement element )
+    {
+        String strNodeName = element.getNodeName( );
+
+        if ( NODE_TEXT.equals( strNodeName ) )
+        {
+            return element.getCanonicalForm( ).trim( ).isEmpty( );
+        }
+
+        return NODE_MACRO.equals( strNodeName ) || NODE_COMMENT.equals( strNodeName );
+    }
+}
@@ -0,0 +1,421 @@
+/*
+ * Copyright (c) 2002-2020, City of Paris
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ *
+ *  1. Redistributions of source code must retain the above copyright notice
+ *     and the following disclaimer.
+ *
+ *  2. Redistributions in binary form must reproduce the above copyright notice
+ *     and the following disclaimer in the documentation and/or other materials
+ *     provided with the distribution.
+ *
+ *  3. Neither the name of 'Mairie de Paris' nor 'Lutece' nor the names of its
+ *     contributors may be used to endorse or promote products derived from
+ *     this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDERS OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ *
+ * License 1.0
+ */
+package fr.paris.lutece.portal.service.template;
+
+import java.io.FilterReader;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.Reader;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Objects;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import freemarker.template.Configuration;
+import freemarker.template.Template;
+
+/**
+ * Bulkhead limiting the load of the templates when the cache is cold. Concurrent lookups of the same template by the service wait for a single
+ * lookup (single-flight) and share its result, the template or the failure, and the number of templates read and parsed at the same time is bounded
+ * by a semaphore acquired by the {@link PipelineTemplateLoader}. A lookup served by the template cache ends at once, so the waits of the cached
+ * templates are negligible.<br>
+ * The includes and imports are looked up by FreeMarker during the render, out of the service : they are bounded by the semaphore but not shared, so
+ * a template included by several templates rendered at the same time while it is missing from the cache may be parsed more than once.
+ */
+public class CompilationBulkhead
+{
+    private static final ThreadLocal<Flight> CURRENT_FLIGHT = new ThreadLocal<>( );
+
+    private final int _nMaxConcurrentCompilations;
+    private final Semaphore _semaphore;
+    private final Map<CompilationKey, Flight> _mapInFlight = new ConcurrentHashMap<>( );
+    private final AtomicInteger _nQueued = new AtomicInteger( );
+    private final AtomicLong _lCompilations = new AtomicLong( );
+    private final AtomicLong _lWaits = new AtomicLong( );
+    private final AtomicLong _lWaitNanos = new AtomicLong( );
+    private final AtomicLong _lSharedLoads = new AtomicLong( );
+
+    /**
+     * Constructor
+     * 
+     * @param nMaxConcurrentCompilations
+     *            The maximum number of templates read and parsed at the same time
+     */
+    public CompilationBulkhead( int nMaxConcurrentCompilations )
+    {
+        _nMaxConcurrentCompilations = nMaxConcurrentCompilations;
+        _semaphore = new Semaphore( nMaxConcurrentCompilations, true );
+    }
+
+    /**
+     * Get a template from a configuration. If the same template is being looked up by another thread, its lookup is awaited and its result, the
+     * template or the failure, is returned instead of looking it up again.
+     * 
+     * @param cfg
+     *            The configuration
+     * @param strName
+     *            The template name
+     * @param locale
+     *            The locale, may be null
+     * @return The template
+     * @throws IOException
+     *             if the template can not be loaded
+     */
+    public Template getTemplate( Configuration cfg, String strName, Locale locale ) throws IOException
+    {
+        if ( CURRENT_FLIGHT.get( ) != null )
+        {
+            // nested lookup, not shared, so two threads waiting for each other's lookups can not deadlock
+            return loadTemplate( cfg, strName, locale );
+        }
+
+        CompilationKey key = new CompilationKey( cfg, strName, locale );
+        Flight flight = new Flight( );
+        Flight inFlight = _mapInFlight.putIfAbsent( key, flight );
+
+        if ( inFlight != null )
+        {
+            return await( inFlight );
+        }
+
+        CURRENT_FLIGHT.set( flight );
+
+        try
+        {
+            Template template = loadTemplate( cfg, strName, locale );
+            flight.complete( template );
+
+            return template;
+        }
+        catch( IOException | RuntimeException | Error e )
+        {
+            flight.completeExceptionally( e );
+            throw e;
+        }
+        finally
+        {
+            CURRENT_FLIGHT.remove( );
+            _mapInFlight.remove( key, flight );
+        }
+    }
+
+    /**
+     * Await the lookup of a template by another thread
+     * 
+     * @param flight
+     *            The lookup
+     * @return The template
+     * @throws IOException
+     *             if the lookup has failed, or the thread is interrupted while waiting
+     */
+    private Template await( Flight flight ) throws IOException
+    {
+        try
+        {
+            return flight.get( );
+        }
+        catch( InterruptedException e )
+        {
+            Thread.currentThread( ).interrupt( );
+            throw new InterruptedIOException( "Interrupted while waiting for the load of a template" );
+        }
+        catch( ExecutionException e )
+        {
+            Throwable cause = e.getCause( );
+
+            if ( cause instanceof IOException )
+            {
+                throw (IOException) cause;
+            }
+
+            if ( cause instanceof Error )
+            {
+                throw (Error) cause;
+            }
+
+            throw (RuntimeException) cause;
+        }
+        finally
+        {
+            // only the lookups that have read and parsed the template count as shared loads
+            if ( flight._bCompiled )
+            {
+                _lSharedLoads.incrementAndGet( );
+                TemplateEvents.awaitLoad( );
+            }
+        }
+    }
+
+    /**
+     * Acquire a compilation permit, waiting if the maximum number of concurrent compilations is reached
+     * 
+     * @throws IOException
+     *             if the thread is interrupted while waiting
+     */
+    void acquire( ) throws IOException
+    {
+        if ( !_semaphore.tryAcquire( ) )
+        {
+            long lStart = System.nanoTime( );
+            _nQueued.incrementAndGet( );
+
+            try
+            {
+                _semaphore.acquire( );
+            }
+            catch( InterruptedException e )
+            {
+                Thread.currentThread( ).interrupt( );
+                throw new InterruptedIOException( "Interrupted while waiting for a template compilation permit" );
+            }
+            finally
+            {
+                _nQueued.decrementAndGet( );
+                _lWaits.incrementAndGet( );
+                _lWaitNanos.addAndGet( System.nanoTime( ) - lStart );
+            }
+        }
+
+        _lCompilations.incrementAndGet( );
+
+        Flight flight = CURRENT_FLIGHT.get( );
+
+        if ( flight != null )
+        {
+            flight._bCompiled = true;
+        }
+    }
+
+    /**
+     * Release a compilation permit
+     */
+    void release( )
+    {
+        _semaphore.release( );
+    }
+
+    /**
+     * Wrap the reader of a template source to release the compilation permit when it is closed, once the template has been parsed
+     * 
+     * @param reader
+     *            The reader of the template source
+     * @return The reader releasing the permit on close
+     */
+    Reader releaseOnClose( Reader reader )
+    {
+        return new PermitReader( reader );
+    }
+
+    /**
+     * Returns the maximum number of templates read and parsed at the same time
+     * 
+     * @return The maximum number of concurrent compilations
+     */
+    public int getMaxConcurrentCompilations( )
+    {
+        return _nMaxConcurrentCompilations;
+    }
+
+    /**
+     * Returns the number of threads currently waiting for a compilation permit
+     * 
+     * @return The queue length
+     */
+    public int getQueueLength( )
+    {
+        return _nQueued.get( );
+    }
+
+    /**
+     * Returns the number of templates read and parsed
+     * 
+     * @return The number of compilations
+     */
+    public long getCompilationCount( )
+    {
+        return _lCompilations.get( );
+    }
+
+    /**
+     * Returns the number of compilations that had to wait for a permit
+     * 
+     * @return The number of waits
+     */
+    public long getWaitCount( )
+    {
+        return _lWaits.get( );
+    }
+
+    /**
+     * Returns the total time spent waiting for a permit
+     * 
+     * @return The total wait time in milliseconds
+     */
+    public long getTotalWaitMillis( )
+    {
+        return _lWaitNanos.get( ) / 1000000L;
+    }
+
+    /**
+     * Returns the number of lookups that awaited the load of the same template by another thread
+     * 
+     * @return The number of shared loads
+     */
+    public long getSharedLoadCount( )
+    {
+        return _lSharedLoads.get( );
+    }
+
+    /**
+     * Get a template from a configuration
+     * 
+     * @param cfg
+     *            The configuration
+     * @param strName
+     *            The template name
+     * @param locale
+     *            The locale, may be null
+     * @return The template
+     * @throws IOException
+     *             if the template can not be loaded
+     */
+    private static Template loadTemplate( Configuration cfg, String strName, Locale locale ) throws IOException
+    {
+        return ( locale == null ) ? cfg.getTemplate( strName ) : cfg.getTemplate( strName, locale );
+    }
+
+    /**
+     * Reader releasing the compilation permit when it is closed
+     */
+    private final class PermitReader extends FilterReader
+    {
+        private boolean _bReleased;
+
+        /**
+         * Constructor
+         * 
+         * @param in
+         *            The reader of the template source
+         */
+        PermitReader( Reader in )
+        {
+            super( in );
+        }
+
+        /**
+         * {@inheritDoc}
+         */
+        @Override
+        public void close( ) throws IOException
+        {
+            try
+            {
+                super.close( );
+            }
+            finally
+            {
+                if ( !_bReleased )
+                {
+                    _bReleased = true;
+                    release( );
+                }
+            }
+        }
+    }
+
+    /**
+     * Lookup of a template by a thread, awaited by the concurrent lookups of the same template
+     */
+    private static final class Flight extends CompletableFuture<Template>
+    {
+        private volatile boolean _bCompiled;
+    }
+
+    /**
+     * Key of a template lookup : the configuration, the name and the locale of the template
+     */
+    private static final class CompilationKey
+    {
+        private final Configuration _cfg;
+        private final String _strName;
+        private final Locale _locale;
+
+        /**
+         * Constructor
+         * 
+         * @param cfg
+         *            The configuration
+         * @param strName
+         *            The template name
+         * @param locale
+         *            The locale, may be null
+         */
+        CompilationKey( Configuration cfg, String strName, Locale locale )
+        {
+            _cfg = cfg;
+            _strName = strName;
+            _locale = locale;
+        }
+
+        /**
+         * {@inheritDoc}
+         */
+        @Override
+        public boolean equals( Object obj )
+        {
+            if ( !( obj instanceof CompilationKey ) )
+            {
+                return false;
+            }
+
+            CompilationKey key = (CompilationKey) obj;
+
+            return _cfg == key._cfg && _strName.equals( key._strName ) && Objects.equals( _locale, key._locale );
+        }
+
+        /**
+         * {@inheritDoc}
+         */
+        @Override
+        public int hashCode( )
+        {
+            return ( System.identityHashCode( _cfg ) * 31 + _strName.hashCode( ) ) * 31 + Objects.hashCode( _locale );
+        }
+    }
+}
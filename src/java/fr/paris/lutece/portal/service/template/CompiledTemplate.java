@@ -0,0 +1,2070 @@
+/*
+ * Copyright (c) 2002-2020, City of Paris
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ *
+ *  1. Redistributions of source code must retain the above copyright notice
+ *     and the following disclaimer.
+ *
+ *  2. Redistributions in binary form must reproduce the above copyright notice
+ *     and the following disclaimer in the documentation and/or other materials
+ *     provided with the distribution.
+ *
+ *  3. Neither the name of 'Mairie de Paris' nor 'Lutece' nor the names of its
+ *     contributors may be used to endorse or promote products derived from
+ *     this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDERS OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ *
+ * License 1.0
+ */
+package fr.paris.lutece.portal.service.template;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.text.Collator;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Deque;
+import java.util.Enumeration;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.regex.Pattern;
+
+import freemarker.core.MarkupOutputFormat;
+import freemarker.core.OutputFormat;
+import freemarker.core.TemplateElement;
+import freemarker.template.Configuration;
+import freemarker.template.Template;
+import freemarker.template.TemplateModel;
+import freemarker.template.TemplateModelAdapter;
+import freemarker.template.utility.StringUtil;
+
+/**
+ * Compiled form of a template, made of static text, interpolations, #if / #elseif / #else and #list ... as ... directives. The template is
+ * turned once into a tree of segments that write the static text and the values straight to the output, without walking the FreeMarker AST.
+ * The expressions are read from the canonical forms of the AST nodes and may be paths of model variables, string and boolean literals, the
+ * ==, !=, &amp;&amp;, || and ! operators, the ?? and ! (default value) operators and the ?has_content, ?html, ?esc and ?no_esc built-ins. With
+ * the HTML auto-escaping, the values are escaped as the interpreter does.
+ * A render falls back to the interpreter when a value is not supported (ie: numbers and dates whose formatting depends on the settings, Java
+ * beans, shared variables, missing values raising an error) : the output is only written once the whole template has been evaluated.
+ * The text of the auto-included macro libraries is folded into the static text, so the compiled form is checked against the auto-includes loaded
+ * by the template cache, which are reloaded when their source is modified.
+ */
+public final class CompiledTemplate
+{
+    private static final String NODE_TEXT = "TextBlock";
+    private static final String NODE_INTERPOLATION = "DollarVariable";
+    private static final String NODE_MIXED_CONTENT = "MixedContent";
+    private static final String NODE_IF = "IfBlock";
+    private static final String NODE_CONDITIONAL = "ConditionalBlock";
+    private static final String NODE_LIST = "IteratorBlock";
+    private static final String NODE_COMMENT = "Comment";
+    private static final String NODE_TRIM = "TrimInstruction";
+    private static final String NODE_MACRO = "Macro";
+    private static final String NOPARSE = "<#noparse>";
+    private static final String NOPARSE_END = "</#noparse>";
+    private static final String DIRECTIVE_IF = "#if ";
+    private static final String DIRECTIVE_ELSEIF = "#elseif ";
+    private static final String DIRECTIVE_ELSE = "#else";
+    private static final String DIRECTIVE_LIST = "#list ";
+    private static final String LIST_AS = " as ";
+    private static final String SUFFIX_INDEX = "_index";
+    private static final String SUFFIX_HAS_NEXT = "_has_next";
+    private static final String BUILTIN_HAS_CONTENT = "has_content";
+    private static final String BUILTIN_HTML = "html";
+    private static final String BUILTIN_ESC = "esc";
+    private static final String BUILTIN_NO_ESC = "no_esc";
+    private static final Pattern PATTERN_NAME = Pattern.compile( "[A-Za-z_][A-Za-z0-9_]*" );
+
+    /** Value of a missing variable */
+    private static final Object MISSING = new Object( );
+
+    /** Value of a variable whose parent is missing */
+    private static final Object INVALID = new Object( );
+
+    /** Value that the compiled renders do not support */
+    private static final Object UNSUPPORTED = new Object( );
+
+    private final Segment [ ] _segments;
+    private final Configuration _cfg;
+    private final Locale _locale;
+    private final long _lRevision;
+    private final String [ ] _autoIncludeNames;
+    private final Template [ ] _autoIncludes;
+    private volatile long _lNextAutoIncludesCheck;
+
+    /**
+     * Constructor
+     * 
+     * @param segments
+     *            The segments of the template
+     * @param template
+     *            The template
+     * @param lRevision
+     *            The revision of the configuration
+     * @param listAutoIncludes
+     *            The auto-includes folded into the static texts
+     */
+    private CompiledTemplate( Segment [ ] segments, Template template, long lRevision, List<Template> listAutoIncludes )
+    {
+        _segments = segments;
+        _cfg = template.getConfiguration( );
+        _locale = template.getLocale( );
+        _lRevision = lRevision;
+        _autoIncludes = listAutoIncludes.toArray( new Template [ listAutoIncludes.size( )] );
+        _autoIncludeNames = new String [ _autoIncludes.length];
+
+        for ( int i = 0; i < _autoIncludes.length; i++ )
+        {
+            _autoIncludeNames [i] = _autoIncludes [i].getName( );
+        }
+
+        _lNextAutoIncludesCheck = System.currentTimeMillis( ) + _cfg.getTemplateUpdateDelayMilliseconds( );
+    }
+
+    /**
+     * Compile a template
+     * 
+     * @param template
+     *            The template
+     * @param lRevision
+     *            The revision of the configuration
+     * @return The compiled template, or null if the template uses unsupported features
+     * @throws IOException
+     *             if an auto-include can not be loaded
+     */
+    @SuppressWarnings( "deprecation" )
+    public static CompiledTemplate compile( Template template, long lRevision ) throws IOException
+    {
+        List<Template> listAutoIncludes = new ArrayList<>( );
+        Body body = new Body( );
+        Configuration cfg = template.getConfiguration( );
+        OutputFormat outputFormat = template.getOutputFormat( );
+
+        // the values escaped by other markup formats are left to the interpreter
+        if ( outputFormat instanceof MarkupOutputFormat && outputFormat != LuteceHtmlOutputFormat.INSTANCE )
+        {
+            return null;
+        }
+
+        // the auto-included macro libraries only output their whitespace
+        for ( String strAutoInclude : cfg.getAutoIncludes( ) )
+        {
+            Template autoInclude = cfg.getTemplate( strAutoInclude, template.getLocale( ) );
+
+            if ( !AutoImportSnapshot.isMacroLibrary( autoInclude ) || !appendDefinitionsText( autoInclude, body ) )
+            {
+                return null;
+            }
+
+            listAutoIncludes.add( autoInclude );
+        }
+
+        Compiler compiler = new Compiler( template, listAutoIncludes );
+        TemplateElement root = template.getRootTreeNode( );
+
+        if ( root != null && !compiler.compileElement( root, body ) )
+        {
+            return null;
+        }
+
+        return new CompiledTemplate( body.toSegments( ), template, lRevision, listAutoIncludes );
+    }
+
+    /**
+     * Returns the revision of the configuration when the template was compiled
+     * 
+     * @return The revision
+     */
+    public long getRevision( )
+    {
+        return _lRevision;
+    }
+
+    /**
+     * Tell whether the compiled form is still valid : the configuration has not changed and the auto-includes have not been reloaded since the
+     * compilation. As the template cache does not look for a modified source more often than the template update delay, the auto-includes are
+     * looked up again at most once per delay.
+     * 
+     * @param template
+     *            The template
+     * @param lRevision
+     *            The current revision of the configuration
+     * @return true if the compiled form can be rendered
+     * @throws IOException
+     *             if an auto-include can not be loaded
+     */
+    public boolean isValid( Template template, long lRevision ) throws IOException
+    {
+        if ( _lRevision != lRevision )
+        {
+            return false;
+        }
+
+        if ( _autoIncludes.length == 0 )
+        {
+            return true;
+        }
+
+        long lNow = System.currentTimeMillis( );
+
+        if ( lNow < _lNextAutoIncludesCheck )
+        {
+            return true;
+        }
+
+        for ( int i = 0; i < _autoIncludes.length; i++ )
+        {
+            // the template cache returns a new template once the modified source has been reloaded
+            if ( _cfg.getTemplate( _autoIncludeNames [i], template.getLocale( ) ) != _autoIncludes [i] )
+            {
+                return false;
+            }
+        }
+
+        _lNextAutoIncludesCheck = lNow + _cfg.getTemplateUpdateDelayMilliseconds( );
+
+        return true;
+    }
+
+    /**
+     * Render the template. Nothing is written if a value is not supported.
+     * 
+     * @param rootMap
+     *            The model root
+     * @param out
+     *            The output writer
+     * @return true if the template has been rendered, false if the render must fall back to the interpreter
+     * @throws IOException
+     *             if an error occurs while writing
+     */
+    public boolean render( Object rootMap, Writer out ) throws IOException
+    {
+        if ( !isMap( rootMap ) )
+        {
+            return false;
+        }
+
+        RenderContext context = new RenderContext( this, (Map<?, ?>) rootMap );
+
+        if ( !renderSegments( _segments, context ) )
+        {
+            return false;
+        }
+
+        for ( Object piece : context._listPieces )
+        {
+            if ( piece instanceof char [ ] )
+            {
+                out.write( (char [ ]) piece );
+            }
+            else
+            {
+                out.write( (String) piece );
+            }
+        }
+
+        return true;
+    }
+
+    /**
+     * Render segments
+     * 
+     * @param segments
+     *            The segments
+     * @param context
+     *            The render context
+     * @return false if a value is not supported
+     */
+    private static boolean renderSegments( Segment [ ] segments, RenderContext context )
+    {
+        for ( Segment segment : segments )
+        {
+            if ( !segment.render( context ) )
+            {
+                return false;
+            }
+        }
+
+        return true;
+    }
+
+    /**
+     * Tell whether a value is a map read as a hash by the object wrapper
+     * 
+     * @param value
+     *            The value
+     * @return true if the value is a plain map
+     */
+    private static boolean isMap( Object value )
+    {
+        // the models and the adapters of models are used as they are by the object wrapper
+        return value instanceof Map && !( value instanceof TemplateModel ) && !( value instanceof TemplateModelAdapter );
+    }
+
+    /**
+     * Tell whether a value is a collection listed as a sequence by the object wrapper
+     * 
+     * @param value
+     *            The value
+     * @return true if the value is a plain collection
+     */
+    private static boolean isCollection( Object value )
+    {
+        return value instanceof Collection && !( value instanceof TemplateModel ) && !( value instanceof TemplateModelAdapter );
+    }
+
+    /**
+     * Append the text output by a macro library
+     * 
+     * @param library
+     *            The library
+     * @param body
+     *            The body receiving the text
+     * @return false if the library contains an unsupported text
+     */
+    @SuppressWarnings( "deprecation" )
+    private static boolean appendDefinitionsText( Template library, Body body )
+    {
+        TemplateElement root = library.getRootTreeNode( );
+
+        if ( root == null )
+        {
+            return true;
+        }
+
+        for ( TemplateElement element : getChildren( root, NODE_MIXED_CONTENT.equals( root.getNodeName( ) ) ) )
+        {
+            if ( NODE_TEXT.equals( element.getNodeName( ) ) )
+            {
+                String strCanonicalForm = element.getCanonicalForm( );
+
+                if ( strCanonicalForm.startsWith( NOPARSE ) )
+                {
+                    return false;
+                }
+
+                body.addText( strCanonicalForm );
+            }
+        }
+
+        return true;
+    }
+
+    /**
+     * Get the elements of a node
+     * 
+     * @param element
+     *            The node
+     * @param bChildren
+     *            true to get the children of the node, false to get the node itself
+     * @return The elements
+     */
+    @SuppressWarnings( "deprecation" )
+    private static List<TemplateElement> getChildren( TemplateElement element, boolean bChildren )
+    {
+        List<TemplateElement> listElements = new ArrayList<>( );
+
+        if ( !bChildren )
+        {
+            listElements.add( element );
+
+            return listElements;
+        }
+
+        Enumeration<?> children = element.children( );
+
+        while ( children.hasMoreElements( ) )
+        {
+            listElements.add( (TemplateElement) children.nextElement( ) );
+        }
+
+        return listElements;
+    }
+
+    /**
+     * Compiler of the nodes of a template
+     */
+    private static final class Compiler
+    {
+        private final boolean _bEscape;
+        private final boolean _bXhtmlEscaping;
+        private final Set<String> _setAutoImports;
+        private final Set<String> _setMacros = new HashSet<>( );
+        private final Deque<String> _stackLoopVariables = new ArrayDeque<>( );
+
+        /**
+         * Constructor
+         * 
+         * @param template
+         *            The template
+         * @param listAutoIncludes
+         *            The auto-included macro libraries
+         */
+        @SuppressWarnings( {
+                "unchecked", "deprecation"
+        } )
+        Compiler( Template template, List<Template> listAutoIncludes )
+        {
+            Configuration cfg = template.getConfiguration( );
+            _bEscape = template.getAutoEscaping( ) && template.getOutputFormat( ) instanceof MarkupOutputFormat;
+            _bXhtmlEscaping = cfg.getIncompatibleImprovements( ).intValue( ) >= Configuration.VERSION_2_3_20.intValue( );
+            _setAutoImports = cfg.getAutoImports( ).keySet( );
+
+            // the macros are variables of the main namespace, found before the model
+            _setMacros.addAll( template.getMacros( ).keySet( ) );
+
+            for ( Template autoInclude : listAutoIncludes )
+            {
+                _setMacros.addAll( autoInclude.getMacros( ).keySet( ) );
+            }
+        }
+
+        /**
+         * Compile a node
+         * 
+         * @param element
+         *            The node
+         * @param body
+         *            The body receiving the segments
+         * @return false if the node is not supported
+         */
+        @SuppressWarnings( "deprecation" )
+        boolean compileElement( TemplateElement element, Body body )
+        {
+            String strNodeName = element.getNodeName( );
+
+            switch( strNodeName )
+            {
+                case NODE_MIXED_CONTENT:
+                    return compileChildren( element, body );
+                case NODE_TEXT:
+                    return compileText( element.getCanonicalForm( ), body );
+                case NODE_INTERPOLATION:
+                    return compileInterpolation( element.getCanonicalForm( ), body );
+                case NODE_IF:
+                    return compileIf( getChildren( element, true ), body );
+                case NODE_CONDITIONAL:
+                    return compileIf( getChildren( element, false ), body );
+                case NODE_LIST:
+                    return compileList( element, body );
+                case NODE_COMMENT:
+                case NODE_TRIM:
+                case NODE_MACRO:
+                    // the macros are defined when the template is processed and only output where they are called
+                    return true;
+                default:
+                    return false;
+            }
+        }
+
+        /**
+         * Compile the children of a node
+         * 
+         * @param element
+         *            The node
+         * @param body
+         *            The body receiving the segments
+         * @return false if a child is not supported
+         */
+        @SuppressWarnings( "deprecation" )
+        private boolean compileChildren( TemplateElement element, Body body )
+        {
+            for ( TemplateElement child : getChildren( element, true ) )
+            {
+                if ( !compileElement( child, body ) )
+                {
+                    return false;
+                }
+            }
+
+            return true;
+        }
+
+        /**
+         * Compile a static text
+         * 
+         * @param strCanonicalForm
+         *            The canonical form of the text
+         * @param body
+         *            The body receiving the text
+         * @return true
+         */
+        private boolean compileText( String strCanonicalForm, Body body )
+        {
+            if ( strCanonicalForm.startsWith( NOPARSE ) && strCanonicalForm.endsWith( NOPARSE_END ) )
+            {
+                body.addText( strCanonicalForm.substring( NOPARSE.length( ), strCanonicalForm.length( ) - NOPARSE_END.length( ) ) );
+            }
+            else
+            {
+                body.addText( strCanonicalForm );
+            }
+
+            return true;
+        }
+
+        /**
+         * Compile an interpolation
+         * 
+         * @param strCanonicalForm
+         *            The canonical form of the interpolation : ${expression} or [=expression]
+         * @param body
+         *            The body receiving the segment
+         * @return false if the expression is not supported
+         */
+        private boolean compileInterpolation( String strCanonicalForm, Body body )
+        {
+            String strExpression;
+
+            if ( strCanonicalForm.startsWith( "${" ) && strCanonicalForm.endsWith( "}" ) )
+            {
+                strExpression = strCanonicalForm.substring( 2, strCanonicalForm.length( ) - 1 );
+            }
+            else
+                if ( strCanonicalForm.startsWith( "[=" ) && strCanonicalForm.endsWith( "]" ) )
+                {
+                    strExpression = strCanonicalForm.substring( 2, strCanonicalForm.length( ) - 1 );
+                }
+                else
+                {
+                    return false;
+                }
+
+            Expression expression = parseExpression( strExpression );
+
+            if ( expression == null )
+            {
+                return false;
+            }
+
+            body.addSegment( new Interpolation( expression, _bEscape ) );
+
+            return true;
+        }
+
+        /**
+         * Compile an #if directive and its #elseif and #else branches
+         * 
+         * @param listBranches
+         *            The branches
+         * @param body
+         *            The body receiving the segment
+         * @return false if a branch is not supported
+         */
+        @SuppressWarnings( "deprecation" )
+        private boolean compileIf( List<TemplateElement> listBranches, Body body )
+        {
+            Expression [ ] conditions = new Expression [ listBranches.size( )];
+            Segment [ ] [ ] branches = new Segment [ listBranches.size( )] [ ];
+
+            for ( int i = 0; i < conditions.length; i++ )
+            {
+                TemplateElement branch = listBranches.get( i );
+                String strDescription = branch.getDescription( );
+
+                if ( !NODE_CONDITIONAL.equals( branch.getNodeName( ) ) )
+                {
+                    return false;
+                }
+
+                if ( i == 0 && strDescription.startsWith( DIRECTIVE_IF ) )
+                {
+                    conditions [i] = parseExpression( strDescription.substring( DIRECTIVE_IF.length( ) ) );
+                }
+                else
+                    if ( i > 0 && strDescription.startsWith( DIRECTIVE_ELSEIF ) )
+                    {
+                        conditions [i] = parseExpression( strDescription.substring( DIRECTIVE_ELSEIF.length( ) ) );
+                    }
+
+                // only the last branch may be an #else branch, without condition
+                if ( conditions [i] == null && ( i == 0 || i != conditions.length - 1 || !DIRECTIVE_ELSE.equals( strDescription ) ) )
+                {
+                    return false;
+                }
+
+                Body branchBody = new Body( );
+
+                if ( !compileChildren( branch, branchBody ) )
+                {
+                    return false;
+                }
+
+                branches [i] = branchBody.toSegments( );
+            }
+
+            body.addSegment( new Conditional( conditions, branches ) );
+
+            return true;
+        }
+
+        /**
+         * Compile a #list directive
+         * 
+         * @param element
+         *            The node of the directive
+         * @param body
+         *            The body receiving the segment
+         * @return false if the directive is not supported
+         */
+        @SuppressWarnings( "deprecation" )
+        private boolean compileList( TemplateElement element, Body body )
+        {
+            String strDescription = element.getDescription( );
+            int nAs = strDescription.lastIndexOf( LIST_AS );
+
+            // the #items, #else and key-value listings are left to the interpreter
+            if ( !strDescription.startsWith( DIRECTIVE_LIST ) || nAs < DIRECTIVE_LIST.length( ) )
+            {
+                return false;
+            }
+
+            String strLoopVariable = strDescription.substring( nAs + LIST_AS.length( ) );
+            Expression listed = parseExpression( strDescription.substring( DIRECTIVE_LIST.length( ), nAs ) );
+
+            if ( listed == null || !PATTERN_NAME.matcher( strLoopVariable ).matches( ) )
+            {
+                return false;
+            }
+
+            Body loopBody = new Body( );
+            _stackLoopVariables.push( strLoopVariable );
+
+            try
+            {
+                if ( !compileChildren( element, loopBody ) )
+                {
+                    return false;
+                }
+            }
+            finally
+            {
+                _stackLoopVariables.pop( );
+            }
+
+            body.addSegment( new Listing( listed, strLoopVariable, loopBody.toSegments( ) ) );
+
+            return true;
+        }
+
+        /**
+         * Parse an expression
+         * 
+         * @param strExpression
+         *            The canonical form of the expression
+         * @return The expression, or null if it is not supported
+         */
+        private Expression parseExpression( String strExpression )
+        {
+            return new ExpressionParser( this, strExpression ).parse( );
+        }
+
+        /**
+         * Tell whether a variable can be read from the loop variables and the model
+         * 
+         * @param strName
+         *            The name of the variable
+         * @return false if the variable is an auto-imported namespace, a macro or a built-in variable of a loop
+         */
+        boolean isSupportedVariable( String strName )
+        {
+            if ( _setAutoImports.contains( strName ) || _setMacros.contains( strName ) )
+            {
+                return false;
+            }
+
+            for ( String strLoopVariable : _stackLoopVariables )
+            {
+                if ( strName.equals( strLoopVariable + SUFFIX_INDEX ) || strName.equals( strLoopVariable + SUFFIX_HAS_NEXT ) )
+                {
+                    return false;
+                }
+            }
+
+            return true;
+        }
+    }
+
+    /**
+     * Recursive descent parser of the canonical form of the supported expressions
+     */
+    private static final class ExpressionParser
+    {
+        private final Compiler _compiler;
+        private final String _strExpression;
+        private int _nPos;
+
+        /**
+         * Constructor
+         * 
+         * @param compiler
+         *            The compiler
+         * @param strExpression
+         *            The canonical form of the expression
+         */
+        ExpressionParser( Compiler compiler, String strExpression )
+        {
+            _compiler = compiler;
+            _strExpression = strExpression;
+        }
+
+        /**
+         * Parse the whole expression
+         * 
+         * @return The expression, or null if it is not supported
+         */
+        Expression parse( )
+        {
+            Expression expression = parseOr( );
+            skipSpaces( );
+
+            return ( _nPos == _strExpression.length( ) ) ? expression : null;
+        }
+
+        /**
+         * Parse a || expression
+         * 
+         * @return The expression, or null if it is not supported
+         */
+        private Expression parseOr( )
+        {
+            Expression left = parseAnd( );
+
+            while ( left != null && match( "||" ) )
+            {
+                Expression right = parseAnd( );
+                left = ( right != null ) ? new Logical( left, right, false ) : null;
+            }
+
+            return left;
+        }
+
+        /**
+         * Parse a &amp;&amp; expression
+         * 
+         * @return The expression, or null if it is not supported
+         */
+        private Expression parseAnd( )
+        {
+            Expression left = parseEquality( );
+
+            while ( left != null && match( "&&" ) )
+            {
+                Expression right = parseEquality( );
+                left = ( right != null ) ? new Logical( left, right, true ) : null;
+            }
+
+            return left;
+        }
+
+        /**
+         * Parse a ==, = or != comparison
+         * 
+         * @return The expression, or null if it is not supported
+         */
+        private Expression parseEquality( )
+        {
+            Expression left = parseUnary( );
+
+            if ( left == null )
+            {
+                return null;
+            }
+
+            boolean bEquals;
+
+            if ( match( "==" ) || match( "=" ) )
+            {
+                bEquals = true;
+            }
+            else
+                if ( match( "!=" ) )
+                {
+                    bEquals = false;
+                }
+                else
+                {
+                    return left;
+                }
+
+            Expression right = parseUnary( );
+
+            return ( right != null ) ? new Comparison( left, right, bEquals ) : null;
+        }
+
+        /**
+         * Parse a ! expression
+         * 
+         * @return The expression, or null if it is not supported
+         */
+        private Expression parseUnary( )
+        {
+            skipSpaces( );
+
+            if ( peek( 0 ) == '!' && peek( 1 ) != '=' )
+            {
+                _nPos++;
+
+                Expression operand = parseUnary( );
+
+                return ( operand != null ) ? new Not( operand ) : null;
+            }
+
+            return parsePostfix( );
+        }
+
+        /**
+         * Parse a primary expression followed by the . ?? ? and ! operators
+         * 
+         * @return The expression, or null if it is not supported
+         */
+        private Expression parsePostfix( )
+        {
+            Expression expression = parsePrimary( );
+
+            while ( expression != null )
+            {
+                char c = peek( 0 );
+
+                if ( c == '.' )
+                {
+                    _nPos++;
+
+                    String strName = parseName( );
+
+                    if ( strName == null || !( expression instanceof Variable ) )
+                    {
+                        return null;
+                    }
+
+                    expression = ( (Variable) expression ).child( strName );
+                }
+                else
+                    if ( c == '?' && peek( 1 ) == '?' )
+                    {
+                        _nPos += 2;
+                        expression = new Exists( expression );
+                    }
+                    else
+                        if ( c == '?' )
+                        {
+                            _nPos++;
+                            expression = parseBuiltIn( expression, parseName( ) );
+                        }
+                        else
+                            if ( c == '!' && peek( 1 ) != '=' )
+                            {
+                                _nPos++;
+
+                                return parseDefault( expression );
+                            }
+                            else
+                            {
+                                return expression;
+                            }
+            }
+
+            return null;
+        }
+
+        /**
+         * Parse the default value of a ! operator
+         * 
+         * @param target
+         *            The expression before the operator
+         * @return The expression, or null if it is not supported
+         */
+        private Expression parseDefault( Expression target )
+        {
+            char c = peek( 0 );
+
+            if ( c != '"' && c != '\'' )
+            {
+                // without a default value, the missing value is an empty string
+                return isOperandEnd( c ) ? new DefaultTo( target, null ) : null;
+            }
+
+            String strDefault = parseString( );
+
+            // the operators applied to the default value are left to the interpreter
+            return ( strDefault != null && isOperandEnd( peek( 0 ) ) ) ? new DefaultTo( target, strDefault ) : null;
+        }
+
+        /**
+         * Parse a built-in
+         * 
+         * @param target
+         *            The target of the built-in
+         * @param strName
+         *            The name of the built-in
+         * @return The expression, or null if the built-in is not supported
+         */
+        private Expression parseBuiltIn( Expression target, String strName )
+        {
+            if ( BUILTIN_HAS_CONTENT.equals( strName ) )
+            {
+                return new HasContent( target );
+            }
+
+            if ( BUILTIN_HTML.equals( strName ) )
+            {
+                return new Escape( target, _compiler._bXhtmlEscaping ? Escape.XHTML : Escape.HTML );
+            }
+
+            if ( BUILTIN_ESC.equals( strName ) )
+            {
+                return new Escape( target, Escape.ESC );
+            }
+
+            if ( BUILTIN_NO_ESC.equals( strName ) )
+            {
+                return new Escape( target, Escape.NO_ESC );
+            }
+
+            return null;
+        }
+
+        /**
+         * Parse a variable, a literal or a parenthetical expression
+         * 
+         * @return The expression, or null if it is not supported
+         */
+        private Expression parsePrimary( )
+        {
+            skipSpaces( );
+
+            char c = peek( 0 );
+
+            if ( c == '(' )
+            {
+                _nPos++;
+
+                Expression inner = parseOr( );
+
+                return ( inner != null && match( ")" ) ) ? new Parenthetical( inner ) : null;
+            }
+
+            if ( c == '"' || c == '\'' )
+            {
+                String strValue = parseString( );
+
+                return ( strValue != null ) ? new Literal( strValue ) : null;
+            }
+
+            String strName = parseName( );
+
+            if ( strName == null )
+            {
+                return null;
+            }
+
+            if ( "true".equals( strName ) || "false".equals( strName ) )
+            {
+                return new Literal( Boolean.valueOf( strName ) );
+            }
+
+            return _compiler.isSupportedVariable( strName ) ? new Variable( new String [ ] {
+                    strName
+            } ) : null;
+        }
+
+        /**
+         * Parse a name made of ASCII letters, digits and underscores
+         * 
+         * @return The name, or null if there is no name at the current position
+         */
+        private String parseName( )
+        {
+            int nStart = _nPos;
+
+            while ( _nPos < _strExpression.length( ) && isNameChar( _strExpression.charAt( _nPos ), _nPos == nStart ) )
+            {
+                _nPos++;
+            }
+
+            return ( _nPos > nStart ) ? _strExpression.substring( nStart, _nPos ) : null;
+        }
+
+        /**
+         * Parse a static string literal, as quoted by the canonical form
+         * 
+         * @return The value of the literal, or null if it is not supported (ie: a literal with interpolations)
+         */
+        private String parseString( )
+        {
+            char cQuote = _strExpression.charAt( _nPos++ );
+            StringBuilder sbValue = new StringBuilder( );
+
+            while ( _nPos < _strExpression.length( ) )
+            {
+                char c = _strExpression.charAt( _nPos++ );
+
+                if ( c == cQuote )
+                {
+                    return sbValue.toString( );
+                }
+
+                if ( c == '{' && _nPos >= 2 && isInterpolationStart( _strExpression.charAt( _nPos - 2 ) ) || c == '=' && _nPos >= 2
+                        && _strExpression.charAt( _nPos - 2 ) == '[' )
+                {
+                    // the canonical form of a literal escapes the interpolation starts that are not interpolations
+                    return null;
+                }
+
+                if ( c != '\\' )
+                {
+                    sbValue.append( c );
+                }
+                else
+                    if ( !appendEscape( sbValue ) )
+                    {
+                        return null;
+                    }
+            }
+
+            return null;
+        }
+
+        /**
+         * Append the character escaped after a backslash in a string literal
+         * 
+         * @param sbValue
+         *            The value of the literal
+         * @return false if the escape is invalid
+         */
+        private boolean appendEscape( StringBuilder sbValue )
+        {
+            if ( _nPos >= _strExpression.length( ) )
+            {
+                return false;
+            }
+
+            char c = _strExpression.charAt( _nPos++ );
+
+            switch( c )
+            {
+                case 'n':
+                    sbValue.append( '\n' );
+                    break;
+                case 'r':
+                    sbValue.append( '\r' );
+                    break;
+                case 't':
+                    sbValue.append( '\t' );
+                    break;
+                case 'b':
+                    sbValue.append( '\b' );
+                    break;
+                case 'f':
+                    sbValue.append( '\f' );
+                    break;
+                case 'l':
+                    sbValue.append( '<' );
+                    break;
+                case 'g':
+                    sbValue.append( '>' );
+                    break;
+                case 'a':
+                    sbValue.append( '&' );
+                    break;
+                case 'x':
+                    if ( _nPos + 4 > _strExpression.length( ) )
+                    {
+                        return false;
+                    }
+
+                    try
+                    {
+                        sbValue.append( (char) Integer.parseInt( _strExpression.substring( _nPos, _nPos + 4 ), 16 ) );
+                    }
+                    catch( NumberFormatException e )
+                    {
+                        return false;
+                    }
+
+                    _nPos += 4;
+                    break;
+                default:
+                    sbValue.append( c );
+                    break;
+            }
+
+            return true;
+        }
+
+        /**
+         * Consume a token if it is at the current position, after the spaces
+         * 
+         * @param strToken
+         *            The token
+         * @return true if the token has been consumed
+         */
+        private boolean match( String strToken )
+        {
+            skipSpaces( );
+
+            if ( _strExpression.startsWith( strToken, _nPos ) )
+            {
+                _nPos += strToken.length( );
+
+                return true;
+            }
+
+            return false;
+        }
+
+        /**
+         * Skip the spaces
+         */
+        private void skipSpaces( )
+        {
+            while ( _nPos < _strExpression.length( ) && _strExpression.charAt( _nPos ) == ' ' )
+            {
+                _nPos++;
+            }
+        }
+
+        /**
+         * Get a character after the current position
+         * 
+         * @param nOffset
+         *            The offset from the current position
+         * @return The character, or 0 after the end of the expression
+         */
+        private char peek( int nOffset )
+        {
+            return ( _nPos + nOffset < _strExpression.length( ) ) ? _strExpression.charAt( _nPos + nOffset ) : 0;
+        }
+
+        /**
+         * Tell whether a character ends an operand
+         * 
+         * @param c
+         *            The character
+         * @return true for the end of the expression, a space or a closing parenthesis
+         */
+        private static boolean isOperandEnd( char c )
+        {
+            return c == 0 || c == ' ' || c == ')';
+        }
+
+        /**
+         * Tell whether a character may be part of a supported name
+         * 
+         * @param c
+         *            The character
+         * @param bFirst
+         *            true for the first character of the name
+         * @return true if the character is an ASCII letter, an underscore or a digit after the first character
+         */
+        private static boolean isNameChar( char c, boolean bFirst )
+        {
+            return c >= 'a' && c <= 'z' || c >= 'A' && c <= 'Z' || c == '_' || !bFirst && c >= '0' && c <= '9';
+        }
+
+        /**
+         * Tell whether a character starts an interpolation when followed by a brace
+         * 
+         * @param c
+         *            The character
+         * @return true for $ and #
+         */
+        private static boolean isInterpolationStart( char c )
+        {
+            return c == '$' || c == '#';
+        }
+    }
+
+    /**
+     * Segments of the body of a template or a directive being compiled, the adjacent texts being merged
+     */
+    private static final class Body
+    {
+        private final List<Segment> _listSegments = new ArrayList<>( );
+        private final StringBuilder _sbText = new StringBuilder( );
+
+        /**
+         * Add a static text
+         * 
+         * @param strText
+         *            The text
+         */
+        void addText( String strText )
+        {
+            _sbText.append( strText );
+        }
+
+        /**
+         * Add a segment
+         * 
+         * @param segment
+         *            The segment
+         */
+        void addSegment( Segment segment )
+        {
+            flushText( );
+            _listSegments.add( segment );
+        }
+
+        /**
+         * Get the segments
+         * 
+         * @return The segments
+         */
+        Segment [ ] toSegments( )
+        {
+            flushText( );
+
+            return _listSegments.toArray( new Segment [ _listSegments.size( )] );
+        }
+
+        /**
+         * Turn the pending text into a segment
+         */
+        private void flushText( )
+        {
+            if ( _sbText.length( ) > 0 )
+            {
+                _listSegments.add( new Text( _sbText.toString( ).toCharArray( ) ) );
+                _sbText.setLength( 0 );
+            }
+        }
+    }
+
+    /**
+     * State of a render : the model, the loop variables and the pieces of output
+     */
+    private static final class RenderContext
+    {
+        private final CompiledTemplate _compiled;
+        private final Map<?, ?> _mapRoot;
+        private final RenderBudget _budget = RenderBudget.current( );
+        private final List<Object> _listPieces = new ArrayList<>( );
+        private final List<String> _listLoopNames = new ArrayList<>( );
+        private final List<Object> _listLoopValues = new ArrayList<>( );
+        private Collator _collator;
+
+        /**
+         * Constructor
+         * 
+         * @param compiled
+         *            The compiled template
+         * @param mapRoot
+         *            The model root
+         */
+        RenderContext( CompiledTemplate compiled, Map<?, ?> mapRoot )
+        {
+            _compiled = compiled;
+            _mapRoot = mapRoot;
+        }
+
+        /**
+         * Count a model value read by the render
+         */
+        void addModelValue( )
+        {
+            // the values read count against the budget of the render, as when they are wrapped by the interpreter
+            if ( _budget != null )
+            {
+                _budget.addModelValue( );
+            }
+        }
+
+        /**
+         * Look up a top level variable in the loop variables then in the model
+         * 
+         * @param strName
+         *            The name of the variable
+         * @return The value, MISSING or UNSUPPORTED
+         */
+        Object lookup( String strName )
+        {
+            for ( int i = _listLoopNames.size( ) - 1; i >= 0; i-- )
+            {
+                if ( _listLoopNames.get( i ).equals( strName ) )
+                {
+                    return _listLoopValues.get( i );
+                }
+            }
+
+            return get( _mapRoot, strName, true );
+        }
+
+        /**
+         * Read a value of a map
+         * 
+         * @param map
+         *            The map
+         * @param strKey
+         *            The key
+         * @param bTopLevel
+         *            true for the model root, whose missing values may be shared variables
+         * @return The value, MISSING or UNSUPPORTED
+         */
+        Object get( Map<?, ?> map, String strKey, boolean bTopLevel )
+        {
+            addModelValue( );
+
+            Object value = map.get( strKey );
+
+            if ( value != null )
+            {
+                return value;
+            }
+
+            // the wrapped maps also look up the one character keys as characters
+            if ( strKey.length( ) == 1 || bTopLevel && _compiled._cfg.getSharedVariable( strKey ) != null )
+            {
+                return UNSUPPORTED;
+            }
+
+            return MISSING;
+        }
+
+        /**
+         * Compare two strings as the interpreter does, with the collator of the locale of the template
+         * 
+         * @param strLeft
+         *            The left string
+         * @param strRight
+         *            The right string
+         * @return true if the strings are equal
+         */
+        boolean equals( String strLeft, String strRight )
+        {
+            if ( strLeft.equals( strRight ) )
+            {
+                return true;
+            }
+
+            if ( _collator == null )
+            {
+                _collator = Collator.getInstance( _compiled._locale );
+            }
+
+            return _collator.compare( strLeft, strRight ) == 0;
+        }
+    }
+
+    /**
+     * Value output without escaping
+     */
+    private static final class Markup
+    {
+        private final String _strMarkup;
+
+        /**
+         * Constructor
+         * 
+         * @param strMarkup
+         *            The markup
+         */
+        Markup( String strMarkup )
+        {
+            _strMarkup = strMarkup;
+        }
+    }
+
+    /**
+     * Compiled segment of a template
+     */
+    private abstract static class Segment
+    {
+        /**
+         * Render the segment
+         * 
+         * @param context
+         *            The render context
+         * @return false if a value is not supported
+         */
+        abstract boolean render( RenderContext context );
+    }
+
+    /**
+     * Static text
+     */
+    private static final class Text extends Segment
+    {
+        private final char [ ] _text;
+
+        /**
+         * Constructor
+         * 
+         * @param text
+         *            The text
+         */
+        Text( char [ ] text )
+        {
+            _text = text;
+        }
+
+        /**
+         * {@inheritDoc}
+         */
+        @Override
+        boolean render( RenderContext context )
+        {
+            context._listPieces.add( _text );
+
+            return true;
+        }
+    }
+
+    /**
+     * Interpolation of a string value
+     */
+    private static final class Interpolation extends Segment
+    {
+        private final Expression _expression;
+        private final boolean _bEscape;
+
+        /**
+         * Constructor
+         * 
+         * @param expression
+         *            The interpolated expression
+         * @param bEscape
+         *            true to escape the value in HTML
+         */
+        Interpolation( Expression expression, boolean bEscape )
+        {
+            _expression = expression;
+            _bEscape = bEscape;
+        }
+
+        /**
+         * {@inheritDoc}
+         */
+        @Override
+        boolean render( RenderContext context )
+        {
+            Object value = _expression.eval( context );
+
+            if ( value instanceof String )
+            {
+                context._listPieces.add( _bEscape ? LuteceHtmlOutputFormat.INSTANCE.escapePlainText( (String) value ) : value );
+
+                return true;
+            }
+
+            if ( value instanceof Markup )
+            {
+                context._listPieces.add( ( (Markup) value )._strMarkup );
+
+                return true;
+            }
+
+            return false;
+        }
+    }
+
+    /**
+     * #if directive with its #elseif and #else branches
+     */
+    private static final class Conditional extends Segment
+    {
+        private final Expression [ ] _conditions;
+        private final Segment [ ] [ ] _branches;
+
+        /**
+         * Constructor
+         * 
+         * @param conditions
+         *            The conditions of the branches, null for the #else branch
+         * @param branches
+         *            The branches
+         */
+        Conditional( Expression [ ] conditions, Segment [ ] [ ] branches )
+        {
+            _conditions = conditions;
+            _branches = branches;
+        }
+
+        /**
+         * {@inheritDoc}
+         */
+        @Override
+        boolean render( RenderContext context )
+        {
+            for ( int i = 0; i < _conditions.length; i++ )
+            {
+                Object condition = ( _conditions [i] != null ) ? _conditions [i].eval( context ) : Boolean.TRUE;
+
+                if ( !( condition instanceof Boolean ) )
+                {
+                    return false;
+                }
+
+                if ( (Boolean) condition )
+                {
+                    return renderSegments( _branches [i], context );
+                }
+            }
+
+            return true;
+        }
+    }
+
+    /**
+     * #list directive over a collection
+     */
+    private static final class Listing extends Segment
+    {
+        private final Expression _listed;
+        private final String _strLoopVariable;
+        private final Segment [ ] _body;
+
+        /**
+         * Constructor
+         * 
+         * @param listed
+         *            The listed expression
+         * @param strLoopVariable
+         *            The name of the loop variable
+         * @param body
+         *            The body of the loop
+         */
+        Listing( Expression listed, String strLoopVariable, Segment [ ] body )
+        {
+            _listed = listed;
+            _strLoopVariable = strLoopVariable;
+            _body = body;
+        }
+
+        /**
+         * {@inheritDoc}
+         */
+        @Override
+        boolean render( RenderContext context )
+        {
+            Object listed = _listed.eval( context );
+
+            if ( !isCollection( listed ) )
+            {
+                return false;
+            }
+
+            int nIndex = context._listLoopNames.size( );
+            context._listLoopNames.add( _strLoopVariable );
+            context._listLoopValues.add( null );
+
+            try
+            {
+                for ( Object item : (Collection<?>) listed )
+                {
+                    context.addModelValue( );
+
+                    // the null items are missing loop variables, that can not be read from the model instead
+                    if ( item == null )
+                    {
+                        return false;
+                    }
+
+                    context._listLoopValues.set( nIndex, item );
+
+                    if ( !renderSegments( _body, context ) )
+                    {
+                        return false;
+                    }
+                }
+            }
+            finally
+            {
+                context._listLoopNames.remove( nIndex );
+                context._listLoopValues.remove( nIndex );
+            }
+
+            return true;
+        }
+    }
+
+    /**
+     * Compiled expression
+     */
+    private abstract static class Expression
+    {
+        /**
+         * Evaluate the expression
+         * 
+         * @param context
+         *            The render context
+         * @return The value (String, Boolean, Map, Collection, Markup or any other model object), MISSING, INVALID or UNSUPPORTED
+         */
+        abstract Object eval( RenderContext context );
+
+        /**
+         * Evaluate the expression as the operand of the existence operators, which also accept the missing parents of the parenthetical
+         * expressions
+         * 
+         * @param context
+         *            The render context
+         * @return The value, MISSING, INVALID or UNSUPPORTED
+         */
+        Object evalLenient( RenderContext context )
+        {
+            return eval( context );
+        }
+    }
+
+    /**
+     * String or boolean literal
+     */
+    private static final class Literal extends Expression
+    {
+        private final Object _value;
+
+        /**
+         * Constructor
+         * 
+         * @param value
+         *            The value
+         */
+        Literal( Object value )
+        {
+            _value = value;
+        }
+
+        /**
+         * {@inheritDoc}
+         */
+        @Override
+        Object eval( RenderContext context )
+        {
+            return _value;
+        }
+    }
+
+    /**
+     * Path of a variable (ie: page.author.name)
+     */
+    private static final class Variable extends Expression
+    {
+        private final String [ ] _path;
+
+        /**
+         * Constructor
+         * 
+         * @param path
+         *            The names of the path
+         */
+        Variable( String [ ] path )
+        {
+            _path = path;
+        }
+
+        /**
+         * Get the path of a child of the variable
+         * 
+         * @param strName
+         *            The name of the child
+         * @return The variable of the child
+         */
+        Variable child( String strName )
+        {
+            String [ ] path = new String [ _path.length + 1];
+            System.arraycopy( _path, 0, path, 0, _path.length );
+            path [_path.length] = strName;
+
+            return new Variable( path );
+        }
+
+        /**
+         * {@inheritDoc}
+         */
+        @Override
+        Object eval( RenderContext context )
+        {
+            Object value = context.lookup( _path [0] );
+
+            for ( int i = 1; i < _path.length; i++ )
+            {
+                if ( value == MISSING )
+                {
+                    return INVALID;
+                }
+
+                if ( !isMap( value ) )
+                {
+                    return UNSUPPORTED;
+                }
+
+                value = context.get( (Map<?, ?>) value, _path [i], false );
+            }
+
+            return value;
+        }
+    }
+
+    /**
+     * Parenthetical expression, whose missing parents are accepted by the existence operators
+     */
+    private static final class Parenthetical extends Expression
+    {
+        private final Expression _inner;
+
+        /**
+         * Constructor
+         * 
+         * @param inner
+         *            The expression between the parentheses
+         */
+        Parenthetical( Expression inner )
+        {
+            _inner = inner;
+        }
+
+        /**
+         * {@inheritDoc}
+         */
+        @Override
+        Object eval( RenderContext context )
+        {
+            return _inner.eval( context );
+        }
+
+        /**
+         * {@inheritDoc}
+         */
+        @Override
+        Object evalLenient( RenderContext context )
+        {
+            Object value = _inner.eval( context );
+
+            return ( value == INVALID ) ? MISSING : value;
+        }
+    }
+
+    /**
+     * ?? operator
+     */
+    private static final class Exists extends Expression
+    {
+        private final Expression _target;
+
+        /**
+         * Constructor
+         * 
+         * @param target
+         *            The tested expression
+         */
+        Exists( Expression target )
+        {
+            _target = target;
+        }
+
+        /**
+         * {@inheritDoc}
+         */
+        @Override
+        Object eval( RenderContext context )
+        {
+            Object value = _target.evalLenient( context );
+
+            if ( value == INVALID || value == UNSUPPORTED )
+            {
+                return UNSUPPORTED;
+            }
+
+            return value != MISSING;
+        }
+    }
+
+    /**
+     * ! operator with an optional string default value
+     */
+    private static final class DefaultTo extends Expression
+    {
+        private final Expression _target;
+        private final String _strDefault;
+
+        /**
+         * Constructor
+         * 
+         * @param target
+         *            The expression
+         * @param strDefault
+         *            The default value, or null for an empty string
+         */
+        DefaultTo( Expression target, String strDefault )
+        {
+            _target = target;
+            _strDefault = ( strDefault != null ) ? strDefault : "";
+        }
+
+        /**
+         * {@inheritDoc}
+         */
+        @Override
+        Object eval( RenderContext context )
+        {
+            Object value = _target.evalLenient( context );
+
+            if ( value == INVALID )
+            {
+                return UNSUPPORTED;
+            }
+
+            return ( value == MISSING ) ? _strDefault : value;
+        }
+    }
+
+    /**
+     * ?has_content built-in
+     */
+    private static final class HasContent extends Expression
+    {
+        private final Expression _target;
+
+        /**
+         * Constructor
+         * 
+         * @param target
+         *            The tested expression
+         */
+        HasContent( Expression target )
+        {
+            _target = target;
+        }
+
+        /**
+         * {@inheritDoc}
+         */
+        @Override
+        Object eval( RenderContext context )
+        {
+            Object value = _target.evalLenient( context );
+
+            if ( value == MISSING )
+            {
+                return Boolean.FALSE;
+            }
+
+            if ( value instanceof String )
+            {
+                return !( (String) value ).isEmpty( );
+            }
+
+            if ( value instanceof Boolean )
+            {
+                return Boolean.TRUE;
+            }
+
+            if ( isCollection( value ) )
+            {
+                return !( (Collection<?>) value ).isEmpty( );
+            }
+
+            if ( isMap( value ) )
+            {
+                return !( (Map<?, ?>) value ).isEmpty( );
+            }
+
+            return UNSUPPORTED;
+        }
+    }
+
+    /**
+     * Escaping built-ins : ?html, ?esc and ?no_esc
+     */
+    private static final class Escape extends Expression
+    {
+        private static final int HTML = 0;
+        private static final int XHTML = 1;
+        private static final int ESC = 2;
+        private static final int NO_ESC = 3;
+
+        private final Expression _target;
+        private final int _nMode;
+
+        /**
+         * Constructor
+         * 
+         * @param target
+         *            The escaped expression
+         * @param nMode
+         *            The escaping : HTML or XHTML for the legacy ?html built-in (depending on the incompatible improvements), ESC or NO_ESC
+         */
+        Escape( Expression target, int nMode )
+        {
+            _target = target;
+            _nMode = nMode;
+        }
+
+        /**
+         * {@inheritDoc}
+         */
+        @Override
+        @SuppressWarnings( "deprecation" )
+        Object eval( RenderContext context )
+        {
+            Object value = _target.eval( context );
+
+            if ( !( value instanceof String ) )
+            {
+                return UNSUPPORTED;
+            }
+
+            String strValue = (String) value;
+
+            switch( _nMode )
+            {
+                case HTML:
+                    return StringUtil.HTMLEnc( strValue );
+                case XHTML:
+                    return StringUtil.XHTMLEnc( strValue );
+                case ESC:
+                    return new Markup( LuteceHtmlOutputFormat.INSTANCE.escapePlainText( strValue ) );
+                default:
+                    return new Markup( strValue );
+            }
+        }
+    }
+
+    /**
+     * ! operator
+     */
+    private static final class Not extends Expression
+    {
+        private final Expression _operand;
+
+        /**
+         * Constructor
+         * 
+         * @param operand
+         *            The negated expression
+         */
+        Not( Expression operand )
+        {
+            _operand = operand;
+        }
+
+        /**
+         * {@inheritDoc}
+         */
+        @Override
+        Object eval( RenderContext context )
+        {
+            Object value = _operand.eval( context );
+
+            return ( value instanceof Boolean ) ? !(Boolean) value : UNSUPPORTED;
+        }
+    }
+
+    /**
+     * &amp;&amp; and || operators
+     */
+    private static final class Logical extends Expression
+    {
+        private final Expression _left;
+        private final Expression _right;
+        private final boolean _bAnd;
+
+        /**
+         * Constructor
+         * 
+         * @param left
+         *            The left operand
+         * @param right
+         *            The right operand, only evaluated when the left one does not decide
+         * @param bAnd
+         *            true for &amp;&amp;, false for ||
+         */
+        Logical( Expression left, Expression right, boolean bAnd )
+        {
+            _left = left;
+            _right = right;
+            _bAnd = bAnd;
+        }
+
+        /**
+         * {@inheritDoc}
+         */
+        @Override
+        Object eval( RenderContext context )
+        {
+            Object left = _left.eval( context );
+
+            if ( !( left instanceof Boolean ) )
+            {
+                return UNSUPPORTED;
+            }
+
+            if ( (Boolean) left != _bAnd )
+            {
+                return left;
+            }
+
+            Object right = _right.eval( context );
+
+            return ( right instanceof Boolean ) ? right : UNSUPPORTED;
+        }
+    }
+
+    /**
+     * ==, = and != operators on strings and booleans
+     */
+    private static final class Comparison extends Expression
+    {
+        private final Expression _left;
+        private final Expression _right;
+        private final boolean _bEquals;
+
+        /**
+         * Constructor
+         * 
+         * @param left
+         *            The left operand
+         * @param right
+         *            The right operand
+         * @param bEquals
+         *            true for == and =, false for !=
+         */
+        Comparison( Expression left, Expression right, boolean bEquals )
+        {
+            _left = left;
+            _right = right;
+            _bEquals = bEquals;
+        }
+
+        /**
+         * {@inheritDoc}
+         */
+        @Override
+        Object eval( RenderContext context )
+        {
+            Object left = _left.eval( context );
+            Object right = _right.eval( context );
+
+            if ( left instanceof String && right instanceof String )
+            {
+                return context.equals( (String) left, (String) right ) == _bEquals;
+            }
+
+            if ( left instanceof Boolean && right instanceof Boolean )
+            {
+                return left.equals( right ) == _bEquals;
+            }
+
+            return UNSUPPORTED;
+        }
+    }
+}
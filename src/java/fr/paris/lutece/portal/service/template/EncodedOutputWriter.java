@@ -0,0 +1,249 @@
+/*
+ * Copyright (c) 2002-2020, City of Paris
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ *
+ *  1. Redistributions of source code must retain the above copyright notice
+ *     and the following disclaimer.
+ *
+ *  2. Redistributions in binary form must reproduce the above copyright notice
+ *     and the following disclaimer in the documentation and/or other materials
+ *     provided with the distribution.
+ *
+ *  3. Neither the name of 'Mairie de Paris' nor 'Lutece' nor the names of its
+ *     contributors may be used to endorse or promote products derived from
+ *     this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDERS OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ *
+ * License 1.0
+ */
+package fr.paris.lutece.portal.service.template;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.Writer;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.charset.CharsetEncoder;
+import java.nio.charset.CodingErrorAction;
+
+/**
+ * Writer sending the template output to an {@link OutputStream}.
+ * Static text blocks are copied from their cached encoded form, only the dynamic content is encoded on each render. The dynamic content is
+ * encoded by one encoder per writer into a reused buffer, a high surrogate ending a write being kept until the next write so the surrogate pairs
+ * split between two writes are encoded as one character. As with {@link String#getBytes(java.nio.charset.Charset)}, the malformed and unmappable
+ * characters are replaced.
+ */
+public class EncodedOutputWriter extends Writer
+{
+    private static final int BUFFER_SIZE = 1024;
+
+    private final OutputStream _out;
+    private final EncodedTextCache _cache;
+    private final CharsetEncoder _encoder;
+    private final ByteBuffer _bytes = ByteBuffer.allocate( BUFFER_SIZE );
+    private final char [ ] _chars = new char [ BUFFER_SIZE];
+    private final char [ ] _pair = new char [ 2];
+    private boolean _bPendingHighSurrogate;
+
+    /**
+     * Constructor
+     * 
+     * @param out
+     *            The output stream
+     * @param cache
+     *            The cache of encoded static text
+     */
+    public EncodedOutputWriter( OutputStream out, EncodedTextCache cache )
+    {
+        _out = out;
+        _cache = cache;
+        _encoder = cache.getCharset( ).newEncoder( ).onMalformedInput( CodingErrorAction.REPLACE ).onUnmappableCharacter( CodingErrorAction.REPLACE );
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void write( char [ ] cbuf, int off, int len ) throws IOException
+    {
+        if ( off == 0 && len == cbuf.length && !_bPendingHighSurrogate )
+        {
+            byte [ ] encoded = _cache.getEncoded( cbuf );
+
+            if ( encoded != null )
+            {
+                _out.write( encoded );
+
+                return;
+            }
+        }
+
+        encode( cbuf, off, len );
+        drain( );
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void write( String str ) throws IOException
+    {
+        write( str, 0, str.length( ) );
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void write( String str, int off, int len ) throws IOException
+    {
+        // the string is copied by chunks into a reused array, which the encoders read faster than a string
+        for ( int nStart = off; nStart < off + len; nStart += _chars.length )
+        {
+            int nLength = Math.min( _chars.length, off + len - nStart );
+            str.getChars( nStart, nStart + nLength, _chars, 0 );
+            encode( _chars, 0, nLength );
+        }
+
+        drain( );
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void write( int c ) throws IOException
+    {
+        _chars [0] = (char) c;
+        encode( _chars, 0, 1 );
+        drain( );
+    }
+
+    /**
+     * Flush the encoded content. A pending high surrogate is kept until the next write or the close of the writer.
+     * 
+     * @throws IOException
+     *             if an error occurs while writing
+     */
+    @Override
+    public void flush( ) throws IOException
+    {
+        _out.flush( );
+    }
+
+    /**
+     * Encode the pending high surrogate, if any, and flush. The stream is owned by the caller and is not closed.
+     * 
+     * @throws IOException
+     *             if an error occurs while writing
+     */
+    @Override
+    public void close( ) throws IOException
+    {
+        // a high surrogate ending the output is malformed and replaced
+        CharBuffer rest = CharBuffer.wrap( _pair, 0, _bPendingHighSurrogate ? 1 : 0 );
+        _bPendingHighSurrogate = false;
+        encode( rest, true );
+
+        while ( _encoder.flush( _bytes ).isOverflow( ) )
+        {
+            drain( );
+        }
+
+        drain( );
+        _encoder.reset( );
+        _out.flush( );
+    }
+
+    /**
+     * Encode chars into the buffer, after the pending high surrogate
+     * 
+     * @param cbuf
+     *            The chars
+     * @param off
+     *            The offset of the first char
+     * @param len
+     *            The number of chars
+     * @throws IOException
+     *             if an error occurs while writing
+     */
+    private void encode( char [ ] cbuf, int off, int len ) throws IOException
+    {
+        int nOffset = off;
+        int nLength = len;
+
+        if ( _bPendingHighSurrogate && nLength > 0 )
+        {
+            _bPendingHighSurrogate = false;
+            _pair [1] = cbuf [nOffset];
+            nOffset++;
+            nLength--;
+            encode( CharBuffer.wrap( _pair ), false );
+        }
+
+        // a pair made of two high surrogates leaves the second one pending before the rest of the chars
+        if ( _bPendingHighSurrogate && nLength > 0 )
+        {
+            encode( cbuf, nOffset, nLength );
+
+            return;
+        }
+
+        encode( CharBuffer.wrap( cbuf, nOffset, nLength ), false );
+    }
+
+    /**
+     * Encode a char buffer, keeping a high surrogate ending the chars as pending
+     * 
+     * @param chars
+     *            The chars
+     * @param bEndOfInput
+     *            true if no chars follow
+     * @throws IOException
+     *             if an error occurs while writing
+     */
+    private void encode( CharBuffer chars, boolean bEndOfInput ) throws IOException
+    {
+        while ( _encoder.encode( chars, _bytes, bEndOfInput ).isOverflow( ) )
+        {
+            drain( );
+        }
+
+        // the encoder only leaves a high surrogate whose low surrogate has not been written yet
+        if ( chars.hasRemaining( ) )
+        {
+            _pair [0] = chars.get( );
+            _bPendingHighSurrogate = true;
+        }
+    }
+
+    /**
+     * Write the encoded bytes to the output stream
+     * 
+     * @throws IOException
+     *             if an error occurs while writing
+     */
+    private void drain( ) throws IOException
+    {
+        if ( _bytes.position( ) > 0 )
+        {
+            _out.write( _bytes.array( ), 0, _bytes.position( ) );
+            _bytes.clear( );
+        }
+    }
+}
@@ -0,0 +1,400 @@
+/*
+ * Copyright (c) 2002-2020, City of Paris
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ *
+ *  1. Redistributions of source code must retain the above copyright notice
+ *     and the following disclaimer.
+ *
+ *  2. Redistributions in binary form must reproduce the above copyright notice
+ *     and the following disclaimer in the documentation and/or other materials
+ *     provided with the distribution.
+ *
+ *  3. Neither the name of 'Mairie de Paris' nor 'Lutece' nor the names of its
+ *     contributors may be used to endorse or promote products derived from
+ *     this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDERS OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ *
+ * License 1.0
+ */
+package fr.paris.lutece.portal.service.template;
+
+import java.lang.ref.ReferenceQueue;
+import java.lang.ref.WeakReference;
+import java.lang.reflect.Field;
+import java.nio.CharBuffer;
+import java.nio.charset.Charset;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+import freemarker.core.TemplateElement;
+import freemarker.core.TextBlock;
+import freemarker.template.Template;
+
+/**
+ * Cache of the encoded form of the static text blocks of parsed templates.
+ * FreeMarker writes a text block as the same char array on every render, so the arrays of the text blocks are registered when a template is
+ * loaded and the array identity is used as the key. Other arrays, such as the reused buffers of writers, are never cached. The arrays are
+ * weakly referenced and their entries disappear with the template they belong to. The text is encoded on its first write.
+ * The arrays are read from a private field of the text blocks : if the field can not be accessed (ie: denied by a security manager), the text
+ * blocks are registered by content instead, the written arrays being then looked up by content.
+ */
+public class EncodedTextCache
+{
+    private static final int MIN_CACHED_LENGTH = 16;
+    private static final String NOPARSE = "<#noparse>";
+    private static final String NOPARSE_END = "</#noparse>";
+    private static final Field FIELD_TEXT = getTextField( );
+
+    private final Charset _charset;
+    private final boolean _bIdentityKeys;
+    private final Map<TextKey, EncodedText> _mapEncodedTexts = new ConcurrentHashMap<>( );
+    private final Map<CharBuffer, EncodedText> _mapContentTexts = new ConcurrentHashMap<>( );
+    private final Set<BlockReference> _setContentBlocks = ConcurrentHashMap.newKeySet( );
+    private final ReferenceQueue<Object> _queue = new ReferenceQueue<>( );
+
+    /**
+     * Constructor
+     * 
+     * @param charset
+     *            The charset used to encode the text
+     */
+    public EncodedTextCache( Charset charset )
+    {
+        this( charset, FIELD_TEXT != null );
+    }
+
+    /**
+     * Constructor
+     * 
+     * @param charset
+     *            The charset used to encode the text
+     * @param bIdentityKeys
+     *            true to register the arrays of the text blocks, false to register the text blocks by content
+     */
+    EncodedTextCache( Charset charset, boolean bIdentityKeys )
+    {
+        _charset = charset;
+        _bIdentityKeys = bIdentityKeys;
+    }
+
+    /**
+     * Returns the charset used to encode the text
+     * 
+     * @return The charset
+     */
+    public Charset getCharset( )
+    {
+        return _charset;
+    }
+
+    /**
+     * Register the static text blocks of a parsed template. Called once, when the template is loaded.
+     * 
+     * @param template
+     *            The template
+     */
+    @SuppressWarnings( "deprecation" )
+    public void register( Template template )
+    {
+        expungeStaleEntries( );
+        registerTextBlocks( template.getRootTreeNode( ) );
+    }
+
+    /**
+     * Get the encoded form of a whole char array written to the output
+     * 
+     * @param text
+     *            The char array
+     * @return The encoded bytes or null if the array is not the text block of a registered template
+     */
+    public byte [ ] getEncoded( char [ ] text )
+    {
+        if ( text.length < MIN_CACHED_LENGTH )
+        {
+            return null;
+        }
+
+        EncodedText encoded = _mapEncodedTexts.get( new TextKey( text, null ) );
+
+        if ( encoded == null && !_mapContentTexts.isEmpty( ) )
+        {
+            encoded = _mapContentTexts.get( CharBuffer.wrap( text ) );
+        }
+
+        if ( encoded == null )
+        {
+            return null;
+        }
+
+        // the text blocks are never modified once parsed, so concurrent first writes encode the same bytes
+        byte [ ] bytes = encoded._bytes;
+
+        if ( bytes == null )
+        {
+            bytes = new String( text ).getBytes( _charset );
+            encoded._bytes = bytes;
+        }
+
+        return bytes;
+    }
+
+    /**
+     * Returns the number of cached text blocks
+     * 
+     * @return The size of the cache
+     */
+    public int size( )
+    {
+        expungeStaleEntries( );
+
+        return _mapEncodedTexts.size( ) + _mapContentTexts.size( );
+    }
+
+    /**
+     * Release the encoded forms of the text blocks. The blocks stay registered and are encoded again on their next write.
+     */
+    public void clear( )
+    {
+        for ( EncodedText encoded : _mapEncodedTexts.values( ) )
+        {
+            encoded._bytes = null;
+        }
+
+        for ( EncodedText encoded : _mapContentTexts.values( ) )
+        {
+            encoded._bytes = null;
+        }
+    }
+
+    /**
+     * Register the text blocks of an element and its children
+     * 
+     * @param element
+     *            The element
+     */
+    @SuppressWarnings( "deprecation" )
+    private void registerTextBlocks( TemplateElement element )
+    {
+        if ( element == null )
+        {
+            return;
+        }
+
+        if ( element instanceof TextBlock )
+        {
+            char [ ] text = _bIdentityKeys ? getText( (TextBlock) element ) : null;
+
+            if ( text == null )
+            {
+                registerContent( (TextBlock) element );
+            }
+            else
+                if ( text.length >= MIN_CACHED_LENGTH )
+                {
+                    _mapEncodedTexts.putIfAbsent( new TextKey( text, _queue ), new EncodedText( ) );
+                }
+        }
+
+        for ( int i = 0; i < element.getChildCount( ); i++ )
+        {
+            registerTextBlocks( (TemplateElement) element.getChildAt( i ) );
+        }
+    }
+
+    /**
+     * Register a text block by content, the entry being shared by the text blocks with the same content
+     * 
+     * @param textBlock
+     *            The text block
+     */
+    @SuppressWarnings( "deprecation" )
+    private void registerContent( TextBlock textBlock )
+    {
+        String strText = textBlock.getCanonicalForm( );
+
+        // the unparsed text is written without the directive
+        if ( strText.startsWith( NOPARSE ) && strText.endsWith( NOPARSE_END ) )
+        {
+            strText = strText.substring( NOPARSE.length( ), strText.length( ) - NOPARSE_END.length( ) );
+        }
+
+        if ( strText.length( ) < MIN_CACHED_LENGTH )
+        {
+            return;
+        }
+
+        CharBuffer content = CharBuffer.wrap( strText.toCharArray( ) );
+        _mapContentTexts.compute( content, ( key, encoded ) -> {
+            EncodedText entry = ( encoded != null ) ? encoded : new EncodedText( );
+            entry._nBlocks++;
+
+            return entry;
+        } );
+        _setContentBlocks.add( new BlockReference( textBlock, content, _queue ) );
+    }
+
+    /**
+     * Remove the entries of the text blocks of the unloaded templates
+     */
+    private void expungeStaleEntries( )
+    {
+        Object key;
+
+        while ( ( key = _queue.poll( ) ) != null )
+        {
+            if ( key instanceof BlockReference )
+            {
+                BlockReference reference = (BlockReference) key;
+                _setContentBlocks.remove( reference );
+                _mapContentTexts.computeIfPresent( reference._content, ( content, encoded ) -> ( --encoded._nBlocks > 0 ) ? encoded : null );
+            }
+            else
+            {
+                _mapEncodedTexts.remove( key );
+            }
+        }
+    }
+
+    /**
+     * Get the char array written by a text block
+     * 
+     * @param textBlock
+     *            The text block
+     * @return The array, or null if it can not be read
+     */
+    private static char [ ] getText( TextBlock textBlock )
+    {
+        try
+        {
+            return (char [ ]) FIELD_TEXT.get( textBlock );
+        }
+        catch( IllegalAccessException | RuntimeException e )
+        {
+            // the text block is then registered by content
+            return null;
+        }
+    }
+
+    /**
+     * Get the field holding the char array of the text blocks, which FreeMarker does not expose
+     * 
+     * @return The field, or null if it is not accessible (then nothing is cached)
+     */
+    private static Field getTextField( )
+    {
+        try
+        {
+            Field field = TextBlock.class.getDeclaredField( "text" );
+            field.setAccessible( true );
+
+            return field.getType( ) == char [ ].class ? field : null;
+        }
+        catch( ReflectiveOperationException | RuntimeException e )
+        {
+            return null;
+        }
+    }
+
+    /**
+     * Weak reference to a text block array, equal to the references to the same array
+     */
+    private static final class TextKey extends WeakReference<char [ ]>
+    {
+        private final int _nHash;
+
+        /**
+         * Constructor
+         * 
+         * @param text
+         *            The array
+         * @param queue
+         *            The queue notified when the array is unloaded, or null for a lookup key
+         */
+        TextKey( char [ ] text, ReferenceQueue<Object> queue )
+        {
+            super( text, queue );
+            _nHash = System.identityHashCode( text );
+        }
+
+        /**
+         * {@inheritDoc}
+         */
+        @Override
+        public int hashCode( )
+        {
+            return _nHash;
+        }
+
+        /**
+         * {@inheritDoc}
+         */
+        @Override
+        public boolean equals( Object obj )
+        {
+            if ( obj == this )
+            {
+                return true;
+            }
+
+            if ( !( obj instanceof TextKey ) )
+            {
+                return false;
+            }
+
+            char [ ] text = get( );
+
+            return text != null && text == ( (TextKey) obj ).get( );
+        }
+    }
+
+    /**
+     * Weak reference to a text block registered by content
+     */
+    private static final class BlockReference extends WeakReference<TextBlock>
+    {
+        private final CharBuffer _content;
+
+        /**
+         * Constructor
+         * 
+         * @param textBlock
+         *            The text block
+         * @param content
+         *            The content of the text block
+         * @param queue
+         *            The queue notified when the text block is unloaded
+         */
+        BlockReference( TextBlock textBlock, CharBuffer content, ReferenceQueue<Object> queue )
+        {
+            super( textBlock, queue );
+            _content = content;
+        }
+    }
+
+    /**
+     * The encoded form of a text block, computed on its first write
+     */
+    private static final class EncodedText
+    {
+        private volatile byte [ ] _bytes;
+
+        /** The number of text blocks registered with this content, updated under the lock of the map entry */
+        private int _nBlocks;
+    }
+}
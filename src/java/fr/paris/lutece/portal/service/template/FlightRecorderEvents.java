@@ -0,0 +1,403 @@
+/*
+ * Copyright (c) 2002-2020, City of Paris
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ *
+ *  1. Redistributions of source code must retain the above copyright notice
+ *     and the following disclaimer.
+ *
+ *  2. Redistributions in binary form must reproduce the above copyright notice
+ *     and the following disclaimer in the documentation and/or other materials
+ *     provided with the distribution.
+ *
+ *  3. Neither the name of 'Mairie de Paris' nor 'Lutece' nor the names of its
+ *     contributors may be used to endorse or promote products derived from
+ *     this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDERS OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ *
+ * License 1.0
+ */
+package fr.paris.lutece.portal.service.template;
+
+import java.util.Locale;
+
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+
+/**
+ * Java Flight Recorder events of the template service. This class is only used through {@link TemplateEvents}, once JFR is known to be available.
+ * The fields of the events are named as the recorded fields.
+ */
+final class FlightRecorderEvents
+{
+    private static final String CATEGORY_LUTECE = "Lutece";
+    private static final String CATEGORY_TEMPLATES = "Templates";
+    private static final String EVENT_PREFIX = "fr.paris.lutece.template.";
+
+    private static final int PARSED = 0;
+    private static final int AWAITED = 1;
+
+    // the number of templates parsed and of loads awaited by each thread, to tell the lookups that loaded a template or waited for its load
+    private static final ThreadLocal<int [ ]> LOAD_COUNT = ThreadLocal.withInitial( ( ) -> new int [ 2] );
+
+    /**
+     * Private constructor
+     */
+    private FlightRecorderEvents( )
+    {
+    }
+
+    /**
+     * Begin a template lookup
+     * 
+     * @return The event, or null if it is disabled
+     */
+    static Object beginLookup( )
+    {
+        LookupEvent event = new LookupEvent( );
+
+        if ( !event.isEnabled( ) )
+        {
+            return null;
+        }
+
+        int [ ] loadCount = LOAD_COUNT.get( );
+        event._nParseCount = loadCount [PARSED];
+        event._nAwaitCount = loadCount [AWAITED];
+        event.begin( );
+
+        return event;
+    }
+
+    /**
+     * End a template lookup
+     * 
+     * @param object
+     *            The event
+     * @param strTemplate
+     *            The template name
+     * @param locale
+     *            The locale
+     */
+    static void endLookup( Object object, String strTemplate, Locale locale )
+    {
+        LookupEvent event = (LookupEvent) object;
+        event.end( );
+
+        if ( event.shouldCommit( ) )
+        {
+            event.template = strTemplate;
+            event.locale = ( locale != null ) ? locale.toString( ) : null;
+            int [ ] loadCount = LOAD_COUNT.get( );
+            event.sharedLoad = loadCount [AWAITED] != event._nAwaitCount;
+            event.hit = !event.sharedLoad && loadCount [PARSED] == event._nParseCount;
+            event.commit( );
+        }
+    }
+
+    /**
+     * Begin the parse of a template
+     * 
+     * @return The event, or null if it is disabled
+     */
+    static Object beginParse( )
+    {
+        LOAD_COUNT.get( ) [PARSED]++;
+
+        ParseEvent event = new ParseEvent( );
+
+        if ( !event.isEnabled( ) )
+        {
+            return null;
+        }
+
+        event.begin( );
+
+        return event;
+    }
+
+    /**
+     * End the parse of a template
+     * 
+     * @param object
+     *            The event
+     * @param strTemplate
+     *            The template name
+     * @param nSourceLength
+     *            The length of the template source
+     */
+    static void endParse( Object object, String strTemplate, int nSourceLength )
+    {
+        ParseEvent event = (ParseEvent) object;
+        event.end( );
+
+        if ( event.shouldCommit( ) )
+        {
+            event.template = strTemplate;
+            event.sourceLength = nSourceLength;
+            event.commit( );
+        }
+    }
+
+    /**
+     * Record that the current thread waits for the load of a template by another thread
+     */
+    static void awaitLoad( )
+    {
+        LOAD_COUNT.get( ) [AWAITED]++;
+    }
+
+    /**
+     * Begin the render of a template
+     * 
+     * @return The event, or null if it is disabled
+     */
+    static Object beginRender( )
+    {
+        RenderEvent event = new RenderEvent( );
+
+        if ( !event.isEnabled( ) )
+        {
+            return null;
+        }
+
+        event.begin( );
+
+        return event;
+    }
+
+    /**
+     * End the render of a template
+     * 
+     * @param object
+     *            The event
+     * @param strTemplate
+     *            The template name
+     * @param locale
+     *            The locale
+     * @param lOutputSize
+     *            The number of characters written
+     */
+    static void endRender( Object object, String strTemplate, Locale locale, long lOutputSize )
+    {
+        RenderEvent event = (RenderEvent) object;
+        event.end( );
+
+        if ( event.shouldCommit( ) )
+        {
+            event.template = strTemplate;
+            event.locale = ( locale != null ) ? locale.toString( ) : null;
+            event.outputSize = lOutputSize;
+            event.commit( );
+        }
+    }
+
+    /**
+     * Begin the creation of a configuration
+     * 
+     * @return The event, or null if it is disabled
+     */
+    static Object beginConfiguration( )
+    {
+        ConfigurationEvent event = new ConfigurationEvent( );
+
+        if ( !event.isEnabled( ) )
+        {
+            return null;
+        }
+
+        event.begin( );
+
+        return event;
+    }
+
+    /**
+     * End the creation of a configuration
+     * 
+     * @param object
+     *            The event
+     * @param strPath
+     *            The path of the templates
+     * @param bNewLoaders
+     *            true if the template loaders have been created
+     */
+    static void endConfiguration( Object object, String strPath, boolean bNewLoaders )
+    {
+        ConfigurationEvent event = (ConfigurationEvent) object;
+        event.end( );
+
+        if ( event.shouldCommit( ) )
+        {
+            event.path = strPath;
+            event.newLoaders = bNewLoaders;
+            event.commit( );
+        }
+    }
+
+    /**
+     * Begin a reset
+     * 
+     * @return The event, or null if it is disabled
+     */
+    static Object beginReset( )
+    {
+        ResetEvent event = new ResetEvent( );
+
+        if ( !event.isEnabled( ) )
+        {
+            return null;
+        }
+
+        event.begin( );
+
+        return event;
+    }
+
+    /**
+     * End a reset
+     * 
+     * @param object
+     *            The event
+     * @param bCacheOnly
+     *            true if only the template cache is reset
+     * @param bSoftReset
+     *            true if the new configurations are built in the background
+     */
+    static void endReset( Object object, boolean bCacheOnly, boolean bSoftReset )
+    {
+        ResetEvent event = (ResetEvent) object;
+        event.end( );
+
+        if ( event.shouldCommit( ) )
+        {
+            event.cacheOnly = bCacheOnly;
+            event.softReset = bSoftReset;
+            event.commit( );
+        }
+    }
+
+    /**
+     * Lookup of a template in the template cache
+     */
+    @Name( EVENT_PREFIX + "Lookup" )
+    @Label( "Template Lookup" )
+    @Description( "Lookup of a template in the cache, loading it on a miss" )
+    @Category( {
+            CATEGORY_LUTECE, CATEGORY_TEMPLATES
+    } )
+    @StackTrace( false )
+    static final class LookupEvent extends Event
+    {
+        @Label( "Template" )
+        String template;
+
+        @Label( "Locale" )
+        String locale;
+
+        @Label( "Hit" )
+        @Description( "The template was found in the cache" )
+        boolean hit;
+
+        @Label( "Shared Load" )
+        @Description( "The template was missing and the lookup waited for its load by another thread" )
+        boolean sharedLoad;
+
+        private transient int _nParseCount;
+        private transient int _nAwaitCount;
+    }
+
+    /**
+     * Read and parse of a template source
+     */
+    @Name( EVENT_PREFIX + "Parse" )
+    @Label( "Template Parse" )
+    @Description( "Read, transformation and parse of a template source" )
+    @Category( {
+            CATEGORY_LUTECE, CATEGORY_TEMPLATES
+    } )
+    static final class ParseEvent extends Event
+    {
+        @Label( "Template" )
+        String template;
+
+        @Label( "Source Length" )
+        @Description( "Number of characters of the transformed source" )
+        int sourceLength;
+    }
+
+    /**
+     * Render of a template
+     */
+    @Name( EVENT_PREFIX + "Render" )
+    @Label( "Template Render" )
+    @Category( {
+            CATEGORY_LUTECE, CATEGORY_TEMPLATES
+    } )
+    static final class RenderEvent extends Event
+    {
+        @Label( "Template" )
+        String template;
+
+        @Label( "Locale" )
+        String locale;
+
+        @Label( "Output Size" )
+        @Description( "Number of characters written" )
+        long outputSize;
+    }
+
+    /**
+     * Creation of a configuration
+     */
+    @Name( EVENT_PREFIX + "ConfigurationCreation" )
+    @Label( "Template Configuration Creation" )
+    @Category( {
+            CATEGORY_LUTECE, CATEGORY_TEMPLATES
+    } )
+    static final class ConfigurationEvent extends Event
+    {
+        @Label( "Path" )
+        String path;
+
+        @Label( "New Loaders" )
+        @Description( "The template loaders have been created, not reused from the previous configuration" )
+        boolean newLoaders;
+    }
+
+    /**
+     * Reset of the configurations or of the template cache
+     */
+    @Name( EVENT_PREFIX + "Reset" )
+    @Label( "Template Configuration Reset" )
+    @Category( {
+            CATEGORY_LUTECE, CATEGORY_TEMPLATES
+    } )
+    static final class ResetEvent extends Event
+    {
+        @Label( "Cache Only" )
+        @Description( "Only the template cache has been reset" )
+        boolean cacheOnly;
+
+        @Label( "Soft Reset" )
+        @Description( "The new configurations are built in the background" )
+        boolean softReset;
+    }
+}
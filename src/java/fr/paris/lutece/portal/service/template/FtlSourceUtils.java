@@ -0,0 +1,532 @@
+/*
+ * Copyright (c) 2002-2020, City of Paris
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ *
+ *  1. Redistributions of source code must retain the above copyright notice
+ *     and the following disclaimer.
+ *
+ *  2. Redistributions in binary form must reproduce the above copyright notice
+ *     and the following disclaimer in the documentation and/or other materials
+ *     provided with the distribution.
+ *
+ *  3. Neither the name of 'Mairie de Paris' nor 'Lutece' nor the names of its
+ *     contributors may be used to endorse or promote products derived from
+ *     this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDERS OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ *
+ * License 1.0
+ */
+package fr.paris.lutece.portal.service.template;
+
+/**
+ * Utility methods to scan the source of FreeMarker templates without parsing them. The source transformers and analyzers walk the sources with a
+ * {@link Tokenizer}, so they all split them the same way.
+ */
+final class FtlSourceUtils
+{
+    private static final String [ ] TAG_STARTS = {
+            "<#", "</#", "<@", "</@", "[#", "[/#", "[@", "[/@"
+    };
+    private static final String [ ] INTERPOLATION_STARTS = {
+            "${", "#{", "[="
+    };
+    private static final String COMMENT_START = "<#--";
+    private static final String COMMENT_END = "-->";
+    private static final String SQUARE_COMMENT_START = "[#--";
+    private static final String SQUARE_COMMENT_END = "--]";
+    private static final String NOPARSE_END = "/noparse";
+
+    /** The name of the noparse directive */
+    static final String DIRECTIVE_NOPARSE = "noparse";
+
+    /**
+     * Type of the tokens of a template source
+     */
+    enum TokenType
+    {
+        /** An FTL comment */
+        COMMENT,
+        /** An FTL tag, or a whole noparse block */
+        TAG,
+        /** An interpolation */
+        INTERPOLATION,
+        /** A char of the static text */
+        TEXT
+    }
+
+    /**
+     * Private constructor
+     */
+    private FtlSourceUtils( )
+    {
+    }
+
+    /**
+     * Checks if an FTL tag (directive or user-defined directive call) starts at a given position
+     * 
+     * @param strSource
+     *            The template source
+     * @param nPos
+     *            The position
+     * @return true if an FTL tag starts at the position
+     */
+    static boolean isTagStart( String strSource, int nPos )
+    {
+        for ( String strStart : TAG_STARTS )
+        {
+            if ( strSource.startsWith( strStart, nPos ) )
+            {
+                return true;
+            }
+        }
+
+        return false;
+    }
+
+    /**
+     * Checks if an interpolation starts at a given position
+     * 
+     * @param strSource
+     *            The template source
+     * @param nPos
+     *            The position
+     * @return true if an interpolation starts at the position
+     */
+    static boolean isInterpolationStart( String strSource, int nPos )
+    {
+        for ( String strStart : INTERPOLATION_STARTS )
+        {
+            if ( strSource.startsWith( strStart, nPos ) )
+            {
+                return true;
+            }
+        }
+
+        return false;
+    }
+
+    /**
+     * Checks if an FTL comment starts at a given position
+     * 
+     * @param strSource
+     *            The template source
+     * @param nPos
+     *            The position
+     * @return true if an FTL comment starts at the position
+     */
+    static boolean isCommentStart( String strSource, int nPos )
+    {
+        return strSource.startsWith( COMMENT_START, nPos ) || strSource.startsWith( SQUARE_COMMENT_START, nPos );
+    }
+
+    /**
+     * Find the end of an FTL comment
+     * 
+     * @param strSource
+     *            The template source
+     * @param nStart
+     *            The start of the comment
+     * @return The position following the comment, or the length of the source if the comment is not closed
+     */
+    static int findCommentEnd( String strSource, int nStart )
+    {
+        String strEnd = ( strSource.charAt( nStart ) == '[' ) ? SQUARE_COMMENT_END : COMMENT_END;
+        int nEnd = strSource.indexOf( strEnd, nStart + COMMENT_START.length( ) );
+
+        return ( nEnd < 0 ) ? strSource.length( ) : ( nEnd + strEnd.length( ) );
+    }
+
+    /**
+     * Find the end of an FTL tag. The tag ends with the first closing bracket found outside of string literals and parentheses, as FreeMarker does.
+     * 
+     * @param strSource
+     *            The template source
+     * @param nStart
+     *            The start of the tag
+     * @return The position following the tag, or the length of the source if the tag is not closed
+     */
+    static int findTagEnd( String strSource, int nStart )
+    {
+        char cClose = ( strSource.charAt( nStart ) == '[' ) ? ']' : '>';
+
+        return findClosing( strSource, nStart + 1, cClose );
+    }
+
+    /**
+     * Find the end of an interpolation
+     * 
+     * @param strSource
+     *            The template source
+     * @param nStart
+     *            The start of the interpolation
+     * @return The position following the interpolation, or the length of the source if the interpolation is not closed
+     */
+    static int findInterpolationEnd( String strSource, int nStart )
+    {
+        char cClose = ( strSource.charAt( nStart ) == '[' ) ? ']' : '}';
+
+        return findClosing( strSource, nStart + 2, cClose );
+    }
+
+    /**
+     * Find the end of a noparse block
+     * 
+     * @param strSource
+     *            The template source
+     * @param nFrom
+     *            The position following the noparse start tag
+     * @return The position following the noparse end tag
+     */
+    static int findNoParseEnd( String strSource, int nFrom )
+    {
+        for ( int i = nFrom; i < strSource.length( ); i++ )
+        {
+            if ( isTagStart( strSource, i ) && NOPARSE_END.equals( getDirectiveName( strSource, i ) ) )
+            {
+                return findTagEnd( strSource, i );
+            }
+        }
+
+        return strSource.length( );
+    }
+
+    /**
+     * Find the line of a construct standing alone on its line, only preceded and followed by blanks
+     * 
+     * @param strSource
+     *            The template source
+     * @param nStart
+     *            The start of the construct
+     * @param nEnd
+     *            The end of the construct
+     * @return The start of the line and the position following its line break, or null if the construct doesn't stand alone on a single line
+     */
+    static int [ ] findLineBounds( String strSource, int nStart, int nEnd )
+    {
+        int nLineStart = nStart;
+
+        while ( nLineStart > 0 && isBlank( strSource.charAt( nLineStart - 1 ) ) )
+        {
+            nLineStart--;
+        }
+
+        if ( ( nLineStart > 0 && strSource.charAt( nLineStart - 1 ) != '\n' ) || strSource.substring( nStart, nEnd ).indexOf( '\n' ) >= 0 )
+        {
+            return null;
+        }
+
+        int nLineEnd = nEnd;
+
+        while ( nLineEnd < strSource.length( ) && isBlank( strSource.charAt( nLineEnd ) ) )
+        {
+            nLineEnd++;
+        }
+
+        if ( strSource.startsWith( "\r\n", nLineEnd ) )
+        {
+            nLineEnd += 2;
+        }
+        else if ( nLineEnd < strSource.length( ) && strSource.charAt( nLineEnd ) == '\n' )
+        {
+            nLineEnd++;
+        }
+        else if ( nLineEnd < strSource.length( ) )
+        {
+            return null;
+        }
+
+        return new int [ ] {
+                nLineStart, nLineEnd
+        };
+    }
+
+    /**
+     * Returns the name of the directive of an FTL tag (ie: "if" for "&lt;#if x&gt;" or "/if" for "&lt;/#if&gt;")
+     * 
+     * @param strSource
+     *            The template source
+     * @param nStart
+     *            The start of the tag
+     * @return The directive name, prefixed by a slash for end tags
+     */
+    static String getDirectiveName( String strSource, int nStart )
+    {
+        int nPos = nStart + 1;
+        boolean bEndTag = strSource.charAt( nPos ) == '/';
+
+        if ( bEndTag )
+        {
+            nPos++;
+        }
+
+        // skip # or @
+        nPos++;
+
+        int nNameStart = nPos;
+
+        while ( nPos < strSource.length( ) && isNameChar( strSource.charAt( nPos ) ) )
+        {
+            nPos++;
+        }
+
+        String strName = strSource.substring( nNameStart, nPos );
+
+        return bEndTag ? ( "/" + strName ) : strName;
+    }
+
+    /**
+     * Checks if a char can be part of an FTL identifier or directive name
+     * 
+     * @param c
+     *            The char
+     * @return true if the char can be part of an identifier
+     */
+    static boolean isNameChar( char c )
+    {
+        return Character.isLetterOrDigit( c ) || c == '_' || c == '$' || c == '.' || c == '-' || c == ':';
+    }
+
+    /**
+     * Checks if a char is a blank of a line
+     * 
+     * @param c
+     *            The char
+     * @return true for spaces and tabs
+     */
+    private static boolean isBlank( char c )
+    {
+        return c == ' ' || c == '\t';
+    }
+
+    /**
+     * Find a closing char outside of string literals and nested brackets
+     * 
+     * @param strSource
+     *            The template source
+     * @param nFrom
+     *            The position to start from
+     * @param cClose
+     *            The closing char
+     * @return The position following the closing char, or the length of the source if not found
+     */
+    private static int findClosing( String strSource, int nFrom, char cClose )
+    {
+        int nDepth = 0;
+        int nLength = strSource.length( );
+
+        for ( int i = nFrom; i < nLength; i++ )
+        {
+            char c = strSource.charAt( i );
+
+            if ( c == '"' || c == '\'' )
+            {
+                i = skipString( strSource, i );
+            }
+            else if ( c == cClose && nDepth == 0 )
+            {
+                return i + 1;
+            }
+            else if ( c == '(' || c == '[' || c == '{' )
+            {
+                nDepth++;
+            }
+            else if ( ( c == ')' || c == ']' || c == '}' ) && nDepth > 0 )
+            {
+                nDepth--;
+            }
+        }
+
+        return nLength;
+    }
+
+    /**
+     * Skip a string literal
+     * 
+     * @param strSource
+     *            The template source
+     * @param nStart
+     *            The position of the opening quote
+     * @return The position of the closing quote
+     */
+    private static int skipString( String strSource, int nStart )
+    {
+        char cQuote = strSource.charAt( nStart );
+        boolean bRaw = nStart > 0 && strSource.charAt( nStart - 1 ) == 'r';
+        int nLength = strSource.length( );
+
+        for ( int i = nStart + 1; i < nLength; i++ )
+        {
+            char c = strSource.charAt( i );
+
+            if ( c == '\\' && !bRaw )
+            {
+                i++;
+            }
+            else if ( c == cQuote )
+            {
+                return i;
+            }
+        }
+
+        return nLength;
+    }
+
+    /**
+     * Tokenizer of a template source : splits the source in FTL comments, FTL tags, interpolations and static text chars. A noparse block is a
+     * single tag token, from its start tag to the end of its end tag. The scan resumes at the end of the current token, or at the position set by
+     * {@link #setPosition(int)}.
+     */
+    static final class Tokenizer
+    {
+        private final String _strSource;
+        private final int _nTo;
+        private int _nNext;
+        private TokenType _type;
+        private int _nStart;
+        private int _nEnd;
+        private String _strDirective;
+
+        /**
+         * Constructor
+         * 
+         * @param strSource
+         *            The template source
+         */
+        Tokenizer( String strSource )
+        {
+            this( strSource, 0, strSource.length( ) );
+        }
+
+        /**
+         * Constructor
+         * 
+         * @param strSource
+         *            The template source
+         * @param nFrom
+         *            The start of the scanned part
+         * @param nTo
+         *            The end of the scanned part. The last token may end after it if its construct is not closed before.
+         */
+        Tokenizer( String strSource, int nFrom, int nTo )
+        {
+            _strSource = strSource;
+            _nNext = nFrom;
+            _nTo = nTo;
+        }
+
+        /**
+         * Move to the next token
+         * 
+         * @return false if the end of the scanned part is reached
+         */
+        boolean next( )
+        {
+            int nPos = _nNext;
+
+            if ( nPos >= _nTo )
+            {
+                return false;
+            }
+
+            _nStart = nPos;
+            _strDirective = null;
+
+            if ( isCommentStart( _strSource, nPos ) )
+            {
+                _type = TokenType.COMMENT;
+                _nEnd = findCommentEnd( _strSource, nPos );
+            }
+            else if ( isTagStart( _strSource, nPos ) )
+            {
+                _type = TokenType.TAG;
+                _strDirective = getDirectiveName( _strSource, nPos );
+                _nEnd = findTagEnd( _strSource, nPos );
+
+                if ( DIRECTIVE_NOPARSE.equals( _strDirective ) )
+                {
+                    _nEnd = findNoParseEnd( _strSource, _nEnd );
+                }
+            }
+            else if ( isInterpolationStart( _strSource, nPos ) )
+            {
+                _type = TokenType.INTERPOLATION;
+                _nEnd = findInterpolationEnd( _strSource, nPos );
+            }
+            else
+            {
+                _type = TokenType.TEXT;
+                _nEnd = nPos + 1;
+            }
+
+            _nNext = _nEnd;
+
+            return true;
+        }
+
+        /**
+         * Set the position of the next token, ie: to skip a part of the source handled by the caller
+         * 
+         * @param nPos
+         *            The position
+         */
+        void setPosition( int nPos )
+        {
+            _nNext = nPos;
+        }
+
+        /**
+         * Returns the type of the current token
+         * 
+         * @return The type
+         */
+        TokenType getType( )
+        {
+            return _type;
+        }
+
+        /**
+         * Returns the start of the current token
+         * 
+         * @return The position of its first char
+         */
+        int getStart( )
+        {
+            return _nStart;
+        }
+
+        /**
+         * Returns the end of the current token
+         * 
+         * @return The position following its last char
+         */
+        int getEnd( )
+        {
+            return _nEnd;
+        }
+
+        /**
+         * Returns the directive name of the current tag (ie: "if" for "&lt;#if x&gt;" or "/if" for "&lt;/#if&gt;")
+         * 
+         * @return The directive name, or null if the token is not a tag
+         */
+        String getDirective( )
+        {
+            return _strDirective;
+        }
+    }
+}
@@ -0,0 +1,252 @@
+/*
+ * Copyright (c) 2002-2020, City of Paris
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ *
+ *  1. Redistributions of source code must retain the above copyright notice
+ *     and the following disclaimer.
+ *
+ *  2. Redistributions in binary form must reproduce the above copyright notice
+ *     and the following disclaimer in the documentation and/or other materials
+ *     provided with the distribution.
+ *
+ *  3. Neither the name of 'Mairie de Paris' nor 'Lutece' nor the names of its
+ *     contributors may be used to endorse or promote products derived from
+ *     this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDERS OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ *
+ * License 1.0
+ */
+package fr.paris.lutece.portal.service.template;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * HTML escaper writing the unchanged runs of a value straight to the output. The escaped chars are the ones escaped by FreeMarker's HTML output
+ * format, so the output is the same. The escaped forms of the short values that are seen again (constants, shared variables, labels) are cached :
+ * a value is admitted in the cache the second time its hash is seen, so one-off values do not evict the repeated ones.
+ */
+final class HtmlEscaper
+{
+    private static final int MAX_CACHED_LENGTH = 256;
+    private static final int MAX_CACHED_VALUES = 4096;
+    private static final int DOORKEEPER_SIZE = 8192;
+    private static final char LAST_ESCAPED_CHAR = '>';
+    private static final char [ ] [ ] ENTITIES = new char [ LAST_ESCAPED_CHAR + 1] [ ];
+
+    static
+    {
+        ENTITIES ['<'] = "&lt;".toCharArray( );
+        ENTITIES ['>'] = "&gt;".toCharArray( );
+        ENTITIES ['&'] = "&amp;".toCharArray( );
+        ENTITIES ['"'] = "&quot;".toCharArray( );
+        ENTITIES ['\''] = "&#39;".toCharArray( );
+    }
+
+    private final Map<String, String> _mapEscapedValues = new ConcurrentHashMap<>( );
+    private final int [ ] _doorkeeper = new int [ DOORKEEPER_SIZE];
+
+    /**
+     * Write a value escaped to an output
+     * 
+     * @param strValue
+     *            The value
+     * @param out
+     *            The output writer
+     * @throws IOException
+     *             if an error occurs while writing
+     */
+    void escape( String strValue, Writer out ) throws IOException
+    {
+        int nFirst = indexOfEscaped( strValue );
+
+        if ( nFirst < 0 )
+        {
+            out.write( strValue );
+
+            return;
+        }
+
+        String strCached = getCached( strValue, nFirst );
+
+        if ( strCached != null )
+        {
+            out.write( strCached );
+
+            return;
+        }
+
+        int nWritten = 0;
+        int nLength = strValue.length( );
+
+        for ( int i = nFirst; i < nLength; i++ )
+        {
+            char c = strValue.charAt( i );
+
+            if ( c <= LAST_ESCAPED_CHAR && ENTITIES [c] != null )
+            {
+                if ( i > nWritten )
+                {
+                    out.write( strValue, nWritten, i - nWritten );
+                }
+
+                out.write( ENTITIES [c] );
+                nWritten = i + 1;
+            }
+        }
+
+        if ( nWritten < nLength )
+        {
+            out.write( strValue, nWritten, nLength - nWritten );
+        }
+    }
+
+    /**
+     * Escape a value
+     * 
+     * @param strValue
+     *            The value
+     * @return The escaped value, the same instance if nothing has to be escaped
+     */
+    String escape( String strValue )
+    {
+        int nFirst = indexOfEscaped( strValue );
+
+        if ( nFirst < 0 )
+        {
+            return strValue;
+        }
+
+        String strCached = getCached( strValue, nFirst );
+
+        return ( strCached != null ) ? strCached : escape( strValue, nFirst );
+    }
+
+    /**
+     * Returns the number of cached escaped values
+     * 
+     * @return The size of the cache
+     */
+    int size( )
+    {
+        return _mapEscapedValues.size( );
+    }
+
+    /**
+     * Get the escaped form of a value from the cache, caching it if the value has already been seen
+     * 
+     * @param strValue
+     *            The value
+     * @param nFirst
+     *            The index of the first char to escape
+     * @return The escaped value or null if the value is not cached
+     */
+    private String getCached( String strValue, int nFirst )
+    {
+        if ( strValue.length( ) > MAX_CACHED_LENGTH )
+        {
+            return null;
+        }
+
+        String strEscaped = _mapEscapedValues.get( strValue );
+
+        if ( strEscaped != null )
+        {
+            return strEscaped;
+        }
+
+        int nHash = strValue.hashCode( );
+        int nSlot = nHash & ( DOORKEEPER_SIZE - 1 );
+
+        // a racy update only delays the admission of a value
+        if ( _doorkeeper [nSlot] != nHash )
+        {
+            _doorkeeper [nSlot] = nHash;
+
+            return null;
+        }
+
+        if ( _mapEscapedValues.size( ) >= MAX_CACHED_VALUES )
+        {
+            _mapEscapedValues.clear( );
+        }
+
+        strEscaped = escape( strValue, nFirst );
+        _mapEscapedValues.put( strValue, strEscaped );
+
+        return strEscaped;
+    }
+
+    /**
+     * Escape a value
+     * 
+     * @param strValue
+     *            The value
+     * @param nFirst
+     *            The index of the first char to escape
+     * @return The escaped value
+     */
+    private static String escape( String strValue, int nFirst )
+    {
+        int nLength = strValue.length( );
+        StringBuilder sbEscaped = new StringBuilder( nLength + 16 );
+        sbEscaped.append( strValue, 0, nFirst );
+
+        for ( int i = nFirst; i < nLength; i++ )
+        {
+            char c = strValue.charAt( i );
+
+            if ( c <= LAST_ESCAPED_CHAR && ENTITIES [c] != null )
+            {
+                sbEscaped.append( ENTITIES [c] );
+            }
+            else
+            {
+                sbEscaped.append( c );
+            }
+        }
+
+        return sbEscaped.toString( );
+    }
+
+    /**
+     * Find the first char to escape. All the escaped chars are lower or equal to '>', so a single comparison discards the letters and most other chars.
+     * 
+     * @param strValue
+     *            The value
+     * @return The index of the first char to escape or -1 if there is none
+     */
+    private static int indexOfEscaped( String strValue )
+    {
+        int nLength = strValue.length( );
+
+        for ( int i = 0; i < nLength; i++ )
+        {
+            char c = strValue.charAt( i );
+
+            if ( c <= LAST_ESCAPED_CHAR && ENTITIES [c] != null )
+            {
+                return i;
+            }
+        }
+
+        return -1;
+    }
+}
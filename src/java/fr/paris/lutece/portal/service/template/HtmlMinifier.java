@@ -0,0 +1,276 @@
+/*
+ * Copyright (c) 2002-2020, City of Paris
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ *
+ *  1. Redistributions of source code must retain the above copyright notice
+ *     and the following disclaimer.
+ *
+ *  2. Redistributions in binary form must reproduce the above copyright notice
+ *     and the following disclaimer in the documentation and/or other materials
+ *     provided with the distribution.
+ *
+ *  3. Neither the name of 'Mairie de Paris' nor 'Lutece' nor the names of its
+ *     contributors may be used to endorse or promote products derived from
+ *     this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDERS OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ *
+ * License 1.0
+ */
+package fr.paris.lutece.portal.service.template;
+
+/**
+ * Source transformer collapsing the insignificant whitespace and removing the HTML comments of a template.
+ * FTL tags, interpolations and comments, HTML tags and the content of pre, textarea, script and style elements are kept unchanged.
+ * A run of whitespace is replaced by a line break if it contains one, so that FreeMarker's white-space stripping still applies to the same lines.
+ */
+public class HtmlMinifier implements ITemplateSourceTransformer
+{
+    private static final String [ ] RAW_ELEMENTS = {
+            "pre", "textarea", "script", "style"
+    };
+    private static final String HTML_COMMENT_START = "<!--";
+    private static final String HTML_COMMENT_END = "-->";
+    private static final String CONDITIONAL_COMMENT_START = "<!--[";
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public String transform( String strTemplateName, String strSource )
+    {
+        StringBuilder sbOut = new StringBuilder( strSource.length( ) );
+        int nLength = strSource.length( );
+        int nLastCollapsed = -1;
+        FtlSourceUtils.Tokenizer tokenizer = new FtlSourceUtils.Tokenizer( strSource );
+
+        while ( tokenizer.next( ) )
+        {
+            int i = tokenizer.getStart( );
+            int nEnd = tokenizer.getEnd( );
+
+            if ( tokenizer.getType( ) == FtlSourceUtils.TokenType.TEXT )
+            {
+                char c = strSource.charAt( i );
+
+                if ( strSource.startsWith( HTML_COMMENT_START, i ) )
+                {
+                    nEnd = findHtmlCommentEnd( strSource, i );
+
+                    if ( isRemovableComment( strSource, i, nEnd ) )
+                    {
+                        tokenizer.setPosition( nEnd );
+
+                        continue;
+                    }
+                }
+                else if ( c == '<' && i + 1 < nLength && Character.isLetter( strSource.charAt( i + 1 ) ) )
+                {
+                    nEnd = findHtmlTagEnd( strSource, i );
+
+                    String strRawElement = getRawElement( strSource, i );
+
+                    if ( strRawElement != null )
+                    {
+                        nEnd = findRawElementEnd( strSource, nEnd, strRawElement );
+                    }
+                }
+                else if ( Character.isWhitespace( c ) )
+                {
+                    boolean bLineBreak = false;
+                    nEnd = i;
+
+                    while ( nEnd < nLength && Character.isWhitespace( strSource.charAt( nEnd ) ) )
+                    {
+                        bLineBreak |= strSource.charAt( nEnd ) == '\n';
+                        nEnd++;
+                    }
+
+                    if ( sbOut.length( ) == nLastCollapsed )
+                    {
+                        // merge with the whitespace preceding a removed comment
+                        if ( bLineBreak )
+                        {
+                            sbOut.setCharAt( nLastCollapsed - 1, '\n' );
+                        }
+                    }
+                    else
+                    {
+                        sbOut.append( bLineBreak ? '\n' : ' ' );
+                        nLastCollapsed = sbOut.length( );
+                    }
+
+                    tokenizer.setPosition( nEnd );
+
+                    continue;
+                }
+
+                tokenizer.setPosition( nEnd );
+            }
+
+            sbOut.append( strSource, i, nEnd );
+        }
+
+        return sbOut.toString( );
+    }
+
+    /**
+     * Find the end of an HTML comment
+     * 
+     * @param strSource
+     *            The template source
+     * @param nStart
+     *            The start of the comment
+     * @return The position following the comment
+     */
+    private static int findHtmlCommentEnd( String strSource, int nStart )
+    {
+        int nEnd = strSource.indexOf( HTML_COMMENT_END, nStart + HTML_COMMENT_START.length( ) );
+
+        return ( nEnd < 0 ) ? strSource.length( ) : ( nEnd + HTML_COMMENT_END.length( ) );
+    }
+
+    /**
+     * Checks if an HTML comment can be removed. Conditional comments and comments containing FTL are kept.
+     * 
+     * @param strSource
+     *            The template source
+     * @param nStart
+     *            The start of the comment
+     * @param nEnd
+     *            The end of the comment
+     * @return true if the comment can be removed
+     */
+    private static boolean isRemovableComment( String strSource, int nStart, int nEnd )
+    {
+        if ( strSource.startsWith( CONDITIONAL_COMMENT_START, nStart ) || !strSource.startsWith( HTML_COMMENT_END, nEnd - HTML_COMMENT_END.length( ) ) )
+        {
+            return false;
+        }
+
+        for ( int i = nStart; i < nEnd; i++ )
+        {
+            if ( FtlSourceUtils.isTagStart( strSource, i ) || FtlSourceUtils.isInterpolationStart( strSource, i ) )
+            {
+                return false;
+            }
+        }
+
+        return true;
+    }
+
+    /**
+     * Find the end of an HTML start tag, skipping the quoted attribute values and the FTL constructs it contains
+     * 
+     * @param strSource
+     *            The template source
+     * @param nStart
+     *            The start of the tag
+     * @return The position following the tag
+     */
+    private static int findHtmlTagEnd( String strSource, int nStart )
+    {
+        int nLength = strSource.length( );
+        char cQuote = 0;
+        FtlSourceUtils.Tokenizer tokenizer = new FtlSourceUtils.Tokenizer( strSource, nStart + 1, nLength );
+
+        while ( tokenizer.next( ) )
+        {
+            if ( tokenizer.getType( ) != FtlSourceUtils.TokenType.TEXT )
+            {
+                continue;
+            }
+
+            char c = strSource.charAt( tokenizer.getStart( ) );
+
+            if ( cQuote != 0 )
+            {
+                cQuote = ( c == cQuote ) ? 0 : cQuote;
+            }
+            else if ( c == '"' || c == '\'' )
+            {
+                cQuote = c;
+            }
+            else if ( c == '>' )
+            {
+                return tokenizer.getEnd( );
+            }
+        }
+
+        return nLength;
+    }
+
+    /**
+     * Returns the name of the element starting at a given position if its content must be kept unchanged
+     * 
+     * @param strSource
+     *            The template source
+     * @param nStart
+     *            The start of the tag
+     * @return The element name, or null if the element content can be minified
+     */
+    private static String getRawElement( String strSource, int nStart )
+    {
+        for ( String strElement : RAW_ELEMENTS )
+        {
+            int nNameEnd = nStart + 1 + strElement.length( );
+
+            if ( strSource.regionMatches( true, nStart + 1, strElement, 0, strElement.length( ) ) && nNameEnd < strSource.length( ) )
+            {
+                char c = strSource.charAt( nNameEnd );
+
+                if ( c == '>' || c == '/' || Character.isWhitespace( c ) )
+                {
+                    return strElement;
+                }
+            }
+        }
+
+        return null;
+    }
+
+    /**
+     * Find the end of the closing tag of an element
+     * 
+     * @param strSource
+     *            The template source
+     * @param nFrom
+     *            The position following the start tag
+     * @param strElement
+     *            The element name
+     * @return The position following the closing tag
+     */
+    private static int findRawElementEnd( String strSource, int nFrom, String strElement )
+    {
+        String strClosing = "</" + strElement;
+        int nClosing = strSource.indexOf( "</", nFrom );
+
+        while ( nClosing >= 0 && !strSource.regionMatches( true, nClosing, strClosing, 0, strClosing.length( ) ) )
+        {
+            nClosing = strSource.indexOf( "</", nClosing + 2 );
+        }
+
+        if ( nClosing < 0 )
+        {
+            return strSource.length( );
+        }
+
+        int nEnd = strSource.indexOf( '>', nClosing );
+
+        return ( nEnd < 0 ) ? strSource.length( ) : ( nEnd + 1 );
+    }
+}
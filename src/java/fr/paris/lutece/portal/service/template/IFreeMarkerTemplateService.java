@@ -34,18 +34,32 @@
 package fr.paris.lutece.portal.service.template;
 
 import fr.paris.lutece.util.html.HtmlTemplate;
+import fr.paris.lutece.util.html.exception.LuteceFreemarkerException;
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.Collections;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executor;
 
 import java.util.Locale;
 
 /**
  *
  * IFreeMarkerTemplateService
- *
+ * <p>
+ * The tuning methods have default implementations, so the implementations of the service written before them keep working : the optimizations are
+ * ignored, the asynchronous renders run in the calling thread, and the features changing the output throw an UnsupportedOperationException.
+ * </p>
  */
 public interface IFreeMarkerTemplateService
 {
+    /** Message of the features not supported by an implementation */
+    String MESSAGE_NOT_SUPPORTED = "Not supported by this template service";
+
     /**
      * Get the absolute path from relative path
      * 
@@ -100,7 +114,7 @@ public interface IFreeMarkerTemplateService
     void addPluginAutoImport( String strNamespace, String strFileName );
 
     /**
-     * Add a shared variable into every template
+     * Add a shared variable into every template. If the shared variables are folded, changing the value of a shared variable resets the configuration.
      * 
      * @param name
      *            name of the shared variable
@@ -109,6 +123,336 @@ public interface IFreeMarkerTemplateService
      */
     void setSharedVariable( String name, Object obj );
 
+    /**
+     * Adds a content encoder (ie: gzip) applied to the rendered templates. The encoded content is computed when it is requested through
+     * {@link HtmlTemplate#getEncodedContent(String)}, and is cached, so identical renders are not compressed again.
+     * 
+     * @param encoder
+     *            The content encoder
+     */
+    default void addContentEncoder( IContentEncoder encoder )
+    {
+        throw new UnsupportedOperationException( MESSAGE_NOT_SUPPORTED );
+    }
+
+    /**
+     * Enables the minification of the template sources : insignificant whitespace is collapsed and HTML comments are removed when a template is loaded,
+     * before it is parsed. The content of pre, textarea, script and style elements is kept. Applies to the configurations created afterwards.
+     * 
+     * @param bMinifyTemplates
+     *            true to minify the templates
+     */
+    default void setMinifyTemplates( boolean bMinifyTemplates )
+    {
+    }
+
+    /**
+     * Enables the HTML auto-escaping : the interpolated values are escaped, unless ?no_esc is used. The legacy ?html built-in and the escape directive
+     * can not be used in this mode, the templates using them must be migrated or opt out with a noautoesc block. Applies to the configurations created
+     * afterwards.
+     * 
+     * @param bHtmlAutoEscaping
+     *            true to escape the interpolated values
+     */
+    default void setHtmlAutoEscaping( boolean bHtmlAutoEscaping )
+    {
+        if ( bHtmlAutoEscaping )
+        {
+            throw new UnsupportedOperationException( MESSAGE_NOT_SUPPORTED );
+        }
+    }
+
+    /**
+     * Enables the fast formatting of the default number and date formats : plain decimal patterns are formatted without DecimalFormat and numeric date
+     * patterns with cached java.time formatters. The output is the same. Applies to the configurations created afterwards.
+     * 
+     * @param bFastFormatting
+     *            true to use the fast formats
+     */
+    default void setFastFormatting( boolean bFastFormatting )
+    {
+    }
+
+    /**
+     * Enables the folding of the shared variables : when a template is loaded, the #if branches whose conditions only depend on the shared variables
+     * and on literals are selected, and the interpolations of string shared variables are replaced by their value. Applies to the configurations
+     * created afterwards.
+     * <p>
+     * Precondition : no key of the data models passed to the renders has the name of a shared variable, and no template assigns a shared variable.
+     * Otherwise the folded templates still output the value of the shared variable where the model or the assignment would have replaced it.
+     * </p>
+     * 
+     * @param bSharedVariableFolding
+     *            true to fold the shared variables
+     */
+    default void setSharedVariableFolding( boolean bSharedVariableFolding )
+    {
+    }
+
+    /**
+     * Enables the inlining of the included templates : when a template is loaded, its #include directives with a literal name are replaced by the
+     * included template if the output stays the same, and the template is reloaded when an included template changes. The error messages refer to
+     * the lines of the inlined source. Applies to the configurations created afterwards.
+     * 
+     * @param bIncludeInlining
+     *            true to inline the included templates
+     */
+    default void setIncludeInlining( boolean bIncludeInlining )
+    {
+    }
+
+    /**
+     * Sets the memory budget of the templates held strongly in the cache of each configuration, estimated from the size of their parsed trees. Over
+     * the budget, the least frequently used templates are only softly referenced and may be reclaimed by the garbage collector. Applies to the
+     * configurations created afterwards.
+     * 
+     * @param lTemplateCacheBudget
+     *            The budget in bytes
+     */
+    default void setTemplateCacheBudget( long lTemplateCacheBudget )
+    {
+    }
+
+    /**
+     * Adds a transformation applied to the template sources when they are loaded, before they are parsed. Applies to the configurations created
+     * afterwards.
+     * 
+     * @param transformer
+     *            The source transformer
+     */
+    default void addTemplateSourceTransformer( ITemplateSourceTransformer transformer )
+    {
+        throw new UnsupportedOperationException( MESSAGE_NOT_SUPPORTED );
+    }
+
+    /**
+     * Registers a model class whose properties are read by the templates through accessors generated once, instead of reflection
+     * 
+     * @param clazz
+     *            The model class
+     */
+    default void registerModelClass( Class<?> clazz )
+    {
+    }
+
+    /**
+     * Enables the snapshot of the auto-imported libraries. The libraries made only of macros and functions are loaded and parsed once per
+     * configuration revision (until the next reset or change of the auto-includes and auto-imports). The auto-imports stay lazy : a render only
+     * initializes the namespaces it uses, from the snapshot and without any template lookup. Changes to these library files are only taken into
+     * account after a reset of the cache.
+     * 
+     * @param bAutoImportSnapshot
+     *            true to enable the snapshot
+     */
+    default void setAutoImportSnapshot( boolean bAutoImportSnapshot )
+    {
+    }
+
+    /**
+     * Set the executor running the asynchronous renders. By default, they run on a pool of daemon threads dedicated to the renders, bounded to the
+     * number of processors.
+     * 
+     * @param executor
+     *            The executor, or null to use the pool dedicated to the renders
+     */
+    default void setRenderExecutor( Executor executor )
+    {
+    }
+
+    /**
+     * Release the threads owned by the service: the pool dedicated to the asynchronous renders, the scheduler of their timeouts and the thread of the
+     * soft resets, ie: when the webapp or the plugin is stopped, so a redeploy does not leak them. The running renders are interrupted. An executor
+     * set by {@link #setRenderExecutor(Executor)} is left to its owner. A later asynchronous render creates new threads.
+     */
+    default void shutdown( )
+    {
+    }
+
+    /**
+     * Set the timeout of the asynchronous renders. A render that times out is interrupted and its future fails with a
+     * {@link java.util.concurrent.TimeoutException}.
+     * 
+     * @param lRenderTimeout
+     *            The timeout in milliseconds, or 0 for no timeout
+     */
+    default void setRenderTimeout( long lRenderTimeout )
+    {
+        if ( lRenderTimeout > 0 )
+        {
+            throw new UnsupportedOperationException( MESSAGE_NOT_SUPPORTED );
+        }
+    }
+
+    /**
+     * Set the limits applied to each render : maximum duration, output size and number of model values read. A render exceeding its limits fails
+     * with a {@link fr.paris.lutece.util.html.exception.TemplateRenderLimitException}. The duration is checked when the render writes or reads a
+     * model value : the rendering thread is not interrupted, so only the asynchronous renders are stopped by their timeout otherwise.
+     * 
+     * @param limits
+     *            The limits, or null for no limits
+     */
+    default void setRenderLimits( RenderLimits limits )
+    {
+        if ( limits != null )
+        {
+            throw new UnsupportedOperationException( MESSAGE_NOT_SUPPORTED );
+        }
+    }
+
+    /**
+     * Limit the number of templates read and parsed at the same time, and make the concurrent requests of a template wait for a single load and
+     * share its result, the template or the failure. Useful to keep the load predictable when the cache is cold. The includes and imports are bounded
+     * but not shared : an include missing from the cache may be parsed by several renders at the same time.
+     * 
+     * @param nMaxConcurrentCompilations
+     *            The maximum number of concurrent compilations, or 0 for no limit
+     */
+    default void setMaxConcurrentCompilations( int nMaxConcurrentCompilations )
+    {
+    }
+
+    /**
+     * Enables the soft reset mode. In this mode, {@link #resetCache()} and {@link #resetConfiguration()} build a new generation of the configurations
+     * on a dedicated background thread, load the recently requested templates in it, and switch to it once it is ready. The current configurations
+     * keep serving the renders until the switch, and the configurations, auto-includes and auto-imports added meanwhile are carried over.
+     * 
+     * @param bSoftReset
+     *            true to enable the soft reset mode
+     */
+    default void setSoftReset( boolean bSoftReset )
+    {
+    }
+
+    /**
+     * Set the sampling of the requests recorded in the working set, used by {@link #getHotTemplates(int)}, {@link #saveWorkingSet(File)} and the
+     * warm-up of the soft resets. One request out of N is recorded, and counts for N requests. By default, one request out of 16 is recorded.
+     * 
+     * @param nSampling
+     *            N, 1 to record every request, or 0 to disable the recording
+     */
+    default void setWorkingSetSampling( int nSampling )
+    {
+    }
+
+    /**
+     * Returns the most requested templates, estimated from the recent requests. The templates provided as strings without a name are not
+     * recorded.
+     * 
+     * @param nMax
+     *            The maximum number of templates
+     * @return The names and locales of the templates, the most requested first
+     */
+    default List<TemplateKey> getHotTemplates( int nMax )
+    {
+        return Collections.emptyList( );
+    }
+
+    /**
+     * Save the most requested templates to a file, ie: on shutdown
+     * 
+     * @param file
+     *            The file
+     */
+    default void saveWorkingSet( File file )
+    {
+    }
+
+    /**
+     * Load the most requested templates saved by {@link #saveWorkingSet(File)}, ie: on startup, and load them in the cache of the default
+     * configuration
+     * 
+     * @param file
+     *            The file
+     */
+    default void loadWorkingSet( File file )
+    {
+    }
+
+    /**
+     * Set the transport of the invalidation events between the nodes of a cluster. The template changes, the replacements of string templates,
+     * the changes of the auto-includes and auto-imports and the resets made on this node are sent to the other nodes, which invalidate only what
+     * has changed.
+     * 
+     * @param transport
+     *            The transport, or null to stop the invalidation between nodes
+     */
+    default void setInvalidationTransport( ITemplateInvalidationTransport transport )
+    {
+        if ( transport != null )
+        {
+            throw new UnsupportedOperationException( MESSAGE_NOT_SUPPORTED );
+        }
+    }
+
+    /**
+     * Remove a changed template from the caches, on this node and on the other nodes of the cluster
+     * 
+     * @param strName
+     *            The template name
+     */
+    default void invalidateTemplate( String strName )
+    {
+        resetCache( );
+    }
+
+    /**
+     * Set a cache of the template sources shared by the configurations, and possibly by other template services. A template file used by several
+     * configurations is then read once and its content held once in memory. Each configuration still parses the templates it uses. A reset of the
+     * caches of this service reads the files again without clearing the sources cached for the other services. Applies to the configurations
+     * created afterwards.
+     * 
+     * @param sharedSourceCache
+     *            The shared source cache, or null to read the files for each configuration
+     */
+    default void setSharedSourceCache( SharedSourceCache sharedSourceCache )
+    {
+    }
+
+    /**
+     * Set a loader of the templates kept in a database, looked up after the template files and the string templates. The templates of the store are
+     * then loaded and checked for update by name, without loading their source on each call as loadTemplateFromStringFtl does. Applies to the
+     * configurations created afterwards.
+     * 
+     * @param jdbcTemplateLoader
+     *            The database template loader, or null to only load the template files
+     */
+    default void setJdbcTemplateLoader( JdbcTemplateLoader jdbcTemplateLoader )
+    {
+        if ( jdbcTemplateLoader != null )
+        {
+            throw new UnsupportedOperationException( MESSAGE_NOT_SUPPORTED );
+        }
+    }
+
+    /**
+     * Enables the compilation of the hot templates. A template rendered more than the threshold is compiled if it is only made of static text,
+     * interpolations, #if / #elseif / #else and #list directives, whose expressions read model variables with the ==, !=, &amp;&amp;, ||, !, ?? and
+     * default value operators and the ?has_content, ?html, ?esc and ?no_esc built-ins : its renders then write the text and the values straight to
+     * the output, without walking the FreeMarker AST. The compiled renders only support the strings, booleans, maps and collections of the model:
+     * they skip the number and date formats of the locale and the snapshot of the auto-imported libraries, so the renders using other values fall
+     * back to the interpreter. The auto-included libraries are checked for a reload at most once per template update delay.
+     * 
+     * @param nCompileThreshold
+     *            The number of renders of a template before its compilation, or 0 to disable the compilation
+     */
+    default void setCompileThreshold( int nCompileThreshold )
+    {
+    }
+
+    /**
+     * Enables the accounting of the renders : the bytes allocated and the CPU time used by the rendering thread are accumulated for each template,
+     * as measured by the ThreadMXBean of the JVM. The included templates may also be accounted, the #include directives with a literal name being
+     * wrapped in a measuring directive when the templates are loaded, which applies to the configurations created afterwards.
+     * 
+     * @param bRenderAccounting
+     *            true to account the renders
+     * @param bIncludeAccounting
+     *            true to also account the included templates
+     */
+    default void setRenderAccounting( boolean bRenderAccounting, boolean bIncludeAccounting )
+    {
+    }
+
     /**
      * Initializes the service with the templates's path
      * 
@@ -153,6 +497,70 @@ public interface IFreeMarkerTemplateService
      */
     HtmlTemplate loadTemplate( String strPath, String strTemplate, Locale locale, Object rootMap );
 
+    /**
+     * Load a template and process a model asynchronously, on the render executor. Cancelling the returned future interrupts the render.
+     * 
+     * @param strPath
+     *            the root path
+     * @param strTemplate
+     *            the path of the template from the root path
+     * @param locale
+     *            The locale
+     * @param rootMap
+     *            the model root
+     * @return the future processed html template
+     */
+    default CompletableFuture<HtmlTemplate> loadTemplateAsync( String strPath, String strTemplate, Locale locale, Object rootMap )
+    {
+        return CompletableFuture.supplyAsync( ( ) -> loadTemplate( strPath, strTemplate, locale, rootMap ), Runnable::run );
+    }
+
+    /**
+     * Returns the model variables that a template may access, with its includes, imports, auto-includes and auto-imports. The requirements are found by
+     * a static analysis of the sources, cached until the template or one of its dependencies is reloaded, so callers can skip building the model
+     * entries that are never rendered.
+     * 
+     * @param strPath
+     *            the root path
+     * @param strTemplate
+     *            the path of the template from the root path
+     * @param locale
+     *            The locale
+     * @return the model requirements of the template
+     */
+    default TemplateModelRequirements getModelRequirements( String strPath, String strTemplate, Locale locale )
+    {
+        return new TemplateModelRequirements( Collections.emptySet( ), Collections.emptySet( ), false, 0, 0, Collections.emptyMap( ) );
+    }
+
+    /**
+     * Load a template, process a model and write the result to an output stream encoded in UTF-8. The encoded form of the static text of the template is
+     * cached, so only the dynamic content is encoded on each call. The stream is flushed but not closed.
+     * 
+     * @param strPath
+     *            the root path
+     * @param strTemplate
+     *            the path of the template from the root path
+     * @param locale
+     *            The locale
+     * @param rootMap
+     *            the model root
+     * @param out
+     *            the output stream
+     */
+    default void writeTemplate( String strPath, String strTemplate, Locale locale, Object rootMap, OutputStream out )
+    {
+        try
+        {
+            out.write( loadTemplate( strPath, strTemplate, locale, rootMap ).getHtml( ).getBytes( StandardCharsets.UTF_8 ) );
+            out.flush( );
+        }
+        catch( IOException e )
+        {
+            throw new LuteceFreemarkerException( e.getMessage( ), e );
+        }
+    }
+
     /**
      * Load a template from a String and process a model.
      * the template data is stored in the StringTemplateLoader of freemarker. 
@@ -168,6 +576,23 @@ public interface IFreeMarkerTemplateService
      * @return the processed html template
      */
     HtmlTemplate loadTemplateFromStringFtl( String strTemplateData, Locale locale, Object rootMap );
+
+    /**
+     * Load a template from a String and process a model asynchronously, on the render executor. Cancelling the returned future interrupts the
+     * render.
+     * 
+     * @param strTemplateData
+     *            The template as a string
+     * @param locale
+     *            The {@link Locale}
+     * @param rootMap
+     *            the model root
+     * @return the future processed html template
+     */
+    default CompletableFuture<HtmlTemplate> loadTemplateFromStringFtlAsync( String strTemplateData, Locale locale, Object rootMap )
+    {
+        return CompletableFuture.supplyAsync( ( ) -> loadTemplateFromStringFtl( strTemplateData, locale, rootMap ), Runnable::run );
+    }
     
     
     /**
@@ -0,0 +1,150 @@
+/*
+ * Copyright (c) 2002-2020, City of Paris
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ *
+ *  1. Redistributions of source code must retain the above copyright notice
+ *     and the following disclaimer.
+ *
+ *  2. Redistributions in binary form must reproduce the above copyright notice
+ *     and the following disclaimer in the documentation and/or other materials
+ *     provided with the distribution.
+ *
+ *  3. Neither the name of 'Mairie de Paris' nor 'Lutece' nor the names of its
+ *     contributors may be used to endorse or promote products derived from
+ *     this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDERS OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ *
+ * License 1.0
+ */
+package fr.paris.lutece.portal.service.template;
+
+import java.io.IOException;
+import java.util.Map;
+import java.util.function.Supplier;
+
+import freemarker.core.Environment;
+import freemarker.template.TemplateDirectiveBody;
+import freemarker.template.TemplateDirectiveModel;
+import freemarker.template.TemplateException;
+import freemarker.template.TemplateModel;
+import freemarker.template.TemplateScalarModel;
+
+/**
+ * Accounting of the included templates. When a template is loaded, its #include directives with a literal name are wrapped in a call of this
+ * directive, which measures the render of the included template. The directive doesn't heed the white-space more than the #include directive does,
+ * so the output is unchanged.
+ */
+final class IncludeAccounting implements ITemplateSourceTransformer, TemplateDirectiveModel
+{
+    /** The name of the directive, set as a shared variable */
+    static final String DIRECTIVE_NAME = "__luteceIncludeAccounting";
+
+    private static final String DIRECTIVE_INCLUDE = "include";
+    private static final String PARAMETER_NAME = "name";
+    private static final String SQUARE_BRACKET_HEADER = "[#ftl";
+
+    private final Supplier<RenderAccounting> _accounting;
+
+    /**
+     * Constructor
+     * 
+     * @param accounting
+     *            The supplier of the current accounting, returning null when the accounting is disabled
+     */
+    IncludeAccounting( Supplier<RenderAccounting> accounting )
+    {
+        _accounting = accounting;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public String transform( String strTemplateName, String strSource )
+    {
+        if ( !strSource.contains( "<#" + DIRECTIVE_INCLUDE ) || strSource.contains( SQUARE_BRACKET_HEADER ) )
+        {
+            return strSource;
+        }
+
+        StringBuilder sbOut = null;
+        int nCopied = 0;
+        FtlSourceUtils.Tokenizer tokenizer = new FtlSourceUtils.Tokenizer( strSource );
+
+        while ( tokenizer.next( ) )
+        {
+            if ( tokenizer.getType( ) == FtlSourceUtils.TokenType.TAG && DIRECTIVE_INCLUDE.equals( tokenizer.getDirective( ) ) )
+            {
+                int nStart = tokenizer.getStart( );
+                int nEnd = tokenizer.getEnd( );
+                String strIncludedName = IncludeInliner.getIncludedName( strTemplateName, strSource.substring( nStart, nEnd ) );
+
+                if ( strIncludedName != null && strIncludedName.indexOf( '"' ) < 0 )
+                {
+                    if ( sbOut == null )
+                    {
+                        sbOut = new StringBuilder( strSource.length( ) + 256 );
+                    }
+
+                    sbOut.append( strSource, nCopied, nStart ).append( "<@" ).append( DIRECTIVE_NAME ).append( ' ' ).append( PARAMETER_NAME )
+                            .append( "=\"" ).append( strIncludedName ).append( "\">" ).append( strSource, nStart, nEnd ).append( "</@" )
+                            .append( DIRECTIVE_NAME ).append( '>' );
+                    nCopied = nEnd;
+                }
+            }
+        }
+
+        return ( sbOut == null ) ? strSource : sbOut.append( strSource, nCopied, strSource.length( ) ).toString( );
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    @SuppressWarnings( "rawtypes" )
+    public void execute( Environment env, Map params, TemplateModel [ ] loopVars, TemplateDirectiveBody body ) throws TemplateException, IOException
+    {
+        if ( body == null )
+        {
+            return;
+        }
+
+        RenderAccounting accounting = _accounting.get( );
+        TemplateModel name = (TemplateModel) params.get( PARAMETER_NAME );
+
+        if ( accounting == null || !accounting.isIncludeAccounting( ) || !( name instanceof TemplateScalarModel ) )
+        {
+            body.render( env.getOut( ) );
+
+            return;
+        }
+
+        String strName = ( (TemplateScalarModel) name ).getAsString( );
+        long lAllocatedBytes = accounting.getAllocatedBytes( );
+        long lCpuTime = accounting.getCpuTime( );
+
+        try
+        {
+            body.render( env.getOut( ) );
+        }
+        finally
+        {
+            accounting.record( strName, lAllocatedBytes, lCpuTime );
+        }
+    }
+}
@@ -0,0 +1,591 @@
+/*
+ * Copyright (c) 2002-2020, City of Paris
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ *
+ *  1. Redistributions of source code must retain the above copyright notice
+ *     and the following disclaimer.
+ *
+ *  2. Redistributions in binary form must reproduce the above copyright notice
+ *     and the following disclaimer in the documentation and/or other materials
+ *     provided with the distribution.
+ *
+ *  3. Neither the name of 'Mairie de Paris' nor 'Lutece' nor the names of its
+ *     contributors may be used to endorse or promote products derived from
+ *     this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDERS OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ *
+ * License 1.0
+ */
+package fr.paris.lutece.portal.service.template;
+
+import java.io.IOException;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import freemarker.cache.TemplateLoader;
+
+/**
+ * Inlines the included templates into the including template when it is loaded, so that the includes cost nothing on each render. Only the #include
+ * directives with a literal name and no options, standing alone on their lines, are inlined, and only if the inlined source gives the same output : the
+ * included template must not define macros, use its own name or parse settings, or start or end with constructs affected by the white-space
+ * stripping of a template's top level. The included templates are read through the wrapped loader and their last modification dates are tracked so
+ * that the including templates are reloaded when they change.
+ */
+final class IncludeInliner
+{
+    private static final int MAX_DEPTH = 16;
+    private static final long MISSING = Long.MIN_VALUE;
+    private static final String DIRECTIVE_INCLUDE = "include";
+    private static final String FTL_HEADER = "#ftl";
+    private static final String [ ] HEADER_SETTINGS = {
+            "encoding", "strip_"
+    };
+    private static final String [ ] UNSUPPORTED_FRAGMENT_CONSTRUCTS = {
+            FTL_HEADER, "#macro", "#function", "#return", "template_name", "get_optional_template"
+    };
+    private static final String [ ] RELATIVE_NAME_CONSTRUCTS = {
+            "#include", "#import", "?interpret"
+    };
+    private static final String [ ] AUTO_ESCAPING_EXTENSIONS = {
+            ".ftlh", ".ftlx"
+    };
+    private static final Set<String> NON_OUTPUTTING_DIRECTIVES = new HashSet<>( Arrays.asList( "assign", "global", "local", "macro", "function",
+            "import", "setting", "ftl" ) );
+    private static final Pattern PATTERN_INCLUDE = Pattern.compile( "<#include\\s+(?:\"([^\"\\\\{]*)\"|'([^'\\\\{]*)')\\s*/?>" );
+
+    private final TemplateLoader _loader;
+    private final Map<String, Dependencies> _mapDependencies = new ConcurrentHashMap<>( );
+
+    /**
+     * Constructor
+     * 
+     * @param loader
+     *            The loader of the templates
+     */
+    IncludeInliner( TemplateLoader loader )
+    {
+        _loader = loader;
+    }
+
+    /**
+     * Inline the included templates into a template
+     * 
+     * @param strName
+     *            The template name
+     * @param strSource
+     *            The template source
+     * @param strEncoding
+     *            The encoding of the template
+     * @return The source with the included templates inlined
+     */
+    String inline( String strName, String strSource, String strEncoding )
+    {
+        Map<String, Long> mapDependencies = new HashMap<>( );
+        Deque<String> stackNames = new ArrayDeque<>( );
+        stackNames.push( strName );
+
+        String strInlined = isInliningParent( strSource ) ? inline( strName, strSource, strEncoding, mapDependencies, stackNames ) : strSource;
+
+        if ( !mapDependencies.isEmpty( ) || _mapDependencies.containsKey( strName ) )
+        {
+            _mapDependencies.computeIfAbsent( strName, name -> new Dependencies( ) ).update( mapDependencies );
+        }
+
+        return strInlined;
+    }
+
+    /**
+     * Returns the last modification date of a template, changed when one of its inlined templates changes
+     * 
+     * @param strName
+     *            The template name
+     * @param lLastModified
+     *            The last modification date of the template source
+     * @return The last modification date
+     */
+    long getLastModified( String strName, long lLastModified )
+    {
+        Dependencies dependencies = _mapDependencies.get( strName );
+
+        return ( dependencies == null ) ? lLastModified : ( lLastModified + dependencies.getVersion( ) );
+    }
+
+    /**
+     * Inline the included templates into a template
+     * 
+     * @param strName
+     *            The template name
+     * @param strSource
+     *            The template source
+     * @param strEncoding
+     *            The encoding
+     * @param mapDependencies
+     *            The last modification dates of the inlined templates
+     * @param stackNames
+     *            The names of the templates being inlined
+     * @return The source with the included templates inlined
+     */
+    private String inline( String strName, String strSource, String strEncoding, Map<String, Long> mapDependencies, Deque<String> stackNames )
+    {
+        StringBuilder sbOut = null;
+        int nCopied = 0;
+        boolean bFirstConstruct = true;
+        FtlSourceUtils.Tokenizer tokenizer = new FtlSourceUtils.Tokenizer( strSource );
+
+        while ( tokenizer.next( ) )
+        {
+            if ( tokenizer.getType( ) == FtlSourceUtils.TokenType.TEXT )
+            {
+                continue;
+            }
+
+            if ( tokenizer.getType( ) == FtlSourceUtils.TokenType.TAG && DIRECTIVE_INCLUDE.equals( tokenizer.getDirective( ) ) )
+            {
+                int nStart = tokenizer.getStart( );
+                int nEnd = tokenizer.getEnd( );
+                int [ ] lineBounds = FtlSourceUtils.findLineBounds( strSource, nStart, nEnd );
+                String strFragment = ( lineBounds != null ) ? getFragment( strName, strSource.substring( nStart, nEnd ), strEncoding, mapDependencies,
+                        stackNames ) : null;
+
+                if ( strFragment != null )
+                {
+                    if ( sbOut == null )
+                    {
+                        sbOut = new StringBuilder( strSource.length( ) + strFragment.length( ) );
+                    }
+
+                    // the text preceding the first construct of a template is not stripped, so the indentation of the line is output
+                    sbOut.append( strSource, nCopied, bFirstConstruct ? nStart : lineBounds [0] ).append( strFragment );
+                    nCopied = lineBounds [1];
+                    tokenizer.setPosition( lineBounds [1] );
+                }
+            }
+
+            bFirstConstruct = false;
+        }
+
+        return ( sbOut == null ) ? strSource : sbOut.append( strSource, nCopied, strSource.length( ) ).toString( );
+    }
+
+    /**
+     * Get the source of an included template if it can be inlined
+     * 
+     * @param strName
+     *            The name of the including template
+     * @param strTag
+     *            The #include tag
+     * @param strEncoding
+     *            The encoding
+     * @param mapDependencies
+     *            The last modification dates of the inlined templates
+     * @param stackNames
+     *            The names of the templates being inlined
+     * @return The source of the included template with its own includes inlined, or null if it can't be inlined
+     */
+    private String getFragment( String strName, String strTag, String strEncoding, Map<String, Long> mapDependencies, Deque<String> stackNames )
+    {
+        String strFragmentName = getIncludedName( strName, strTag );
+
+        if ( stackNames.size( ) >= MAX_DEPTH )
+        {
+            return null;
+        }
+
+        if ( strFragmentName == null || stackNames.contains( strFragmentName ) || isAutoEscaping( strName ) != isAutoEscaping( strFragmentName ) )
+        {
+            return null;
+        }
+
+        String strFragment;
+        long lLastModified;
+
+        try
+        {
+            Object source = _loader.findTemplateSource( strFragmentName );
+
+            if ( source == null )
+            {
+                // the error is reported when the template is rendered
+                return null;
+            }
+
+            try
+            {
+                lLastModified = _loader.getLastModified( source );
+                strFragment = PipelineTemplateLoader.read( _loader.getReader( source, strEncoding ) );
+            }
+            finally
+            {
+                _loader.closeTemplateSource( source );
+            }
+        }
+        catch( IOException e )
+        {
+            return null;
+        }
+
+        Map<String, Long> mapFragmentDependencies = new HashMap<>( );
+        stackNames.push( strFragmentName );
+        strFragment = inline( strFragmentName, strFragment, strEncoding, mapFragmentDependencies, stackNames );
+        stackNames.pop( );
+
+        if ( !isInlinable( strName, strFragmentName, strFragment ) )
+        {
+            return null;
+        }
+
+        mapDependencies.put( strFragmentName, lLastModified );
+        mapDependencies.putAll( mapFragmentDependencies );
+
+        return strFragment;
+    }
+
+    /**
+     * Checks if the includes of a template can be inlined. Templates using the square bracket syntax or with parse settings changing the reading or
+     * the white-space stripping of the included templates are kept unchanged.
+     * 
+     * @param strSource
+     *            The template source
+     * @return true if the includes can be inlined
+     */
+    private static boolean isInliningParent( String strSource )
+    {
+        int nHeader = strSource.indexOf( FTL_HEADER );
+
+        if ( nHeader < 1 )
+        {
+            return true;
+        }
+
+        if ( strSource.charAt( nHeader - 1 ) != '<' )
+        {
+            return false;
+        }
+
+        String strHeader = strSource.substring( nHeader, FtlSourceUtils.findTagEnd( strSource, nHeader - 1 ) );
+
+        for ( String strSetting : HEADER_SETTINGS )
+        {
+            if ( strHeader.contains( strSetting ) )
+            {
+                return false;
+            }
+        }
+
+        return true;
+    }
+
+    /**
+     * Checks if an included template gives the same output once inlined
+     * 
+     * @param strName
+     *            The name of the including template
+     * @param strFragmentName
+     *            The name of the included template
+     * @param strFragment
+     *            The source of the included template
+     * @return true if the template can be inlined
+     */
+    private static boolean isInlinable( String strName, String strFragmentName, String strFragment )
+    {
+        if ( strFragment.trim( ).isEmpty( ) || !strFragment.endsWith( "\n" ) )
+        {
+            return false;
+        }
+
+        for ( String strConstruct : UNSUPPORTED_FRAGMENT_CONSTRUCTS )
+        {
+            if ( strFragment.contains( strConstruct ) )
+            {
+                return false;
+            }
+        }
+
+        // the remaining relative names would be resolved from another directory
+        if ( !getDirectory( strName ).equals( getDirectory( strFragmentName ) ) )
+        {
+            for ( String strConstruct : RELATIVE_NAME_CONSTRUCTS )
+            {
+                if ( strFragment.contains( strConstruct ) )
+                {
+                    return false;
+                }
+            }
+        }
+
+        return hasInlinableStructure( strFragment );
+    }
+
+    /**
+     * Checks that the white-space stripping rules specific to the top level of a template don't apply to an included template. The text preceding its
+     * first construct must not end with a blank line, its last construct must output something, and the white-space between constructs that
+     * output nothing must only be a line break.
+     * 
+     * @param strFragment
+     *            The source of the included template
+     * @return true if the included template can be inlined
+     */
+    private static boolean hasInlinableStructure( String strFragment )
+    {
+        int nPreviousEnd = -1;
+        boolean bPreviousNonOutputting = false;
+        FtlSourceUtils.Tokenizer tokenizer = new FtlSourceUtils.Tokenizer( strFragment );
+
+        while ( tokenizer.next( ) )
+        {
+            int i = tokenizer.getStart( );
+            int nEnd = tokenizer.getEnd( );
+            boolean bNonOutputting;
+            boolean bInterpolation = false;
+
+            if ( tokenizer.getType( ) == FtlSourceUtils.TokenType.COMMENT )
+            {
+                bNonOutputting = true;
+            }
+            else if ( tokenizer.getType( ) == FtlSourceUtils.TokenType.TAG )
+            {
+                String strDirective = tokenizer.getDirective( );
+                bNonOutputting = strFragment.charAt( i + 1 ) != '@' && strFragment.charAt( i + 2 ) != '@'
+                        && NON_OUTPUTTING_DIRECTIVES.contains( strDirective.startsWith( "/" ) ? strDirective.substring( 1 ) : strDirective );
+            }
+            else if ( tokenizer.getType( ) == FtlSourceUtils.TokenType.INTERPOLATION )
+            {
+                bNonOutputting = false;
+                bInterpolation = true;
+            }
+            else
+            {
+                continue;
+            }
+
+            String strText = strFragment.substring( Math.max( nPreviousEnd, 0 ), i );
+
+            if ( nPreviousEnd < 0 )
+            {
+                // the first text of a template is never stripped
+                String strLastLine = strText.substring( strText.lastIndexOf( '\n' ) + 1 );
+
+                if ( strText.isEmpty( ) ? bNonOutputting : ( strText.trim( ).isEmpty( ) || ( strLastLine.trim( ).isEmpty( ) && !bInterpolation ) ) )
+                {
+                    return false;
+                }
+            }
+            else if ( bPreviousNonOutputting && bNonOutputting && !strText.isEmpty( ) && strText.trim( ).isEmpty( )
+                    && ( strText.indexOf( '\n' ) < 0 || strText.indexOf( '\n' ) != strText.lastIndexOf( '\n' ) ) )
+            {
+                // white-space between constructs that output nothing is removed at the top level of a template, and only the lines holding
+                // nothing else than these constructs are removed elsewhere
+                return false;
+            }
+
+            nPreviousEnd = nEnd;
+            bPreviousNonOutputting = bNonOutputting;
+        }
+
+        // white-space following a last construct that outputs nothing is removed at the top level of a template
+        return !bPreviousNonOutputting;
+    }
+
+    /**
+     * Get the full name of the template included by an #include tag with a literal name and no options
+     * 
+     * @param strName
+     *            The name of the including template
+     * @param strTag
+     *            The #include tag
+     * @return The full name of the included template, or null if the tag is not a plain include of a literal name
+     */
+    static String getIncludedName( String strName, String strTag )
+    {
+        Matcher matcher = PATTERN_INCLUDE.matcher( strTag );
+
+        if ( !matcher.matches( ) )
+        {
+            return null;
+        }
+
+        return resolveName( strName, ( matcher.group( 1 ) != null ) ? matcher.group( 1 ) : matcher.group( 2 ) );
+    }
+
+    /**
+     * Resolve the name of an included template, as the default template name format does
+     * 
+     * @param strName
+     *            The name of the including template
+     * @param strTarget
+     *            The name of the included template, relative to the including template or absolute
+     * @return The full name, or null if the name can't be resolved without the configuration
+     */
+    static String resolveName( String strName, String strTarget )
+    {
+        if ( strTarget.isEmpty( ) || strTarget.indexOf( ':' ) >= 0 || strTarget.indexOf( '*' ) >= 0 || strTarget.indexOf( '\\' ) >= 0 )
+        {
+            return null;
+        }
+
+        String strPath = strTarget.startsWith( "/" ) ? strTarget.substring( 1 ) : ( getDirectory( strName ) + strTarget );
+        Deque<String> segments = new ArrayDeque<>( );
+
+        for ( String strSegment : strPath.split( "/", -1 ) )
+        {
+            if ( strSegment.isEmpty( ) )
+            {
+                return null;
+            }
+            else if ( "..".equals( strSegment ) )
+            {
+                if ( segments.isEmpty( ) )
+                {
+                    return null;
+                }
+
+                segments.removeLast( );
+            }
+            else if ( !".".equals( strSegment ) )
+            {
+                segments.addLast( strSegment );
+            }
+        }
+
+        return String.join( "/", segments );
+    }
+
+    /**
+     * Returns the directory of a template name
+     * 
+     * @param strName
+     *            The template name
+     * @return The directory, ending with a slash, or an empty string
+     */
+    private static String getDirectory( String strName )
+    {
+        return strName.substring( 0, strName.lastIndexOf( '/' ) + 1 );
+    }
+
+    /**
+     * Checks if the name of a template selects an auto-escaping output format
+     * 
+     * @param strName
+     *            The template name
+     * @return true for the standard extensions of the HTML and XML templates
+     */
+    private static boolean isAutoEscaping( String strName )
+    {
+        String strLowerCaseName = strName.toLowerCase( Locale.ROOT );
+
+        for ( String strExtension : AUTO_ESCAPING_EXTENSIONS )
+        {
+            if ( strLowerCaseName.endsWith( strExtension ) )
+            {
+                return true;
+            }
+        }
+
+        return false;
+    }
+
+    /**
+     * Returns the last modification date of a template, or MISSING if it doesn't exist anymore
+     * 
+     * @param strName
+     *            The template name
+     * @return The last modification date
+     */
+    private long getLastModified( String strName )
+    {
+        try
+        {
+            Object source = _loader.findTemplateSource( strName );
+
+            if ( source == null )
+            {
+                return MISSING;
+            }
+
+            try
+            {
+                return _loader.getLastModified( source );
+            }
+            finally
+            {
+                _loader.closeTemplateSource( source );
+            }
+        }
+        catch( IOException e )
+        {
+            return MISSING;
+        }
+    }
+
+    /**
+     * Inlined templates of a template
+     */
+    private final class Dependencies
+    {
+        private Map<String, Long> _mapLastModified = new HashMap<>( );
+        private int _nVersion;
+
+        /**
+         * Set the inlined templates, once the template has been loaded
+         * 
+         * @param mapLastModified
+         *            The last modification dates of the inlined templates
+         */
+        synchronized void update( Map<String, Long> mapLastModified )
+        {
+            _mapLastModified = mapLastModified;
+        }
+
+        /**
+         * Returns the version of the inlined templates, incremented when one of them has changed since the template has been loaded
+         * 
+         * @return The version
+         */
+        synchronized int getVersion( )
+        {
+            for ( Map.Entry<String, Long> entry : _mapLastModified.entrySet( ) )
+            {
+                if ( getLastModified( entry.getKey( ) ) != entry.getValue( ) )
+                {
+                    Map<String, Long> mapLastModified = new HashMap<>( );
+
+                    for ( String strName : _mapLastModified.keySet( ) )
+                    {
+                        mapLastModified.put( strName, getLastModified( strName ) );
+                    }
+
+                    _mapLastModified = mapLastModified;
+                    _nVersion++;
+
+                    break;
+                }
+            }
+
+            return _nVersion;
+        }
+    }
+}
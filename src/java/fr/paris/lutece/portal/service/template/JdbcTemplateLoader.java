@@ -0,0 +1,477 @@
+/*
+ * Copyright (c) 2002-2020, City of Paris
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ *
+ *  1. Redistributions of source code must retain the above copyright notice
+ *     and the following disclaimer.
+ *
+ *  2. Redistributions in binary form must reproduce the above copyright notice
+ *     and the following disclaimer in the documentation and/or other materials
+ *     provided with the distribution.
+ *
+ *  3. Neither the name of 'Mairie de Paris' nor 'Lutece' nor the names of its
+ *     contributors may be used to endorse or promote products derived from
+ *     this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDERS OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ *
+ * License 1.0
+ */
+package fr.paris.lutece.portal.service.template;
+
+import java.io.IOException;
+import java.io.Reader;
+import java.io.StringReader;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.regex.Pattern;
+
+import javax.sql.DataSource;
+
+import fr.paris.lutece.util.html.exception.LuteceFreemarkerException;
+import freemarker.cache.StatefulTemplateLoader;
+
+/**
+ * Template loader reading the templates from a database table holding their name, their source and their revision (a version number or a
+ * modification time, changed each time the source changes). The revisions of all the templates already requested are checked with one query per
+ * batch of names, at most once per refresh interval, and a source is only read when the template cache finds that its revision changed. The lookups
+ * made while another thread refreshes the revisions use the revisions already known, and the names missing from the store are forgotten after the
+ * miss time to live.
+ */
+public class JdbcTemplateLoader implements StatefulTemplateLoader
+{
+    /** Default name of the column holding the template name */
+    public static final String DEFAULT_NAME_COLUMN = "template_name";
+
+    /** Default name of the column holding the template source */
+    public static final String DEFAULT_SOURCE_COLUMN = "template_source";
+
+    /** Default name of the column holding the template revision */
+    public static final String DEFAULT_REVISION_COLUMN = "revision";
+
+    /** Default interval between two checks of the revisions, in milliseconds */
+    public static final long DEFAULT_REFRESH_INTERVAL = 1000L;
+
+    /** Default time during which the names missing from the store are remembered, in milliseconds */
+    public static final long DEFAULT_MISS_TIME_TO_LIVE = 60000L;
+
+    private static final int BATCH_SIZE = 500;
+    private static final long MISSING = Long.MIN_VALUE;
+    private static final Pattern PATTERN_IDENTIFIER = Pattern.compile( "[A-Za-z_][A-Za-z0-9_]*(\\.[A-Za-z_][A-Za-z0-9_]*)?" );
+
+    private final DataSource _dataSource;
+    private final String _strSqlSelectRevision;
+    private final String _strSqlSelectRevisions;
+    private final String _strSqlSelectSource;
+    private final Map<String, Long> _mapRevisions = new ConcurrentHashMap<>( );
+    private final Map<String, Long> _mapMisses = new ConcurrentHashMap<>( );
+    private final ReentrantLock _refreshLock = new ReentrantLock( );
+    private volatile long _lRefreshInterval = DEFAULT_REFRESH_INTERVAL;
+    private volatile long _lMissTimeToLive = DEFAULT_MISS_TIME_TO_LIVE;
+    private volatile long _lLastRefresh;
+    private final AtomicLong _lQueries = new AtomicLong( );
+
+    /**
+     * Constructor with the default column names
+     * 
+     * @param dataSource
+     *            The data source of the template store
+     * @param strTableName
+     *            The name of the table holding the templates
+     */
+    public JdbcTemplateLoader( DataSource dataSource, String strTableName )
+    {
+        this( dataSource, strTableName, DEFAULT_NAME_COLUMN, DEFAULT_SOURCE_COLUMN, DEFAULT_REVISION_COLUMN );
+    }
+
+    /**
+     * Constructor
+     * 
+     * @param dataSource
+     *            The data source of the template store
+     * @param strTableName
+     *            The name of the table holding the templates
+     * @param strNameColumn
+     *            The name of the column holding the template name
+     * @param strSourceColumn
+     *            The name of the column holding the template source
+     * @param strRevisionColumn
+     *            The name of the column holding the template revision, as a number
+     */
+    public JdbcTemplateLoader( DataSource dataSource, String strTableName, String strNameColumn, String strSourceColumn, String strRevisionColumn )
+    {
+        for ( String strIdentifier : new String [ ] {
+                strTableName, strNameColumn, strSourceColumn, strRevisionColumn
+        } )
+        {
+            if ( strIdentifier == null || !PATTERN_IDENTIFIER.matcher( strIdentifier ).matches( ) )
+            {
+                throw new LuteceFreemarkerException( "Invalid SQL identifier for the template store : " + strIdentifier );
+            }
+        }
+
+        _dataSource = dataSource;
+        _strSqlSelectRevision = "SELECT " + strRevisionColumn + " FROM " + strTableName + " WHERE " + strNameColumn + " = ?";
+        _strSqlSelectRevisions = "SELECT " + strNameColumn + ", " + strRevisionColumn + " FROM " + strTableName + " WHERE " + strNameColumn + " IN ";
+        _strSqlSelectSource = "SELECT " + strSourceColumn + " FROM " + strTableName + " WHERE " + strNameColumn + " = ?";
+    }
+
+    /**
+     * Set the minimum interval between two checks of the revisions of the known templates. The template update delay of the configuration still
+     * applies to each template.
+     * 
+     * @param lRefreshInterval
+     *            The interval in milliseconds, or 0 to check the revisions on each lookup
+     */
+    public void setRefreshInterval( long lRefreshInterval )
+    {
+        _lRefreshInterval = lRefreshInterval;
+    }
+
+    /**
+     * Set the time during which a name missing from the store is remembered, and checked with the known templates. The name is then forgotten, and
+     * queried again if it is requested again.
+     * 
+     * @param lMissTimeToLive
+     *            The time in milliseconds
+     */
+    public void setMissTimeToLive( long lMissTimeToLive )
+    {
+        _lMissTimeToLive = lMissTimeToLive;
+    }
+
+    /**
+     * Returns the number of template names whose revision is checked, including the names missing from the store
+     * 
+     * @return The number of names
+     */
+    public int getKnownTemplateCount( )
+    {
+        return _mapRevisions.size( );
+    }
+
+    /**
+     * Returns the number of queries sent to the database
+     * 
+     * @return The number of queries
+     */
+    public long getQueryCount( )
+    {
+        return _lQueries.get( );
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public Object findTemplateSource( String strName ) throws IOException
+    {
+        refreshRevisions( );
+
+        Long lRevision = _mapRevisions.get( strName );
+
+        if ( lRevision == null )
+        {
+            // first request of the template, then checked with the others
+            lRevision = selectRevision( strName );
+            putRevision( strName, lRevision, System.currentTimeMillis( ) );
+        }
+
+        return ( lRevision == MISSING ) ? null : new JdbcTemplateSource( strName, lRevision );
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public long getLastModified( Object templateSource )
+    {
+        return ( (JdbcTemplateSource) templateSource )._lRevision;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public Reader getReader( Object templateSource, String strEncoding ) throws IOException
+    {
+        String strName = ( (JdbcTemplateSource) templateSource )._strName;
+
+        try ( Connection connection = _dataSource.getConnection( ); PreparedStatement statement = connection.prepareStatement( _strSqlSelectSource ) )
+        {
+            _lQueries.incrementAndGet( );
+            statement.setString( 1, strName );
+
+            try ( ResultSet resultSet = statement.executeQuery( ) )
+            {
+                if ( !resultSet.next( ) )
+                {
+                    throw new IOException( "Template not found in the template store : " + strName );
+                }
+
+                String strSource = resultSet.getString( 1 );
+
+                return new StringReader( ( strSource != null ) ? strSource : "" );
+            }
+        }
+        catch( SQLException e )
+        {
+            throw new IOException( "Unable to read the template " + strName + " : " + e.getMessage( ), e );
+        }
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void closeTemplateSource( Object templateSource )
+    {
+        // nothing is held open
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void resetState( )
+    {
+        _mapRevisions.clear( );
+        _mapMisses.clear( );
+        _lLastRefresh = 0;
+    }
+
+    /**
+     * Check the revisions of the known templates if the refresh interval has elapsed. A lookup made while another thread refreshes them uses the
+     * revisions already known rather than waiting for the queries.
+     * 
+     * @throws IOException
+     *             if the database can't be queried
+     */
+    private void refreshRevisions( ) throws IOException
+    {
+        long lNow = System.currentTimeMillis( );
+
+        if ( lNow - _lLastRefresh < _lRefreshInterval || _mapRevisions.isEmpty( ) || !_refreshLock.tryLock( ) )
+        {
+            return;
+        }
+
+        try
+        {
+            if ( lNow - _lLastRefresh < _lRefreshInterval )
+            {
+                // refreshed by another thread meanwhile
+                return;
+            }
+
+            List<String> listNames = new ArrayList<>( _mapRevisions.keySet( ) );
+
+            for ( int i = 0; i < listNames.size( ); i += BATCH_SIZE )
+            {
+                List<String> listBatch = listNames.subList( i, Math.min( i + BATCH_SIZE, listNames.size( ) ) );
+                Map<String, Long> mapBatch = selectRevisions( listBatch );
+
+                for ( String strName : listBatch )
+                {
+                    putRevision( strName, mapBatch.getOrDefault( strName, MISSING ), lNow );
+                }
+            }
+
+            evictMisses( System.currentTimeMillis( ) );
+            _lLastRefresh = System.currentTimeMillis( );
+        }
+        finally
+        {
+            _refreshLock.unlock( );
+        }
+    }
+
+    /**
+     * Record the revision of a template, and the time of its first miss if it is missing from the store
+     * 
+     * @param strName
+     *            The template name
+     * @param lRevision
+     *            The revision, or MISSING
+     * @param lNow
+     *            The current time
+     */
+    private void putRevision( String strName, long lRevision, long lNow )
+    {
+        if ( lRevision == MISSING )
+        {
+            _mapMisses.putIfAbsent( strName, lNow );
+        }
+        else
+        {
+            _mapMisses.remove( strName );
+        }
+
+        _mapRevisions.put( strName, lRevision );
+    }
+
+    /**
+     * Forget the names missing from the store for longer than the miss time to live, so the names requested once do not accumulate
+     * 
+     * @param lNow
+     *            The current time
+     */
+    private void evictMisses( long lNow )
+    {
+        for ( Map.Entry<String, Long> entry : _mapMisses.entrySet( ) )
+        {
+            if ( lNow - entry.getValue( ) >= _lMissTimeToLive && _mapMisses.remove( entry.getKey( ), entry.getValue( ) ) )
+            {
+                _mapRevisions.remove( entry.getKey( ), MISSING );
+            }
+        }
+    }
+
+    /**
+     * Select the revision of a template
+     * 
+     * @param strName
+     *            The template name
+     * @return The revision, or MISSING if the template is not in the store
+     * @throws IOException
+     *             if the database can't be queried
+     */
+    private long selectRevision( String strName ) throws IOException
+    {
+        try ( Connection connection = _dataSource.getConnection( ); PreparedStatement statement = connection.prepareStatement( _strSqlSelectRevision ) )
+        {
+            _lQueries.incrementAndGet( );
+            statement.setString( 1, strName );
+
+            try ( ResultSet resultSet = statement.executeQuery( ) )
+            {
+                return resultSet.next( ) ? resultSet.getLong( 1 ) : MISSING;
+            }
+        }
+        catch( SQLException e )
+        {
+            throw new IOException( "Unable to check the template " + strName + " : " + e.getMessage( ), e );
+        }
+    }
+
+    /**
+     * Select the revisions of a batch of templates with one query
+     * 
+     * @param listNames
+     *            The template names
+     * @return The revisions of the templates found in the store
+     * @throws IOException
+     *             if the database can't be queried
+     */
+    private Map<String, Long> selectRevisions( List<String> listNames ) throws IOException
+    {
+        StringBuilder sbSql = new StringBuilder( _strSqlSelectRevisions ).append( '(' );
+
+        for ( int i = 0; i < listNames.size( ); i++ )
+        {
+            sbSql.append( ( i == 0 ) ? "?" : ",?" );
+        }
+
+        sbSql.append( ')' );
+
+        try ( Connection connection = _dataSource.getConnection( ); PreparedStatement statement = connection.prepareStatement( sbSql.toString( ) ) )
+        {
+            _lQueries.incrementAndGet( );
+
+            for ( int i = 0; i < listNames.size( ); i++ )
+            {
+                statement.setString( i + 1, listNames.get( i ) );
+            }
+
+            Map<String, Long> mapRevisions = new HashMap<>( );
+
+            try ( ResultSet resultSet = statement.executeQuery( ) )
+            {
+                while ( resultSet.next( ) )
+                {
+                    mapRevisions.put( resultSet.getString( 1 ), resultSet.getLong( 2 ) );
+                }
+            }
+
+            return mapRevisions;
+        }
+        catch( SQLException e )
+        {
+            throw new IOException( "Unable to check the templates : " + e.getMessage( ), e );
+        }
+    }
+
+    /**
+     * Template found in the store, with its revision when it was found. Two sources of the same template are equal, the revision being compared
+     * through the last modification date.
+     */
+    private static final class JdbcTemplateSource
+    {
+        private final String _strName;
+        private final long _lRevision;
+
+        /**
+         * Constructor
+         * 
+         * @param strName
+         *            The template name
+         * @param lRevision
+         *            The revision
+         */
+        JdbcTemplateSource( String strName, long lRevision )
+        {
+            _strName = strName;
+            _lRevision = lRevision;
+        }
+
+        /**
+         * {@inheritDoc}
+         */
+        @Override
+        public boolean equals( Object other )
+        {
+            return ( other instanceof JdbcTemplateSource ) && _strName.equals( ( (JdbcTemplateSource) other )._strName );
+        }
+
+        /**
+         * {@inheritDoc}
+         */
+        @Override
+        public int hashCode( )
+        {
+            return _strName.hashCode( );
+        }
+
+        /**
+         * {@inheritDoc}
+         */
+        @Override
+        public String toString( )
+        {
+            return "jdbc:" + _strName;
+        }
+    }
+}
@@ -0,0 +1,107 @@
+/*
+ * Copyright (c) 2002-2020, City of Paris
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ *
+ *  1. Redistributions of source code must retain the above copyright notice
+ *     and the following disclaimer.
+ *
+ *  2. Redistributions in binary form must reproduce the above copyright notice
+ *     and the following disclaimer in the documentation and/or other materials
+ *     provided with the distribution.
+ *
+ *  3. Neither the name of 'Mairie de Paris' nor 'Lutece' nor the names of its
+ *     contributors may be used to endorse or promote products derived from
+ *     this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDERS OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ *
+ * License 1.0
+ */
+package fr.paris.lutece.portal.service.template;
+
+import java.util.function.Supplier;
+
+/**
+ * Model value computed on its first access by a template. Values that are not used by the template (ie: hidden by an #if) are never computed.
+ * The computed value is kept, so a lazy value put in a model is computed at most once per render.
+ * 
+ * @param <T>
+ *            The type of the value
+ */
+public final class LazyValue<T>
+{
+    private final Supplier<T> _supplier;
+    private volatile boolean _bComputed;
+    private T _value;
+
+    /**
+     * Constructor
+     * 
+     * @param supplier
+     *            The supplier of the value
+     */
+    private LazyValue( Supplier<T> supplier )
+    {
+        _supplier = supplier;
+    }
+
+    /**
+     * Create a lazy value
+     * 
+     * @param <T>
+     *            The type of the value
+     * @param supplier
+     *            The supplier of the value
+     * @return The lazy value
+     */
+    public static <T> LazyValue<T> of( Supplier<T> supplier )
+    {
+        return new LazyValue<>( supplier );
+    }
+
+    /**
+     * Returns the value, computing it on the first call
+     * 
+     * @return The value
+     */
+    public T get( )
+    {
+        if ( !_bComputed )
+        {
+            synchronized( this )
+            {
+                if ( !_bComputed )
+                {
+                    _value = _supplier.get( );
+                    _bComputed = true;
+                }
+            }
+        }
+
+        return _value;
+    }
+
+    /**
+     * Checks if the value has been computed
+     * 
+     * @return true if the value has been computed
+     */
+    public boolean isComputed( )
+    {
+        return _bComputed;
+    }
+}
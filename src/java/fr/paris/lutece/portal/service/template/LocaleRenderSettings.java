@@ -0,0 +1,138 @@
+/*
+ * Copyright (c) 2002-2020, City of Paris
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ *
+ *  1. Redistributions of source code must retain the above copyright notice
+ *     and the following disclaimer.
+ *
+ *  2. Redistributions in binary form must reproduce the above copyright notice
+ *     and the following disclaimer in the documentation and/or other materials
+ *     provided with the distribution.
+ *
+ *  3. Neither the name of 'Mairie de Paris' nor 'Lutece' nor the names of its
+ *     contributors may be used to endorse or promote products derived from
+ *     this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDERS OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ *
+ * License 1.0
+ */
+package fr.paris.lutece.portal.service.template;
+
+import freemarker.core.Environment;
+
+/**
+ * Render settings of a locale (date, datetime, time and number formats). The settings are computed once per locale and applied to the processing
+ * environment of each render, so all the locales share the same configuration and parsed templates. A null pattern keeps the setting of the
+ * configuration.
+ */
+public final class LocaleRenderSettings
+{
+    private final String _strDateFormat;
+    private final String _strDateTimeFormat;
+    private final String _strTimeFormat;
+    private final String _strNumberFormat;
+
+    /**
+     * Constructor
+     * 
+     * @param strDateFormat
+     *            The date format or null
+     * @param strDateTimeFormat
+     *            The datetime format or null
+     * @param strTimeFormat
+     *            The time format or null
+     * @param strNumberFormat
+     *            The number format or null
+     */
+    public LocaleRenderSettings( String strDateFormat, String strDateTimeFormat, String strTimeFormat, String strNumberFormat )
+    {
+        _strDateFormat = strDateFormat;
+        _strDateTimeFormat = strDateTimeFormat;
+        _strTimeFormat = strTimeFormat;
+        _strNumberFormat = strNumberFormat;
+    }
+
+    /**
+     * Returns the date format
+     * 
+     * @return The date format or null
+     */
+    public String getDateFormat( )
+    {
+        return _strDateFormat;
+    }
+
+    /**
+     * Returns the datetime format
+     * 
+     * @return The datetime format or null
+     */
+    public String getDateTimeFormat( )
+    {
+        return _strDateTimeFormat;
+    }
+
+    /**
+     * Returns the time format
+     * 
+     * @return The time format or null
+     */
+    public String getTimeFormat( )
+    {
+        return _strTimeFormat;
+    }
+
+    /**
+     * Returns the number format
+     * 
+     * @return The number format or null
+     */
+    public String getNumberFormat( )
+    {
+        return _strNumberFormat;
+    }
+
+    /**
+     * Apply the settings to a processing environment. The template and the configuration are not modified.
+     * 
+     * @param env
+     *            The processing environment
+     */
+    public void applyTo( Environment env )
+    {
+        if ( _strDateFormat != null )
+        {
+            env.setDateFormat( _strDateFormat );
+        }
+
+        if ( _strDateTimeFormat != null )
+        {
+            env.setDateTimeFormat( _strDateTimeFormat );
+        }
+
+        if ( _strTimeFormat != null )
+        {
+            env.setTimeFormat( _strTimeFormat );
+        }
+
+        if ( _strNumberFormat != null )
+        {
+            env.setNumberFormat( _strNumberFormat );
+        }
+    }
+}
@@ -0,0 +1,151 @@
+/*
+ * Copyright (c) 2002-2020, City of Paris
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ *
+ *  1. Redistributions of source code must retain the above copyright notice
+ *     and the following disclaimer.
+ *
+ *  2. Redistributions in binary form must reproduce the above copyright notice
+ *     and the following disclaimer in the documentation and/or other materials
+ *     provided with the distribution.
+ *
+ *  3. Neither the name of 'Mairie de Paris' nor 'Lutece' nor the names of its
+ *     contributors may be used to endorse or promote products derived from
+ *     this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDERS OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ *
+ * License 1.0
+ */
+package fr.paris.lutece.portal.service.template;
+
+import java.io.IOException;
+import java.util.Locale;
+
+import freemarker.template.Configuration;
+import freemarker.template.Template;
+import freemarker.template.Version;
+
+/**
+ * Configuration telling the pipeline template loader which templates are loaded as plain text, such as the includes with parse=false, so their
+ * sources are returned unchanged, and serving the auto-imported libraries from their snapshot. The static text blocks of the parsed templates are
+ * registered in the cache of their encoded form.
+ */
+class LuteceConfiguration extends Configuration
+{
+    private static final String ATTRIBUTE_PREPARED = "lutece.prepared";
+
+    private final EncodedTextCache _encodedTextCache;
+    private volatile AutoImportSnapshot _autoImportSnapshot;
+
+    /**
+     * Constructor
+     * 
+     * @param version
+     *            The incompatible improvements version
+     * @param encodedTextCache
+     *            The cache of the encoded static text of the templates
+     */
+    LuteceConfiguration( Version version, EncodedTextCache encodedTextCache )
+    {
+        super( version );
+        _encodedTextCache = encodedTextCache;
+    }
+
+    /**
+     * Returns the snapshot of the auto-imported libraries
+     * 
+     * @return The snapshot, or null if the libraries are looked up in the template cache
+     */
+    AutoImportSnapshot getAutoImportSnapshot( )
+    {
+        return _autoImportSnapshot;
+    }
+
+    /**
+     * Set the snapshot of the auto-imported libraries
+     * 
+     * @param autoImportSnapshot
+     *            The snapshot, or null to look up the libraries in the template cache
+     */
+    void setAutoImportSnapshot( AutoImportSnapshot autoImportSnapshot )
+    {
+        _autoImportSnapshot = autoImportSnapshot;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public Template getTemplate( String strName, Locale locale, Object customLookupCondition, String strEncoding, boolean bParseAsFTL,
+            boolean bIgnoreMissing ) throws IOException
+    {
+        if ( bParseAsFTL )
+        {
+            AutoImportSnapshot snapshot = _autoImportSnapshot;
+
+            // the lazy auto-imports get the library when the render first uses its namespace
+            if ( snapshot != null && customLookupCondition == null )
+            {
+                Template library = snapshot.getLibrary( strName );
+
+                if ( library != null )
+                {
+                    return library;
+                }
+            }
+
+            return prepareTemplate( super.getTemplate( strName, locale, customLookupCondition, strEncoding, true, bIgnoreMissing ) );
+        }
+
+        // a plain text load does not parse the source, so it can not nest another load
+        PipelineTemplateLoader.setRawLoad( true );
+
+        try
+        {
+            return super.getTemplate( strName, locale, customLookupCondition, strEncoding, false, bIgnoreMissing );
+        }
+        finally
+        {
+            PipelineTemplateLoader.setRawLoad( false );
+        }
+    }
+
+    /**
+     * Prepare a parsed template, once, before it is rendered: register its static text blocks.
+     * 
+     * @param template
+     *            The template, or null if it is missing
+     * @return The template
+     */
+    private Template prepareTemplate( Template template )
+    {
+        if ( template != null && template.getCustomAttribute( ATTRIBUTE_PREPARED ) == null )
+        {
+            synchronized( template )
+            {
+                if ( template.getCustomAttribute( ATTRIBUTE_PREPARED ) == null )
+                {
+                    _encodedTextCache.register( template );
+                    template.setCustomAttribute( ATTRIBUTE_PREPARED, Boolean.TRUE );
+                }
+            }
+        }
+
+        return template;
+    }
+}
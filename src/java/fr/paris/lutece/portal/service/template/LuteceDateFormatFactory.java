@@ -0,0 +1,314 @@
+/*
+ * Copyright (c) 2002-2020, City of Paris
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ *
+ *  1. Redistributions of source code must retain the above copyright notice
+ *     and the following disclaimer.
+ *
+ *  2. Redistributions in binary form must reproduce the above copyright notice
+ *     and the following disclaimer in the documentation and/or other materials
+ *     provided with the distribution.
+ *
+ *  3. Neither the name of 'Mairie de Paris' nor 'Lutece' nor the names of its
+ *     contributors may be used to endorse or promote products derived from
+ *     this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDERS OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ *
+ * License 1.0
+ */
+package fr.paris.lutece.portal.service.template;
+
+import java.text.DecimalFormatSymbols;
+import java.text.ParseException;
+import java.text.SimpleDateFormat;
+import java.time.Instant;
+import java.time.format.DateTimeFormatter;
+import java.util.Calendar;
+import java.util.Date;
+import java.util.GregorianCalendar;
+import java.util.Locale;
+import java.util.Map;
+import java.util.TimeZone;
+import java.util.concurrent.ConcurrentHashMap;
+
+import freemarker.core.Environment;
+import freemarker.core.TemplateDateFormat;
+import freemarker.core.TemplateDateFormatFactory;
+import freemarker.core.TemplateFormatUtil;
+import freemarker.core.TemplateValueFormatException;
+import freemarker.core.UnparsableValueException;
+import freemarker.template.TemplateDateModel;
+import freemarker.template.TemplateModelException;
+
+/**
+ * Date format factory formatting the numeric date patterns (ie: "dd/MM/yyyy HH:mm") with thread-safe java.time formatters cached per pattern, locale
+ * and time zone, instead of cloning a SimpleDateFormat for each render. Only the pattern letters that java.time prints as SimpleDateFormat does are
+ * supported. The dates out of the 1900-9999 range and the locales with another calendar or other digits are formatted by SimpleDateFormat.
+ */
+public final class LuteceDateFormatFactory extends TemplateDateFormatFactory
+{
+    /** The name of the custom format */
+    public static final String NAME = "lutece";
+
+    /** The only instance of the factory */
+    public static final LuteceDateFormatFactory INSTANCE = new LuteceDateFormatFactory( );
+
+    private static final String FORMAT_PREFIX = "@" + NAME + " ";
+    private static final String RESERVED_CHARS = "[]{}#";
+    private static final long MIN_TIME = -2208988800000L + 86400000L;
+    private static final long MAX_TIME = 253402300799999L - 86400000L;
+
+    private final Map<String, TemplateDateFormat> _mapFormats = new ConcurrentHashMap<>( );
+
+    /**
+     * Private constructor
+     */
+    private LuteceDateFormatFactory( )
+    {
+    }
+
+    /**
+     * Returns the format string using this factory for a pattern, if the pattern is supported
+     * 
+     * @param strPattern
+     *            The pattern
+     * @return The format string referencing the custom format, or the pattern itself if it is not supported
+     */
+    public static String toFormatString( String strPattern )
+    {
+        return ( strPattern != null && isSupported( strPattern ) ) ? ( FORMAT_PREFIX + strPattern ) : strPattern;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public TemplateDateFormat get( String strParams, int nDateType, Locale locale, TimeZone timeZone, boolean bZonelessInput, Environment env )
+            throws TemplateValueFormatException
+    {
+        String strKey = strParams + '_' + locale + '_' + timeZone.getID( );
+        TemplateDateFormat format = _mapFormats.get( strKey );
+
+        if ( format != null )
+        {
+            return format;
+        }
+
+        if ( !isSupported( strParams ) || Calendar.getInstance( timeZone, locale ).getClass( ) != GregorianCalendar.class
+                || DecimalFormatSymbols.getInstance( locale ).getZeroDigit( ) != '0' )
+        {
+            // formatted by SimpleDateFormat
+            return env.getTemplateDateFormat( strParams, nDateType, locale, timeZone, bZonelessInput );
+        }
+
+        format = new PatternDateFormat( strParams, locale, timeZone );
+        _mapFormats.put( strKey, format );
+
+        return format;
+    }
+
+    /**
+     * Checks if a pattern is only made of the fields printed the same way by java.time and SimpleDateFormat
+     * 
+     * @param strPattern
+     *            The pattern
+     * @return true if the pattern is supported
+     */
+    static boolean isSupported( String strPattern )
+    {
+        int nLength = strPattern.length( );
+        int i = 0;
+
+        while ( i < nLength )
+        {
+            char c = strPattern.charAt( i );
+
+            if ( c == '\'' )
+            {
+                int nEnd = strPattern.indexOf( '\'', i + 1 );
+
+                if ( nEnd < 0 )
+                {
+                    return false;
+                }
+
+                i = nEnd + 1;
+            }
+            else if ( Character.isLetter( c ) )
+            {
+                int nCount = 1;
+
+                while ( i + nCount < nLength && strPattern.charAt( i + nCount ) == c )
+                {
+                    nCount++;
+                }
+
+                if ( !isSupportedField( c, nCount ) )
+                {
+                    return false;
+                }
+
+                i += nCount;
+            }
+            else if ( RESERVED_CHARS.indexOf( c ) >= 0 )
+            {
+                return false;
+            }
+            else
+            {
+                i++;
+            }
+        }
+
+        return true;
+    }
+
+    /**
+     * Checks if a field of a pattern is printed the same way by java.time and SimpleDateFormat
+     * 
+     * @param cLetter
+     *            The letter of the field
+     * @param nCount
+     *            The number of letters
+     * @return true if the field is supported
+     */
+    private static boolean isSupportedField( char cLetter, int nCount )
+    {
+        switch( cLetter )
+        {
+            case 'y':
+                return nCount <= 4;
+            case 'M':
+            case 'd':
+            case 'H':
+            case 'h':
+            case 'k':
+            case 'K':
+            case 'm':
+            case 's':
+                return nCount <= 2;
+            case 'S':
+                return nCount == 3;
+            default:
+                return false;
+        }
+    }
+
+    /**
+     * Date format using a java.time formatter
+     */
+    private static final class PatternDateFormat extends TemplateDateFormat
+    {
+        private final String _strPattern;
+        private final Locale _locale;
+        private final TimeZone _timeZone;
+        private final DateTimeFormatter _formatter;
+
+        /**
+         * Constructor
+         * 
+         * @param strPattern
+         *            The pattern
+         * @param locale
+         *            The locale
+         * @param timeZone
+         *            The time zone
+         */
+        PatternDateFormat( String strPattern, Locale locale, TimeZone timeZone )
+        {
+            _strPattern = strPattern;
+            _locale = locale;
+            _timeZone = timeZone;
+            _formatter = DateTimeFormatter.ofPattern( strPattern, locale ).withZone( timeZone.toZoneId( ) );
+        }
+
+        /**
+         * {@inheritDoc}
+         */
+        @Override
+        public String formatToPlainText( TemplateDateModel dateModel ) throws TemplateValueFormatException, TemplateModelException
+        {
+            Date date = TemplateFormatUtil.getNonNullDate( dateModel );
+            long lTime = date.getTime( );
+
+            if ( lTime < MIN_TIME || lTime > MAX_TIME )
+            {
+                // Julian calendar, local mean times or signed years
+                return createSimpleDateFormat( ).format( date );
+            }
+
+            return _formatter.format( Instant.ofEpochMilli( lTime ) );
+        }
+
+        /**
+         * {@inheritDoc}
+         */
+        @Override
+        public Object parse( String strDate, int nDateType ) throws TemplateValueFormatException
+        {
+            try
+            {
+                return createSimpleDateFormat( ).parse( strDate );
+            }
+            catch( ParseException e )
+            {
+                throw new UnparsableValueException( e.getMessage( ), e );
+            }
+        }
+
+        /**
+         * Create the SimpleDateFormat of the pattern
+         * 
+         * @return The SimpleDateFormat
+         */
+        private SimpleDateFormat createSimpleDateFormat( )
+        {
+            SimpleDateFormat format = new SimpleDateFormat( _strPattern, _locale );
+            format.setTimeZone( _timeZone );
+
+            return format;
+        }
+
+        /**
+         * {@inheritDoc}
+         */
+        @Override
+        public String getDescription( )
+        {
+            return _strPattern;
+        }
+
+        /**
+         * {@inheritDoc}
+         */
+        @Override
+        public boolean isLocaleBound( )
+        {
+            return true;
+        }
+
+        /**
+         * {@inheritDoc}
+         */
+        @Override
+        public boolean isTimeZoneBound( )
+        {
+            return true;
+        }
+    }
+}
@@ -0,0 +1,123 @@
+/*
+ * Copyright (c) 2002-2020, City of Paris
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ *
+ *  1. Redistributions of source code must retain the above copyright notice
+ *     and the following disclaimer.
+ *
+ *  2. Redistributions in binary form must reproduce the above copyright notice
+ *     and the following disclaimer in the documentation and/or other materials
+ *     provided with the distribution.
+ *
+ *  3. Neither the name of 'Mairie de Paris' nor 'Lutece' nor the names of its
+ *     contributors may be used to endorse or promote products derived from
+ *     this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDERS OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ *
+ * License 1.0
+ */
+package fr.paris.lutece.portal.service.template;
+
+import java.io.IOException;
+import java.io.Writer;
+
+import freemarker.core.CommonMarkupOutputFormat;
+
+/**
+ * HTML output format with auto-escaping, producing the same output as FreeMarker's HTML output format with a faster escaper : the unchanged runs of
+ * the values are written straight to the output and the escaped forms of the repeated values are cached. As with FreeMarker's HTML format, the legacy
+ * ?html, ?xhtml and ?xml built-ins are rejected where the values are auto-escaped, and return the markup values unchanged elsewhere.
+ */
+public final class LuteceHtmlOutputFormat extends CommonMarkupOutputFormat<LuteceHtmlOutputModel>
+{
+    /** The only instance of the format */
+    public static final LuteceHtmlOutputFormat INSTANCE = new LuteceHtmlOutputFormat( );
+
+    private final HtmlEscaper _escaper = new HtmlEscaper( );
+
+    /**
+     * Private constructor
+     */
+    private LuteceHtmlOutputFormat( )
+    {
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public String getName( )
+    {
+        return "HTML";
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public String getMimeType( )
+    {
+        return "text/html";
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void output( String strText, Writer out ) throws IOException
+    {
+        _escaper.escape( strText, out );
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public String escapePlainText( String strText )
+    {
+        return _escaper.escape( strText );
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public boolean isLegacyBuiltInBypassed( String strBuiltInName )
+    {
+        return "html".equals( strBuiltInName ) || "xhtml".equals( strBuiltInName ) || "xml".equals( strBuiltInName );
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    protected LuteceHtmlOutputModel newTemplateMarkupOutputModel( String strPlainText, String strMarkup )
+    {
+        return new LuteceHtmlOutputModel( strPlainText, strMarkup );
+    }
+
+    /**
+     * Returns the number of cached escaped values
+     * 
+     * @return The size of the cache
+     */
+    public int getEscapedValueCacheSize( )
+    {
+        return _escaper.size( );
+    }
+}
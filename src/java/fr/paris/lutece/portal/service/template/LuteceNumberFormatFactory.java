@@ -0,0 +1,274 @@
+/*
+ * Copyright (c) 2002-2020, City of Paris
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ *
+ *  1. Redistributions of source code must retain the above copyright notice
+ *     and the following disclaimer.
+ *
+ *  2. Redistributions in binary form must reproduce the above copyright notice
+ *     and the following disclaimer in the documentation and/or other materials
+ *     provided with the distribution.
+ *
+ *  3. Neither the name of 'Mairie de Paris' nor 'Lutece' nor the names of its
+ *     contributors may be used to endorse or promote products derived from
+ *     this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDERS OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ *
+ * License 1.0
+ */
+package fr.paris.lutece.portal.service.template;
+
+import java.math.BigDecimal;
+import java.math.BigInteger;
+import java.math.RoundingMode;
+import java.text.DecimalFormat;
+import java.text.DecimalFormatSymbols;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.regex.Pattern;
+
+import freemarker.core.Environment;
+import freemarker.core.TemplateFormatUtil;
+import freemarker.core.TemplateNumberFormat;
+import freemarker.core.TemplateNumberFormatFactory;
+import freemarker.core.TemplateValueFormatException;
+import freemarker.template.TemplateModelException;
+import freemarker.template.TemplateNumberModel;
+
+/**
+ * Number format factory formatting the plain decimal patterns (ie: "0.######") without DecimalFormat : integers are written with Long.toString, the
+ * small ones being cached, and decimals are rounded half-even from their exact value as DecimalFormat does. The output is the same as the one of the
+ * DecimalFormat of the pattern : the values DecimalFormat prints differently (large doubles with a fraction, negative values rounded to zero, NaN,
+ * infinities) and the locales with other digits or minus sign are formatted by DecimalFormat.
+ */
+public final class LuteceNumberFormatFactory extends TemplateNumberFormatFactory
+{
+    /** The name of the custom format */
+    public static final String NAME = "lutece";
+
+    /** The only instance of the factory */
+    public static final LuteceNumberFormatFactory INSTANCE = new LuteceNumberFormatFactory( );
+
+    private static final Pattern PATTERN_SUPPORTED = Pattern.compile( "0(\\.#{1,15})?" );
+    private static final String FORMAT_PREFIX = "@" + NAME + " ";
+    private static final int CACHED_INTEGERS = 1024;
+    private static final double MAX_LONG_DOUBLE = 1e15;
+    private static final String [ ] INTEGERS = new String [ CACHED_INTEGERS];
+
+    static
+    {
+        for ( int i = 0; i < CACHED_INTEGERS; i++ )
+        {
+            INTEGERS [i] = Integer.toString( i );
+        }
+    }
+
+    private final Map<String, TemplateNumberFormat> _mapFormats = new ConcurrentHashMap<>( );
+
+    /**
+     * Private constructor
+     */
+    private LuteceNumberFormatFactory( )
+    {
+    }
+
+    /**
+     * Returns the format string using this factory for a pattern, if the pattern is supported
+     * 
+     * @param strPattern
+     *            The pattern
+     * @return The format string referencing the custom format, or the pattern itself if it is not supported
+     */
+    public static String toFormatString( String strPattern )
+    {
+        return ( strPattern != null && PATTERN_SUPPORTED.matcher( strPattern ).matches( ) ) ? ( FORMAT_PREFIX + strPattern ) : strPattern;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public TemplateNumberFormat get( String strParams, Locale locale, Environment env ) throws TemplateValueFormatException
+    {
+        TemplateNumberFormat format = _mapFormats.get( strParams + '_' + locale );
+
+        if ( format != null )
+        {
+            return format;
+        }
+
+        DecimalFormatSymbols symbols = DecimalFormatSymbols.getInstance( locale );
+
+        if ( !PATTERN_SUPPORTED.matcher( strParams ).matches( ) || symbols.getZeroDigit( ) != '0' || symbols.getMinusSign( ) != '-' )
+        {
+            // formatted by DecimalFormat
+            return env.getTemplateNumberFormat( strParams, locale );
+        }
+
+        format = new DecimalNumberFormat( strParams, symbols );
+        _mapFormats.put( strParams + '_' + locale, format );
+
+        return format;
+    }
+
+    /**
+     * Format an integer
+     * 
+     * @param lValue
+     *            The value
+     * @return The formatted value
+     */
+    static String formatInteger( long lValue )
+    {
+        return ( lValue >= 0 && lValue < CACHED_INTEGERS ) ? INTEGERS [(int) lValue] : Long.toString( lValue );
+    }
+
+    /**
+     * Plain decimal format
+     */
+    private static final class DecimalNumberFormat extends TemplateNumberFormat
+    {
+        private final String _strPattern;
+        private final int _nMaxFractionDigits;
+        private final double _dMaxUlp;
+        private final char _cDecimalSeparator;
+        private final DecimalFormat _decimalFormat;
+
+        /**
+         * Constructor
+         * 
+         * @param strPattern
+         *            The pattern
+         * @param symbols
+         *            The symbols of the locale
+         */
+        DecimalNumberFormat( String strPattern, DecimalFormatSymbols symbols )
+        {
+            _strPattern = strPattern;
+            _nMaxFractionDigits = Math.max( 0, strPattern.length( ) - 2 );
+            _dMaxUlp = Math.pow( 10, -_nMaxFractionDigits );
+            _cDecimalSeparator = symbols.getDecimalSeparator( );
+            _decimalFormat = new DecimalFormat( strPattern, symbols );
+        }
+
+        /**
+         * {@inheritDoc}
+         */
+        @Override
+        public String formatToPlainText( TemplateNumberModel numberModel ) throws TemplateValueFormatException, TemplateModelException
+        {
+            Number number = TemplateFormatUtil.getNonNullNumber( numberModel );
+            String strFormatted = null;
+
+            if ( number instanceof Integer || number instanceof Long || number instanceof Short || number instanceof Byte )
+            {
+                strFormatted = formatInteger( number.longValue( ) );
+            }
+            else if ( number instanceof BigInteger )
+            {
+                strFormatted = number.toString( );
+            }
+            else if ( number instanceof BigDecimal )
+            {
+                strFormatted = formatDecimal( (BigDecimal) number );
+            }
+            else if ( number instanceof Double || number instanceof Float )
+            {
+                strFormatted = formatDouble( number.doubleValue( ) );
+            }
+
+            if ( strFormatted != null )
+            {
+                return strFormatted;
+            }
+
+            // DecimalFormat is not thread-safe
+            return ( (DecimalFormat) _decimalFormat.clone( ) ).format( number );
+        }
+
+        /**
+         * Format a double
+         * 
+         * @param dValue
+         *            The value
+         * @return The formatted value, or null if it must be formatted by DecimalFormat
+         */
+        private String formatDouble( double dValue )
+        {
+            if ( Double.isNaN( dValue ) || Double.isInfinite( dValue ) || ( dValue == 0 && 1 / dValue < 0 ) )
+            {
+                return null;
+            }
+
+            if ( dValue == Math.rint( dValue ) && Math.abs( dValue ) < MAX_LONG_DOUBLE )
+            {
+                return formatInteger( (long) dValue );
+            }
+
+            // DecimalFormat prints the shortest decimal representation of the double if it has less fraction digits than the pattern, which is
+            // the exact value rounded only if the exact value is closer to it than half of the last digit of the pattern
+            if ( Math.ulp( dValue ) >= _dMaxUlp )
+            {
+                return null;
+            }
+
+            return formatDecimal( new BigDecimal( dValue ) );
+        }
+
+        /**
+         * Format a decimal
+         * 
+         * @param decimal
+         *            The exact value
+         * @return The formatted value, or null if it must be formatted by DecimalFormat
+         */
+        private String formatDecimal( BigDecimal decimal )
+        {
+            BigDecimal rounded = decimal.setScale( _nMaxFractionDigits, RoundingMode.HALF_EVEN );
+
+            if ( rounded.signum( ) == 0 && decimal.signum( ) < 0 )
+            {
+                // negative zero
+                return null;
+            }
+
+            String strFormatted = ( rounded.signum( ) == 0 ) ? INTEGERS [0] : rounded.stripTrailingZeros( ).toPlainString( );
+
+            return ( _cDecimalSeparator == '.' ) ? strFormatted : strFormatted.replace( '.', _cDecimalSeparator );
+        }
+
+        /**
+         * {@inheritDoc}
+         */
+        @Override
+        public boolean isLocaleBound( )
+        {
+            return true;
+        }
+
+        /**
+         * {@inheritDoc}
+         */
+        @Override
+        public String getDescription( )
+        {
+            return _strPattern;
+        }
+    }
+}
@@ -0,0 +1,268 @@
+/*
+ * Copyright (c) 2002-2020, City of Paris
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ *
+ *  1. Redistributions of source code must retain the above copyright notice
+ *     and the following disclaimer.
+ *
+ *  2. Redistributions in binary form must reproduce the above copyright notice
+ *     and the following disclaimer in the documentation and/or other materials
+ *     provided with the distribution.
+ *
+ *  3. Neither the name of 'Mairie de Paris' nor 'Lutece' nor the names of its
+ *     contributors may be used to endorse or promote products derived from
+ *     this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDERS OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ *
+ * License 1.0
+ */
+package fr.paris.lutece.portal.service.template;
+
+import java.beans.BeanInfo;
+import java.beans.IntrospectionException;
+import java.beans.Introspector;
+import java.beans.PropertyDescriptor;
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.lang.reflect.Method;
+import java.lang.reflect.Modifier;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.ResourceBundle;
+import java.util.concurrent.atomic.LongAdder;
+
+import fr.paris.lutece.util.html.exception.LuteceFreemarkerException;
+import freemarker.ext.beans.StringModel;
+import freemarker.template.DefaultIteratorAdapter;
+import freemarker.template.DefaultObjectWrapper;
+import freemarker.template.TemplateModel;
+import freemarker.template.TemplateModelException;
+import freemarker.template.Version;
+
+/**
+ * Object wrapper shared by the configurations of the template service.
+ * The properties of the registered model classes are read through method handles created once at registration, instead of reflection.
+ * The accessors are attached to their class with a {@link ClassValue}, so they do not keep an unloaded class in memory. The wrapper counts the
+ * properties read through the accessors and the reads falling back to the reflection of the default bean wrapper.
+ * The wrapper also supports the {@link LazyValue} and {@link StreamedSequence} model values.
+ * The model values wrapped during a render are counted against its {@link RenderLimits}.
+ */
+public class LuteceObjectWrapper extends DefaultObjectWrapper
+{
+    private static final String PROPERTY_CLASS = "class";
+    private static final MethodType ACCESSOR_TYPE = MethodType.methodType( Object.class, Object.class );
+
+    private final ClassValue<ModelClass> _modelClasses = new ClassValue<ModelClass>( )
+    {
+        /**
+         * {@inheritDoc}
+         */
+        @Override
+        protected ModelClass computeValue( Class<?> clazz )
+        {
+            return new ModelClass( );
+        }
+    };
+    private final LongAdder _accessorReads = new LongAdder( );
+    private final LongAdder _reflectiveReads = new LongAdder( );
+
+    /**
+     * Constructor
+     * 
+     * @param version
+     *            The incompatible improvements version
+     */
+    public LuteceObjectWrapper( Version version )
+    {
+        super( version );
+        writeProtect( );
+    }
+
+    /**
+     * Register a model class whose properties are read through generated accessors
+     * 
+     * @param clazz
+     *            The model class
+     */
+    public void registerModelClass( Class<?> clazz )
+    {
+        if ( !Modifier.isPublic( clazz.getModifiers( ) ) || ResourceBundle.class.isAssignableFrom( clazz ) )
+        {
+            return;
+        }
+
+        try
+        {
+            BeanInfo beanInfo = Introspector.getBeanInfo( clazz );
+            Map<String, MethodHandle> mapAccessors = new HashMap<>( );
+            MethodHandles.Lookup lookup = MethodHandles.publicLookup( );
+
+            for ( PropertyDescriptor descriptor : beanInfo.getPropertyDescriptors( ) )
+            {
+                Method readMethod = descriptor.getReadMethod( );
+
+                if ( readMethod != null && !PROPERTY_CLASS.equals( descriptor.getName( ) ) && Modifier.isPublic( readMethod.getDeclaringClass( ).getModifiers( ) ) )
+                {
+                    mapAccessors.put( descriptor.getName( ), lookup.unreflect( readMethod ).asType( ACCESSOR_TYPE ) );
+                }
+            }
+
+            _modelClasses.get( clazz )._mapAccessors = Collections.unmodifiableMap( mapAccessors );
+        }
+        catch( IntrospectionException | IllegalAccessException e )
+        {
+            throw new LuteceFreemarkerException( "Unable to register the model class " + clazz.getName( ), e );
+        }
+    }
+
+    /**
+     * Returns the number of properties read through the accessors of the registered model classes
+     * 
+     * @return The number of accessor reads
+     */
+    public long getAccessorReadCount( )
+    {
+        return _accessorReads.sum( );
+    }
+
+    /**
+     * Returns the number of beans wrapped without accessors and of the keys of the registered model classes without accessor (ie: methods), both
+     * read through the reflection of the default bean wrapper
+     * 
+     * @return The number of reflective fallbacks
+     */
+    public long getReflectiveReadCount( )
+    {
+        return _reflectiveReads.sum( );
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public TemplateModel wrap( Object obj ) throws TemplateModelException
+    {
+        RenderBudget budget = RenderBudget.current( );
+
+        if ( budget != null )
+        {
+            budget.addModelValue( );
+        }
+
+        return super.wrap( obj );
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    protected TemplateModel handleUnknownType( Object obj ) throws TemplateModelException
+    {
+        if ( obj instanceof LazyValue )
+        {
+            return wrap( ( (LazyValue<?>) obj ).get( ) );
+        }
+
+        if ( obj instanceof StreamedSequence )
+        {
+            return DefaultIteratorAdapter.adapt( ( (StreamedSequence) obj ).iterator( ), this );
+        }
+
+        Map<String, MethodHandle> mapAccessors = _modelClasses.get( obj.getClass( ) )._mapAccessors;
+
+        if ( mapAccessors != null )
+        {
+            return new AccessorBeanModel( obj, this, mapAccessors );
+        }
+
+        _reflectiveReads.increment( );
+
+        return super.handleUnknownType( obj );
+    }
+
+    /**
+     * Accessors of a class, set if the class is registered
+     */
+    private static final class ModelClass
+    {
+        private volatile Map<String, MethodHandle> _mapAccessors;
+    }
+
+    /**
+     * Bean model reading the properties through the generated accessors, and falling back to the default behavior for methods and other keys
+     */
+    private static final class AccessorBeanModel extends StringModel
+    {
+        private final Map<String, MethodHandle> _mapAccessors;
+        private final LuteceObjectWrapper _wrapper;
+
+        /**
+         * Constructor
+         * 
+         * @param object
+         *            The wrapped object
+         * @param wrapper
+         *            The object wrapper
+         * @param mapAccessors
+         *            The property accessors of the object class
+         */
+        AccessorBeanModel( Object object, LuteceObjectWrapper wrapper, Map<String, MethodHandle> mapAccessors )
+        {
+            super( object, wrapper );
+            _mapAccessors = mapAccessors;
+            _wrapper = wrapper;
+        }
+
+        /**
+         * {@inheritDoc}
+         */
+        @Override
+        public TemplateModel get( String key ) throws TemplateModelException
+        {
+            MethodHandle accessor = _mapAccessors.get( key );
+
+            if ( accessor == null )
+            {
+                _wrapper._reflectiveReads.increment( );
+
+                return super.get( key );
+            }
+
+            _wrapper._accessorReads.increment( );
+
+            Object value;
+
+            try
+            {
+                value = (Object) accessor.invokeExact( object );
+            }
+            catch( Error e )
+            {
+                throw e;
+            }
+            catch( Throwable t )
+            {
+                throw new TemplateModelException( "An error has occurred when reading the property " + key, t );
+            }
+
+            return wrap( value );
+        }
+    }
+}
@@ -0,0 +1,375 @@
+/*
+ * Copyright (c) 2002-2020, City of Paris
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ *
+ *  1. Redistributions of source code must retain the above copyright notice
+ *     and the following disclaimer.
+ *
+ *  2. Redistributions in binary form must reproduce the above copyright notice
+ *     and the following disclaimer in the documentation and/or other materials
+ *     provided with the distribution.
+ *
+ *  3. Neither the name of 'Mairie de Paris' nor 'Lutece' nor the names of its
+ *     contributors may be used to endorse or promote products derived from
+ *     this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDERS OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ *
+ * License 1.0
+ */
+package fr.paris.lutece.portal.service.template;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+import fr.paris.lutece.util.html.HtmlTemplate;
+import fr.paris.lutece.util.html.exception.LuteceFreemarkerException;
+
+/**
+ * Post-render stage producing the compressed forms of the rendered output.
+ * A form is only compressed when the caller asks the rendered template for it (ie: the client accepts this content encoding), so the renders
+ * whose compressed forms are not used cost nothing. Compressed contents are cached by content digest, so identical renders are not compressed
+ * again. The cache is bounded by the size of the compressed contents and drops the oldest ones first ; its reads take no lock.
+ */
+public class OutputCompressionStage
+{
+    private static final String CONSTANT_DIGEST = "MD5";
+    private static final long DEFAULT_CACHE_BUDGET = 8L * 1024L * 1024L;
+    private static final int MIN_COMPRESSED_SIZE = 512;
+
+    private final List<IContentEncoder> _listEncoders = new CopyOnWriteArrayList<>( );
+    private final Map<CacheKey, byte [ ]> _mapCache = new ConcurrentHashMap<>( );
+    private final Queue<CacheKey> _queueCacheKeys = new ConcurrentLinkedQueue<>( );
+    private final AtomicLong _lCachedBytes = new AtomicLong( );
+    private final long _lCacheBudget;
+    private final LongAdder _lHits = new LongAdder( );
+    private final LongAdder _lMisses = new LongAdder( );
+
+    /**
+     * Constructor
+     */
+    public OutputCompressionStage( )
+    {
+        this( DEFAULT_CACHE_BUDGET );
+    }
+
+    /**
+     * Constructor
+     * 
+     * @param lCacheBudget
+     *            The max number of bytes of compressed contents kept in cache
+     */
+    public OutputCompressionStage( long lCacheBudget )
+    {
+        _lCacheBudget = lCacheBudget;
+    }
+
+    /**
+     * Add an encoder
+     * 
+     * @param encoder
+     *            The encoder
+     */
+    public void addEncoder( IContentEncoder encoder )
+    {
+        _listEncoders.add( encoder );
+    }
+
+    /**
+     * Returns the encoders
+     * 
+     * @return The list of encoders
+     */
+    public List<IContentEncoder> getEncoders( )
+    {
+        return Collections.unmodifiableList( _listEncoders );
+    }
+
+    /**
+     * Let a rendered template compute its compressed forms when they are requested
+     * 
+     * @param template
+     *            The rendered template
+     */
+    public void apply( HtmlTemplate template )
+    {
+        if ( !_listEncoders.isEmpty( ) )
+        {
+            template.setContentEncoder( this::encode );
+        }
+    }
+
+    /**
+     * Get the form of a rendered template compressed with an encoding, from the cache or compressing it
+     * 
+     * @param template
+     *            The rendered template
+     * @param strContentEncoding
+     *            The content encoding (ie: gzip)
+     * @return The compressed content, or null if no encoder supports the encoding or the content is too small to be compressed
+     */
+    public byte [ ] encode( HtmlTemplate template, String strContentEncoding )
+    {
+        IContentEncoder encoder = getEncoder( strContentEncoding );
+
+        if ( encoder == null )
+        {
+            return null;
+        }
+
+        ByteArrayOutputStream out = new ByteArrayOutputStream( );
+
+        try
+        {
+            template.writeTo( out );
+        }
+        catch( IOException e )
+        {
+            throw new LuteceFreemarkerException( e.getMessage( ), e );
+        }
+
+        if ( out.size( ) < MIN_COMPRESSED_SIZE )
+        {
+            return null;
+        }
+
+        byte [ ] content = out.toByteArray( );
+        CacheKey key = new CacheKey( strContentEncoding, digest( content ) );
+        byte [ ] encoded = _mapCache.get( key );
+
+        if ( encoded != null )
+        {
+            _lHits.increment( );
+
+            return encoded;
+        }
+
+        _lMisses.increment( );
+        encoded = encode( encoder, content );
+        putInCache( key, encoded );
+
+        return encoded;
+    }
+
+    /**
+     * Returns the number of compressions served from the cache
+     * 
+     * @return The number of hits
+     */
+    public long getHits( )
+    {
+        return _lHits.sum( );
+    }
+
+    /**
+     * Returns the number of compressions done
+     * 
+     * @return The number of misses
+     */
+    public long getMisses( )
+    {
+        return _lMisses.sum( );
+    }
+
+    /**
+     * Returns the number of bytes of the compressed contents kept in cache
+     * 
+     * @return The number of bytes
+     */
+    public long getCachedBytes( )
+    {
+        return _lCachedBytes.get( );
+    }
+
+    /**
+     * Clear the cache of compressed contents
+     */
+    public void clear( )
+    {
+        CacheKey key;
+
+        while ( ( key = _queueCacheKeys.poll( ) ) != null )
+        {
+            remove( key );
+        }
+    }
+
+    /**
+     * Get the encoder of a content encoding
+     * 
+     * @param strContentEncoding
+     *            The content encoding
+     * @return The encoder or null if no encoder supports the encoding
+     */
+    private IContentEncoder getEncoder( String strContentEncoding )
+    {
+        for ( IContentEncoder encoder : _listEncoders )
+        {
+            if ( encoder.getName( ).equals( strContentEncoding ) )
+            {
+                return encoder;
+            }
+        }
+
+        return null;
+    }
+
+    /**
+     * Put a compressed content in the cache, dropping the oldest ones beyond the budget
+     * 
+     * @param key
+     *            The cache key
+     * @param encoded
+     *            The compressed content
+     */
+    private void putInCache( CacheKey key, byte [ ] encoded )
+    {
+        if ( encoded.length > _lCacheBudget || _mapCache.putIfAbsent( key, encoded ) != null )
+        {
+            return;
+        }
+
+        _queueCacheKeys.add( key );
+        long lCachedBytes = _lCachedBytes.addAndGet( encoded.length );
+
+        while ( lCachedBytes > _lCacheBudget )
+        {
+            CacheKey eldest = _queueCacheKeys.poll( );
+
+            if ( eldest == null )
+            {
+                break;
+            }
+
+            lCachedBytes = remove( eldest );
+        }
+    }
+
+    /**
+     * Remove a compressed content from the cache
+     * 
+     * @param key
+     *            The cache key
+     * @return The number of bytes left in cache
+     */
+    private long remove( CacheKey key )
+    {
+        byte [ ] removed = _mapCache.remove( key );
+
+        return ( removed == null ) ? _lCachedBytes.get( ) : _lCachedBytes.addAndGet( -removed.length );
+    }
+
+    /**
+     * Encode a content
+     * 
+     * @param encoder
+     *            The encoder
+     * @param content
+     *            The content
+     * @return The encoded content
+     */
+    private static byte [ ] encode( IContentEncoder encoder, byte [ ] content )
+    {
+        try
+        {
+            return encoder.encode( content );
+        }
+        catch( IOException e )
+        {
+            throw new LuteceFreemarkerException( "Unable to encode the output with " + encoder.getName( ), e );
+        }
+    }
+
+    /**
+     * Compute the digest of a content
+     * 
+     * @param content
+     *            The content
+     * @return The digest
+     */
+    private static ByteBuffer digest( byte [ ] content )
+    {
+        try
+        {
+            return ByteBuffer.wrap( MessageDigest.getInstance( CONSTANT_DIGEST ).digest( content ) );
+        }
+        catch( NoSuchAlgorithmException e )
+        {
+            throw new LuteceFreemarkerException( e.getMessage( ), e );
+        }
+    }
+
+    /**
+     * Cache key made of the encoding and the digest of the content
+     */
+    private static final class CacheKey
+    {
+        private final String _strEncoding;
+        private final ByteBuffer _digest;
+
+        /**
+         * Constructor
+         * 
+         * @param strEncoding
+         *            The encoding
+         * @param digest
+         *            The digest
+         */
+        CacheKey( String strEncoding, ByteBuffer digest )
+        {
+            _strEncoding = strEncoding;
+            _digest = digest;
+        }
+
+        /**
+         * {@inheritDoc}
+         */
+        @Override
+        public boolean equals( Object obj )
+        {
+            if ( !( obj instanceof CacheKey ) )
+            {
+                return false;
+            }
+
+            CacheKey key = (CacheKey) obj;
+
+            return _strEncoding.equals( key._strEncoding ) && _digest.equals( key._digest );
+        }
+
+        /**
+         * {@inheritDoc}
+         */
+        @Override
+        public int hashCode( )
+        {
+            return 31 * _strEncoding.hashCode( ) + _digest.hashCode( );
+        }
+    }
+}
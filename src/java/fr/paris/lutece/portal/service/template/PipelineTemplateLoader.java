@@ -0,0 +1,325 @@
+/*
+ * Copyright (c) 2002-2020, City of Paris
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ *
+ *  1. Redistributions of source code must retain the above copyright notice
+ *     and the following disclaimer.
+ *
+ *  2. Redistributions in binary form must reproduce the above copyright notice
+ *     and the following disclaimer in the documentation and/or other materials
+ *     provided with the distribution.
+ *
+ *  3. Neither the name of 'Mairie de Paris' nor 'Lutece' nor the names of its
+ *     contributors may be used to endorse or promote products derived from
+ *     this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDERS OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ *
+ * License 1.0
+ */
+package fr.paris.lutece.portal.service.template;
+
+import java.io.IOException;
+import java.io.Reader;
+import java.io.StringReader;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+import freemarker.cache.StatefulTemplateLoader;
+import freemarker.cache.TemplateLoader;
+
+/**
+ * Template loader wrapping the loaders of a configuration to apply the source transformers to the loaded templates
+ */
+public class PipelineTemplateLoader implements StatefulTemplateLoader
+{
+    private static final int BUFFER_SIZE = 4096;
+    private static final ThreadLocal<Boolean> RAW_LOAD = new ThreadLocal<>( );
+
+    private final TemplateLoader _delegate;
+    private final List<ITemplateSourceTransformer> _listTransformers = new CopyOnWriteArrayList<>( );
+    private volatile CompilationBulkhead _compilationBulkhead;
+    private volatile IncludeInliner _includeInliner;
+
+    /**
+     * Constructor
+     * 
+     * @param delegate
+     *            The wrapped template loader
+     */
+    public PipelineTemplateLoader( TemplateLoader delegate )
+    {
+        _delegate = delegate;
+    }
+
+    /**
+     * Returns the wrapped template loader
+     * 
+     * @return The wrapped template loader
+     */
+    public TemplateLoader getDelegate( )
+    {
+        return _delegate;
+    }
+
+    /**
+     * Add a source transformer
+     * 
+     * @param transformer
+     *            The transformer
+     */
+    public void addTransformer( ITemplateSourceTransformer transformer )
+    {
+        _listTransformers.add( transformer );
+    }
+
+    /**
+     * Checks if a source transformer is applied by this loader
+     * 
+     * @param transformer
+     *            The transformer
+     * @return true if the transformer has been added
+     */
+    public boolean hasTransformer( ITemplateSourceTransformer transformer )
+    {
+        return _listTransformers.contains( transformer );
+    }
+
+    /**
+     * Enable or disable the inlining of the included templates into the including templates when they are loaded
+     * 
+     * @param bIncludeInlining
+     *            true to inline the included templates
+     */
+    public void setIncludeInlining( boolean bIncludeInlining )
+    {
+        _includeInliner = bIncludeInlining ? new IncludeInliner( _delegate ) : null;
+    }
+
+    /**
+     * Set the bulkhead bounding the number of templates read and parsed at the same time
+     * 
+     * @param compilationBulkhead
+     *            The bulkhead, or null for no limit
+     */
+    public void setCompilationBulkhead( CompilationBulkhead compilationBulkhead )
+    {
+        _compilationBulkhead = compilationBulkhead;
+    }
+
+    /**
+     * Mark the templates loaded by the current thread as plain text, which are not parsed and must not be transformed
+     * 
+     * @param bRawLoad
+     *            true while a template is loaded as plain text
+     */
+    static void setRawLoad( boolean bRawLoad )
+    {
+        if ( bRawLoad )
+        {
+            RAW_LOAD.set( Boolean.TRUE );
+        }
+        else
+        {
+            RAW_LOAD.remove( );
+        }
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public Object findTemplateSource( String strName ) throws IOException
+    {
+        Object source = _delegate.findTemplateSource( strName );
+
+        return ( source == null ) ? null : new PipelineSource( strName, source );
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public long getLastModified( Object templateSource )
+    {
+        PipelineSource source = (PipelineSource) templateSource;
+        long lLastModified = _delegate.getLastModified( source._source );
+        IncludeInliner includeInliner = _includeInliner;
+
+        return ( includeInliner == null ) ? lLastModified : includeInliner.getLastModified( source._strName, lLastModified );
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public Reader getReader( Object templateSource, String strEncoding ) throws IOException
+    {
+        CompilationBulkhead bulkhead = _compilationBulkhead;
+
+        if ( bulkhead == null )
+        {
+            return getTransformedReader( (PipelineSource) templateSource, strEncoding );
+        }
+
+        // the permit is held until the reader is closed by the template cache, after the template has been parsed
+        bulkhead.acquire( );
+
+        try
+        {
+            return bulkhead.releaseOnClose( getTransformedReader( (PipelineSource) templateSource, strEncoding ) );
+        }
+        catch( IOException | RuntimeException | Error e )
+        {
+            bulkhead.release( );
+            throw e;
+        }
+    }
+
+    /**
+     * Get the reader of a template source with the source transformations applied
+     * 
+     * @param source
+     *            The template source
+     * @param strEncoding
+     *            The encoding
+     * @return The reader
+     * @throws IOException
+     *             if an error occurs
+     */
+    private Reader getTransformedReader( PipelineSource source, String strEncoding ) throws IOException
+    {
+        Object event = TemplateEvents.beginParse( );
+        String strSource = read( _delegate.getReader( source._source, strEncoding ) );
+
+        // the sources included with parse=false are output as they are
+        if ( RAW_LOAD.get( ) == null )
+        {
+            IncludeInliner includeInliner = _includeInliner;
+
+            if ( includeInliner != null )
+            {
+                strSource = includeInliner.inline( source._strName, strSource, strEncoding );
+            }
+
+            for ( ITemplateSourceTransformer transformer : _listTransformers )
+            {
+                strSource = transformer.transform( source._strName, strSource );
+            }
+        }
+
+        return TemplateEvents.endParseOnClose( event, source._strName, strSource.length( ), new StringReader( strSource ) );
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void closeTemplateSource( Object templateSource ) throws IOException
+    {
+        _delegate.closeTemplateSource( ( (PipelineSource) templateSource )._source );
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void resetState( )
+    {
+        if ( _delegate instanceof StatefulTemplateLoader )
+        {
+            ( (StatefulTemplateLoader) _delegate ).resetState( );
+        }
+    }
+
+    /**
+     * Read the whole content of a reader
+     * 
+     * @param reader
+     *            The reader
+     * @return The content
+     * @throws IOException
+     *             if an error occurs
+     */
+    static String read( Reader reader ) throws IOException
+    {
+        StringBuilder sbContent = new StringBuilder( BUFFER_SIZE );
+        char [ ] buffer = new char [ BUFFER_SIZE];
+
+        try ( Reader in = reader )
+        {
+            int nRead;
+
+            while ( ( nRead = in.read( buffer ) ) != -1 )
+            {
+                sbContent.append( buffer, 0, nRead );
+            }
+        }
+
+        return sbContent.toString( );
+    }
+
+    /**
+     * Template source found by the wrapped loader, with the name used to find it
+     */
+    private static final class PipelineSource
+    {
+        private final String _strName;
+        private final Object _source;
+
+        /**
+         * Constructor
+         * 
+         * @param strName
+         *            The template name
+         * @param source
+         *            The source found by the wrapped loader
+         */
+        PipelineSource( String strName, Object source )
+        {
+            _strName = strName;
+            _source = source;
+        }
+
+        /**
+         * {@inheritDoc}
+         */
+        @Override
+        public boolean equals( Object obj )
+        {
+            return ( obj instanceof PipelineSource ) && _source.equals( ( (PipelineSource) obj )._source );
+        }
+
+        /**
+         * {@inheritDoc}
+         */
+        @Override
+        public int hashCode( )
+        {
+            return _source.hashCode( );
+        }
+
+        /**
+         * {@inheritDoc}
+         */
+        @Override
+        public String toString( )
+        {
+            return _source.toString( );
+        }
+    }
+}
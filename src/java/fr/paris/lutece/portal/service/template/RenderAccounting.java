@@ -0,0 +1,220 @@
+/*
+ * Copyright (c) 2002-2020, City of Paris
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ *
+ *  1. Redistributions of source code must retain the above copyright notice
+ *     and the following disclaimer.
+ *
+ *  2. Redistributions in binary form must reproduce the above copyright notice
+ *     and the following disclaimer in the documentation and/or other materials
+ *     provided with the distribution.
+ *
+ *  3. Neither the name of 'Mairie de Paris' nor 'Lutece' nor the names of its
+ *     contributors may be used to endorse or promote products derived from
+ *     this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDERS OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ *
+ * License 1.0
+ */
+package fr.paris.lutece.portal.service.template;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Accounting of the bytes allocated and the CPU time used by the renders of each template, measured on the rendering thread with the ThreadMXBean
+ * of the JVM. The costs are accumulated without locking. The included templates may also be accounted, their cost being measured around each of
+ * their #include directives.
+ */
+public class RenderAccounting
+{
+    private final ThreadMXBean _threadMXBean = ManagementFactory.getThreadMXBean( );
+    private final boolean _bAllocationSupported;
+    private final boolean _bCpuTimeSupported;
+    private final boolean _bIncludeAccounting;
+    private final Map<String, TemplateRenderCost> _mapCosts = new ConcurrentHashMap<>( );
+
+    /**
+     * Constructor. Enables the measures of the thread allocations and CPU time of the JVM if they are supported.
+     * 
+     * @param bIncludeAccounting
+     *            true to also account the included templates
+     */
+    public RenderAccounting( boolean bIncludeAccounting )
+    {
+        _bIncludeAccounting = bIncludeAccounting;
+        _bAllocationSupported = enableAllocationMeasure( _threadMXBean );
+        _bCpuTimeSupported = _threadMXBean.isCurrentThreadCpuTimeSupported( );
+
+        if ( _bCpuTimeSupported && !_threadMXBean.isThreadCpuTimeEnabled( ) )
+        {
+            _threadMXBean.setThreadCpuTimeEnabled( true );
+        }
+    }
+
+    /**
+     * Checks if the included templates are accounted
+     * 
+     * @return true if the included templates are accounted
+     */
+    public boolean isIncludeAccounting( )
+    {
+        return _bIncludeAccounting;
+    }
+
+    /**
+     * Checks if the JVM measures the bytes allocated by a thread
+     * 
+     * @return true if the allocated bytes are accounted
+     */
+    public boolean isAllocationSupported( )
+    {
+        return _bAllocationSupported;
+    }
+
+    /**
+     * Checks if the JVM measures the CPU time of a thread
+     * 
+     * @return true if the CPU time is accounted
+     */
+    public boolean isCpuTimeSupported( )
+    {
+        return _bCpuTimeSupported;
+    }
+
+    /**
+     * Returns the bytes allocated by the current thread since it started
+     * 
+     * @return The allocated bytes, or -1 if not supported
+     */
+    long getAllocatedBytes( )
+    {
+        return _bAllocationSupported ? ( (com.sun.management.ThreadMXBean) _threadMXBean ).getThreadAllocatedBytes( Thread.currentThread( ).getId( ) ) : -1;
+    }
+
+    /**
+     * Returns the CPU time used by the current thread since it started
+     * 
+     * @return The CPU time in nanoseconds, or -1 if not supported
+     */
+    long getCpuTime( )
+    {
+        return _bCpuTimeSupported ? _threadMXBean.getCurrentThreadCpuTime( ) : -1;
+    }
+
+    /**
+     * Record the cost of a render, from the measures taken by the current thread before the render
+     * 
+     * @param strTemplateName
+     *            The template name
+     * @param lAllocatedBytesBefore
+     *            The bytes allocated by the thread before the render
+     * @param lCpuTimeBefore
+     *            The CPU time of the thread before the render
+     */
+    void record( String strTemplateName, long lAllocatedBytesBefore, long lCpuTimeBefore )
+    {
+        long lAllocatedBytes = _bAllocationSupported ? ( getAllocatedBytes( ) - lAllocatedBytesBefore ) : -1;
+        long lCpuTime = _bCpuTimeSupported ? ( getCpuTime( ) - lCpuTimeBefore ) : -1;
+
+        TemplateRenderCost cost = _mapCosts.get( strTemplateName );
+
+        // the lookup does not lock, unlike computeIfAbsent on a template already rendered
+        if ( cost == null )
+        {
+            cost = _mapCosts.computeIfAbsent( strTemplateName, TemplateRenderCost::new );
+        }
+
+        cost.add( lAllocatedBytes, lCpuTime );
+    }
+
+    /**
+     * Returns the cost of a template
+     * 
+     * @param strTemplateName
+     *            The template name
+     * @return The cost, or null if the template has not been rendered
+     */
+    public TemplateRenderCost getCost( String strTemplateName )
+    {
+        return _mapCosts.get( strTemplateName );
+    }
+
+    /**
+     * Returns the costs of the templates, the templates allocating the most first
+     * 
+     * @return The costs
+     */
+    public List<TemplateRenderCost> getCosts( )
+    {
+        List<TemplateRenderCost> listCosts = new ArrayList<>( _mapCosts.values( ) );
+        listCosts.sort( Comparator.comparingLong( TemplateRenderCost::getAllocatedBytes ).thenComparingLong( TemplateRenderCost::getCpuTime )
+                .reversed( ) );
+
+        return listCosts;
+    }
+
+    /**
+     * Remove the accumulated costs
+     */
+    public void clear( )
+    {
+        _mapCosts.clear( );
+    }
+
+    /**
+     * Enable the measure of the bytes allocated by the threads, available on the HotSpot and OpenJ9 JVMs
+     * 
+     * @param threadMXBean
+     *            The thread MXBean of the JVM
+     * @return true if the allocated bytes can be measured
+     */
+    private static boolean enableAllocationMeasure( ThreadMXBean threadMXBean )
+    {
+        try
+        {
+            if ( !( threadMXBean instanceof com.sun.management.ThreadMXBean ) )
+            {
+                return false;
+            }
+
+            com.sun.management.ThreadMXBean allocationMXBean = (com.sun.management.ThreadMXBean) threadMXBean;
+
+            if ( !allocationMXBean.isThreadAllocatedMemorySupported( ) )
+            {
+                return false;
+            }
+
+            if ( !allocationMXBean.isThreadAllocatedMemoryEnabled( ) )
+            {
+                allocationMXBean.setThreadAllocatedMemoryEnabled( true );
+            }
+
+            return true;
+        }
+        catch( LinkageError | UnsupportedOperationException e )
+        {
+            return false;
+        }
+    }
+}
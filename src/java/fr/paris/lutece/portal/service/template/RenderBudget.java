@@ -0,0 +1,182 @@
+/*
+ * Copyright (c) 2002-2020, City of Paris
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ *
+ *  1. Redistributions of source code must retain the above copyright notice
+ *     and the following disclaimer.
+ *
+ *  2. Redistributions in binary form must reproduce the above copyright notice
+ *     and the following disclaimer in the documentation and/or other materials
+ *     provided with the distribution.
+ *
+ *  3. Neither the name of 'Mairie de Paris' nor 'Lutece' nor the names of its
+ *     contributors may be used to endorse or promote products derived from
+ *     this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDERS OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ *
+ * License 1.0
+ */
+package fr.paris.lutece.portal.service.template;
+
+import java.util.concurrent.TimeUnit;
+
+import fr.paris.lutece.util.html.exception.TemplateRenderLimitException;
+
+/**
+ * Budget of the render running in the current thread. The budget is checked by the {@link RenderBudgetWriter} on each write and by the
+ * {@link LuteceObjectWrapper} on each model value read, so the deadline is only checked by a render that writes or reads the model. The rendering
+ * thread is never interrupted : only the asynchronous renders are interrupted, by their own timeout. The first breach is kept, so it can be
+ * reported even if the template engine has wrapped the exception.
+ */
+final class RenderBudget
+{
+    private static final ThreadLocal<RenderBudget> CURRENT = new ThreadLocal<>( );
+
+    private final RenderLimits _limits;
+    private final long _lDeadline;
+    private final RenderBudget _previous;
+    private long _lOutputChars;
+    private long _lModelValues;
+    private TemplateRenderLimitException _breach;
+
+    /**
+     * Constructor
+     * 
+     * @param limits
+     *            The limits
+     * @param previous
+     *            The budget of the enclosing render, if any
+     */
+    private RenderBudget( RenderLimits limits, RenderBudget previous )
+    {
+        _limits = limits;
+        _lDeadline = System.nanoTime( ) + TimeUnit.MILLISECONDS.toNanos( limits.getMaxMillis( ) );
+        _previous = previous;
+    }
+
+    /**
+     * Start the budget of a render in the current thread
+     * 
+     * @param limits
+     *            The limits
+     * @return The budget
+     */
+    static RenderBudget begin( RenderLimits limits )
+    {
+        RenderBudget budget = new RenderBudget( limits, CURRENT.get( ) );
+        CURRENT.set( budget );
+
+        return budget;
+    }
+
+    /**
+     * Returns the budget of the render running in the current thread
+     * 
+     * @return The budget or null if the render has no limits
+     */
+    static RenderBudget current( )
+    {
+        return CURRENT.get( );
+    }
+
+    /**
+     * End the budget and restore the budget of the enclosing render
+     */
+    void end( )
+    {
+        if ( _previous != null )
+        {
+            CURRENT.set( _previous );
+        }
+        else
+        {
+            CURRENT.remove( );
+        }
+    }
+
+    /**
+     * Count characters written by the render
+     * 
+     * @param nChars
+     *            The number of characters
+     */
+    void addOutput( int nChars )
+    {
+        _lOutputChars += nChars;
+
+        if ( _limits.getMaxOutputChars( ) > 0 && _lOutputChars > _limits.getMaxOutputChars( ) )
+        {
+            breach( "Template output exceeds " + _limits.getMaxOutputChars( ) + " characters" );
+        }
+
+        checkTime( );
+    }
+
+    /**
+     * Count a model value read by the render
+     */
+    void addModelValue( )
+    {
+        _lModelValues++;
+
+        if ( _limits.getMaxModelValues( ) > 0 && _lModelValues > _limits.getMaxModelValues( ) )
+        {
+            breach( "Template rendering exceeds " + _limits.getMaxModelValues( ) + " model values" );
+        }
+
+        checkTime( );
+    }
+
+    /**
+     * Check the duration of the render
+     */
+    void checkTime( )
+    {
+        if ( _limits.getMaxMillis( ) > 0 && System.nanoTime( ) - _lDeadline > 0 )
+        {
+            breach( "Template rendering exceeds " + _limits.getMaxMillis( ) + " ms" );
+        }
+    }
+
+    /**
+     * Throw the breach of the budget, if any
+     */
+    void rethrowBreach( )
+    {
+        if ( _breach != null )
+        {
+            throw _breach;
+        }
+    }
+
+    /**
+     * Record and throw a breach of the budget
+     * 
+     * @param strMessage
+     *            The message
+     */
+    private void breach( String strMessage )
+    {
+        if ( _breach == null )
+        {
+            _breach = new TemplateRenderLimitException( strMessage );
+        }
+
+        throw _breach;
+    }
+}
@@ -0,0 +1,90 @@
+/*
+ * Copyright (c) 2002-2020, City of Paris
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ *
+ *  1. Redistributions of source code must retain the above copyright notice
+ *     and the following disclaimer.
+ *
+ *  2. Redistributions in binary form must reproduce the above copyright notice
+ *     and the following disclaimer in the documentation and/or other materials
+ *     provided with the distribution.
+ *
+ *  3. Neither the name of 'Mairie de Paris' nor 'Lutece' nor the names of its
+ *     contributors may be used to endorse or promote products derived from
+ *     this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDERS OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ *
+ * License 1.0
+ */
+package fr.paris.lutece.portal.service.template;
+
+import java.io.FilterWriter;
+import java.io.IOException;
+import java.io.Writer;
+
+/**
+ * Writer checking the budget of the render on each write
+ */
+class RenderBudgetWriter extends FilterWriter
+{
+    private final RenderBudget _budget;
+
+    /**
+     * Constructor
+     * 
+     * @param out
+     *            The underlying writer
+     * @param budget
+     *            The budget of the render
+     */
+    RenderBudgetWriter( Writer out, RenderBudget budget )
+    {
+        super( out );
+        _budget = budget;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void write( int c ) throws IOException
+    {
+        _budget.addOutput( 1 );
+        out.write( c );
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void write( char [ ] cbuf, int off, int len ) throws IOException
+    {
+        _budget.addOutput( len );
+        out.write( cbuf, off, len );
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void write( String str, int off, int len ) throws IOException
+    {
+        _budget.addOutput( len );
+        out.write( str, off, len );
+    }
+}
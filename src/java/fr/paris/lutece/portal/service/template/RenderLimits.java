@@ -0,0 +1,91 @@
+/*
+ * Copyright (c) 2002-2020, City of Paris
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ *
+ *  1. Redistributions of source code must retain the above copyright notice
+ *     and the following disclaimer.
+ *
+ *  2. Redistributions in binary form must reproduce the above copyright notice
+ *     and the following disclaimer in the documentation and/or other materials
+ *     provided with the distribution.
+ *
+ *  3. Neither the name of 'Mairie de Paris' nor 'Lutece' nor the names of its
+ *     contributors may be used to endorse or promote products derived from
+ *     this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDERS OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ *
+ * License 1.0
+ */
+package fr.paris.lutece.portal.service.template;
+
+/**
+ * Limits applied to each render of a template. A limit of 0 means no limit.
+ */
+public final class RenderLimits
+{
+    private final long _lMaxMillis;
+    private final long _lMaxOutputChars;
+    private final long _lMaxModelValues;
+
+    /**
+     * Constructor
+     * 
+     * @param lMaxMillis
+     *            The maximum duration of a render in milliseconds
+     * @param lMaxOutputChars
+     *            The maximum number of characters written by a render
+     * @param lMaxModelValues
+     *            The maximum number of model values read by a render, which bounds the iterations of the loops over the model
+     */
+    public RenderLimits( long lMaxMillis, long lMaxOutputChars, long lMaxModelValues )
+    {
+        _lMaxMillis = lMaxMillis;
+        _lMaxOutputChars = lMaxOutputChars;
+        _lMaxModelValues = lMaxModelValues;
+    }
+
+    /**
+     * Returns the maximum duration of a render
+     * 
+     * @return The maximum duration in milliseconds, or 0 for no limit
+     */
+    public long getMaxMillis( )
+    {
+        return _lMaxMillis;
+    }
+
+    /**
+     * Returns the maximum number of characters written by a render
+     * 
+     * @return The maximum number of characters, or 0 for no limit
+     */
+    public long getMaxOutputChars( )
+    {
+        return _lMaxOutputChars;
+    }
+
+    /**
+     * Returns the maximum number of model values read by a render
+     * 
+     * @return The maximum number of model values, or 0 for no limit
+     */
+    public long getMaxModelValues( )
+    {
+        return _lMaxModelValues;
+    }
+}
@@ -0,0 +1,275 @@
+/*
+ * Copyright (c) 2002-2020, City of Paris
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ *
+ *  1. Redistributions of source code must retain the above copyright notice
+ *     and the following disclaimer.
+ *
+ *  2. Redistributions in binary form must reproduce the above copyright notice
+ *     and the following disclaimer in the documentation and/or other materials
+ *     provided with the distribution.
+ *
+ *  3. Neither the name of 'Mairie de Paris' nor 'Lutece' nor the names of its
+ *     contributors may be used to endorse or promote products derived from
+ *     this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDERS OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ *
+ * License 1.0
+ */
+package fr.paris.lutece.portal.service.template;
+
+import java.lang.ref.SoftReference;
+import java.lang.ref.WeakReference;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Base64;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+import fr.paris.lutece.util.html.exception.LuteceFreemarkerException;
+
+/**
+ * Cache of the template sources shared by the configurations. A source is keyed by its path, last modification time and encoding, so a file
+ * used by several configurations is read once. Identical contents are held once in memory, whatever their path.
+ * The sources are softly referenced, so they are released when the memory is needed and read again on their next use. Each put is numbered, so
+ * a template service resetting its caches can ignore the sources read before its reset without clearing them for the other services.
+ */
+public class SharedSourceCache
+{
+    private static final String HASH_DIGEST = "SHA-256";
+
+    private final Map<String, SoftReference<SourceEntry>> _mapSources = new ConcurrentHashMap<>( );
+    private final AtomicLong _lSequence = new AtomicLong( );
+    private final Map<String, WeakReference<String>> _mapContents = new ConcurrentHashMap<>( );
+    private final AtomicLong _lHits = new AtomicLong( );
+    private final AtomicLong _lMisses = new AtomicLong( );
+
+    /**
+     * Get the content of a source, if it has been read with the same modification time and encoding
+     * 
+     * @param strPath
+     *            The path of the source
+     * @param lLastModified
+     *            The last modification time of the source
+     * @param strEncoding
+     *            The encoding
+     * @return The content or null if it is not in the cache
+     */
+    public String get( String strPath, long lLastModified, String strEncoding )
+    {
+        return get( strPath, lLastModified, strEncoding, 0 );
+    }
+
+    /**
+     * Get the content of a source, if it has been read with the same modification time and encoding after a given put
+     * 
+     * @param strPath
+     *            The path of the source
+     * @param lLastModified
+     *            The last modification time of the source
+     * @param strEncoding
+     *            The encoding
+     * @param lAfterSequence
+     *            The sequence number returned by {@link #getSequence()} before which the sources are ignored, or 0
+     * @return The content or null if it is not in the cache
+     */
+    public String get( String strPath, long lLastModified, String strEncoding, long lAfterSequence )
+    {
+        SoftReference<SourceEntry> ref = _mapSources.get( strPath );
+        SourceEntry entry = ( ref != null ) ? ref.get( ) : null;
+
+        if ( entry != null && entry._lSequence > lAfterSequence && entry._lLastModified == lLastModified && entry._strEncoding.equals( strEncoding ) )
+        {
+            _lHits.incrementAndGet( );
+
+            return entry._strContent;
+        }
+
+        _lMisses.incrementAndGet( );
+
+        return null;
+    }
+
+    /**
+     * Put the content of a source in the cache
+     * 
+     * @param strPath
+     *            The path of the source
+     * @param lLastModified
+     *            The last modification time of the source
+     * @param strEncoding
+     *            The encoding
+     * @param strContent
+     *            The content
+     * @return The cached content, which is the same instance for identical contents
+     */
+    public String put( String strPath, long lLastModified, String strEncoding, String strContent )
+    {
+        String strShared = share( strContent );
+        _mapSources.put( strPath, new SoftReference<>( new SourceEntry( lLastModified, strEncoding, strShared, _lSequence.incrementAndGet( ) ) ) );
+
+        return strShared;
+    }
+
+    /**
+     * Returns the sequence number of the last put. The sources put until then can be ignored by {@link #get(String, long, String, long)}.
+     * 
+     * @return The sequence number
+     */
+    public long getSequence( )
+    {
+        return _lSequence.get( );
+    }
+
+    /**
+     * Remove all the sources, for all the template services sharing the cache
+     */
+    public void clear( )
+    {
+        _mapSources.clear( );
+        _mapContents.clear( );
+    }
+
+    /**
+     * Returns the number of cached sources
+     * 
+     * @return The number of sources
+     */
+    public int getSourceCount( )
+    {
+        _mapSources.values( ).removeIf( ref -> ref.get( ) == null );
+
+        return _mapSources.size( );
+    }
+
+    /**
+     * Returns the number of distinct contents held in memory
+     * 
+     * @return The number of contents
+     */
+    public int getContentCount( )
+    {
+        _mapContents.values( ).removeIf( ref -> ref.get( ) == null );
+
+        return _mapContents.size( );
+    }
+
+    /**
+     * Returns the number of sources found in the cache
+     * 
+     * @return The number of hits
+     */
+    public long getHits( )
+    {
+        return _lHits.get( );
+    }
+
+    /**
+     * Returns the number of sources not found in the cache
+     * 
+     * @return The number of misses
+     */
+    public long getMisses( )
+    {
+        return _lMisses.get( );
+    }
+
+    /**
+     * Get the instance held in memory of a content
+     * 
+     * @param strContent
+     *            The content
+     * @return The shared instance of the content
+     */
+    private String share( String strContent )
+    {
+        String strHash = hash( strContent );
+
+        while ( true )
+        {
+            WeakReference<String> ref = _mapContents.get( strHash );
+            String strShared = ( ref != null ) ? ref.get( ) : null;
+
+            if ( strShared != null && strShared.equals( strContent ) )
+            {
+                return strShared;
+            }
+
+            WeakReference<String> refNew = new WeakReference<>( strContent );
+
+            if ( ( ref == null ) ? ( _mapContents.putIfAbsent( strHash, refNew ) == null ) : _mapContents.replace( strHash, ref, refNew ) )
+            {
+                return strContent;
+            }
+        }
+    }
+
+    /**
+     * Hash a content
+     * 
+     * @param strContent
+     *            The content
+     * @return The hash
+     */
+    private static String hash( String strContent )
+    {
+        try
+        {
+            MessageDigest digest = MessageDigest.getInstance( HASH_DIGEST );
+
+            return Base64.getEncoder( ).encodeToString( digest.digest( strContent.getBytes( StandardCharsets.UTF_8 ) ) );
+        }
+        catch( NoSuchAlgorithmException e )
+        {
+            throw new LuteceFreemarkerException( e.getMessage( ), e );
+        }
+    }
+
+    /**
+     * Cached source
+     */
+    private static final class SourceEntry
+    {
+        private final long _lLastModified;
+        private final String _strEncoding;
+        private final String _strContent;
+        private final long _lSequence;
+
+        /**
+         * Constructor
+         * 
+         * @param lLastModified
+         *            The last modification time
+         * @param strEncoding
+         *            The encoding
+         * @param strContent
+         *            The content
+         * @param lSequence
+         *            The sequence number of the put
+         */
+        SourceEntry( long lLastModified, String strEncoding, String strContent, long lSequence )
+        {
+            _lLastModified = lLastModified;
+            _strEncoding = strEncoding;
+            _strContent = strContent;
+            _lSequence = lSequence;
+        }
+    }
+}
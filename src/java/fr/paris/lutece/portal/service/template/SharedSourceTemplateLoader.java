@@ -0,0 +1,135 @@
+/*
+ * Copyright (c) 2002-2020, City of Paris
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ *
+ *  1. Redistributions of source code must retain the above copyright notice
+ *     and the following disclaimer.
+ *
+ *  2. Redistributions in binary form must reproduce the above copyright notice
+ *     and the following disclaimer in the documentation and/or other materials
+ *     provided with the distribution.
+ *
+ *  3. Neither the name of 'Mairie de Paris' nor 'Lutece' nor the names of its
+ *     contributors may be used to endorse or promote products derived from
+ *     this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDERS OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ *
+ * License 1.0
+ */
+package fr.paris.lutece.portal.service.template;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.Reader;
+import java.io.StringReader;
+import java.util.function.LongSupplier;
+
+import freemarker.cache.TemplateLoader;
+
+/**
+ * Template loader reading the sources of a file loader through a {@link SharedSourceCache}, so the configurations sharing the cache read each file
+ * once. The sources read before the last reset of the owning template service are read again.
+ */
+public class SharedSourceTemplateLoader implements TemplateLoader
+{
+    private final TemplateLoader _delegate;
+    private final SharedSourceCache _cache;
+    private final LongSupplier _resetSequence;
+
+    /**
+     * Constructor
+     * 
+     * @param delegate
+     *            The wrapped file loader
+     * @param cache
+     *            The shared cache
+     */
+    public SharedSourceTemplateLoader( TemplateLoader delegate, SharedSourceCache cache )
+    {
+        this( delegate, cache, ( ) -> 0 );
+    }
+
+    /**
+     * Constructor
+     * 
+     * @param delegate
+     *            The wrapped file loader
+     * @param cache
+     *            The shared cache
+     * @param resetSequence
+     *            The sequence number of the cache at the last reset of the owner, before which the cached sources are ignored
+     */
+    public SharedSourceTemplateLoader( TemplateLoader delegate, SharedSourceCache cache, LongSupplier resetSequence )
+    {
+        _delegate = delegate;
+        _cache = cache;
+        _resetSequence = resetSequence;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public Object findTemplateSource( String strName ) throws IOException
+    {
+        return _delegate.findTemplateSource( strName );
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public long getLastModified( Object templateSource )
+    {
+        return _delegate.getLastModified( templateSource );
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public Reader getReader( Object templateSource, String strEncoding ) throws IOException
+    {
+        long lLastModified = _delegate.getLastModified( templateSource );
+
+        // a source without modification time can not be checked for freshness
+        if ( lLastModified == -1 )
+        {
+            return _delegate.getReader( templateSource, strEncoding );
+        }
+
+        String strPath = ( templateSource instanceof File ) ? ( (File) templateSource ).getAbsolutePath( ) : templateSource.toString( );
+        String strContent = _cache.get( strPath, lLastModified, strEncoding, _resetSequence.getAsLong( ) );
+
+        if ( strContent == null )
+        {
+            strContent = _cache.put( strPath, lLastModified, strEncoding, PipelineTemplateLoader.read( _delegate.getReader( templateSource, strEncoding ) ) );
+        }
+
+        return new StringReader( strContent );
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void closeTemplateSource( Object templateSource ) throws IOException
+    {
+        _delegate.closeTemplateSource( templateSource );
+    }
+}
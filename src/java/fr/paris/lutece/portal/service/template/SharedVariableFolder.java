@@ -0,0 +1,1021 @@
+/*
+ * Copyright (c) 2002-2020, City of Paris
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ *
+ *  1. Redistributions of source code must retain the above copyright notice
+ *     and the following disclaimer.
+ *
+ *  2. Redistributions in binary form must reproduce the above copyright notice
+ *     and the following disclaimer in the documentation and/or other materials
+ *     provided with the distribution.
+ *
+ *  3. Neither the name of 'Mairie de Paris' nor 'Lutece' nor the names of its
+ *     contributors may be used to endorse or promote products derived from
+ *     this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDERS OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ *
+ * License 1.0
+ */
+package fr.paris.lutece.portal.service.template;
+
+import java.io.IOException;
+import java.io.StringWriter;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import freemarker.cache.NullCacheStorage;
+import freemarker.template.Configuration;
+import freemarker.template.Template;
+import freemarker.template.TemplateException;
+import freemarker.template.TemplateExceptionHandler;
+
+/**
+ * Source transformer evaluating, when a template is loaded, the constructs that only depend on the shared variables and on literals. The branches of
+ * the #if directives whose conditions can be evaluated are selected, and the interpolations of string shared variables are replaced by their value.
+ * <br>
+ * The output is unchanged provided that the shared variables are not overridden by the data model or assigned by other templates. The shared variables
+ * assigned or used as loop variables or parameters in the template itself are not folded. An #if directive is only folded if its tags stand alone on
+ * their lines, so that the white-space stripping applies to the same lines, and the folded branches keep a literal condition.
+ */
+final class SharedVariableFolder implements ITemplateSourceTransformer
+{
+    private static final String DIRECTIVE_IF = "if";
+    private static final String DIRECTIVE_ELSEIF = "elseif";
+    private static final String DIRECTIVE_ELSE = "else";
+    private static final String DIRECTIVE_END_IF = "/if";
+    private static final String DIRECTIVE_LIST = "list";
+    private static final String DIRECTIVE_END_LIST = "/list";
+    private static final String DIRECTIVE_ESCAPE = "escape";
+    private static final String DIRECTIVE_END_ESCAPE = "/escape";
+    private static final String DIRECTIVE_FOREACH = "foreach";
+    private static final String DIRECTIVE_MACRO = "macro";
+    private static final String DIRECTIVE_FUNCTION = "function";
+    private static final String LITERAL_TRUE = "true";
+    private static final String LITERAL_FALSE = "false";
+    private static final String INTERPOLATION_START = "${";
+    private static final String USER_DIRECTIVE_START = "<@";
+    private static final String FTL_HEADER = "<#ftl";
+    private static final String SQUARE_FTL_HEADER = "[#ftl";
+    private static final String STRIP_SETTING = "strip_";
+    private static final String [ ] DYNAMIC_BUILTINS = {
+            "?eval", "?interpret"
+    };
+    private static final Set<String> ASSIGNMENT_DIRECTIVES = new HashSet<>( Arrays.asList( "assign", "global", "local" ) );
+    private static final Set<String> LOOP_DIRECTIVES = new HashSet<>( Arrays.asList( "list", "items", "import" ) );
+    private static final Set<String> TRIM_DIRECTIVES = new HashSet<>( Arrays.asList( "t", "lt", "rt", "nt" ) );
+    private static final Set<String> KEYWORD_OPERATORS = new HashSet<>( Arrays.asList( "gt", "gte", "lt", "lte" ) );
+    private static final Set<String> KEYWORD_LITERALS = new HashSet<>( Arrays.asList( LITERAL_TRUE, LITERAL_FALSE ) );
+
+    // built-ins depending on the locale, the time zone or the output format, or evaluating code
+    private static final Set<String> UNFOLDABLE_BUILTINS = new HashSet<>( Arrays.asList( "string", "date", "time", "datetime", "date_if_unknown",
+            "time_if_unknown", "datetime_if_unknown", "number", "upper_case", "lower_case", "cap_first", "uncap_first", "capitalize", "eval", "eval_json",
+            "interpret", "new", "api", "esc", "no_esc", "markup_string", "absolute_template_name" ) );
+    private static final String [ ] UNFOLDABLE_BUILTIN_PREFIXES = {
+            "iso", "number_to_"
+    };
+
+    private static final String NAME = "[\\p{L}\\p{N}_$@]+";
+    private static final Pattern PATTERN_ASSIGNMENT = Pattern.compile( "(" + NAME + ")\\s*(?:[-+*/%]?=(?!=)|\\+\\+|--)" );
+    private static final Pattern PATTERN_ASSIGNMENT_TARGET = Pattern.compile( "^<#\\p{L}+\\s+(" + NAME + ")" );
+    private static final Pattern PATTERN_LOOP_VARIABLES = Pattern.compile( "\\bas\\s+(" + NAME + ")(?:\\s*,\\s*(" + NAME + "))?" );
+    private static final Pattern PATTERN_CALL_LOOP_VARIABLES = Pattern.compile( ";\\s*(" + NAME + "(?:\\s*,\\s*" + NAME + ")*)\\s*/?>$" );
+    private static final Pattern PATTERN_LAMBDA = Pattern.compile( "(?:(" + NAME + ")|\\(([^()]*)\\))\\s*->" );
+    private static final Pattern PATTERN_NAME = Pattern.compile( NAME );
+    private static final Pattern PATTERN_REFERENCE = Pattern.compile( "([\\p{L}_$][\\p{L}\\p{N}_$]*)(?:\\.[\\p{L}_$][\\p{L}\\p{N}_$]*)*" );
+
+    // chars that may be escaped by an output format or interpreted by the parser
+    private static final String UNSAFE_CHARS = "<>&\"'{}[]\\";
+
+    private static final int STATE_OPERATOR = 0;
+    private static final int STATE_OPERAND = 1;
+    private static final int STATE_BUILTIN = 2;
+    private static final int STATE_DOT = 3;
+    private static final int STATE_QUESTION = 4;
+
+    private final Configuration _configuration;
+    private final Set<String> _setVariables = new HashSet<>( );
+    private final Map<String, Optional<Boolean>> _mapConditions = new ConcurrentHashMap<>( );
+    private final Map<String, Optional<String>> _mapValues = new ConcurrentHashMap<>( );
+
+    /**
+     * Constructor
+     * 
+     * @param mapSharedVariables
+     *            The shared variables that can be folded in the loaded templates
+     * @param configuration
+     *            The configuration using the loaded templates, while it is created. The values are evaluated with a copy of its settings and
+     *            shared variables (number and date formats, output format...), so they are folded as the renders would output them.
+     */
+    SharedVariableFolder( Map<String, Object> mapSharedVariables, Configuration configuration )
+    {
+        // the copy clears the template cache it shares with the configuration, still empty, before getting its own
+        _configuration = (Configuration) configuration.clone( );
+        _configuration.setCacheStorage( new NullCacheStorage( ) );
+        _configuration.setAutoIncludes( Collections.emptyList( ) );
+        _configuration.setAutoImports( Collections.emptyMap( ) );
+        _configuration.setTemplateExceptionHandler( TemplateExceptionHandler.RETHROW_HANDLER );
+        _configuration.setLogTemplateExceptions( false );
+
+        for ( String strName : mapSharedVariables.keySet( ) )
+        {
+            // the variables the configuration could not wrap are not folded
+            if ( _configuration.getSharedVariable( strName ) != null )
+            {
+                _setVariables.add( strName );
+            }
+        }
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public String transform( String strTemplateName, String strSource )
+    {
+        if ( _setVariables.isEmpty( ) || !isFoldable( strSource ) )
+        {
+            return strSource;
+        }
+
+        SourceScan scan = new SourceScan( strSource );
+        Set<String> setVariables = new HashSet<>( _setVariables );
+        setVariables.removeAll( scan._setBoundNames );
+
+        if ( setVariables.isEmpty( ) )
+        {
+            return strSource;
+        }
+
+        StringBuilder sbOut = new StringBuilder( strSource.length( ) );
+        fold( strSource, 0, strSource.length( ), sbOut, new FoldContext( scan, setVariables ) );
+
+        return sbOut.toString( );
+    }
+
+    /**
+     * Checks if a template can be folded. Templates evaluating code, using the square bracket syntax or changing the white-space stripping are kept
+     * unchanged.
+     * 
+     * @param strSource
+     *            The template source
+     * @return true if the template can be folded
+     */
+    private static boolean isFoldable( String strSource )
+    {
+        if ( strSource.contains( SQUARE_FTL_HEADER ) )
+        {
+            return false;
+        }
+
+        for ( String strBuiltin : DYNAMIC_BUILTINS )
+        {
+            if ( strSource.contains( strBuiltin ) )
+            {
+                return false;
+            }
+        }
+
+        int nHeader = strSource.indexOf( FTL_HEADER );
+
+        if ( nHeader >= 0 )
+        {
+            int nHeaderEnd = FtlSourceUtils.findTagEnd( strSource, nHeader );
+
+            return strSource.indexOf( STRIP_SETTING, nHeader ) < 0 || strSource.indexOf( STRIP_SETTING, nHeader ) >= nHeaderEnd;
+        }
+
+        return true;
+    }
+
+    /**
+     * Fold a part of a template
+     * 
+     * @param strSource
+     *            The template source
+     * @param nFrom
+     *            The start of the part
+     * @param nTo
+     *            The end of the part
+     * @param sbOut
+     *            The output
+     * @param context
+     *            The folding context
+     */
+    private void fold( String strSource, int nFrom, int nTo, StringBuilder sbOut, FoldContext context )
+    {
+        FtlSourceUtils.Tokenizer tokenizer = new FtlSourceUtils.Tokenizer( strSource, nFrom, nTo );
+
+        while ( tokenizer.next( ) )
+        {
+            int nStart = tokenizer.getStart( );
+            int nEnd = tokenizer.getEnd( );
+
+            if ( tokenizer.getType( ) == FtlSourceUtils.TokenType.TAG )
+            {
+                String strDirective = tokenizer.getDirective( );
+
+                if ( DIRECTIVE_IF.equals( strDirective ) )
+                {
+                    int nChainEnd = foldIf( strSource, nStart, nTo, sbOut, context );
+
+                    if ( nChainEnd >= 0 )
+                    {
+                        tokenizer.setPosition( nChainEnd );
+
+                        continue;
+                    }
+                }
+                else if ( DIRECTIVE_ESCAPE.equals( strDirective ) )
+                {
+                    context._nEscapeDepth++;
+                }
+                else if ( DIRECTIVE_END_ESCAPE.equals( strDirective ) )
+                {
+                    context._nEscapeDepth--;
+                }
+            }
+            else if ( tokenizer.getType( ) == FtlSourceUtils.TokenType.INTERPOLATION )
+            {
+                String strValue = ( context._nEscapeDepth == 0 && nStart != context._scan._nFirstConstruct && !context._scan._bTrimDirectives )
+                        ? getInterpolationValue( strSource, nStart, nEnd, context._setVariables )
+                        : null;
+
+                if ( strValue != null )
+                {
+                    sbOut.append( strValue );
+
+                    continue;
+                }
+            }
+
+            sbOut.append( strSource, nStart, Math.min( nEnd, nTo ) );
+        }
+    }
+
+    /**
+     * Fold an #if directive and its #elseif and #else branches
+     * 
+     * @param strSource
+     *            The template source
+     * @param nStart
+     *            The start of the #if tag
+     * @param nTo
+     *            The end of the part of the template being folded
+     * @param sbOut
+     *            The output
+     * @param context
+     *            The folding context
+     * @return The position following the #if end tag, or -1 if the directive can't be folded
+     */
+    private int foldIf( String strSource, int nStart, int nTo, StringBuilder sbOut, FoldContext context )
+    {
+        List<ChainTag> listTags = findChain( strSource, nStart, nTo );
+
+        if ( listTags == null )
+        {
+            return -1;
+        }
+
+        // select the branches : the branches whose condition is false are removed, and a true condition ends the chain
+        List<ChainTag> listKept = new ArrayList<>( );
+        boolean bFolded = false;
+
+        for ( int i = 0; i < listTags.size( ) - 1; i++ )
+        {
+            ChainTag tag = listTags.get( i );
+            Boolean bCondition = ( tag._strCondition == null ) ? Boolean.TRUE : evaluateCondition( tag._strCondition, context._setVariables );
+
+            if ( bCondition == null )
+            {
+                listKept.add( tag );
+            }
+            else
+            {
+                bFolded |= ( tag._strCondition != null );
+
+                if ( bCondition )
+                {
+                    tag._bUnconditional = true;
+                    listKept.add( tag );
+
+                    break;
+                }
+            }
+        }
+
+        if ( !bFolded )
+        {
+            return -1;
+        }
+
+        ChainTag first = listTags.get( 0 );
+        ChainTag end = listTags.get( listTags.size( ) - 1 );
+        String strCondition = LITERAL_FALSE;
+
+        if ( !listKept.isEmpty( ) )
+        {
+            strCondition = listKept.get( 0 )._bUnconditional ? LITERAL_TRUE : listKept.get( 0 )._strCondition;
+        }
+
+        sbOut.append( "<#if " ).append( strCondition ).append( '>' ).append( strSource, first._nTagEnd, first._nLineEnd );
+
+        for ( int i = 0; i < listKept.size( ); i++ )
+        {
+            ChainTag tag = listKept.get( i );
+
+            if ( i > 0 )
+            {
+                if ( tag._bUnconditional )
+                {
+                    sbOut.append( strSource, tag._nLineStart, tag._nTagStart ).append( "<#else>" ).append( strSource, tag._nTagEnd, tag._nLineEnd );
+                }
+                else
+                {
+                    sbOut.append( strSource, tag._nLineStart, tag._nLineEnd );
+                }
+            }
+
+            fold( strSource, tag._nLineEnd, listTags.get( listTags.indexOf( tag ) + 1 )._nLineStart, sbOut, context );
+        }
+
+        sbOut.append( strSource, end._nLineStart, end._nTagEnd );
+
+        return end._nTagEnd;
+    }
+
+    /**
+     * Find the tags of an #if directive
+     * 
+     * @param strSource
+     *            The template source
+     * @param nStart
+     *            The start of the #if tag
+     * @param nTo
+     *            The end of the part of the template being folded
+     * @return The #if, #elseif, #else and end tags, or null if the end tag is not found or a tag doesn't stand alone on its line
+     */
+    private static List<ChainTag> findChain( String strSource, int nStart, int nTo )
+    {
+        List<ChainTag> listTags = new ArrayList<>( );
+        Deque<String> stackBlocks = new ArrayDeque<>( );
+        int nEnd = FtlSourceUtils.findTagEnd( strSource, nStart );
+        ChainTag tag = ChainTag.create( strSource, nStart, nEnd, DIRECTIVE_IF );
+        FtlSourceUtils.Tokenizer tokenizer = new FtlSourceUtils.Tokenizer( strSource, nEnd, nTo );
+
+        while ( tag != null )
+        {
+            listTags.add( tag );
+
+            if ( tag._strCondition == null && DIRECTIVE_END_IF.equals( tag._strDirective ) )
+            {
+                return listTags;
+            }
+
+            tag = null;
+
+            while ( tag == null && tokenizer.next( ) )
+            {
+                if ( tokenizer.getType( ) != FtlSourceUtils.TokenType.TAG )
+                {
+                    continue;
+                }
+
+                String strDirective = tokenizer.getDirective( );
+
+                if ( DIRECTIVE_IF.equals( strDirective ) || DIRECTIVE_LIST.equals( strDirective ) )
+                {
+                    stackBlocks.push( strDirective );
+                }
+                else if ( DIRECTIVE_END_IF.equals( strDirective ) || DIRECTIVE_END_LIST.equals( strDirective ) )
+                {
+                    if ( stackBlocks.isEmpty( ) )
+                    {
+                        tag = DIRECTIVE_END_IF.equals( strDirective )
+                                ? ChainTag.create( strSource, tokenizer.getStart( ), tokenizer.getEnd( ), strDirective )
+                                : null;
+
+                        if ( tag == null )
+                        {
+                            return null;
+                        }
+                    }
+                    else
+                    {
+                        stackBlocks.pop( );
+                    }
+                }
+                else if ( stackBlocks.isEmpty( ) && ( DIRECTIVE_ELSEIF.equals( strDirective ) || DIRECTIVE_ELSE.equals( strDirective ) ) )
+                {
+                    tag = ChainTag.create( strSource, tokenizer.getStart( ), tokenizer.getEnd( ), strDirective );
+
+                    if ( tag == null )
+                    {
+                        return null;
+                    }
+                }
+            }
+
+            if ( tag == null || tag._nLineEnd > nTo )
+            {
+                return null;
+            }
+        }
+
+        return null;
+    }
+
+    /**
+     * Evaluate a condition
+     * 
+     * @param strCondition
+     *            The condition
+     * @param setVariables
+     *            The shared variables that can be folded in the template
+     * @return The value of the condition, or null if it doesn't only depend on the shared variables or can't be evaluated
+     */
+    private Boolean evaluateCondition( String strCondition, Set<String> setVariables )
+    {
+        if ( !isConstant( strCondition, setVariables ) )
+        {
+            return null;
+        }
+
+        return _mapConditions.computeIfAbsent( strCondition, strExpression -> {
+            String strResult = evaluate( "<#if (" + strExpression + ")>1<#else>0</#if>" );
+
+            return ( strResult == null ) ? Optional.empty( ) : Optional.of( "1".equals( strResult ) );
+        } ).orElse( null );
+    }
+
+    /**
+     * Get the value of an interpolation of a string shared variable
+     * 
+     * @param strSource
+     *            The template source
+     * @param nStart
+     *            The start of the interpolation
+     * @param nEnd
+     *            The end of the interpolation
+     * @param setVariables
+     *            The shared variables that can be folded in the template
+     * @return The value or null if the interpolation can't be folded
+     */
+    private String getInterpolationValue( String strSource, int nStart, int nEnd, Set<String> setVariables )
+    {
+        if ( !strSource.startsWith( INTERPOLATION_START, nStart ) || strSource.charAt( nEnd - 1 ) != '}' )
+        {
+            return null;
+        }
+
+        String strExpression = strSource.substring( nStart + INTERPOLATION_START.length( ), nEnd - 1 );
+        Matcher matcher = PATTERN_REFERENCE.matcher( strExpression );
+
+        if ( !matcher.matches( ) || !setVariables.contains( matcher.group( 1 ) ) )
+        {
+            return null;
+        }
+
+        return _mapValues.computeIfAbsent( strExpression, strReference -> {
+            String strResult = evaluate( "<#if (" + strReference + ")?is_string>1${" + strReference + "}<#else>0</#if>" );
+
+            return ( strResult != null && strResult.startsWith( "1" ) && isSafeValue( strResult.substring( 1 ) ) ) ? Optional.of( strResult.substring( 1 ) )
+                    : Optional.empty( );
+        } ).orElse( null );
+    }
+
+    /**
+     * Checks if a value can replace an interpolation : it must output some text on a single line and contain no chars escaped by an output format or
+     * interpreted by the parser
+     * 
+     * @param strValue
+     *            The value
+     * @return true if the value can replace an interpolation
+     */
+    private static boolean isSafeValue( String strValue )
+    {
+        if ( strValue.trim( ).isEmpty( ) )
+        {
+            return false;
+        }
+
+        for ( int i = 0; i < strValue.length( ); i++ )
+        {
+            char c = strValue.charAt( i );
+
+            if ( ( c < ' ' && c != '\t' ) || UNSAFE_CHARS.indexOf( c ) >= 0 )
+            {
+                return false;
+            }
+        }
+
+        return true;
+    }
+
+    /**
+     * Process an evaluation template with the shared variables
+     * 
+     * @param strTemplate
+     *            The evaluation template
+     * @return The output, or null if the template can't be processed
+     */
+    private String evaluate( String strTemplate )
+    {
+        try
+        {
+            StringWriter writer = new StringWriter( );
+            new Template( null, strTemplate, _configuration ).process( Collections.emptyMap( ), writer );
+
+            return writer.toString( );
+        }
+        catch( IOException | TemplateException | RuntimeException e )
+        {
+            // missing variable, wrong type... the condition is evaluated on each render
+            return null;
+        }
+    }
+
+    /**
+     * Checks if an expression only depends on some shared variables and on literals
+     * 
+     * @param strExpression
+     *            The expression
+     * @param setVariables
+     *            The shared variables
+     * @return true if the expression only depends on the shared variables and on literals
+     */
+    static boolean isConstant( String strExpression, Set<String> setVariables )
+    {
+        int nLength = strExpression.length( );
+        int nState = STATE_OPERATOR;
+        int i = 0;
+
+        while ( i < nLength )
+        {
+            char c = strExpression.charAt( i );
+            char cNext = ( i + 1 < nLength ) ? strExpression.charAt( i + 1 ) : 0;
+            boolean bOperand = nState == STATE_OPERAND || nState == STATE_BUILTIN;
+
+            if ( Character.isWhitespace( c ) )
+            {
+                i++;
+            }
+            else if ( c == '"' || c == '\'' || ( c == 'r' && ( cNext == '"' || cNext == '\'' ) ) )
+            {
+                i = skipString( strExpression, i );
+
+                if ( i < 0 )
+                {
+                    return false;
+                }
+
+                nState = STATE_OPERAND;
+            }
+            else if ( Character.isLetter( c ) || c == '_' || c == '$' )
+            {
+                int nNameStart = i;
+
+                while ( i < nLength && ( Character.isLetterOrDigit( strExpression.charAt( i ) ) || strExpression.charAt( i ) == '_'
+                        || strExpression.charAt( i ) == '$' ) )
+                {
+                    i++;
+                }
+
+                String strName = strExpression.substring( nNameStart, i );
+
+                if ( nState == STATE_DOT )
+                {
+                    nState = STATE_OPERAND;
+                }
+                else if ( nState == STATE_QUESTION )
+                {
+                    if ( !isFoldableBuiltin( strName ) )
+                    {
+                        return false;
+                    }
+
+                    nState = STATE_BUILTIN;
+                }
+                else if ( KEYWORD_OPERATORS.contains( strName ) )
+                {
+                    nState = STATE_OPERATOR;
+                }
+                else if ( KEYWORD_LITERALS.contains( strName ) || setVariables.contains( strName ) )
+                {
+                    nState = STATE_OPERAND;
+                }
+                else
+                {
+                    return false;
+                }
+            }
+            else if ( Character.isDigit( c ) )
+            {
+                while ( i < nLength && ( Character.isDigit( strExpression.charAt( i ) )
+                        || ( strExpression.charAt( i ) == '.' && i + 1 < nLength && Character.isDigit( strExpression.charAt( i + 1 ) ) ) ) )
+                {
+                    i++;
+                }
+
+                nState = STATE_OPERAND;
+            }
+            else
+            {
+                switch( c )
+                {
+                    case '.':
+                        // special variables and ranges are not folded
+                        if ( !bOperand || cNext == '.' )
+                        {
+                            return false;
+                        }
+                        nState = STATE_DOT;
+                        break;
+                    case '?':
+                        if ( cNext == '?' )
+                        {
+                            i++;
+                            nState = STATE_OPERAND;
+                        }
+                        else if ( bOperand )
+                        {
+                            nState = STATE_QUESTION;
+                        }
+                        else
+                        {
+                            return false;
+                        }
+                        break;
+                    case '(':
+                        // method calls are not folded
+                        if ( nState == STATE_OPERAND || nState == STATE_DOT || nState == STATE_QUESTION )
+                        {
+                            return false;
+                        }
+                        nState = STATE_OPERATOR;
+                        break;
+                    case ')':
+                    case ']':
+                    case '}':
+                        nState = STATE_OPERAND;
+                        break;
+                    case '-':
+                        // lambdas are not folded
+                        if ( cNext == '>' )
+                        {
+                            return false;
+                        }
+                        nState = STATE_OPERATOR;
+                        break;
+                    case '[':
+                    case '{':
+                    case '!':
+                    case '+':
+                    case '*':
+                    case '/':
+                    case '%':
+                    case '=':
+                    case '<':
+                    case '>':
+                    case '&':
+                    case '|':
+                    case ',':
+                    case ':':
+                        nState = STATE_OPERATOR;
+                        break;
+                    default:
+                        return false;
+                }
+
+                i++;
+            }
+        }
+
+        return nState != STATE_DOT && nState != STATE_QUESTION;
+    }
+
+    /**
+     * Checks if a built-in can be evaluated when the template is loaded
+     * 
+     * @param strBuiltin
+     *            The built-in name
+     * @return true if the built-in doesn't depend on the locale, the time zone or the output format
+     */
+    private static boolean isFoldableBuiltin( String strBuiltin )
+    {
+        if ( UNFOLDABLE_BUILTINS.contains( strBuiltin ) )
+        {
+            return false;
+        }
+
+        for ( String strPrefix : UNFOLDABLE_BUILTIN_PREFIXES )
+        {
+            if ( strBuiltin.startsWith( strPrefix ) )
+            {
+                return false;
+            }
+        }
+
+        return true;
+    }
+
+    /**
+     * Skip a string literal of an expression
+     * 
+     * @param strExpression
+     *            The expression
+     * @param nStart
+     *            The start of the literal
+     * @return The position following the literal, or -1 if it is not closed or contains interpolations
+     */
+    private static int skipString( String strExpression, int nStart )
+    {
+        boolean bRaw = strExpression.charAt( nStart ) == 'r';
+        int nQuote = bRaw ? ( nStart + 1 ) : nStart;
+        char cQuote = strExpression.charAt( nQuote );
+
+        for ( int i = nQuote + 1; i < strExpression.length( ); i++ )
+        {
+            char c = strExpression.charAt( i );
+
+            if ( c == '\\' && !bRaw )
+            {
+                i++;
+            }
+            else if ( c == cQuote )
+            {
+                return i + 1;
+            }
+            else if ( !bRaw && FtlSourceUtils.isInterpolationStart( strExpression, i ) )
+            {
+                return -1;
+            }
+        }
+
+        return -1;
+    }
+
+    /**
+     * Folding state of a template
+     */
+    private static final class FoldContext
+    {
+        private final SourceScan _scan;
+        private final Set<String> _setVariables;
+        private int _nEscapeDepth;
+
+        /**
+         * Constructor
+         * 
+         * @param scan
+         *            The scan of the template
+         * @param setVariables
+         *            The shared variables that can be folded in the template
+         */
+        FoldContext( SourceScan scan, Set<String> setVariables )
+        {
+            _scan = scan;
+            _setVariables = setVariables;
+        }
+    }
+
+    /**
+     * Tag of an #if directive
+     */
+    private static final class ChainTag
+    {
+        private final String _strDirective;
+        private final String _strCondition;
+        private final int _nLineStart;
+        private final int _nTagStart;
+        private final int _nTagEnd;
+        private final int _nLineEnd;
+        private boolean _bUnconditional;
+
+        /**
+         * Constructor
+         * 
+         * @param strDirective
+         *            The directive name
+         * @param strCondition
+         *            The condition of an #if or #elseif tag, null otherwise
+         * @param nLineStart
+         *            The start of the line of the tag
+         * @param nTagStart
+         *            The start of the tag
+         * @param nTagEnd
+         *            The end of the tag
+         * @param nLineEnd
+         *            The position following the line break ending the line of the tag
+         */
+        private ChainTag( String strDirective, String strCondition, int nLineStart, int nTagStart, int nTagEnd, int nLineEnd )
+        {
+            _strDirective = strDirective;
+            _strCondition = strCondition;
+            _nLineStart = nLineStart;
+            _nTagStart = nTagStart;
+            _nTagEnd = nTagEnd;
+            _nLineEnd = nLineEnd;
+        }
+
+        /**
+         * Create a tag if it stands alone on its line
+         * 
+         * @param strSource
+         *            The template source
+         * @param nTagStart
+         *            The start of the tag
+         * @param nTagEnd
+         *            The end of the tag
+         * @param strDirective
+         *            The directive name
+         * @return The tag, or null if it doesn't stand alone on its line
+         */
+        static ChainTag create( String strSource, int nTagStart, int nTagEnd, String strDirective )
+        {
+            int [ ] lineBounds = FtlSourceUtils.findLineBounds( strSource, nTagStart, nTagEnd );
+
+            if ( lineBounds == null || strSource.charAt( nTagEnd - 1 ) != '>' )
+            {
+                return null;
+            }
+
+            String strCondition = null;
+
+            if ( DIRECTIVE_IF.equals( strDirective ) || DIRECTIVE_ELSEIF.equals( strDirective ) )
+            {
+                strCondition = strSource.substring( nTagStart + 2 + strDirective.length( ), nTagEnd - 1 ).trim( );
+            }
+
+            return new ChainTag( strDirective, strCondition, lineBounds [0], nTagStart, nTagEnd, lineBounds [1] );
+        }
+    }
+
+    /**
+     * Names bound by a template and constructs preventing the folding of some interpolations
+     */
+    private static final class SourceScan
+    {
+        private final Set<String> _setBoundNames = new HashSet<>( );
+        private int _nFirstConstruct = -1;
+        private boolean _bTrimDirectives;
+
+        /**
+         * Constructor
+         * 
+         * @param strSource
+         *            The template source
+         */
+        SourceScan( String strSource )
+        {
+            FtlSourceUtils.Tokenizer tokenizer = new FtlSourceUtils.Tokenizer( strSource );
+
+            while ( tokenizer.next( ) )
+            {
+                int nStart = tokenizer.getStart( );
+
+                switch( tokenizer.getType( ) )
+                {
+                    case TAG:
+                        // a noparse block binds no name
+                        if ( !FtlSourceUtils.DIRECTIVE_NOPARSE.equals( tokenizer.getDirective( ) ) )
+                        {
+                            scanTag( strSource.substring( nStart, tokenizer.getEnd( ) ), tokenizer.getDirective( ),
+                                    strSource.startsWith( USER_DIRECTIVE_START, nStart ) );
+                        }
+                        break;
+                    case INTERPOLATION:
+                        addLambdaParameters( strSource.substring( nStart, tokenizer.getEnd( ) ) );
+                        break;
+                    case TEXT:
+                        continue;
+                    default:
+                        break;
+                }
+
+                if ( _nFirstConstruct < 0 )
+                {
+                    _nFirstConstruct = nStart;
+                }
+            }
+        }
+
+        /**
+         * Collect the names bound by a tag
+         * 
+         * @param strTag
+         *            The tag
+         * @param strDirective
+         *            The directive name
+         * @param bUserDirective
+         *            true for a user-defined directive call
+         */
+        private void scanTag( String strTag, String strDirective, boolean bUserDirective )
+        {
+            if ( bUserDirective )
+            {
+                Matcher matcher = PATTERN_CALL_LOOP_VARIABLES.matcher( strTag );
+
+                if ( matcher.find( ) )
+                {
+                    addNames( matcher.group( 1 ) );
+                }
+            }
+            else if ( ASSIGNMENT_DIRECTIVES.contains( strDirective ) )
+            {
+                addGroups( PATTERN_ASSIGNMENT_TARGET.matcher( strTag ) );
+                addGroups( PATTERN_ASSIGNMENT.matcher( strTag ) );
+            }
+            else if ( LOOP_DIRECTIVES.contains( strDirective ) )
+            {
+                addGroups( PATTERN_LOOP_VARIABLES.matcher( strTag ) );
+            }
+            else if ( DIRECTIVE_FOREACH.equals( strDirective ) )
+            {
+                addGroups( PATTERN_ASSIGNMENT_TARGET.matcher( strTag ) );
+            }
+            else if ( DIRECTIVE_MACRO.equals( strDirective ) || DIRECTIVE_FUNCTION.equals( strDirective ) )
+            {
+                addNames( strTag );
+            }
+            else if ( TRIM_DIRECTIVES.contains( strDirective ) )
+            {
+                _bTrimDirectives = true;
+            }
+
+            addLambdaParameters( strTag );
+        }
+
+        /**
+         * Collect the parameters of the lambdas of an expression
+         * 
+         * @param strExpression
+         *            The expression
+         */
+        private void addLambdaParameters( String strExpression )
+        {
+            addGroups( PATTERN_LAMBDA.matcher( strExpression ) );
+        }
+
+        /**
+         * Collect the names captured by the groups of a matcher
+         * 
+         * @param matcher
+         *            The matcher
+         */
+        private void addGroups( Matcher matcher )
+        {
+            while ( matcher.find( ) )
+            {
+                for ( int i = 1; i <= matcher.groupCount( ); i++ )
+                {
+                    if ( matcher.group( i ) != null )
+                    {
+                        addNames( matcher.group( i ) );
+                    }
+                }
+            }
+        }
+
+        /**
+         * Collect all the names of a text
+         * 
+         * @param strText
+         *            The text
+         */
+        private void addNames( String strText )
+        {
+            Matcher matcher = PATTERN_NAME.matcher( strText );
+
+            while ( matcher.find( ) )
+            {
+                _setBoundNames.add( matcher.group( ) );
+            }
+        }
+    }
+}
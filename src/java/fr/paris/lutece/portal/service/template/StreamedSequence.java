@@ -0,0 +1,248 @@
+/*
+ * Copyright (c) 2002-2020, City of Paris
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ *
+ *  1. Redistributions of source code must retain the above copyright notice
+ *     and the following disclaimer.
+ *
+ *  2. Redistributions in binary form must reproduce the above copyright notice
+ *     and the following disclaimer in the documentation and/or other materials
+ *     provided with the distribution.
+ *
+ *  3. Neither the name of 'Mairie de Paris' nor 'Lutece' nor the names of its
+ *     contributors may be used to endorse or promote products derived from
+ *     this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDERS OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ *
+ * License 1.0
+ */
+package fr.paris.lutece.portal.service.template;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.function.Supplier;
+import java.util.stream.Stream;
+
+import freemarker.core.Environment;
+
+/**
+ * Model value exposing an iterator or a stream to the templates, without holding all the elements in memory.
+ * The elements are fetched only when the template lists them, and can be listed only once : templates should use
+ * &lt;#list&gt;...&lt;#else&gt; rather than ?size or ?has_content before listing them.
+ * A stream is closed once all its elements have been listed, and at the end of the render that opened it otherwise (ie: after a
+ * &lt;#break&gt; or an error), so its close handlers (database cursors, files) always run.
+ */
+public final class StreamedSequence implements AutoCloseable
+{
+    private static final String ATTRIBUTE_OPENED_SEQUENCES = "lutece.openedSequences";
+
+    private final Supplier<Iterator<?>> _supplier;
+    private final Supplier<? extends Stream<?>> _streamSupplier;
+    private Iterator<?> _iterator;
+    private Stream<?> _stream;
+
+    /**
+     * Constructor
+     * 
+     * @param supplier
+     *            The supplier of the iterator, or null for a stream
+     * @param streamSupplier
+     *            The supplier of the stream, or null for an iterator
+     */
+    private StreamedSequence( Supplier<Iterator<?>> supplier, Supplier<? extends Stream<?>> streamSupplier )
+    {
+        _supplier = supplier;
+        _streamSupplier = streamSupplier;
+    }
+
+    /**
+     * Create a sequence from an iterator
+     * 
+     * @param iterator
+     *            The iterator
+     * @return The sequence
+     */
+    public static StreamedSequence of( Iterator<?> iterator )
+    {
+        return new StreamedSequence( ( ) -> iterator, null );
+    }
+
+    /**
+     * Create a sequence from a stream. The stream is only opened when the template lists the sequence.
+     * 
+     * @param supplier
+     *            The supplier of the stream
+     * @return The sequence
+     */
+    public static StreamedSequence ofStream( Supplier<? extends Stream<?>> supplier )
+    {
+        return new StreamedSequence( null, supplier );
+    }
+
+    /**
+     * Returns the iterator over the elements. The iterator is created on the first call and the same one is returned afterwards.
+     * 
+     * @return The iterator
+     */
+    public synchronized Iterator<?> iterator( )
+    {
+        if ( _iterator == null )
+        {
+            if ( _streamSupplier == null )
+            {
+                _iterator = _supplier.get( );
+            }
+            else
+            {
+                _stream = _streamSupplier.get( );
+                _iterator = new ClosingIterator( _stream.iterator( ) );
+                register( Environment.getCurrentEnvironment( ) );
+            }
+        }
+
+        return _iterator;
+    }
+
+    /**
+     * Close the stream of the sequence if it has been opened
+     */
+    @Override
+    public synchronized void close( )
+    {
+        Stream<?> stream = _stream;
+
+        if ( stream != null )
+        {
+            _stream = null;
+            stream.close( );
+        }
+    }
+
+    /**
+     * Register the sequence in the environment of the render, to close it at the end of the render
+     * 
+     * @param env
+     *            The environment, or null if the sequence is not listed by a render
+     */
+    private void register( Environment env )
+    {
+        if ( env == null )
+        {
+            return;
+        }
+
+        @SuppressWarnings( "unchecked" )
+        List<StreamedSequence> listOpened = (List<StreamedSequence>) env.getCustomAttribute( ATTRIBUTE_OPENED_SEQUENCES );
+
+        if ( listOpened == null )
+        {
+            listOpened = new ArrayList<>( );
+            env.setCustomAttribute( ATTRIBUTE_OPENED_SEQUENCES, listOpened );
+        }
+
+        listOpened.add( this );
+    }
+
+    /**
+     * Close the streams opened by a render
+     * 
+     * @param env
+     *            The environment of the render
+     */
+    static void closeOpened( Environment env )
+    {
+        @SuppressWarnings( "unchecked" )
+        List<StreamedSequence> listOpened = (List<StreamedSequence>) env.getCustomAttribute( ATTRIBUTE_OPENED_SEQUENCES );
+
+        if ( listOpened == null )
+        {
+            return;
+        }
+
+        RuntimeException failure = null;
+
+        for ( StreamedSequence sequence : listOpened )
+        {
+            try
+            {
+                sequence.close( );
+            }
+            catch( RuntimeException e )
+            {
+                if ( failure == null )
+                {
+                    failure = e;
+                }
+                else
+                {
+                    failure.addSuppressed( e );
+                }
+            }
+        }
+
+        if ( failure != null )
+        {
+            throw failure;
+        }
+    }
+
+    /**
+     * Iterator closing the stream of the sequence once all the elements have been read
+     */
+    private final class ClosingIterator implements Iterator<Object>
+    {
+        private final Iterator<?> _delegate;
+
+        /**
+         * Constructor
+         * 
+         * @param delegate
+         *            The iterator of the stream
+         */
+        ClosingIterator( Iterator<?> delegate )
+        {
+            _delegate = delegate;
+        }
+
+        /**
+         * {@inheritDoc}
+         */
+        @Override
+        public boolean hasNext( )
+        {
+            boolean bHasNext = _delegate.hasNext( );
+
+            if ( !bHasNext )
+            {
+                close( );
+            }
+
+            return bHasNext;
+        }
+
+        /**
+         * {@inheritDoc}
+         */
+        @Override
+        public Object next( )
+        {
+            return _delegate.next( );
+        }
+    }
+}
@@ -0,0 +1,345 @@
+/*
+ * Copyright (c) 2002-2020, City of Paris
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ *
+ *  1. Redistributions of source code must retain the above copyright notice
+ *     and the following disclaimer.
+ *
+ *  2. Redistributions in binary form must reproduce the above copyright notice
+ *     and the following disclaimer in the documentation and/or other materials
+ *     provided with the distribution.
+ *
+ *  3. Neither the name of 'Mairie de Paris' nor 'Lutece' nor the names of its
+ *     contributors may be used to endorse or promote products derived from
+ *     this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDERS OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ *
+ * License 1.0
+ */
+package fr.paris.lutece.portal.service.template;
+
+import java.io.FilterReader;
+import java.io.FilterWriter;
+import java.io.IOException;
+import java.io.Reader;
+import java.io.Writer;
+import java.util.Locale;
+
+/**
+ * Emits the Java Flight Recorder events of the template service. The events are enabled and thresholded by the JFR settings of the recording. The
+ * event classes are only loaded if the JVM provides JFR, so this class can be used on any JVM : the methods do nothing and return null when JFR is
+ * not available or the event is disabled.
+ */
+final class TemplateEvents
+{
+    private static final String JFR_EVENT_CLASS = "jdk.jfr.Event";
+    private static final boolean AVAILABLE = isFlightRecorderAvailable( );
+
+    /**
+     * Private constructor
+     */
+    private TemplateEvents( )
+    {
+    }
+
+    /**
+     * Begin a template lookup
+     * 
+     * @return The event, or null if it is disabled
+     */
+    static Object beginLookup( )
+    {
+        return AVAILABLE ? FlightRecorderEvents.beginLookup( ) : null;
+    }
+
+    /**
+     * End a template lookup
+     * 
+     * @param event
+     *            The event returned by beginLookup
+     * @param strTemplate
+     *            The template name
+     * @param locale
+     *            The locale
+     */
+    static void endLookup( Object event, String strTemplate, Locale locale )
+    {
+        if ( event != null )
+        {
+            FlightRecorderEvents.endLookup( event, strTemplate, locale );
+        }
+    }
+
+    /**
+     * Begin the parse of a template
+     * 
+     * @return The event, or null if it is disabled
+     */
+    static Object beginParse( )
+    {
+        return AVAILABLE ? FlightRecorderEvents.beginParse( ) : null;
+    }
+
+    /**
+     * Get a reader ending the parse of a template when it is closed, once the template has been parsed
+     * 
+     * @param event
+     *            The event returned by beginParse
+     * @param strTemplate
+     *            The template name
+     * @param nSourceLength
+     *            The length of the template source
+     * @param reader
+     *            The reader of the template source
+     * @return The reader
+     */
+    static Reader endParseOnClose( Object event, String strTemplate, int nSourceLength, Reader reader )
+    {
+        return ( event == null ) ? reader : new ParseReader( reader, event, strTemplate, nSourceLength );
+    }
+
+    /**
+     * Record that the current lookup waits for the load of the template by another thread, so it is reported as a miss
+     */
+    static void awaitLoad( )
+    {
+        if ( AVAILABLE )
+        {
+            FlightRecorderEvents.awaitLoad( );
+        }
+    }
+
+    /**
+     * Begin the render of a template
+     * 
+     * @return The event, or null if it is disabled
+     */
+    static Object beginRender( )
+    {
+        return AVAILABLE ? FlightRecorderEvents.beginRender( ) : null;
+    }
+
+    /**
+     * Get a writer counting the output of a render
+     * 
+     * @param event
+     *            The event returned by beginRender
+     * @param writer
+     *            The output writer
+     * @return The writer
+     */
+    static Writer countOutput( Object event, Writer writer )
+    {
+        return ( event == null ) ? writer : new CountingWriter( writer );
+    }
+
+    /**
+     * End the render of a template
+     * 
+     * @param event
+     *            The event returned by beginRender
+     * @param strTemplate
+     *            The template name
+     * @param locale
+     *            The locale
+     * @param writer
+     *            The writer returned by countOutput
+     */
+    static void endRender( Object event, String strTemplate, Locale locale, Writer writer )
+    {
+        if ( event != null )
+        {
+            FlightRecorderEvents.endRender( event, strTemplate, locale, ( (CountingWriter) writer )._lCount );
+        }
+    }
+
+    /**
+     * Begin the creation of a configuration
+     * 
+     * @return The event, or null if it is disabled
+     */
+    static Object beginConfiguration( )
+    {
+        return AVAILABLE ? FlightRecorderEvents.beginConfiguration( ) : null;
+    }
+
+    /**
+     * End the creation of a configuration
+     * 
+     * @param event
+     *            The event returned by beginConfiguration
+     * @param strPath
+     *            The path of the templates
+     * @param bNewLoaders
+     *            true if the template loaders have been created, false if they are reused
+     */
+    static void endConfiguration( Object event, String strPath, boolean bNewLoaders )
+    {
+        if ( event != null )
+        {
+            FlightRecorderEvents.endConfiguration( event, strPath, bNewLoaders );
+        }
+    }
+
+    /**
+     * Begin a reset of the configurations or of the template cache
+     * 
+     * @return The event, or null if it is disabled
+     */
+    static Object beginReset( )
+    {
+        return AVAILABLE ? FlightRecorderEvents.beginReset( ) : null;
+    }
+
+    /**
+     * End a reset of the configurations or of the template cache
+     * 
+     * @param event
+     *            The event returned by beginReset
+     * @param bCacheOnly
+     *            true if only the template cache is reset
+     * @param bSoftReset
+     *            true if the new configurations are built in the background
+     */
+    static void endReset( Object event, boolean bCacheOnly, boolean bSoftReset )
+    {
+        if ( event != null )
+        {
+            FlightRecorderEvents.endReset( event, bCacheOnly, bSoftReset );
+        }
+    }
+
+    /**
+     * Checks if the JVM provides Java Flight Recorder
+     * 
+     * @return true if the JFR events can be emitted
+     */
+    private static boolean isFlightRecorderAvailable( )
+    {
+        try
+        {
+            Class.forName( JFR_EVENT_CLASS, false, TemplateEvents.class.getClassLoader( ) );
+
+            return true;
+        }
+        catch( ClassNotFoundException | LinkageError e )
+        {
+            return false;
+        }
+    }
+
+    /**
+     * Reader of a template source ending the parse event when it is closed by the template cache
+     */
+    private static final class ParseReader extends FilterReader
+    {
+        private final Object _event;
+        private final String _strTemplate;
+        private final int _nSourceLength;
+        private boolean _bEnded;
+
+        /**
+         * Constructor
+         * 
+         * @param in
+         *            The reader of the template source
+         * @param event
+         *            The parse event
+         * @param strTemplate
+         *            The template name
+         * @param nSourceLength
+         *            The length of the template source
+         */
+        ParseReader( Reader in, Object event, String strTemplate, int nSourceLength )
+        {
+            super( in );
+            _event = event;
+            _strTemplate = strTemplate;
+            _nSourceLength = nSourceLength;
+        }
+
+        /**
+         * {@inheritDoc}
+         */
+        @Override
+        public void close( ) throws IOException
+        {
+            try
+            {
+                super.close( );
+            }
+            finally
+            {
+                if ( !_bEnded )
+                {
+                    _bEnded = true;
+                    FlightRecorderEvents.endParse( _event, _strTemplate, _nSourceLength );
+                }
+            }
+        }
+    }
+
+    /**
+     * Writer counting the characters written
+     */
+    private static final class CountingWriter extends FilterWriter
+    {
+        private long _lCount;
+
+        /**
+         * Constructor
+         * 
+         * @param out
+         *            The output writer
+         */
+        CountingWriter( Writer out )
+        {
+            super( out );
+        }
+
+        /**
+         * {@inheritDoc}
+         */
+        @Override
+        public void write( int c ) throws IOException
+        {
+            out.write( c );
+            _lCount++;
+        }
+
+        /**
+         * {@inheritDoc}
+         */
+        @Override
+        public void write( char [ ] cbuf, int nOff, int nLen ) throws IOException
+        {
+            out.write( cbuf, nOff, nLen );
+            _lCount += nLen;
+        }
+
+        /**
+         * {@inheritDoc}
+         */
+        @Override
+        public void write( String str, int nOff, int nLen ) throws IOException
+        {
+            out.write( str, nOff, nLen );
+            _lCount += nLen;
+        }
+    }
+}
@@ -0,0 +1,155 @@
+/*
+ * Copyright (c) 2002-2020, City of Paris
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ *
+ *  1. Redistributions of source code must retain the above copyright notice
+ *     and the following disclaimer.
+ *
+ *  2. Redistributions in binary form must reproduce the above copyright notice
+ *     and the following disclaimer in the documentation and/or other materials
+ *     provided with the distribution.
+ *
+ *  3. Neither the name of 'Mairie de Paris' nor 'Lutece' nor the names of its
+ *     contributors may be used to endorse or promote products derived from
+ *     this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDERS OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ *
+ * License 1.0
+ */
+package fr.paris.lutece.portal.service.template;
+
+import java.io.Serializable;
+
+/**
+ * Change of the templates or of the configuration made on a node, sent to the other nodes of a cluster so they invalidate only what has changed
+ */
+public final class TemplateInvalidationEvent implements Serializable
+{
+    private static final long serialVersionUID = 5521806946418394513L;
+
+    /**
+     * Type of change
+     */
+    public enum Type
+    {
+        /** A template has changed : its name is given */
+        TEMPLATE_CHANGED,
+        /** A template provided as a string has been replaced : its name and content are given */
+        STRING_TEMPLATE_REPLACED,
+        /** An auto-include has been added : its file name is given */
+        AUTO_INCLUDE_ADDED,
+        /** An auto-include has been removed : its file name is given */
+        AUTO_INCLUDE_REMOVED,
+        /** An auto-import has been added : its namespace and file name are given */
+        AUTO_IMPORT_ADDED,
+        /** An auto-import has been removed : its namespace is given */
+        AUTO_IMPORT_REMOVED,
+        /** The template cache has been reset */
+        CACHE_RESET,
+        /** The configuration has been reset */
+        CONFIGURATION_RESET
+    }
+
+    private final String _strOrigin;
+    private final Type _type;
+    private final String _strName;
+    private final String _strNamespace;
+    private final String _strData;
+
+    /**
+     * Constructor
+     * 
+     * @param strOrigin
+     *            The identifier of the node where the change has been made
+     * @param type
+     *            The type of change
+     * @param strName
+     *            The template or file name, or null
+     * @param strNamespace
+     *            The auto-import namespace, or null
+     * @param strData
+     *            The content of the string template, or null
+     */
+    public TemplateInvalidationEvent( String strOrigin, Type type, String strName, String strNamespace, String strData )
+    {
+        _strOrigin = strOrigin;
+        _type = type;
+        _strName = strName;
+        _strNamespace = strNamespace;
+        _strData = strData;
+    }
+
+    /**
+     * Returns the identifier of the node where the change has been made
+     * 
+     * @return The origin
+     */
+    public String getOrigin( )
+    {
+        return _strOrigin;
+    }
+
+    /**
+     * Returns the type of change
+     * 
+     * @return The type
+     */
+    public Type getType( )
+    {
+        return _type;
+    }
+
+    /**
+     * Returns the template or file name
+     * 
+     * @return The name or null
+     */
+    public String getName( )
+    {
+        return _strName;
+    }
+
+    /**
+     * Returns the auto-import namespace
+     * 
+     * @return The namespace or null
+     */
+    public String getNamespace( )
+    {
+        return _strNamespace;
+    }
+
+    /**
+     * Returns the content of the string template
+     * 
+     * @return The content or null
+     */
+    public String getData( )
+    {
+        return _strData;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public String toString( )
+    {
+        return _type + ( ( _strNamespace != null ) ? " " + _strNamespace : "" ) + ( ( _strName != null ) ? " " + _strName : "" ) + " from " + _strOrigin;
+    }
+}
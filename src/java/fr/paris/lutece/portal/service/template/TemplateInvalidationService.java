@@ -0,0 +1,109 @@
+/*
+ * Copyright (c) 2002-2020, City of Paris
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ *
+ *  1. Redistributions of source code must retain the above copyright notice
+ *     and the following disclaimer.
+ *
+ *  2. Redistributions in binary form must reproduce the above copyright notice
+ *     and the following disclaimer in the documentation and/or other materials
+ *     provided with the distribution.
+ *
+ *  3. Neither the name of 'Mairie de Paris' nor 'Lutece' nor the names of its
+ *     contributors may be used to endorse or promote products derived from
+ *     this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDERS OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ *
+ * License 1.0
+ */
+package fr.paris.lutece.portal.service.template;
+
+import java.util.UUID;
+
+/**
+ * Default implementation of the template invalidation between the nodes of a cluster. The changes made on this node are published on the
+ * transport, and the changes received from the other nodes are applied to the template service without being published again.
+ */
+public class TemplateInvalidationService implements ITemplateInvalidationListener
+{
+    private final AbstractFreeMarkerTemplateService _templateService;
+    private final ITemplateInvalidationTransport _transport;
+    private final String _strNodeId = UUID.randomUUID( ).toString( );
+
+    /**
+     * Constructor
+     * 
+     * @param templateService
+     *            The template service of this node
+     * @param transport
+     *            The transport of the events
+     */
+    public TemplateInvalidationService( AbstractFreeMarkerTemplateService templateService, ITemplateInvalidationTransport transport )
+    {
+        _templateService = templateService;
+        _transport = transport;
+        _transport.subscribe( this );
+    }
+
+    /**
+     * Returns the identifier of this node
+     * 
+     * @return The node identifier
+     */
+    public String getNodeId( )
+    {
+        return _strNodeId;
+    }
+
+    /**
+     * Publish a change made on this node
+     * 
+     * @param type
+     *            The type of change
+     * @param strName
+     *            The template or file name, or null
+     * @param strNamespace
+     *            The auto-import namespace, or null
+     * @param strData
+     *            The content of the string template, or null
+     */
+    public void publish( TemplateInvalidationEvent.Type type, String strName, String strNamespace, String strData )
+    {
+        _transport.publish( new TemplateInvalidationEvent( _strNodeId, type, strName, strNamespace, strData ) );
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void onInvalidation( TemplateInvalidationEvent event )
+    {
+        if ( !_strNodeId.equals( event.getOrigin( ) ) )
+        {
+            _templateService.applyInvalidation( event );
+        }
+    }
+
+    /**
+     * Stop listening to the events of the other nodes
+     */
+    public void close( )
+    {
+        _transport.unsubscribe( this );
+    }
+}
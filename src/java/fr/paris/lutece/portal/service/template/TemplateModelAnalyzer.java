@@ -0,0 +1,1282 @@
+/*
+ * Copyright (c) 2002-2020, City of Paris
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ *
+ *  1. Redistributions of source code must retain the above copyright notice
+ *     and the following disclaimer.
+ *
+ *  2. Redistributions in binary form must reproduce the above copyright notice
+ *     and the following disclaimer in the documentation and/or other materials
+ *     provided with the distribution.
+ *
+ *  3. Neither the name of 'Mairie de Paris' nor 'Lutece' nor the names of its
+ *     contributors may be used to endorse or promote products derived from
+ *     this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDERS OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ *
+ * License 1.0
+ */
+package fr.paris.lutece.portal.service.template;
+
+import java.io.IOException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+
+import freemarker.template.Configuration;
+import freemarker.template.Template;
+
+/**
+ * Static analysis of the model variables read by a template. The canonical form of the parsed template is scanned, following the literal includes and
+ * imports, the auto-includes and the auto-imports. The names bound by the templates themselves (macros, parameters, loop variables, assignments,
+ * namespaces) are not reported as model variables.
+ */
+final class TemplateModelAnalyzer
+{
+    private static final int MAX_DEPTH = 32;
+    private static final char TYPE_IDENTIFIER = 'i';
+    private static final char TYPE_STRING = 's';
+    private static final char TYPE_RAW_STRING = 'r';
+    private static final char TYPE_NUMBER = 'n';
+    private static final char TYPE_OPERATOR = 'o';
+    private static final String [ ] OPERATORS = {
+            "...", "..<", "..!", "..*", "..", "??", "==", "!=", "<=", ">=", "&&", "||", "++", "--", "+=", "-=", "*=", "/=", "%=", "->"
+    };
+    private static final Set<String> KEYWORDS = new HashSet<>( Arrays.asList( "true", "false", "gt", "gte", "lt", "lte", "as", "in", "using" ) );
+    private static final Set<String> LITERAL_KEYWORDS = new HashSet<>( Arrays.asList( "true", "false" ) );
+    private static final Set<String> DYNAMIC_BUILTINS = new HashSet<>( Arrays.asList( "eval", "eval_json", "interpret" ) );
+    private static final Set<String> MODEL_SPECIAL_VARIABLES = new HashSet<>( Arrays.asList( "vars", "data_model", "globals" ) );
+    private static final Set<String> ASSIGNMENT_OPERATORS = new HashSet<>( Arrays.asList( "=", "+=", "-=", "*=", "/=", "%=", "++", "--" ) );
+    private static final String DIRECTIVE_USER = "@";
+    private static final String DIRECTIVE_LOCAL = "local";
+    private static final String INTERPOLATION_START = "${";
+
+    private final Configuration _cfg;
+    private final Locale _locale;
+    private final Set<String> _setVariables = new LinkedHashSet<>( );
+    private final Set<String> _setPaths = new LinkedHashSet<>( );
+    private final Map<String, Template> _mapDependencies = new HashMap<>( );
+    private final Set<String> _setImportedLibraries = new HashSet<>( );
+    private final Deque<String> _stackTemplates = new ArrayDeque<>( );
+    private boolean _bComplete = true;
+
+    /**
+     * Constructor
+     * 
+     * @param cfg
+     *            The configuration of the template
+     * @param locale
+     *            The locale of the template
+     */
+    private TemplateModelAnalyzer( Configuration cfg, Locale locale )
+    {
+        _cfg = cfg;
+        _locale = locale;
+    }
+
+    /**
+     * Analyze the model variables read by a template
+     * 
+     * @param ftl
+     *            The template
+     * @param lRevision
+     *            The current revision of the configuration
+     * @param lInvalidations
+     *            The current number of template invalidations
+     * @return The model requirements of the template
+     */
+    static TemplateModelRequirements analyze( Template ftl, long lRevision, long lInvalidations )
+    {
+        Configuration cfg = ftl.getConfiguration( );
+        TemplateModelAnalyzer analyzer = new TemplateModelAnalyzer( cfg, ftl.getLocale( ) );
+        Scope scope = new Scope( );
+
+        // auto-imports are lazy, so they are considered as used
+        for ( Map.Entry<String, String> entry : cfg.getAutoImports( ).entrySet( ) )
+        {
+            analyzer.analyzeLibrary( entry.getValue( ) );
+            scope.define( entry.getKey( ) );
+        }
+
+        for ( String strAutoInclude : cfg.getAutoIncludes( ) )
+        {
+            analyzer.analyzeInclude( strAutoInclude, scope );
+        }
+
+        analyzer.analyzeTemplate( ftl, scope );
+
+        return new TemplateModelRequirements( analyzer._setVariables, analyzer._setPaths, analyzer._bComplete, lRevision, lInvalidations,
+                analyzer._mapDependencies );
+    }
+
+    /**
+     * Analyze a template in a scope
+     * 
+     * @param ftl
+     *            The template
+     * @param scope
+     *            The scope of the names bound by the templates
+     */
+    @SuppressWarnings( "deprecation" )
+    private void analyzeTemplate( Template ftl, Scope scope )
+    {
+        String strName = ftl.getName( );
+
+        // a recursive include reads the same variables
+        if ( _stackTemplates.contains( strName ) || _stackTemplates.size( ) >= MAX_DEPTH )
+        {
+            return;
+        }
+
+        _stackTemplates.push( strName );
+
+        // the macros are defined when the template is loaded, before its first instruction
+        for ( Object macroName : ftl.getMacros( ).keySet( ) )
+        {
+            scope.define( (String) macroName );
+        }
+
+        String strSource = ftl.toString( );
+        FtlSourceUtils.Tokenizer tokenizer = new FtlSourceUtils.Tokenizer( strSource );
+
+        while ( tokenizer.next( ) )
+        {
+            int nStart = tokenizer.getStart( );
+            int nEnd = tokenizer.getEnd( );
+
+            if ( tokenizer.getType( ) == FtlSourceUtils.TokenType.TAG )
+            {
+                // a noparse block holds no variable
+                if ( !FtlSourceUtils.DIRECTIVE_NOPARSE.equals( tokenizer.getDirective( ) ) )
+                {
+                    analyzeTag( strSource, nStart, nEnd, strName, scope );
+                }
+            }
+            else if ( tokenizer.getType( ) == FtlSourceUtils.TokenType.INTERPOLATION )
+            {
+                analyzeInterpolation( strSource.substring( nStart + 2, Math.max( nStart + 2, nEnd - 1 ) ), scope );
+            }
+        }
+
+        _stackTemplates.pop( );
+    }
+
+    /**
+     * Analyze an included template, that shares the scope of the including template
+     * 
+     * @param strName
+     *            The name of the included template
+     * @param scope
+     *            The scope of the including template
+     */
+    private void analyzeInclude( String strName, Scope scope )
+    {
+        Template ftl = loadTemplate( strName );
+
+        if ( ftl != null )
+        {
+            analyzeTemplate( ftl, scope );
+        }
+    }
+
+    /**
+     * Analyze an imported library, that has its own namespace. A library is only imported once.
+     * 
+     * @param strName
+     *            The name of the library
+     */
+    private void analyzeLibrary( String strName )
+    {
+        if ( !_setImportedLibraries.add( strName ) )
+        {
+            return;
+        }
+
+        Template ftl = loadTemplate( strName );
+
+        if ( ftl != null )
+        {
+            analyzeTemplate( ftl, new Scope( ) );
+        }
+    }
+
+    /**
+     * Load a template analyzed as a dependency
+     * 
+     * @param strName
+     *            The name of the template
+     * @return The template or null if it is missing or can not be parsed
+     */
+    private Template loadTemplate( String strName )
+    {
+        if ( _mapDependencies.containsKey( strName ) )
+        {
+            return _mapDependencies.get( strName );
+        }
+
+        Template ftl = null;
+
+        try
+        {
+            // a missing template is ignored : it either renders nothing or fails the render
+            ftl = _cfg.getTemplate( strName, _locale, null, true, true );
+        }
+        catch( IOException e )
+        {
+            _bComplete = false;
+        }
+
+        _mapDependencies.put( strName, ftl );
+
+        return ftl;
+    }
+
+    /**
+     * Analyze an interpolation
+     * 
+     * @param strInterpolation
+     *            The content of the interpolation
+     * @param scope
+     *            The current scope
+     */
+    private void analyzeInterpolation( String strInterpolation, Scope scope )
+    {
+        List<Token> listTokens = tokenize( strInterpolation );
+        int nEnd = indexOf( listTokens, 0, ";" );
+
+        // the format of a numerical interpolation (ie: #{x ; m2}) is not an expression
+        analyzeExpression( listTokens, 0, ( nEnd < 0 ) ? listTokens.size( ) : nEnd, scope, Collections.emptySet( ) );
+    }
+
+    /**
+     * Analyze an FTL tag
+     * 
+     * @param strSource
+     *            The template source
+     * @param nStart
+     *            The start of the tag
+     * @param nEnd
+     *            The end of the tag
+     * @param strTemplateName
+     *            The name of the template
+     * @param scope
+     *            The current scope
+     */
+    private void analyzeTag( String strSource, int nStart, int nEnd, String strTemplateName, Scope scope )
+    {
+        String strDirective = FtlSourceUtils.getDirectiveName( strSource, nStart );
+        boolean bEndTag = strDirective.startsWith( "/" );
+        boolean bUserDirective = strSource.charAt( nStart + ( bEndTag ? 2 : 1 ) ) == '@';
+
+        if ( bEndTag )
+        {
+            scope.close( bUserDirective ? DIRECTIVE_USER : strDirective.substring( 1 ) );
+
+            return;
+        }
+
+        String strContent = strSource.substring( nStart + 2, Math.max( nStart + 2, nEnd - 1 ) );
+        boolean bSelfClosing = strContent.endsWith( "/" );
+
+        if ( bSelfClosing )
+        {
+            strContent = strContent.substring( 0, strContent.length( ) - 1 );
+        }
+
+        if ( bUserDirective )
+        {
+            analyzeUserDirective( tokenize( strContent ), bSelfClosing, scope );
+
+            return;
+        }
+
+        List<Token> listTokens = tokenize( strContent.substring( strDirective.length( ) ) );
+
+        switch( strDirective )
+        {
+            case "list":
+            case "items":
+                analyzeLoop( strDirective, listTokens, "as", true, scope );
+                break;
+            case "foreach":
+                analyzeLoop( strDirective, listTokens, "in", false, scope );
+                break;
+            case "escape":
+                analyzeEscape( listTokens, scope );
+                break;
+            case "assign":
+            case "global":
+            case DIRECTIVE_LOCAL:
+                analyzeAssignment( strDirective, listTokens, scope );
+                break;
+            case "macro":
+            case "function":
+                analyzeMacro( strDirective, listTokens, scope );
+                break;
+            case "import":
+                analyzeImport( listTokens, strTemplateName, scope );
+                break;
+            case "include":
+                analyzeIncludeDirective( listTokens, strTemplateName, scope );
+                break;
+            case "setting":
+            case "ftl":
+                analyzeExpression( listTokens, 0, listTokens.size( ), scope, getNamedArguments( listTokens, 0, listTokens.size( ) ) );
+                break;
+            default:
+                analyzeExpression( listTokens, 0, listTokens.size( ), scope, Collections.emptySet( ) );
+                break;
+        }
+    }
+
+    /**
+     * Analyze a call of a user-defined directive (ie: &lt;@macro arg=value ; loopVar&gt;)
+     * 
+     * @param listTokens
+     *            The tokens of the call
+     * @param bSelfClosing
+     *            true if the call has no nested content
+     * @param scope
+     *            The current scope
+     */
+    private void analyzeUserDirective( List<Token> listTokens, boolean bSelfClosing, Scope scope )
+    {
+        int nSemicolon = indexOf( listTokens, 0, ";" );
+        int nEnd = ( nSemicolon < 0 ) ? listTokens.size( ) : nSemicolon;
+
+        // the directive measuring the includes is set by the service, not by the model
+        if ( listTokens.isEmpty( ) || !IncludeAccounting.DIRECTIVE_NAME.equals( listTokens.get( 0 )._strValue ) )
+        {
+            analyzeExpression( listTokens, 0, nEnd, scope, getNamedArguments( listTokens, 0, nEnd ) );
+        }
+
+        if ( !bSelfClosing )
+        {
+            scope.open( DIRECTIVE_USER, getIdentifiers( listTokens, nEnd + 1, listTokens.size( ) ), false );
+        }
+    }
+
+    /**
+     * Analyze a loop directive (ie: &lt;#list users as user&gt; or &lt;#foreach user in users&gt;)
+     * 
+     * @param strDirective
+     *            The directive name
+     * @param listTokens
+     *            The tokens of the directive
+     * @param strKeyword
+     *            The keyword separating the expression and the loop variables
+     * @param bExpressionFirst
+     *            true if the expression is before the keyword
+     * @param scope
+     *            The current scope
+     */
+    private void analyzeLoop( String strDirective, List<Token> listTokens, String strKeyword, boolean bExpressionFirst, Scope scope )
+    {
+        int nKeyword = indexOf( listTokens, 0, strKeyword );
+        int nSize = listTokens.size( );
+
+        if ( nKeyword < 0 )
+        {
+            // <#list users> with a nested <#items as user>
+            analyzeExpression( listTokens, 0, nSize, scope, Collections.emptySet( ) );
+            scope.open( strDirective, Collections.emptySet( ), false );
+        }
+        else if ( bExpressionFirst )
+        {
+            analyzeExpression( listTokens, 0, nKeyword, scope, Collections.emptySet( ) );
+            scope.open( strDirective, getIdentifiers( listTokens, nKeyword + 1, nSize ), false );
+        }
+        else
+        {
+            analyzeExpression( listTokens, nKeyword + 1, nSize, scope, Collections.emptySet( ) );
+            scope.open( strDirective, getIdentifiers( listTokens, 0, nKeyword ), false );
+        }
+    }
+
+    /**
+     * Analyze an escape directive (ie: &lt;#escape x as x?html&gt;)
+     * 
+     * @param listTokens
+     *            The tokens of the directive
+     * @param scope
+     *            The current scope
+     */
+    private void analyzeEscape( List<Token> listTokens, Scope scope )
+    {
+        int nAs = indexOf( listTokens, 0, "as" );
+
+        if ( nAs < 0 )
+        {
+            analyzeExpression( listTokens, 0, listTokens.size( ), scope, Collections.emptySet( ) );
+            scope.open( "escape", Collections.emptySet( ), false );
+
+            return;
+        }
+
+        scope.open( "escape", getIdentifiers( listTokens, 0, nAs ), false );
+        analyzeExpression( listTokens, nAs + 1, listTokens.size( ), scope, Collections.emptySet( ) );
+    }
+
+    /**
+     * Analyze an assignment (ie: &lt;#assign x = user.name y += 1&gt; or &lt;#assign x&gt;...&lt;/#assign&gt;)
+     * 
+     * @param strDirective
+     *            The directive name
+     * @param listTokens
+     *            The tokens of the directive
+     * @param scope
+     *            The current scope
+     */
+    private void analyzeAssignment( String strDirective, List<Token> listTokens, Scope scope )
+    {
+        Set<Integer> setTargets = new HashSet<>( );
+        List<String> listNames = new ArrayList<>( );
+        int nSize = listTokens.size( );
+
+        for ( int i = 0; i < nSize; i++ )
+        {
+            Token token = listTokens.get( i );
+
+            if ( ( token.isIdentifier( ) || token.isString( ) ) && isParameterPosition( listTokens, 0, i )
+                    && ( i + 1 == nSize || ASSIGNMENT_OPERATORS.contains( listTokens.get( i + 1 ).getOperator( ) ) ) )
+            {
+                listNames.add( token._strValue );
+
+                // a compound assignment (ie: x += 1) reads the variable
+                if ( i + 1 == nSize || "=".equals( listTokens.get( i + 1 ).getOperator( ) ) )
+                {
+                    setTargets.add( i );
+                }
+            }
+        }
+
+        analyzeExpression( listTokens, 0, nSize, scope, setTargets );
+
+        for ( String strName : listNames )
+        {
+            if ( DIRECTIVE_LOCAL.equals( strDirective ) )
+            {
+                scope.defineLocal( strName );
+            }
+            else if ( !scope.isInMacro( ) )
+            {
+                // an assignment in a macro body is only done when the macro is called
+                scope.define( strName );
+            }
+        }
+    }
+
+    /**
+     * Analyze a macro or function definition (ie: &lt;#macro name param1 param2=default&gt; or &lt;#function name(param1, param2)&gt;)
+     * 
+     * @param strDirective
+     *            The directive name
+     * @param listTokens
+     *            The tokens of the directive
+     * @param scope
+     *            The current scope
+     */
+    private void analyzeMacro( String strDirective, List<Token> listTokens, Scope scope )
+    {
+        Set<Integer> setParameters = new HashSet<>( );
+        Set<String> setNames = new HashSet<>( );
+        int nSize = listTokens.size( );
+
+        setParameters.add( 0 );
+
+        for ( int i = 1; i < nSize; i++ )
+        {
+            Token token = listTokens.get( i );
+
+            if ( token.isIdentifier( ) && ( isParameterPosition( listTokens, 1, i ) || "(".equals( listTokens.get( i - 1 ).getOperator( ) ) ) )
+            {
+                setParameters.add( i );
+                setNames.add( token._strValue );
+            }
+        }
+
+        scope.open( strDirective, setNames, true );
+        analyzeExpression( listTokens, 0, nSize, scope, setParameters );
+    }
+
+    /**
+     * Analyze an import directive (ie: &lt;#import "lib.ftl" as lib&gt;)
+     * 
+     * @param listTokens
+     *            The tokens of the directive
+     * @param strTemplateName
+     *            The name of the importing template
+     * @param scope
+     *            The current scope
+     */
+    private void analyzeImport( List<Token> listTokens, String strTemplateName, Scope scope )
+    {
+        int nAs = indexOf( listTokens, 0, "as" );
+        int nEnd = ( nAs < 0 ) ? listTokens.size( ) : nAs;
+
+        analyzeExpression( listTokens, 0, nEnd, scope, Collections.emptySet( ) );
+
+        if ( nEnd == 1 && listTokens.get( 0 ).isLiteral( ) )
+        {
+            analyzeLibrary( getFullTemplateName( strTemplateName, listTokens.get( 0 )._strValue ) );
+        }
+        else
+        {
+            _bComplete = false;
+        }
+
+        for ( String strNamespace : getIdentifiers( listTokens, nEnd + 1, listTokens.size( ) ) )
+        {
+            scope.define( strNamespace );
+        }
+    }
+
+    /**
+     * Analyze an include directive (ie: &lt;#include "header.ftl" ignore_missing=true&gt;)
+     * 
+     * @param listTokens
+     *            The tokens of the directive
+     * @param strTemplateName
+     *            The name of the including template
+     * @param scope
+     *            The current scope
+     */
+    private void analyzeIncludeDirective( List<Token> listTokens, String strTemplateName, Scope scope )
+    {
+        int nSize = listTokens.size( );
+        Set<Integer> setNamedArguments = getNamedArguments( listTokens, 0, nSize );
+
+        analyzeExpression( listTokens, 0, nSize, scope, setNamedArguments );
+
+        for ( int nArgument : setNamedArguments )
+        {
+            // a template included with parse=false is static text
+            if ( "parse".equals( listTokens.get( nArgument )._strValue ) && nArgument + 2 < nSize
+                    && "false".equals( listTokens.get( nArgument + 2 )._strValue ) )
+            {
+                return;
+            }
+        }
+
+        if ( nSize > 0 && listTokens.get( 0 ).isLiteral( ) && ( nSize == 1 || setNamedArguments.contains( 1 ) ) )
+        {
+            analyzeInclude( getFullTemplateName( strTemplateName, listTokens.get( 0 )._strValue ), scope );
+        }
+        else
+        {
+            _bComplete = false;
+        }
+    }
+
+    /**
+     * Analyze the variables read by an expression
+     * 
+     * @param listTokens
+     *            The tokens
+     * @param nFrom
+     *            The index of the first token of the expression
+     * @param nTo
+     *            The index following the last token of the expression
+     * @param scope
+     *            The current scope
+     * @param setSkipped
+     *            The indexes of the identifiers that are names, not variable references (ie: named arguments, assignment targets)
+     */
+    private void analyzeExpression( List<Token> listTokens, int nFrom, int nTo, Scope scope, Set<Integer> setSkipped )
+    {
+        Set<String> setLambdaParameters = getLambdaParameters( listTokens, nFrom, nTo );
+
+        for ( int i = nFrom; i < nTo; i++ )
+        {
+            Token token = listTokens.get( i );
+
+            if ( token._cType == TYPE_STRING )
+            {
+                analyzeStringLiteral( token._strValue, scope );
+            }
+
+            if ( !token.isIdentifier( ) || setSkipped.contains( i ) )
+            {
+                continue;
+            }
+
+            String strPrevious = ( i > nFrom ) ? listTokens.get( i - 1 ).getOperator( ) : null;
+
+            if ( "?".equals( strPrevious ) )
+            {
+                // built-in
+                if ( DYNAMIC_BUILTINS.contains( token._strValue ) )
+                {
+                    _bComplete = false;
+                }
+            }
+            else if ( ".".equals( strPrevious ) )
+            {
+                if ( i - 2 < nFrom || !listTokens.get( i - 2 ).isOperandEnd( ) )
+                {
+                    analyzeSpecialVariable( listTokens, i, nTo );
+                }
+            }
+            else if ( !KEYWORDS.contains( token._strValue ) && !setLambdaParameters.contains( token._strValue ) && !scope.isDefined( token._strValue ) )
+            {
+                addPath( listTokens, i, nTo );
+            }
+        }
+    }
+
+    /**
+     * Analyze a special variable (ie: .now, .vars["name"], .data_model.name)
+     * 
+     * @param listTokens
+     *            The tokens
+     * @param nIndex
+     *            The index of the name of the special variable
+     * @param nTo
+     *            The index following the last token of the expression
+     */
+    private void analyzeSpecialVariable( List<Token> listTokens, int nIndex, int nTo )
+    {
+        if ( !MODEL_SPECIAL_VARIABLES.contains( listTokens.get( nIndex )._strValue ) )
+        {
+            return;
+        }
+
+        if ( nIndex + 2 < nTo && ".".equals( listTokens.get( nIndex + 1 ).getOperator( ) ) && listTokens.get( nIndex + 2 ).isIdentifier( ) )
+        {
+            addPath( listTokens, nIndex + 2, nTo );
+        }
+        else
+        {
+            // dynamic lookup of the model
+            _bComplete = false;
+        }
+    }
+
+    /**
+     * Analyze the interpolations of a string literal (ie: "Hello ${user.name}")
+     * 
+     * @param strLiteral
+     *            The content of the string literal
+     * @param scope
+     *            The current scope
+     */
+    private void analyzeStringLiteral( String strLiteral, Scope scope )
+    {
+        int nPos = strLiteral.indexOf( INTERPOLATION_START );
+
+        while ( nPos >= 0 )
+        {
+            int nEnd = FtlSourceUtils.findInterpolationEnd( strLiteral, nPos );
+            List<Token> listTokens = tokenize( strLiteral.substring( nPos + 2, Math.max( nPos + 2, nEnd - 1 ) ) );
+            analyzeExpression( listTokens, 0, listTokens.size( ), scope, Collections.emptySet( ) );
+            nPos = strLiteral.indexOf( INTERPOLATION_START, nEnd );
+        }
+    }
+
+    /**
+     * Add a model variable and the path of the value accessed from it
+     * 
+     * @param listTokens
+     *            The tokens
+     * @param nIndex
+     *            The index of the variable
+     * @param nTo
+     *            The index following the last token of the expression
+     */
+    private void addPath( List<Token> listTokens, int nIndex, int nTo )
+    {
+        String strVariable = listTokens.get( nIndex )._strValue;
+        StringBuilder sbPath = new StringBuilder( strVariable );
+        int i = nIndex + 1;
+
+        while ( i + 1 < nTo )
+        {
+            String strOperator = listTokens.get( i ).getOperator( );
+
+            if ( ".".equals( strOperator ) && listTokens.get( i + 1 ).isIdentifier( ) )
+            {
+                sbPath.append( '.' ).append( listTokens.get( i + 1 )._strValue );
+                i += 2;
+            }
+            else if ( "[".equals( strOperator ) && i + 2 < nTo && listTokens.get( i + 1 ).isLiteral( ) && "]".equals( listTokens.get( i + 2 ).getOperator( ) ) )
+            {
+                sbPath.append( '.' ).append( listTokens.get( i + 1 )._strValue );
+                i += 3;
+            }
+            else
+            {
+                break;
+            }
+        }
+
+        _setVariables.add( strVariable );
+        _setPaths.add( sbPath.toString( ) );
+    }
+
+    /**
+     * Resolve the name of an included or imported template relatively to the including template
+     * 
+     * @param strBaseName
+     *            The name of the including template
+     * @param strName
+     *            The name of the included template
+     * @return The full name of the included template
+     */
+    static String getFullTemplateName( String strBaseName, String strName )
+    {
+        if ( strName.startsWith( "/" ) )
+        {
+            return strName.substring( 1 );
+        }
+
+        int nSlash = ( strBaseName == null ) ? -1 : strBaseName.lastIndexOf( '/' );
+
+        return ( nSlash < 0 ) ? strName : ( strBaseName.substring( 0, nSlash + 1 ) + strName );
+    }
+
+    /**
+     * Checks if an identifier starts a new name in a list of names and values (ie: the name of a named argument)
+     * 
+     * @param listTokens
+     *            The tokens
+     * @param nFrom
+     *            The index of the first token of the list
+     * @param nIndex
+     *            The index of the identifier
+     * @return true if the identifier does not continue the previous value
+     */
+    private static boolean isParameterPosition( List<Token> listTokens, int nFrom, int nIndex )
+    {
+        if ( nIndex == nFrom )
+        {
+            return true;
+        }
+
+        Token previous = listTokens.get( nIndex - 1 );
+
+        return previous.isOperandEnd( ) || ",".equals( previous.getOperator( ) );
+    }
+
+    /**
+     * Returns the indexes of the names of the named arguments (ie: ignore_missing in ignore_missing=true)
+     * 
+     * @param listTokens
+     *            The tokens
+     * @param nFrom
+     *            The index of the first token
+     * @param nTo
+     *            The index following the last token
+     * @return The indexes of the names
+     */
+    private static Set<Integer> getNamedArguments( List<Token> listTokens, int nFrom, int nTo )
+    {
+        Set<Integer> setNamedArguments = new HashSet<>( );
+
+        for ( int i = nFrom; i + 1 < nTo; i++ )
+        {
+            if ( listTokens.get( i ).isIdentifier( ) && isParameterPosition( listTokens, nFrom, i ) && "=".equals( listTokens.get( i + 1 ).getOperator( ) ) )
+            {
+                setNamedArguments.add( i );
+            }
+        }
+
+        return setNamedArguments;
+    }
+
+    /**
+     * Returns the names of the parameters of the lambdas of an expression (ie: x in users?filter(x -&gt; x.active))
+     * 
+     * @param listTokens
+     *            The tokens
+     * @param nFrom
+     *            The index of the first token
+     * @param nTo
+     *            The index following the last token
+     * @return The names of the parameters
+     */
+    private static Set<String> getLambdaParameters( List<Token> listTokens, int nFrom, int nTo )
+    {
+        Set<String> setParameters = new HashSet<>( );
+
+        for ( int i = nFrom + 1; i < nTo; i++ )
+        {
+            if ( !"->".equals( listTokens.get( i ).getOperator( ) ) )
+            {
+                continue;
+            }
+
+            int j = i - 1;
+
+            if ( ")".equals( listTokens.get( j ).getOperator( ) ) )
+            {
+                // (x, y) -> ...
+                for ( j--; j >= nFrom && !"(".equals( listTokens.get( j ).getOperator( ) ); j-- )
+                {
+                    if ( listTokens.get( j ).isIdentifier( ) )
+                    {
+                        setParameters.add( listTokens.get( j )._strValue );
+                    }
+                }
+            }
+            else if ( listTokens.get( j ).isIdentifier( ) )
+            {
+                setParameters.add( listTokens.get( j )._strValue );
+            }
+        }
+
+        return setParameters;
+    }
+
+    /**
+     * Returns the identifiers of a range of tokens (ie: the loop variables)
+     * 
+     * @param listTokens
+     *            The tokens
+     * @param nFrom
+     *            The index of the first token
+     * @param nTo
+     *            The index following the last token
+     * @return The identifiers
+     */
+    private static Set<String> getIdentifiers( List<Token> listTokens, int nFrom, int nTo )
+    {
+        Set<String> setIdentifiers = new HashSet<>( );
+
+        for ( int i = nFrom; i < nTo; i++ )
+        {
+            if ( listTokens.get( i ).isIdentifier( ) )
+            {
+                setIdentifiers.add( listTokens.get( i )._strValue );
+            }
+        }
+
+        return setIdentifiers;
+    }
+
+    /**
+     * Find a keyword or an operator outside of parentheses and brackets
+     * 
+     * @param listTokens
+     *            The tokens
+     * @param nFrom
+     *            The index to start from
+     * @param strValue
+     *            The keyword or operator
+     * @return The index of the token or -1 if not found
+     */
+    private static int indexOf( List<Token> listTokens, int nFrom, String strValue )
+    {
+        int nDepth = 0;
+
+        for ( int i = nFrom; i < listTokens.size( ); i++ )
+        {
+            Token token = listTokens.get( i );
+            String strOperator = token.getOperator( );
+
+            if ( nDepth == 0 && ( token.isIdentifier( ) || strOperator != null ) && strValue.equals( token._strValue ) )
+            {
+                return i;
+            }
+
+            if ( "(".equals( strOperator ) || "[".equals( strOperator ) || "{".equals( strOperator ) )
+            {
+                nDepth++;
+            }
+            else if ( ")".equals( strOperator ) || "]".equals( strOperator ) || "}".equals( strOperator ) )
+            {
+                nDepth--;
+            }
+        }
+
+        return -1;
+    }
+
+    /**
+     * Split an FTL expression into tokens
+     * 
+     * @param strExpression
+     *            The expression
+     * @return The tokens
+     */
+    static List<Token> tokenize( String strExpression )
+    {
+        List<Token> listTokens = new ArrayList<>( );
+        int nLength = strExpression.length( );
+        int i = 0;
+
+        while ( i < nLength )
+        {
+            char c = strExpression.charAt( i );
+
+            if ( Character.isWhitespace( c ) )
+            {
+                i++;
+            }
+            else if ( c == 'r' && i + 1 < nLength && isQuote( strExpression.charAt( i + 1 ) ) )
+            {
+                int nEnd = strExpression.indexOf( strExpression.charAt( i + 1 ), i + 2 );
+                nEnd = ( nEnd < 0 ) ? nLength : nEnd;
+                listTokens.add( new Token( TYPE_RAW_STRING, strExpression.substring( i + 2, nEnd ) ) );
+                i = nEnd + 1;
+            }
+            else if ( isQuote( c ) )
+            {
+                StringBuilder sbValue = new StringBuilder( );
+
+                for ( i++; i < nLength && strExpression.charAt( i ) != c; i++ )
+                {
+                    if ( strExpression.charAt( i ) == '\\' && i + 1 < nLength )
+                    {
+                        i++;
+                    }
+
+                    sbValue.append( strExpression.charAt( i ) );
+                }
+
+                listTokens.add( new Token( TYPE_STRING, sbValue.toString( ) ) );
+                i++;
+            }
+            else if ( isIdentifierStart( c ) )
+            {
+                StringBuilder sbValue = new StringBuilder( );
+
+                for ( ; i < nLength && ( isIdentifierPart( strExpression.charAt( i ) ) || strExpression.charAt( i ) == '\\' ); i++ )
+                {
+                    // escaped chars of the identifiers (ie: data\-id)
+                    if ( strExpression.charAt( i ) == '\\' && i + 1 < nLength )
+                    {
+                        i++;
+                    }
+
+                    sbValue.append( strExpression.charAt( i ) );
+                }
+
+                listTokens.add( new Token( TYPE_IDENTIFIER, sbValue.toString( ) ) );
+            }
+            else if ( Character.isDigit( c ) )
+            {
+                int nStart = i;
+
+                while ( i < nLength && ( Character.isDigit( strExpression.charAt( i ) )
+                        || ( strExpression.charAt( i ) == '.' && i + 1 < nLength && Character.isDigit( strExpression.charAt( i + 1 ) ) ) ) )
+                {
+                    i++;
+                }
+
+                listTokens.add( new Token( TYPE_NUMBER, strExpression.substring( nStart, i ) ) );
+            }
+            else
+            {
+                String strOperator = getOperator( strExpression, i );
+                listTokens.add( new Token( TYPE_OPERATOR, strOperator ) );
+                i += strOperator.length( );
+            }
+        }
+
+        return listTokens;
+    }
+
+    /**
+     * Returns the operator starting at a given position
+     * 
+     * @param strExpression
+     *            The expression
+     * @param nPos
+     *            The position
+     * @return The operator
+     */
+    private static String getOperator( String strExpression, int nPos )
+    {
+        for ( String strOperator : OPERATORS )
+        {
+            if ( strExpression.startsWith( strOperator, nPos ) )
+            {
+                return strOperator;
+            }
+        }
+
+        return String.valueOf( strExpression.charAt( nPos ) );
+    }
+
+    /**
+     * Checks if a char is a string literal quote
+     * 
+     * @param c
+     *            The char
+     * @return true if the char is a quote
+     */
+    private static boolean isQuote( char c )
+    {
+        return c == '"' || c == '\'';
+    }
+
+    /**
+     * Checks if a char can start an FTL identifier
+     * 
+     * @param c
+     *            The char
+     * @return true if the char can start an identifier
+     */
+    private static boolean isIdentifierStart( char c )
+    {
+        return Character.isLetter( c ) || c == '_' || c == '$' || c == '@';
+    }
+
+    /**
+     * Checks if a char can be part of an FTL identifier
+     * 
+     * @param c
+     *            The char
+     * @return true if the char can be part of an identifier
+     */
+    private static boolean isIdentifierPart( char c )
+    {
+        return isIdentifierStart( c ) || Character.isDigit( c );
+    }
+
+    /**
+     * A token of an FTL expression
+     */
+    static final class Token
+    {
+        private final char _cType;
+        private final String _strValue;
+
+        /**
+         * Constructor
+         * 
+         * @param cType
+         *            The type of the token
+         * @param strValue
+         *            The value of the token
+         */
+        Token( char cType, String strValue )
+        {
+            _cType = cType;
+            _strValue = strValue;
+        }
+
+        /**
+         * Checks if the token is an identifier
+         * 
+         * @return true if the token is an identifier
+         */
+        boolean isIdentifier( )
+        {
+            return _cType == TYPE_IDENTIFIER;
+        }
+
+        /**
+         * Checks if the token is a string literal
+         * 
+         * @return true if the token is a string literal
+         */
+        boolean isString( )
+        {
+            return _cType == TYPE_STRING || _cType == TYPE_RAW_STRING;
+        }
+
+        /**
+         * Checks if the token is a constant string literal, without interpolations
+         * 
+         * @return true if the token is a constant string
+         */
+        boolean isLiteral( )
+        {
+            return _cType == TYPE_RAW_STRING || ( _cType == TYPE_STRING && !_strValue.contains( INTERPOLATION_START ) );
+        }
+
+        /**
+         * Returns the operator of the token
+         * 
+         * @return The operator or null if the token is not an operator
+         */
+        String getOperator( )
+        {
+            return ( _cType == TYPE_OPERATOR ) ? _strValue : null;
+        }
+
+        /**
+         * Checks if the token ends an operand, so the next identifier can not continue the same expression
+         * 
+         * @return true if the token ends an operand
+         */
+        boolean isOperandEnd( )
+        {
+            switch( _cType )
+            {
+                case TYPE_IDENTIFIER:
+                    return !KEYWORDS.contains( _strValue ) || LITERAL_KEYWORDS.contains( _strValue );
+                case TYPE_OPERATOR:
+                    return ")".equals( _strValue ) || "]".equals( _strValue ) || "}".equals( _strValue );
+                default:
+                    return true;
+            }
+        }
+    }
+
+    /**
+     * The names bound by the templates of a namespace : macros, assigned variables, imported namespaces, and the nested scopes of the loops, macros
+     * and user-defined directives
+     */
+    private static final class Scope
+    {
+        private final Set<String> _setNamespace = new HashSet<>( );
+        private final Deque<Frame> _stackFrames = new ArrayDeque<>( );
+
+        /**
+         * Define a name in the namespace
+         * 
+         * @param strName
+         *            The name
+         */
+        void define( String strName )
+        {
+            _setNamespace.add( strName );
+        }
+
+        /**
+         * Define a local variable of the current macro
+         * 
+         * @param strName
+         *            The name
+         */
+        void defineLocal( String strName )
+        {
+            for ( Frame frame : _stackFrames )
+            {
+                if ( frame._bMacro )
+                {
+                    frame._setNames.add( strName );
+
+                    return;
+                }
+            }
+        }
+
+        /**
+         * Checks if a name is bound by the templates
+         * 
+         * @param strName
+         *            The name
+         * @return true if the name is bound
+         */
+        boolean isDefined( String strName )
+        {
+            if ( _setNamespace.contains( strName ) )
+            {
+                return true;
+            }
+
+            for ( Frame frame : _stackFrames )
+            {
+                if ( frame._setNames.contains( strName ) )
+                {
+                    return true;
+                }
+            }
+
+            return false;
+        }
+
+        /**
+         * Checks if the current position is in a macro or function body
+         * 
+         * @return true if in a macro body
+         */
+        boolean isInMacro( )
+        {
+            for ( Frame frame : _stackFrames )
+            {
+                if ( frame._bMacro )
+                {
+                    return true;
+                }
+            }
+
+            return false;
+        }
+
+        /**
+         * Open a nested scope
+         * 
+         * @param strDirective
+         *            The directive opening the scope
+         * @param setNames
+         *            The names bound in the scope
+         * @param bMacro
+         *            true for a macro or function body
+         */
+        void open( String strDirective, Set<String> setNames, boolean bMacro )
+        {
+            _stackFrames.push( new Frame( strDirective, setNames, bMacro ) );
+        }
+
+        /**
+         * Close the nested scope of a directive
+         * 
+         * @param strDirective
+         *            The directive of the end tag
+         */
+        void close( String strDirective )
+        {
+            Frame frame = _stackFrames.peek( );
+
+            if ( frame != null && frame._strDirective.equals( strDirective ) )
+            {
+                _stackFrames.pop( );
+            }
+        }
+    }
+
+    /**
+     * A nested scope
+     */
+    private static final class Frame
+    {
+        private final String _strDirective;
+        private final Set<String> _setNames;
+        private final boolean _bMacro;
+
+        /**
+         * Constructor
+         * 
+         * @param strDirective
+         *            The directive opening the scope
+         * @param setNames
+         *            The names bound in the scope
+         * @param bMacro
+         *            true for a macro or function body
+         */
+        Frame( String strDirective, Set<String> setNames, boolean bMacro )
+        {
+            _strDirective = strDirective;
+            _setNames = new HashSet<>( setNames );
+            _bMacro = bMacro;
+        }
+    }
+}
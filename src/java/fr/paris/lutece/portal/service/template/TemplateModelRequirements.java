@@ -0,0 +1,179 @@
+/*
+ * Copyright (c) 2002-2020, City of Paris
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ *
+ *  1. Redistributions of source code must retain the above copyright notice
+ *     and the following disclaimer.
+ *
+ *  2. Redistributions in binary form must reproduce the above copyright notice
+ *     and the following disclaimer in the documentation and/or other materials
+ *     provided with the distribution.
+ *
+ *  3. Neither the name of 'Mairie de Paris' nor 'Lutece' nor the names of its
+ *     contributors may be used to endorse or promote products derived from
+ *     this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDERS OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ *
+ * License 1.0
+ */
+package fr.paris.lutece.portal.service.template;
+
+import java.io.IOException;
+import java.util.Collections;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+
+import freemarker.template.Configuration;
+import freemarker.template.Template;
+
+/**
+ * The model variables that a template, with its includes, imports, auto-includes and auto-imports, may access. The requirements are found by a static
+ * analysis of the sources : a variable that is not listed is never read by the template, unless the analysis is not complete (ie: dynamic include names,
+ * ?eval or ?interpret built-ins, .vars lookups).
+ */
+public class TemplateModelRequirements
+{
+    private final Set<String> _setVariables;
+    private final Set<String> _setPaths;
+    private final boolean _bComplete;
+    private final long _lRevision;
+    private final Map<String, Template> _mapDependencies;
+    private volatile long _lLastCheck = System.currentTimeMillis( );
+    private volatile long _lInvalidations;
+
+    /**
+     * Constructor
+     * 
+     * @param setVariables
+     *            The top-level model variables
+     * @param setPaths
+     *            The paths of the accessed values (ie: "user.address.city")
+     * @param bComplete
+     *            false if the template may access variables that could not be determined
+     * @param lRevision
+     *            The revision of the configuration used for the analysis
+     * @param lInvalidations
+     *            The number of template invalidations before the analysis
+     * @param mapDependencies
+     *            The templates analyzed with the template, by name, with a null value for the missing ones
+     */
+    TemplateModelRequirements( Set<String> setVariables, Set<String> setPaths, boolean bComplete, long lRevision, long lInvalidations,
+            Map<String, Template> mapDependencies )
+    {
+        _setVariables = Collections.unmodifiableSet( setVariables );
+        _setPaths = Collections.unmodifiableSet( setPaths );
+        _bComplete = bComplete;
+        _lRevision = lRevision;
+        _lInvalidations = lInvalidations;
+        _mapDependencies = mapDependencies;
+    }
+
+    /**
+     * Returns the top-level model variables the template may access
+     * 
+     * @return The names of the variables
+     */
+    public Set<String> getVariables( )
+    {
+        return _setVariables;
+    }
+
+    /**
+     * Returns the paths of the values the template may access, as far as they can be determined. A path stops at the first dynamic key or sequence
+     * index (ie: "user.roles" for "${user.roles[0].name}").
+     * 
+     * @return The dotted paths
+     */
+    public Set<String> getPaths( )
+    {
+        return _setPaths;
+    }
+
+    /**
+     * Checks if all the accesses to the model could be determined
+     * 
+     * @return true if the template does not access any other variable than the listed ones
+     */
+    public boolean isComplete( )
+    {
+        return _bComplete;
+    }
+
+    /**
+     * Checks if the template may access a model variable. Controllers can skip building the model entries for which this method returns false.
+     * 
+     * @param strVariable
+     *            The name of the top-level variable
+     * @return true if the template may access the variable
+     */
+    public boolean mayAccess( String strVariable )
+    {
+        return !_bComplete || _setVariables.contains( strVariable );
+    }
+
+    /**
+     * Checks if the requirements are still valid : the configuration has not changed and the analyzed templates have not been reloaded. The reload of
+     * the template itself drops its requirements with it, so the dependencies are only looked up again once the template update delay has elapsed,
+     * as the template cache would not reload them before, or when templates have been invalidated since the last check.
+     * 
+     * @param cfg
+     *            The configuration
+     * @param locale
+     *            The locale of the template
+     * @param lRevision
+     *            The current revision of the configuration
+     * @param lInvalidations
+     *            The current number of template invalidations
+     * @return true if the requirements are still valid
+     */
+    boolean isValid( Configuration cfg, Locale locale, long lRevision, long lInvalidations )
+    {
+        if ( lRevision != _lRevision )
+        {
+            return false;
+        }
+
+        long lNow = System.currentTimeMillis( );
+
+        if ( lInvalidations == _lInvalidations && lNow - _lLastCheck < cfg.getTemplateUpdateDelayMilliseconds( ) )
+        {
+            return true;
+        }
+
+        try
+        {
+            for ( Map.Entry<String, Template> entry : _mapDependencies.entrySet( ) )
+            {
+                if ( cfg.getTemplate( entry.getKey( ), locale, null, true, true ) != entry.getValue( ) )
+                {
+                    return false;
+                }
+            }
+        }
+        catch( IOException e )
+        {
+            return false;
+        }
+
+        _lLastCheck = lNow;
+        _lInvalidations = lInvalidations;
+
+        return true;
+    }
+}
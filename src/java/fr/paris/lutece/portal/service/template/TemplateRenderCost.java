@@ -0,0 +1,134 @@
+/*
+ * Copyright (c) 2002-2020, City of Paris
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ *
+ *  1. Redistributions of source code must retain the above copyright notice
+ *     and the following disclaimer.
+ *
+ *  2. Redistributions in binary form must reproduce the above copyright notice
+ *     and the following disclaimer in the documentation and/or other materials
+ *     provided with the distribution.
+ *
+ *  3. Neither the name of 'Mairie de Paris' nor 'Lutece' nor the names of its
+ *     contributors may be used to endorse or promote products derived from
+ *     this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDERS OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ *
+ * License 1.0
+ */
+package fr.paris.lutece.portal.service.template;
+
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Accumulated cost of the renders of a template : the number of renders, the bytes allocated and the CPU time used by the rendering threads. The
+ * cost of a template includes the cost of the templates it includes.
+ */
+public class TemplateRenderCost
+{
+    private final String _strTemplateName;
+    private final LongAdder _lRenders = new LongAdder( );
+    private final LongAdder _lAllocatedBytes = new LongAdder( );
+    private final LongAdder _lCpuTime = new LongAdder( );
+
+    /**
+     * Constructor
+     * 
+     * @param strTemplateName
+     *            The template name
+     */
+    TemplateRenderCost( String strTemplateName )
+    {
+        _strTemplateName = strTemplateName;
+    }
+
+    /**
+     * Add the cost of a render
+     * 
+     * @param lAllocatedBytes
+     *            The bytes allocated by the render, or a negative value if unknown
+     * @param lCpuTime
+     *            The CPU time of the render in nanoseconds, or a negative value if unknown
+     */
+    void add( long lAllocatedBytes, long lCpuTime )
+    {
+        _lRenders.increment( );
+
+        if ( lAllocatedBytes > 0 )
+        {
+            _lAllocatedBytes.add( lAllocatedBytes );
+        }
+
+        if ( lCpuTime > 0 )
+        {
+            _lCpuTime.add( lCpuTime );
+        }
+    }
+
+    /**
+     * Returns the template name
+     * 
+     * @return The template name
+     */
+    public String getTemplateName( )
+    {
+        return _strTemplateName;
+    }
+
+    /**
+     * Returns the number of renders
+     * 
+     * @return The number of renders
+     */
+    public long getRenderCount( )
+    {
+        return _lRenders.sum( );
+    }
+
+    /**
+     * Returns the bytes allocated by the renders
+     * 
+     * @return The allocated bytes
+     */
+    public long getAllocatedBytes( )
+    {
+        return _lAllocatedBytes.sum( );
+    }
+
+    /**
+     * Returns the CPU time used by the renders
+     * 
+     * @return The CPU time in nanoseconds
+     */
+    public long getCpuTime( )
+    {
+        return _lCpuTime.sum( );
+    }
+
+    /**
+     * Returns the average bytes allocated by a render
+     * 
+     * @return The average allocated bytes
+     */
+    public long getAllocatedBytesPerRender( )
+    {
+        long lRenders = getRenderCount( );
+
+        return ( lRenders == 0 ) ? 0 : ( getAllocatedBytes( ) / lRenders );
+    }
+}
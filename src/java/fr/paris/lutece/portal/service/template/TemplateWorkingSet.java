@@ -0,0 +1,469 @@
+/*
+ * Copyright (c) 2002-2020, City of Paris
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ *
+ *  1. Redistributions of source code must retain the above copyright notice
+ *     and the following disclaimer.
+ *
+ *  2. Redistributions in binary form must reproduce the above copyright notice
+ *     and the following disclaimer in the documentation and/or other materials
+ *     provided with the distribution.
+ *
+ *  3. Neither the name of 'Mairie de Paris' nor 'Lutece' nor the names of its
+ *     contributors may be used to endorse or promote products derived from
+ *     this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDERS OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ *
+ * License 1.0
+ */
+package fr.paris.lutece.portal.service.template;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Locale;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.function.Predicate;
+
+/**
+ * Access frequencies of the requested templates. The frequencies are estimated by a count-min sketch of fixed size, and the most requested
+ * templates (the hot set) are kept in a bounded top-K table. Recording is lock-free: the table is only locked when the estimated frequency of a
+ * template out of the table exceeds the lowest frequency of the table. The counters are halved periodically, so the hot set follows the recent
+ * traffic. The requests may be sampled, so the rendering threads only pay for the recording of one request out of N.
+ */
+public class TemplateWorkingSet
+{
+    private static final int DEPTH = 4;
+    private static final int DEFAULT_WIDTH = 4096;
+    private static final int DEFAULT_TOP_SIZE = 256;
+    private static final int AGING_FACTOR = 10;
+    private static final long [ ] SEEDS = {
+            0x9E3779B97F4A7C15L, 0xC2B2AE3D27D4EB4FL, 0x165667B19E3779F9L, 0xD6E8FEB86659FD93L
+    };
+    private static final String SEPARATOR = "\t";
+
+    private final int _nWidthMask;
+    private final int _nTopSize;
+    private final long _lAgingThreshold;
+    private final AtomicLongArray _counters;
+    private final AtomicLong _lRecords = new AtomicLong( );
+    private final Set<TemplateKey> _setTop = ConcurrentHashMap.newKeySet( );
+    private final Object _lockTop = new Object( );
+    private final Predicate<String> _recordedNames;
+    private volatile long _lTopMin;
+    private volatile int _nSampling = 1;
+
+    /**
+     * Constructor with default sizes
+     */
+    public TemplateWorkingSet( )
+    {
+        this( DEFAULT_WIDTH, DEFAULT_TOP_SIZE );
+    }
+
+    /**
+     * Constructor with default sizes
+     * 
+     * @param recordedNames
+     *            The filter of the names of the recorded templates
+     */
+    public TemplateWorkingSet( Predicate<String> recordedNames )
+    {
+        this( DEFAULT_WIDTH, DEFAULT_TOP_SIZE, recordedNames );
+    }
+
+    /**
+     * Constructor
+     * 
+     * @param nWidth
+     *            The number of counters of each row of the sketch, rounded up to a power of two
+     * @param nTopSize
+     *            The maximum size of the hot set
+     */
+    public TemplateWorkingSet( int nWidth, int nTopSize )
+    {
+        this( nWidth, nTopSize, strName -> true );
+    }
+
+    /**
+     * Constructor
+     * 
+     * @param nWidth
+     *            The number of counters of each row of the sketch, rounded up to a power of two
+     * @param nTopSize
+     *            The maximum size of the hot set
+     * @param recordedNames
+     *            The filter of the names of the recorded templates (ie: to exclude the templates provided as strings, named by a hash of their
+     *            content), also applied to the saved and loaded hot sets
+     */
+    public TemplateWorkingSet( int nWidth, int nTopSize, Predicate<String> recordedNames )
+    {
+        int nRowWidth = Integer.highestOneBit( Math.max( nWidth, 2 ) - 1 ) << 1;
+        _nWidthMask = nRowWidth - 1;
+        _nTopSize = nTopSize;
+        _lAgingThreshold = (long) nRowWidth * AGING_FACTOR;
+        _counters = new AtomicLongArray( nRowWidth * DEPTH );
+        _recordedNames = recordedNames;
+    }
+
+    /**
+     * Set the sampling of the recorded requests: one request out of N is recorded, and counts for N requests
+     * 
+     * @param nSampling
+     *            N, 1 to record every request, or 0 to record none
+     */
+    public void setSampling( int nSampling )
+    {
+        _nSampling = Math.max( nSampling, 0 );
+    }
+
+    /**
+     * Returns the sampling of the recorded requests
+     * 
+     * @return N when one request out of N is recorded, or 0 when the recording is disabled
+     */
+    public int getSampling( )
+    {
+        return _nSampling;
+    }
+
+    /**
+     * Record a request of a template
+     * 
+     * @param key
+     *            The template
+     */
+    public void record( TemplateKey key )
+    {
+        int nSampling = _nSampling;
+
+        if ( isSampled( nSampling ) && _recordedNames.test( key.getName( ) ) )
+        {
+            record( key, nSampling );
+        }
+    }
+
+    /**
+     * Record a request of a template. The key is only created for the sampled requests.
+     * 
+     * @param strName
+     *            The name of the template
+     * @param locale
+     *            The locale of the template
+     */
+    public void record( String strName, Locale locale )
+    {
+        int nSampling = _nSampling;
+
+        if ( isSampled( nSampling ) && _recordedNames.test( strName ) )
+        {
+            record( new TemplateKey( strName, locale ), nSampling );
+        }
+    }
+
+    /**
+     * Tell whether the current request is sampled
+     * 
+     * @param nSampling
+     *            The sampling
+     * @return true if the request is recorded
+     */
+    private static boolean isSampled( int nSampling )
+    {
+        return ( nSampling == 1 ) || ( nSampling > 1 && ThreadLocalRandom.current( ).nextInt( nSampling ) == 0 );
+    }
+
+    /**
+     * Returns the estimated number of requests of a template
+     * 
+     * @param key
+     *            The template
+     * @return The estimated frequency
+     */
+    public long getEstimate( TemplateKey key )
+    {
+        int nHash = spread( key.hashCode( ) );
+        long lMin = Long.MAX_VALUE;
+
+        for ( int i = 0; i < DEPTH; i++ )
+        {
+            lMin = Math.min( lMin, _counters.get( index( nHash, i ) ) );
+        }
+
+        return lMin;
+    }
+
+    /**
+     * Returns the most requested templates, the most requested first
+     * 
+     * @param nMax
+     *            The maximum number of templates
+     * @return The hot set
+     */
+    public List<TemplateKey> getHotSet( int nMax )
+    {
+        List<TemplateKey> listHotSet = new ArrayList<>( _setTop );
+        listHotSet.sort( Comparator.comparingLong( this::getEstimate ).reversed( ) );
+
+        return ( listHotSet.size( ) > nMax ) ? new ArrayList<>( listHotSet.subList( 0, nMax ) ) : listHotSet;
+    }
+
+    /**
+     * Save the hot set with the estimated frequencies to a file
+     * 
+     * @param file
+     *            The file
+     * @throws IOException
+     *             if an error occurs
+     */
+    public void save( File file ) throws IOException
+    {
+        try ( BufferedWriter writer = Files.newBufferedWriter( file.toPath( ), StandardCharsets.UTF_8 ) )
+        {
+            for ( TemplateKey key : getHotSet( _nTopSize ) )
+            {
+                String strLocale = ( key.getLocale( ) == null ) ? "" : key.getLocale( ).toLanguageTag( );
+                writer.write( getEstimate( key ) + SEPARATOR + strLocale + SEPARATOR + key.getName( ) );
+                writer.newLine( );
+            }
+        }
+    }
+
+    /**
+     * Load a hot set saved by {@link #save(File)}, adding its frequencies to the current ones
+     * 
+     * @param file
+     *            The file
+     * @return The loaded templates, the most requested first
+     * @throws IOException
+     *             if an error occurs
+     */
+    public List<TemplateKey> load( File file ) throws IOException
+    {
+        List<TemplateKey> listTemplates = new ArrayList<>( );
+
+        try ( BufferedReader reader = Files.newBufferedReader( file.toPath( ), StandardCharsets.UTF_8 ) )
+        {
+            String strLine;
+
+            while ( ( strLine = reader.readLine( ) ) != null )
+            {
+                String [ ] fields = strLine.split( SEPARATOR, 3 );
+
+                if ( fields.length == 3 )
+                {
+                    try
+                    {
+                        Locale locale = fields [1].isEmpty( ) ? null : Locale.forLanguageTag( fields [1] );
+                        TemplateKey key = new TemplateKey( fields [2], locale );
+
+                        // the hot sets saved by the previous versions may hold excluded templates
+                        if ( _recordedNames.test( key.getName( ) ) )
+                        {
+                            record( key, Long.parseLong( fields [0] ) );
+                            listTemplates.add( key );
+                        }
+                    }
+                    catch( NumberFormatException e )
+                    {
+                        // skip a corrupted line
+                    }
+                }
+            }
+        }
+
+        return listTemplates;
+    }
+
+    /**
+     * Record requests of a template
+     * 
+     * @param key
+     *            The template
+     * @param lCount
+     *            The number of requests
+     */
+    private void record( TemplateKey key, long lCount )
+    {
+        int nHash = spread( key.hashCode( ) );
+        long lEstimate = Long.MAX_VALUE;
+
+        for ( int i = 0; i < DEPTH; i++ )
+        {
+            lEstimate = Math.min( lEstimate, _counters.addAndGet( index( nHash, i ), lCount ) );
+        }
+
+        updateTop( key, lEstimate );
+
+        if ( _lRecords.addAndGet( lCount ) >= _lAgingThreshold )
+        {
+            age( );
+        }
+    }
+
+    /**
+     * Update the hot set with the estimated frequency of a template. The templates of the hot set and the less frequent ones are skipped
+     * without locking.
+     * 
+     * @param key
+     *            The template
+     * @param lEstimate
+     *            The estimated frequency
+     */
+    private void updateTop( TemplateKey key, long lEstimate )
+    {
+        if ( lEstimate <= _lTopMin || _setTop.contains( key ) )
+        {
+            return;
+        }
+
+        synchronized( _lockTop )
+        {
+            if ( _setTop.contains( key ) )
+            {
+                return;
+            }
+
+            if ( _setTop.size( ) < _nTopSize )
+            {
+                _setTop.add( key );
+
+                if ( _setTop.size( ) == _nTopSize )
+                {
+                    _lTopMin = getTopMin( );
+                }
+
+                return;
+            }
+
+            // the frequencies of the hot set have changed since the template entered it, so they are estimated again
+            TemplateKey keyMin = null;
+            long lMin = Long.MAX_VALUE;
+
+            for ( TemplateKey keyTop : _setTop )
+            {
+                long lTopEstimate = getEstimate( keyTop );
+
+                if ( lTopEstimate < lMin )
+                {
+                    lMin = lTopEstimate;
+                    keyMin = keyTop;
+                }
+            }
+
+            if ( keyMin != null && lEstimate > lMin )
+            {
+                _setTop.remove( keyMin );
+                _setTop.add( key );
+                _lTopMin = getTopMin( );
+            }
+            else
+            {
+                _lTopMin = lMin;
+            }
+        }
+    }
+
+    /**
+     * Get the lowest estimated frequency of the hot set. Called with the hot set locked.
+     * 
+     * @return The lowest frequency
+     */
+    private long getTopMin( )
+    {
+        long lMin = Long.MAX_VALUE;
+
+        for ( TemplateKey keyTop : _setTop )
+        {
+            lMin = Math.min( lMin, getEstimate( keyTop ) );
+        }
+
+        return ( lMin == Long.MAX_VALUE ) ? 0 : lMin;
+    }
+
+    /**
+     * Halve all the frequencies, so the old requests weigh less than the recent ones
+     */
+    private void age( )
+    {
+        long lRecords = _lRecords.get( );
+
+        // only one of the threads reaching the threshold ages the counters
+        if ( lRecords < _lAgingThreshold || !_lRecords.compareAndSet( lRecords, lRecords / 2 ) )
+        {
+            return;
+        }
+
+        for ( int i = 0; i < _counters.length( ); i++ )
+        {
+            long lValue;
+
+            do
+            {
+                lValue = _counters.get( i );
+            }
+            while ( !_counters.compareAndSet( i, lValue, lValue >>> 1 ) );
+        }
+
+        synchronized( _lockTop )
+        {
+            _lTopMin = _lTopMin >>> 1;
+        }
+    }
+
+    /**
+     * Get the index of the counter of a hash in a row
+     * 
+     * @param nHash
+     *            The spread hash
+     * @param nRow
+     *            The row
+     * @return The index of the counter
+     */
+    private int index( int nHash, int nRow )
+    {
+        long lHash = ( nHash + SEEDS [nRow] ) * SEEDS [nRow];
+        lHash += lHash >>> 32;
+
+        return ( nRow * ( _nWidthMask + 1 ) ) + ( (int) lHash & _nWidthMask );
+    }
+
+    /**
+     * Spread the bits of a hash code
+     * 
+     * @param nHashCode
+     *            The hash code
+     * @return The spread hash
+     */
+    private static int spread( int nHashCode )
+    {
+        int nHash = nHashCode * 0x9E3779B9;
+
+        return nHash ^ ( nHash >>> 16 );
+    }
+}
@@ -0,0 +1,589 @@
+/*
+ * Copyright (c) 2002-2020, City of Paris
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ *
+ *  1. Redistributions of source code must retain the above copyright notice
+ *     and the following disclaimer.
+ *
+ *  2. Redistributions in binary form must reproduce the above copyright notice
+ *     and the following disclaimer in the documentation and/or other materials
+ *     provided with the distribution.
+ *
+ *  3. Neither the name of 'Mairie de Paris' nor 'Lutece' nor the names of its
+ *     contributors may be used to endorse or promote products derived from
+ *     this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDERS OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ *
+ * License 1.0
+ */
+package fr.paris.lutece.portal.service.template;
+
+import java.lang.ref.ReferenceQueue;
+import java.lang.ref.SoftReference;
+import java.lang.reflect.Field;
+import java.util.ArrayDeque;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.ToLongFunction;
+
+import freemarker.cache.CacheStorageWithGetSize;
+import freemarker.cache.ConcurrentCacheStorage;
+import freemarker.core.TemplateElement;
+import freemarker.template.Template;
+
+/**
+ * Template cache storage with a hot tier of strongly referenced templates, bounded by a memory budget, and a cold tier of softly referenced
+ * templates. The size of a template is estimated from its parsed tree, once, and kept as a custom attribute of the template. When the hot tier
+ * exceeds the budget, the least frequently used templates are moved to the cold tier, where the garbage collector may reclaim them : a clock hand
+ * sweeps the hot templates in their order of insertion, demoting the first one whose use frequency is zero and decrementing the frequency of the
+ * others, so an eviction only visits a few templates. A cold template used again is moved back to the hot tier if it is used more often than the
+ * template under the clock hand. The lookups don't lock : only the moves between the tiers, done when a template is loaded or checked for update
+ * or when a cold template is promoted, are serialized.
+ */
+public class TieredCacheStorage implements CacheStorageWithGetSize, ConcurrentCacheStorage
+{
+    /** Default memory budget of the hot tier, in bytes */
+    public static final long DEFAULT_MEMORY_BUDGET = 64L * 1024L * 1024L;
+
+    private static final String ATTRIBUTE_WEIGHT = "lutece.weight";
+    private static final int ENTRY_OVERHEAD = 1024;
+    private static final int BYTES_PER_NODE = 256;
+    private static final int BYTES_PER_TEXT_CHAR = 4;
+    private static final long DEFAULT_WEIGHT = 64L * 1024L;
+    private static final int MAX_FREQUENCY = 15;
+    private static final int MIN_AGING_PERIOD = 64;
+    private static final int MIN_COMPACTED_CLOCK_SIZE = 64;
+    private static final Field FIELD_CACHED_TEMPLATE = getCachedTemplateField( );
+
+    private final Map<Object, Entry> _mapEntries = new ConcurrentHashMap<>( );
+    private final ReferenceQueue<Object> _queue = new ReferenceQueue<>( );
+    private final ReentrantLock _lock = new ReentrantLock( );
+    private final ArrayDeque<Entry> _clock = new ArrayDeque<>( );
+    private final long _lMemoryBudget;
+    private final ToLongFunction<Object> _weigher;
+    private long _lHotWeight;
+    private int _nHotSize;
+    private int _nPuts;
+    private volatile int _nPromotionFrequency;
+
+    /**
+     * Constructor
+     * 
+     * @param lMemoryBudget
+     *            The estimated size in bytes of the templates held in the hot tier
+     */
+    public TieredCacheStorage( long lMemoryBudget )
+    {
+        this( lMemoryBudget, TieredCacheStorage::weighCachedTemplate );
+    }
+
+    /**
+     * Constructor
+     * 
+     * @param lMemoryBudget
+     *            The estimated size in bytes of the templates held in the hot tier
+     * @param weigher
+     *            The estimation of the size in bytes of a cached value
+     */
+    TieredCacheStorage( long lMemoryBudget, ToLongFunction<Object> weigher )
+    {
+        _lMemoryBudget = lMemoryBudget;
+        _weigher = weigher;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public Object get( Object key )
+    {
+        Entry entry = _mapEntries.get( key );
+
+        if ( entry == null )
+        {
+            return null;
+        }
+
+        entry.touch( );
+
+        Object value = entry._hotValue;
+
+        if ( value != null )
+        {
+            return value;
+        }
+
+        value = entry.get( );
+
+        if ( value == null )
+        {
+            // reclaimed by the garbage collector
+            _mapEntries.remove( key, entry );
+
+            return null;
+        }
+
+        // the template is promoted if it is used more often than the coldest hot template, by the next thread that finds the tiers unlocked
+        if ( entry._frequency.get( ) > _nPromotionFrequency && _lock.tryLock( ) )
+        {
+            try
+            {
+                if ( _mapEntries.get( key ) == entry && entry._hotValue == null )
+                {
+                    setHot( entry, value );
+                    rebalance( );
+                }
+            }
+            finally
+            {
+                _lock.unlock( );
+            }
+        }
+
+        return value;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void put( Object key, Object value )
+    {
+        // a template checked for update keeps the size stored in its attribute
+        long lWeight = _weigher.applyAsLong( value );
+
+        _lock.lock( );
+
+        try
+        {
+            expungeStaleEntries( );
+
+            Entry previous = _mapEntries.get( key );
+            Entry entry = new Entry( key, value, lWeight, ( previous != null ) ? previous._frequency.get( ) : 1, _queue );
+
+            if ( previous != null )
+            {
+                setCold( previous );
+            }
+
+            _mapEntries.put( key, entry );
+            setHot( entry, value );
+
+            if ( ++_nPuts >= Math.max( MIN_AGING_PERIOD, _mapEntries.size( ) ) )
+            {
+                age( );
+            }
+
+            rebalance( );
+        }
+        finally
+        {
+            _lock.unlock( );
+        }
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void remove( Object key )
+    {
+        _lock.lock( );
+
+        try
+        {
+            Entry entry = _mapEntries.remove( key );
+
+            if ( entry != null )
+            {
+                setCold( entry );
+            }
+        }
+        finally
+        {
+            _lock.unlock( );
+        }
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void clear( )
+    {
+        _lock.lock( );
+
+        try
+        {
+            _mapEntries.clear( );
+            _clock.clear( );
+            _lHotWeight = 0;
+            _nHotSize = 0;
+            _nPromotionFrequency = 0;
+
+            while ( _queue.poll( ) != null )
+            {
+                // discard the references of the removed entries
+            }
+        }
+        finally
+        {
+            _lock.unlock( );
+        }
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public boolean isConcurrent( )
+    {
+        return true;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public int getSize( )
+    {
+        expungeStaleEntries( );
+
+        return _mapEntries.size( );
+    }
+
+    /**
+     * Returns the number of templates in the hot tier
+     * 
+     * @return The number of templates held strongly
+     */
+    public int getHotSize( )
+    {
+        _lock.lock( );
+
+        try
+        {
+            return _nHotSize;
+        }
+        finally
+        {
+            _lock.unlock( );
+        }
+    }
+
+    /**
+     * Returns the estimated size of the templates in the hot tier
+     * 
+     * @return The estimated size in bytes
+     */
+    public long getHotWeight( )
+    {
+        _lock.lock( );
+
+        try
+        {
+            return _lHotWeight;
+        }
+        finally
+        {
+            _lock.unlock( );
+        }
+    }
+
+    /**
+     * Returns the memory budget of the hot tier
+     * 
+     * @return The estimated size in bytes of the templates held in the hot tier
+     */
+    public long getMemoryBudget( )
+    {
+        return _lMemoryBudget;
+    }
+
+    /**
+     * Checks if a template is in the hot tier
+     * 
+     * @param key
+     *            The key of the template
+     * @return true if the template is held strongly
+     */
+    boolean isHot( Object key )
+    {
+        Entry entry = _mapEntries.get( key );
+
+        return entry != null && entry._hotValue != null;
+    }
+
+    /**
+     * Move an entry to the hot tier. Must be called with the lock held.
+     * 
+     * @param entry
+     *            The entry
+     * @param value
+     *            The value of the entry
+     */
+    private void setHot( Entry entry, Object value )
+    {
+        entry._hotValue = value;
+        _lHotWeight += entry._lWeight;
+        _nHotSize++;
+        _clock.addLast( entry );
+
+        // the entries replaced or removed while hot are left behind the clock hand
+        if ( _clock.size( ) > Math.max( MIN_COMPACTED_CLOCK_SIZE, 2 * _nHotSize ) )
+        {
+            _clock.removeIf( hot -> hot._hotValue == null );
+        }
+    }
+
+    /**
+     * Move an entry to the cold tier. Must be called with the lock held.
+     * 
+     * @param entry
+     *            The entry
+     */
+    private void setCold( Entry entry )
+    {
+        if ( entry._hotValue != null )
+        {
+            entry._hotValue = null;
+            _lHotWeight -= entry._lWeight;
+            _nHotSize--;
+        }
+    }
+
+    /**
+     * Move the least frequently used templates to the cold tier until the hot tier fits in the budget, and record the frequency a cold template must
+     * exceed to be promoted. Must be called with the lock held.
+     */
+    private void rebalance( )
+    {
+        if ( _lHotWeight <= _lMemoryBudget )
+        {
+            // while the budget is not reached, any cold template used again is promoted
+            _nPromotionFrequency = 0;
+
+            return;
+        }
+
+        while ( _lHotWeight > _lMemoryBudget && !_clock.isEmpty( ) )
+        {
+            Entry entry = _clock.pollFirst( );
+
+            if ( entry._hotValue == null )
+            {
+                // replaced or removed
+                continue;
+            }
+
+            int nFrequency = entry._frequency.get( );
+
+            if ( nFrequency == 0 )
+            {
+                setCold( entry );
+            }
+            else
+            {
+                // second chance, until the frequency of the template is used up by the sweeps
+                entry._frequency.compareAndSet( nFrequency, nFrequency - 1 );
+                _clock.addLast( entry );
+            }
+        }
+
+        Entry hand = _clock.peekFirst( );
+        _nPromotionFrequency = ( hand != null ) ? hand._frequency.get( ) : 0;
+    }
+
+    /**
+     * Halve the use frequencies so that the templates no longer used lose their rank. Must be called with the lock held.
+     */
+    private void age( )
+    {
+        _nPuts = 0;
+        _nPromotionFrequency = _nPromotionFrequency >> 1;
+
+        for ( Entry entry : _mapEntries.values( ) )
+        {
+            entry._frequency.set( entry._frequency.get( ) >> 1 );
+        }
+    }
+
+    /**
+     * Remove the entries whose template has been reclaimed by the garbage collector
+     */
+    private void expungeStaleEntries( )
+    {
+        Object ref;
+
+        while ( ( ref = _queue.poll( ) ) != null )
+        {
+            Entry entry = (Entry) ref;
+            _mapEntries.remove( entry._key, entry );
+        }
+    }
+
+    /**
+     * Estimate the size of a value of the template cache from its template
+     * 
+     * @param value
+     *            The cached value, holding the template or the exception of a failed load
+     * @return The estimated size in bytes
+     */
+    private static long weighCachedTemplate( Object value )
+    {
+        if ( FIELD_CACHED_TEMPLATE == null )
+        {
+            return DEFAULT_WEIGHT;
+        }
+
+        Object template;
+
+        try
+        {
+            template = FIELD_CACHED_TEMPLATE.get( value );
+        }
+        catch( IllegalAccessException | RuntimeException e )
+        {
+            return DEFAULT_WEIGHT;
+        }
+
+        return ( template instanceof Template ) ? weighTemplate( (Template) template ) : ENTRY_OVERHEAD;
+    }
+
+    /**
+     * Estimate the size of a template from its parsed tree, once
+     * 
+     * @param template
+     *            The template
+     * @return The estimated size in bytes
+     */
+    @SuppressWarnings( "deprecation" )
+    static long weighTemplate( Template template )
+    {
+        Object weight = template.getCustomAttribute( ATTRIBUTE_WEIGHT );
+
+        if ( weight instanceof Long )
+        {
+            return (Long) weight;
+        }
+
+        long lWeight = ENTRY_OVERHEAD + weighElement( template.getRootTreeNode( ) );
+        template.setCustomAttribute( ATTRIBUTE_WEIGHT, lWeight );
+
+        return lWeight;
+    }
+
+    /**
+     * Estimate the size of an element of a template and its children
+     * 
+     * @param element
+     *            The element
+     * @return The estimated size in bytes
+     */
+    @SuppressWarnings( "deprecation" )
+    private static long weighElement( TemplateElement element )
+    {
+        if ( element == null )
+        {
+            return 0;
+        }
+
+        // the static text is held by the text blocks and by the lines of the source kept for the error messages
+        long lWeight = BYTES_PER_NODE;
+
+        if ( element.getChildCount( ) == 0 && "TextBlock".equals( element.getNodeName( ) ) )
+        {
+            lWeight += (long) element.getCanonicalForm( ).length( ) * BYTES_PER_TEXT_CHAR;
+        }
+
+        for ( int i = 0; i < element.getChildCount( ); i++ )
+        {
+            lWeight += weighElement( (TemplateElement) element.getChildAt( i ) );
+        }
+
+        return lWeight;
+    }
+
+    /**
+     * Get the field holding the template in the values of the template cache, which FreeMarker does not expose
+     * 
+     * @return The field, or null if it is not accessible (then each template is given the same default size)
+     */
+    private static Field getCachedTemplateField( )
+    {
+        try
+        {
+            Field field = Class.forName( "freemarker.cache.TemplateCache$CachedTemplate" ).getDeclaredField( "templateOrException" );
+            field.setAccessible( true );
+
+            return field;
+        }
+        catch( ReflectiveOperationException | RuntimeException e )
+        {
+            return null;
+        }
+    }
+
+    /**
+     * Cache entry, referencing softly its template and strongly while it is in the hot tier
+     */
+    private static final class Entry extends SoftReference<Object>
+    {
+        private final Object _key;
+        private final long _lWeight;
+        private final AtomicInteger _frequency;
+        private volatile Object _hotValue;
+
+        /**
+         * Constructor
+         * 
+         * @param key
+         *            The key
+         * @param value
+         *            The value
+         * @param lWeight
+         *            The estimated size of the value
+         * @param nFrequency
+         *            The initial use frequency
+         * @param queue
+         *            The queue of the reclaimed references
+         */
+        Entry( Object key, Object value, long lWeight, int nFrequency, ReferenceQueue<Object> queue )
+        {
+            super( value, queue );
+            _key = key;
+            _lWeight = lWeight;
+            _frequency = new AtomicInteger( nFrequency );
+        }
+
+        /**
+         * Record a use of the entry. The frequency is saturated so that the most used templates don't write to memory on each lookup.
+         */
+        void touch( )
+        {
+            int nFrequency = _frequency.get( );
+
+            if ( nFrequency < MAX_FREQUENCY )
+            {
+                _frequency.compareAndSet( nFrequency, nFrequency + 1 );
+            }
+        }
+    }
+}
@@ -41,21 +41,39 @@ import java.io.FileReader;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.Writer;
+
+import java.nio.charset.StandardCharsets;
 
 import java.text.FieldPosition;
 import java.text.SimpleDateFormat;
 
+import java.util.ArrayList;
+import java.util.List;
 import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.BiFunction;
 
 /**
  * This class represents an HTML template that may include bookmarks that can be
  * substitute by values.
+ * The content may also be held in a compact form (UTF-8 bytes or a list of fragments)
+ * that is written as is by the writeTo methods and only converted to a String if getHtml is called.
+ * The String is computed once and published without releasing the compact form, so a template
+ * shared between threads can be read concurrently.
+ * The encoded (compressed) forms of the content may be computed on demand, when they are first requested.
  *
  * @version 1.2.5
  */
 public class HtmlTemplate
 {
-    private String _strTemplate;
+    private volatile String _strTemplate;
+    private byte [ ] _content;
+    private List<HtmlTemplate> _listFragments;
+    private volatile Map<String, byte [ ]> _mapEncodedContents;
+    private BiFunction<HtmlTemplate, String, byte [ ]> _contentEncoder;
 
     /**
      * Constructor 1
@@ -77,11 +95,60 @@ public class HtmlTemplate
     /**
      * Constructor 3
      *
-     * @param template Copy constructor based on another template.
+     * @param template Copy constructor based on another template. The fragments are copied, so substituting in the copy or in its fragments
+     * does not change the original.
      */
     public HtmlTemplate( HtmlTemplate template )
     {
-        _strTemplate = template.getHtml( );
+        _strTemplate = template._strTemplate;
+        _content = template._content;
+
+        if ( template._listFragments != null )
+        {
+            _listFragments = new ArrayList<>( template._listFragments.size( ) );
+
+            for ( HtmlTemplate fragment : template._listFragments )
+            {
+                _listFragments.add( new HtmlTemplate( fragment ) );
+            }
+        }
+
+        Map<String, byte [ ]> mapEncodedContents = template._mapEncodedContents;
+
+        if ( mapEncodedContents != null )
+        {
+            _mapEncodedContents = new ConcurrentHashMap<>( mapEncodedContents );
+        }
+
+        _contentEncoder = template._contentEncoder;
+    }
+
+    /**
+     * Create a template holding UTF-8 encoded content
+     *
+     * @param content The content encoded in UTF-8
+     * @return The template
+     */
+    public static HtmlTemplate fromUtf8Bytes( byte [ ] content )
+    {
+        HtmlTemplate template = new HtmlTemplate( );
+        template._content = content;
+
+        return template;
+    }
+
+    /**
+     * Create a template made of the concatenation of other templates. The fragments are referenced, not copied.
+     *
+     * @param listFragments The fragments
+     * @return The template
+     */
+    public static HtmlTemplate fromFragments( List<HtmlTemplate> listFragments )
+    {
+        HtmlTemplate template = new HtmlTemplate( );
+        template._listFragments = new ArrayList<>( listFragments );
+
+        return template;
     }
 
     /**
@@ -102,7 +169,8 @@ public class HtmlTemplate
             {
                 sbContent.append( strLine ).append( "\r\n" );
             }
-            _strTemplate = sbContent.toString( );
+            _mapEncodedContents = null;
+            setHtml( sbContent.toString( ) );
         }
     }
 
@@ -123,7 +191,8 @@ public class HtmlTemplate
             {
                 sbContent.append( strLine ).append( "\r\n" );
             }
-            _strTemplate = sbContent.toString( );
+            _mapEncodedContents = null;
+            setHtml( sbContent.toString( ) );
 
         }
     }
@@ -135,7 +204,172 @@ public class HtmlTemplate
      */
     public String getHtml( )
     {
-        return _strTemplate;
+        String strTemplate = _strTemplate;
+
+        if ( strTemplate == null && ( _content != null || _listFragments != null ) )
+        {
+            // the compact form is kept, so a thread reading it meanwhile still finds the content
+            StringBuilder sbContent = new StringBuilder( );
+            appendTo( sbContent );
+            strTemplate = sbContent.toString( );
+            _strTemplate = strTemplate;
+        }
+
+        return strTemplate;
+    }
+
+    /**
+     * Write the template to a writer without converting the fragments to a single String
+     *
+     * @param writer The writer
+     * @throws IOException If an error occured
+     */
+    public void writeTo( Writer writer ) throws IOException
+    {
+        String strTemplate = _strTemplate;
+
+        if ( strTemplate != null )
+        {
+            writer.write( strTemplate );
+        }
+        else if ( _content != null )
+        {
+            writer.write( new String( _content, StandardCharsets.UTF_8 ) );
+        }
+        else if ( _listFragments != null )
+        {
+            for ( HtmlTemplate fragment : _listFragments )
+            {
+                fragment.writeTo( writer );
+            }
+        }
+    }
+
+    /**
+     * Write the template encoded in UTF-8 to an output stream. UTF-8 content is copied without any conversion.
+     *
+     * @param out The output stream
+     * @throws IOException If an error occured
+     */
+    public void writeTo( OutputStream out ) throws IOException
+    {
+        String strTemplate = _strTemplate;
+
+        if ( _content != null )
+        {
+            // the UTF-8 content is kept once the String has been computed
+            out.write( _content );
+        }
+        else if ( strTemplate != null )
+        {
+            out.write( strTemplate.getBytes( StandardCharsets.UTF_8 ) );
+        }
+        else if ( _listFragments != null )
+        {
+            for ( HtmlTemplate fragment : _listFragments )
+            {
+                fragment.writeTo( out );
+            }
+        }
+    }
+
+    /**
+     * Returns the content encoded (compressed) with a given content encoding, computing it on the first call if a content encoder is set
+     *
+     * @param strContentEncoding The content encoding (ie: gzip)
+     * @return The encoded content or null if not available
+     */
+    public byte [ ] getEncodedContent( String strContentEncoding )
+    {
+        Map<String, byte [ ]> mapEncodedContents = _mapEncodedContents;
+        byte [ ] content = ( mapEncodedContents != null ) ? mapEncodedContents.get( strContentEncoding ) : null;
+
+        if ( content == null && _contentEncoder != null )
+        {
+            content = _contentEncoder.apply( this, strContentEncoding );
+
+            if ( content != null )
+            {
+                setEncodedContent( strContentEncoding, content );
+            }
+        }
+
+        return content;
+    }
+
+    /**
+     * Set the encoder computing the encoded (compressed) contents when they are requested
+     *
+     * @param contentEncoder The encoder, given the template and the content encoding, returning null if the encoding is not supported
+     */
+    public void setContentEncoder( BiFunction<HtmlTemplate, String, byte [ ]> contentEncoder )
+    {
+        _contentEncoder = contentEncoder;
+    }
+
+    /**
+     * Set the content encoded (compressed) with a given content encoding
+     *
+     * @param strContentEncoding The content encoding (ie: gzip)
+     * @param content The encoded content
+     */
+    public void setEncodedContent( String strContentEncoding, byte [ ] content )
+    {
+        Map<String, byte [ ]> mapEncodedContents = _mapEncodedContents;
+
+        if ( mapEncodedContents == null )
+        {
+            synchronized( this )
+            {
+                mapEncodedContents = _mapEncodedContents;
+
+                if ( mapEncodedContents == null )
+                {
+                    mapEncodedContents = new ConcurrentHashMap<>( );
+                    _mapEncodedContents = mapEncodedContents;
+                }
+            }
+        }
+
+        mapEncodedContents.put( strContentEncoding, content );
+    }
+
+    /**
+     * Append the content of the template and its fragments to a builder
+     *
+     * @param sbContent The builder
+     */
+    private void appendTo( StringBuilder sbContent )
+    {
+        String strTemplate = _strTemplate;
+
+        if ( strTemplate != null )
+        {
+            sbContent.append( strTemplate );
+        }
+        else if ( _content != null )
+        {
+            sbContent.append( new String( _content, StandardCharsets.UTF_8 ) );
+        }
+        else if ( _listFragments != null )
+        {
+            for ( HtmlTemplate fragment : _listFragments )
+            {
+                fragment.appendTo( sbContent );
+            }
+        }
+    }
+
+    /**
+     * Set the content as a String, replacing the compact form
+     *
+     * @param strTemplate The template as a string
+     */
+    private void setHtml( String strTemplate )
+    {
+        _content = null;
+        _listFragments = null;
+        _strTemplate = strTemplate;
     }
 
     /**
@@ -146,7 +380,8 @@ public class HtmlTemplate
      */
     public void substitute( String strBookmark, String strValue )
     {
-        _strTemplate = substitute( _strTemplate, strValue, strBookmark );
+        _mapEncodedContents = null;
+        setHtml( substitute( getHtml( ), strValue, strBookmark ) );
     }
 
     /**
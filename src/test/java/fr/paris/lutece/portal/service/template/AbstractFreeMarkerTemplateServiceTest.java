@@ -36,13 +36,46 @@
 package fr.paris.lutece.portal.service.template;
 
 import fr.paris.lutece.util.html.HtmlTemplate;
+import fr.paris.lutece.util.html.exception.LuteceFreemarkerException;
+import fr.paris.lutece.util.html.exception.TemplateRenderLimitException;
+import freemarker.cache.StringTemplateLoader;
+import freemarker.template.Configuration;
+import freemarker.template.DefaultObjectWrapperBuilder;
+import freemarker.template.Template;
+import freemarker.template.TemplateModelException;
+import freemarker.template.utility.StringUtil;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
 import java.io.File;
 import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Calendar;
+import java.util.Date;
 import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
 import java.util.List;
 import java.util.Locale;
 import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.zip.GZIPInputStream;
+import jdk.jfr.Recording;
+import jdk.jfr.consumer.RecordedEvent;
+import jdk.jfr.consumer.RecordingFile;
 import org.apache.commons.io.FileUtils;
+import org.h2.jdbcx.JdbcDataSource;
+import org.apache.commons.io.IOUtils;
 import org.junit.Test;
 import static org.junit.Assert.*;
 
@@ -62,6 +95,8 @@ public class AbstractFreeMarkerTemplateServiceTest
     private static final String EXPECTED_2 = "expected2.html";
     private static final String EXPECTED_3 = "expected3.html";
     private static final String EXPECTED_4 = "expected4.html";
+    private static final String FILE_TEMPLATE_MINIFY = "template_minify.html";
+    private static final String EXPECTED_MINIFY = "expected_minify.html";
     
     private static final String MARK_VALUE = "value";
     private static final String VALUE_TEST = "test";
@@ -131,6 +166,1374 @@ public class AbstractFreeMarkerTemplateServiceTest
         assertEquals( strExpected, result.getHtml() );
     }
 
+    /**
+     * Test of writeTemplate method, of class AbstractFreeMarkerTemplateService.
+     * @throws java.io.IOException
+     */
+    @Test
+    public void testWriteTemplate() throws IOException
+    {
+        System.out.println( "writeTemplate" );
+        AbstractFreeMarkerTemplateService instance = getInstance( true );
+        Map<String, Object> model = new HashMap<>();
+        model.put( MARK_VALUE , VALUE_TEST );
+        String strExpected = FileUtils.readFileToString( new File(PATH_TEMPLATES + EXPECTED_2 ));
+
+        // the second render uses the cached encoded static text
+        for ( int i = 0; i < 2; i++ )
+        {
+            ByteArrayOutputStream out = new ByteArrayOutputStream( );
+            instance.writeTemplate( PATH_TEMPLATES, FILE_TEMPLATE_2, Locale.US, model, out );
+            assertEquals( strExpected, new String( out.toByteArray( ), StandardCharsets.UTF_8 ) );
+        }
+    }
+
+    /**
+     * Test of addContentEncoder method, of class AbstractFreeMarkerTemplateService.
+     * @throws java.io.IOException
+     */
+    @Test
+    public void testAddContentEncoder() throws IOException
+    {
+        System.out.println( "addContentEncoder" );
+        AbstractFreeMarkerTemplateService instance = getInstance( true );
+        instance.addContentEncoder( new GzipContentEncoder( ) );
+        Map<String, Object> model = new HashMap<>();
+        model.put( MARK_VALUE , VALUE_TEST );
+        StringBuilder sbTemplate = new StringBuilder( );
+        for ( int i = 0; i < 100; i++ )
+        {
+            sbTemplate.append( "<p>${value}</p>\n" );
+        }
+
+        HtmlTemplate result = instance.loadTemplateFromStringFtl( sbTemplate.toString( ), Locale.US, model );
+
+        // the output is only compressed when a compressed form is requested
+        assertEquals( 0, instance.getOutputCompressionStage( ).getMisses( ) );
+        assertNull( result.getEncodedContent( "br" ) );
+        byte[] gzip = result.getEncodedContent( "gzip" );
+        assertNotNull( gzip );
+        String strDecoded = IOUtils.toString( new GZIPInputStream( new ByteArrayInputStream( gzip ) ), StandardCharsets.UTF_8 );
+        assertEquals( result.getHtml( ), strDecoded );
+        assertSame( gzip, result.getEncodedContent( "gzip" ) );
+        assertEquals( gzip.length, instance.getOutputCompressionStage( ).getCachedBytes( ) );
+
+        result = instance.loadTemplateFromStringFtl( sbTemplate.toString( ), Locale.US, model );
+        assertArrayEquals( gzip, result.getEncodedContent( "gzip" ) );
+        assertEquals( 1, instance.getOutputCompressionStage( ).getMisses( ) );
+        assertEquals( 1, instance.getOutputCompressionStage( ).getHits( ) );
+
+        // the cache is bounded by the size of the compressed contents
+        OutputCompressionStage stage = new OutputCompressionStage( gzip.length );
+        stage.addEncoder( new GzipContentEncoder( ) );
+        stage.encode( result, "gzip" );
+        stage.encode( new HtmlTemplate( result.getHtml( ) + "<p>other</p>" ), "gzip" );
+        assertTrue( stage.getCachedBytes( ) <= gzip.length );
+        stage.clear( );
+        assertEquals( 0, stage.getCachedBytes( ) );
+    }
+
+    /**
+     * Test of setMinifyTemplates method, of class AbstractFreeMarkerTemplateService.
+     * @throws java.io.IOException
+     */
+    @Test
+    public void testMinifyTemplates() throws IOException
+    {
+        System.out.println( "setMinifyTemplates" );
+        AbstractFreeMarkerTemplateService instance = new AbstractFreeMarkerTemplateServiceImpl();
+        instance.init( PATH_TEMPLATES, true );
+        instance.setMinifyTemplates( true );
+        Map<String, Object> model = new HashMap<>();
+        model.put( MARK_VALUE , VALUE_TEST );
+        HtmlTemplate result = instance.loadTemplate( PATH_TEMPLATES, FILE_TEMPLATE_MINIFY, Locale.US, model );
+        String strExpected = FileUtils.readFileToString( new File( PATH_TEMPLATES + EXPECTED_MINIFY ));
+        assertEquals( strExpected, result.getHtml() );
+    }
+
+    /**
+     * Test of registerModelClass method, of class AbstractFreeMarkerTemplateService.
+     */
+    @Test
+    public void testRegisterModelClass()
+    {
+        System.out.println( "registerModelClass" );
+        AbstractFreeMarkerTemplateService instance = getInstance( true );
+        instance.registerModelClass( TestBean.class );
+        Map<String, Object> model = new HashMap<>();
+        model.put( "bean" , new TestBean( ) );
+        String strTemplate = "${bean.name} ${bean.getName()} ${bean.hello(\"world\")}";
+
+        HtmlTemplate result = instance.loadTemplateFromStringFtl( strTemplate , Locale.US, model );
+        assertEquals( "test test hello world", result.getHtml( ) );
+        result = instance.loadTemplateFromStringFtl( strTemplate , Locale.US, model );
+        assertEquals( "test test hello world", result.getHtml( ) );
+
+        // the methods are read through the reflection
+        assertEquals( 2, instance.getModelAccessorReadCount( ) );
+        assertEquals( 4, instance.getModelReflectiveReadCount( ) );
+    }
+
+    /**
+     * Test of lazy and streamed model values.
+     */
+    @Test
+    public void testLazyModelValues()
+    {
+        System.out.println( "lazyModelValues" );
+        AtomicInteger nComputed = new AtomicInteger( );
+        String strTemplate = "<#if show>${lazy}</#if><#list items as item>${item}<#else>empty</#list>";
+
+        for ( boolean bAcceptIncompatibleImprovements : new boolean[] { false, true } )
+        {
+            AbstractFreeMarkerTemplateService instance = getInstance( bAcceptIncompatibleImprovements );
+
+            Map<String, Object> model = new HashMap<>();
+            model.put( "show" , Boolean.FALSE );
+            model.put( "lazy" , LazyValue.of( ( ) -> VALUE_TEST + nComputed.incrementAndGet( ) ) );
+            model.put( "items" , StreamedSequence.ofStream( ( ) -> Arrays.asList( "a", "b", "c" ).stream( ) ) );
+            HtmlTemplate result = instance.loadTemplateFromStringFtl( strTemplate , Locale.US, model );
+            assertEquals( "abc", result.getHtml( ) );
+            assertEquals( 0, nComputed.get( ) );
+
+            model.put( "show" , Boolean.TRUE );
+            model.put( "items" , StreamedSequence.of( Arrays.asList( "d" ).iterator( ) ) );
+            result = instance.loadTemplateFromStringFtl( strTemplate + "${lazy}", Locale.US, model );
+            assertEquals( "test1d" + "test1", result.getHtml( ) );
+            assertEquals( 1, nComputed.get( ) );
+            nComputed.set( 0 );
+        }
+    }
+
+    /**
+     * Test of the closing of the streamed model values.
+     */
+    @Test
+    public void testStreamedSequenceClosed()
+    {
+        System.out.println( "streamedSequenceClosed" );
+        AbstractFreeMarkerTemplateService instance = getInstance( true );
+        AtomicInteger nClosed = new AtomicInteger( );
+        Map<String, Object> model = new HashMap<>();
+
+        // listed to the end
+        model.put( "items" , StreamedSequence.ofStream( ( ) -> Arrays.asList( "a", "b" ).stream( ).onClose( nClosed::incrementAndGet ) ) );
+        assertEquals( "ab", instance.loadTemplateFromStringFtl( "<#list items as item>${item}</#list>", Locale.US, model ).getHtml( ) );
+        assertEquals( 1, nClosed.get( ) );
+
+        // left by a break
+        model.put( "items" , StreamedSequence.ofStream( ( ) -> Arrays.asList( "a", "b" ).stream( ).onClose( nClosed::incrementAndGet ) ) );
+        assertEquals( "a", instance.loadTemplateFromStringFtl( "<#list items as item>${item}<#break></#list>", Locale.US, model ).getHtml( ) );
+        assertEquals( 2, nClosed.get( ) );
+
+        // stopped by an error
+        model.put( "items" , StreamedSequence.ofStream( ( ) -> Arrays.asList( "a", "b" ).stream( ).onClose( nClosed::incrementAndGet ) ) );
+        try
+        {
+            instance.loadTemplateFromStringFtl( "<#list items as item>${item}${missing}</#list>", Locale.US, model );
+            fail( "The missing value should stop the render" );
+        }
+        catch( LuteceFreemarkerException e )
+        {
+            assertEquals( 3, nClosed.get( ) );
+        }
+    }
+
+    /**
+     * Test of setAutoImportSnapshot method, of class AbstractFreeMarkerTemplateService.
+     */
+    @Test
+    public void testAutoImportSnapshot() throws IOException
+    {
+        System.out.println( "setAutoImportSnapshot" );
+        AbstractFreeMarkerTemplateService instance = new AbstractFreeMarkerTemplateServiceImpl();
+        instance.init( PATH_TEMPLATES, true );
+        instance.addPluginAutoImport( "lib", FILE_AUTO_INCLUDE );
+
+        for ( int i = 0; i < 3; i++ )
+        {
+            File fileLibrary = new File( PATH_TEMPLATES + "snapshot_lib" + i + ".html" );
+            fileLibrary.deleteOnExit( );
+            FileUtils.writeStringToFile( fileLibrary, "<#macro m>lib" + i + "</#macro>\n", StandardCharsets.UTF_8 );
+            instance.addPluginAutoImport( "lib" + i, fileLibrary.getName( ) );
+        }
+
+        instance.setAutoImportSnapshot( true );
+
+        // only the namespace used by the render is initialized
+        for ( int i = 0; i < 2; i++ )
+        {
+            HtmlTemplate result = instance.loadTemplateFromStringFtl( "<@lib.macro />", Locale.US, null );
+            assertEquals( "macro output", result.getHtml( ) );
+            assertEquals( 4, instance.getAutoImportSnapshot( ).getMacroLibraries( ).size( ) );
+            assertEquals( i + 1, instance.getAutoImportSnapshot( ).getImportCount( ) );
+        }
+
+        instance.resetCache( );
+        HtmlTemplate result = instance.loadTemplateFromStringFtl( "[<@lib.macro /><@lib2.m />]", Locale.US, null );
+        assertEquals( "[macro outputlib2]", result.getHtml( ) );
+        assertEquals( 2, instance.getAutoImportSnapshot( ).getImportCount( ) );
+
+        // the snapshot is only renewed when an auto-imported library is invalidated
+        AutoImportSnapshot snapshot = instance.getAutoImportSnapshot( );
+        instance.invalidateTemplate( FILE_TEMPLATE_1 );
+        instance.loadTemplateFromStringFtl( "<@lib.macro />", Locale.US, null );
+        assertSame( snapshot, instance.getAutoImportSnapshot( ) );
+        instance.invalidateTemplate( "snapshot_lib1.html" );
+        instance.loadTemplateFromStringFtl( "<@lib.macro />", Locale.US, null );
+        assertNotSame( snapshot, instance.getAutoImportSnapshot( ) );
+
+        // the libraries that fail to load are left to the lazy imports, and only fail the renders using them
+        File fileBroken = new File( PATH_TEMPLATES + "snapshot_broken.html" );
+        fileBroken.deleteOnExit( );
+        FileUtils.writeStringToFile( fileBroken, "<#macro m>broken\n", StandardCharsets.UTF_8 );
+        instance.addPluginAutoImport( "broken", fileBroken.getName( ) );
+        instance.addPluginAutoImport( "missing", "snapshot_missing.html" );
+        instance.resetConfiguration( );
+        assertEquals( "macro output", instance.loadTemplateFromStringFtl( "<@lib.macro />", Locale.US, null ).getHtml( ) );
+        assertEquals( new HashSet<>( Arrays.asList( "broken", "missing" ) ), instance.getAutoImportSnapshot( ).getSkippedLibraries( ) );
+        assertEquals( 4, instance.getAutoImportSnapshot( ).getMacroLibraries( ).size( ) );
+
+        try
+        {
+            instance.loadTemplateFromStringFtl( "<@broken.m />", Locale.US, null );
+            fail( "The render using a broken library should fail" );
+        }
+        catch( LuteceFreemarkerException e )
+        {
+            assertNotNull( e.getMessage( ) );
+        }
+    }
+
+    /**
+     * Test of getLocaleRenderSettings method, of class AbstractFreeMarkerTemplateService.
+     */
+    @Test
+    public void testLocaleRenderSettings()
+    {
+        System.out.println( "getLocaleRenderSettings" );
+        AbstractFreeMarkerTemplateService instance = new AbstractFreeMarkerTemplateServiceImpl( )
+        {
+            @Override
+            public String getDefaultPattern( Locale locale )
+            {
+                return Locale.FRANCE.equals( locale ) ? "dd/MM/yyyy" : "MM-dd-yyyy";
+            }
+        };
+        instance.init( PATH_TEMPLATES, true );
+
+        Calendar calendar = Calendar.getInstance( );
+        calendar.clear( );
+        calendar.set( 2020, Calendar.MARCH, 15, 12, 0 );
+        Map<String, Object> model = new HashMap<>( );
+        model.put( "date", new java.sql.Date( calendar.getTimeInMillis( ) ) );
+        model.put( "number", 1234.5 );
+
+        String strTemplate = "${date} ${number}";
+        assertEquals( "15/03/2020 1234,5", instance.loadTemplateFromStringFtl( strTemplate, Locale.FRANCE, model ).getHtml( ) );
+        assertEquals( "03-15-2020 1234.5", instance.loadTemplateFromStringFtl( strTemplate, Locale.US, model ).getHtml( ) );
+        assertEquals( "15/03/2020 1234,5", instance.loadTemplateFromStringFtl( strTemplate, Locale.FRANCE, model ).getHtml( ) );
+        assertEquals( "03-15-2020 1234.5", instance.loadTemplateFromStringFtl( strTemplate, null, model ).getHtml( ) );
+
+        assertSame( instance.getLocaleRenderSettings( Locale.FRANCE ), instance.getLocaleRenderSettings( Locale.FRANCE ) );
+        instance.resetConfiguration( );
+        assertEquals( "dd/MM/yyyy", instance.getLocaleRenderSettings( Locale.FRANCE ).getDateFormat( ) );
+    }
+
+    /**
+     * Test of loadTemplateAsync method, of class AbstractFreeMarkerTemplateService.
+     * @throws java.lang.Exception
+     */
+    @Test
+    public void testLoadTemplateAsync() throws Exception
+    {
+        System.out.println( "loadTemplateAsync" );
+        AbstractFreeMarkerTemplateService instance = getInstance( true );
+        Map<String, Object> model = new HashMap<>( );
+        model.put( MARK_VALUE, VALUE_TEST );
+
+        HtmlTemplate result = instance.loadTemplateAsync( PATH_TEMPLATES, FILE_TEMPLATE_2, Locale.US, model ).get( 10, TimeUnit.SECONDS );
+        String strExpected = FileUtils.readFileToString( new File( PATH_TEMPLATES + EXPECTED_2 ) );
+        assertEquals( strExpected, result.getHtml( ) );
+
+        result = instance.loadTemplateFromStringFtlAsync( "${value}", Locale.US, model ).get( 10, TimeUnit.SECONDS );
+        assertEquals( VALUE_TEST, result.getHtml( ) );
+
+        // a render that never ends is interrupted by the timeout
+        AtomicInteger nItems = new AtomicInteger( );
+        model.put( "items", StreamedSequence.of( new SlowIterator( nItems ) ) );
+        instance.setRenderTimeout( 200 );
+        CompletableFuture<HtmlTemplate> future = instance.loadTemplateFromStringFtlAsync( "<#list items as item>${item}</#list>", Locale.US, model );
+
+        try
+        {
+            future.get( 10, TimeUnit.SECONDS );
+            fail( "The render should have timed out" );
+        }
+        catch( ExecutionException e )
+        {
+            assertTrue( e.getCause( ) instanceof TimeoutException );
+        }
+
+        assertRenderStopped( nItems );
+
+        // a cancelled render is interrupted
+        nItems.set( 0 );
+        model.put( "items", StreamedSequence.of( new SlowIterator( nItems ) ) );
+        instance.setRenderTimeout( 0 );
+        future = instance.loadTemplateFromStringFtlAsync( "<#list items as item>[${item}]</#list>", Locale.US, model );
+
+        while ( nItems.get( ) == 0 )
+        {
+            Thread.sleep( 10 );
+        }
+
+        assertTrue( future.cancel( true ) );
+        assertTrue( future.isCancelled( ) );
+        assertRenderStopped( nItems );
+    }
+
+    /**
+     * Test of shutdown method, of class AbstractFreeMarkerTemplateService.
+     * @throws java.lang.Exception
+     */
+    @Test
+    public void testShutdown() throws Exception
+    {
+        System.out.println( "shutdown" );
+        AbstractFreeMarkerTemplateService instance = getInstance( true );
+        Map<String, Object> model = new HashMap<>( );
+        AtomicInteger nItems = new AtomicInteger( );
+        model.put( "items", StreamedSequence.of( new SlowIterator( nItems ) ) );
+        instance.setRenderTimeout( 60000 );
+        CompletableFuture<HtmlTemplate> future = instance.loadTemplateFromStringFtlAsync( "<#list items as item>${item}</#list>", Locale.US, model );
+
+        while ( nItems.get( ) == 0 )
+        {
+            Thread.sleep( 10 );
+        }
+
+        // the shutdown interrupts the render running on the pool of the service
+        instance.shutdown( );
+        assertRenderStopped( nItems );
+
+        try
+        {
+            future.get( 10, TimeUnit.SECONDS );
+            fail( "The render should have been interrupted" );
+        }
+        catch( ExecutionException e )
+        {
+            assertNotNull( e.getCause( ) );
+        }
+
+        // a later render runs on new threads
+        model.put( MARK_VALUE, VALUE_TEST );
+        assertEquals( VALUE_TEST, instance.loadTemplateFromStringFtlAsync( "${value}", Locale.US, model ).get( 10, TimeUnit.SECONDS ).getHtml( ) );
+        instance.shutdown( );
+    }
+
+    /**
+     * Check that a render listing a slow iterator has stopped
+     * @param nItems the count of listed items
+     * @throws InterruptedException if interrupted
+     */
+    private static void assertRenderStopped( AtomicInteger nItems ) throws InterruptedException
+    {
+        Thread.sleep( 100 );
+        int nCount = nItems.get( );
+        Thread.sleep( 100 );
+        assertEquals( nCount, nItems.get( ) );
+    }
+
+    /**
+     * Endless iterator returning an item every millisecond
+     */
+    private static class SlowIterator implements Iterator<Integer>
+    {
+        private final AtomicInteger _nItems;
+
+        /**
+         * Constructor
+         * @param nItems the count of returned items
+         */
+        SlowIterator( AtomicInteger nItems )
+        {
+            _nItems = nItems;
+        }
+
+        @Override
+        public boolean hasNext( )
+        {
+            return true;
+        }
+
+        @Override
+        public Integer next( )
+        {
+            try
+            {
+                Thread.sleep( 1 );
+            }
+            catch( InterruptedException e )
+            {
+                Thread.currentThread( ).interrupt( );
+            }
+
+            return _nItems.incrementAndGet( );
+        }
+    }
+
+    /**
+     * Test of setRenderLimits method, of class AbstractFreeMarkerTemplateService.
+     */
+    @Test
+    public void testRenderLimits()
+    {
+        System.out.println( "setRenderLimits" );
+        AbstractFreeMarkerTemplateService instance = getInstance( true );
+        Map<String, Object> model = new HashMap<>( );
+        model.put( "items", Arrays.asList( 1, 2, 3, 4, 5, 6, 7, 8, 9, 10 ) );
+
+        instance.setRenderLimits( new RenderLimits( 10000, 100, 20 ) );
+        assertEquals( "12345678910", instance.loadTemplateFromStringFtl( "<#list items as i>${i}</#list>", Locale.US, model ).getHtml( ) );
+
+        assertRenderLimitExceeded( instance, "<#list 1..1000 as i>${i}</#list>", model );
+
+        instance.setRenderLimits( new RenderLimits( 0, 0, 20 ) );
+        assertRenderLimitExceeded( instance, "<#list items as i><#list items as j></#list></#list>", model );
+
+        instance.setRenderLimits( new RenderLimits( 100, 0, 0 ) );
+        assertRenderLimitExceeded( instance, "<#list 1..1000000000 as i>${i}</#list>", model );
+
+        // the rendering thread is not interrupted at the deadline
+        assertFalse( Thread.currentThread( ).isInterrupted( ) );
+        assertEquals( "12345678910", instance.loadTemplateFromStringFtl( "<#list items as i>${i}</#list>", Locale.US, model ).getHtml( ) );
+
+        // the compiled templates count against the budget
+        model.put( "a", "x" );
+        instance.setCompileThreshold( 1 );
+        instance.setRenderLimits( new RenderLimits( 0, 0, 3 ) );
+        assertEquals( "xx", instance.loadTemplateFromStringFtl( "${a}${a}", Locale.US, model ).getHtml( ) );
+        assertEquals( "xx", instance.loadTemplateFromStringFtl( "${a}${a}", Locale.US, model ).getHtml( ) );
+        assertRenderLimitExceeded( instance, "${a}${a}${a}${a}", model );
+        assertRenderLimitExceeded( instance, "${a}${a}${a}${a}", model );
+        assertTrue( instance.getCompiledRenderCount( ) > 0 );
+        instance.setCompileThreshold( 0 );
+
+        instance.setRenderLimits( null );
+        assertEquals( 1000, instance.loadTemplateFromStringFtl( "<#list 1..1000 as i>x</#list>", Locale.US, model ).getHtml( ).length( ) );
+    }
+
+    /**
+     * Check that the render of a template exceeds its limits
+     * @param instance the service
+     * @param strTemplate the template
+     * @param model the model
+     */
+    private static void assertRenderLimitExceeded( AbstractFreeMarkerTemplateService instance, String strTemplate, Map<String, Object> model )
+    {
+        try
+        {
+            instance.loadTemplateFromStringFtl( strTemplate, Locale.US, model );
+            fail( "The render should have exceeded its limits" );
+        }
+        catch( TemplateRenderLimitException e )
+        {
+            assertNotNull( e.getMessage( ) );
+        }
+    }
+
+    /**
+     * Test of setMaxConcurrentCompilations method, of class AbstractFreeMarkerTemplateService.
+     * @throws java.lang.Exception
+     */
+    @Test
+    public void testMaxConcurrentCompilations() throws Exception
+    {
+        System.out.println( "setMaxConcurrentCompilations" );
+        AbstractFreeMarkerTemplateService instance = getInstance( true );
+        AtomicInteger nRunning = new AtomicInteger( );
+        AtomicInteger nMaxRunning = new AtomicInteger( );
+        instance.addTemplateSourceTransformer( ( strName, strSource ) -> {
+            nMaxRunning.accumulateAndGet( nRunning.incrementAndGet( ), Math::max );
+
+            try
+            {
+                Thread.sleep( 50 );
+            }
+            catch( InterruptedException e )
+            {
+                Thread.currentThread( ).interrupt( );
+            }
+
+            nRunning.decrementAndGet( );
+
+            if ( strSource.contains( "failing" ) )
+            {
+                throw new IllegalStateException( "failing" );
+            }
+
+            return strSource;
+        } );
+        instance.setMaxConcurrentCompilations( 1 );
+
+        // the same template requested concurrently is loaded once
+        List<CompletableFuture<HtmlTemplate>> listFutures = new ArrayList<>( );
+        for ( int i = 0; i < 8; i++ )
+        {
+            listFutures.add( CompletableFuture.supplyAsync( ( ) -> instance.loadTemplateFromStringFtl( "single", "${1 + 1}", Locale.US, null, false ) ) );
+        }
+        for ( CompletableFuture<HtmlTemplate> future : listFutures )
+        {
+            assertEquals( "2", future.get( 10, TimeUnit.SECONDS ).getHtml( ) );
+        }
+
+        CompilationBulkhead bulkhead = instance.getCompilationBulkhead( );
+        assertEquals( 1, bulkhead.getCompilationCount( ) );
+
+        // the requests served by the cache do not wait for each other
+        long lSharedLoads = bulkhead.getSharedLoadCount( );
+        listFutures.clear( );
+        for ( int i = 0; i < 8; i++ )
+        {
+            listFutures.add( CompletableFuture.supplyAsync( ( ) -> instance.loadTemplateFromStringFtl( "single", "${1 + 1}", Locale.US, null, false ) ) );
+        }
+        for ( CompletableFuture<HtmlTemplate> future : listFutures )
+        {
+            assertEquals( "2", future.get( 10, TimeUnit.SECONDS ).getHtml( ) );
+        }
+        assertEquals( lSharedLoads, bulkhead.getSharedLoadCount( ) );
+        assertEquals( 1, bulkhead.getCompilationCount( ) );
+
+        // different templates are parsed one at a time
+        listFutures.clear( );
+        for ( int i = 0; i < 4; i++ )
+        {
+            String strTemplate = "${" + i + "}";
+            listFutures.add( CompletableFuture.supplyAsync( ( ) -> instance.loadTemplateFromStringFtl( strTemplate, Locale.US, null ) ) );
+        }
+        for ( CompletableFuture<HtmlTemplate> future : listFutures )
+        {
+            future.get( 10, TimeUnit.SECONDS );
+        }
+
+        assertEquals( 5, bulkhead.getCompilationCount( ) );
+        assertEquals( 1, nMaxRunning.get( ) );
+
+        // the failure of a load is shared by the concurrent requests instead of loading the template again
+        listFutures.clear( );
+        for ( int i = 0; i < 8; i++ )
+        {
+            listFutures.add( CompletableFuture.supplyAsync( ( ) -> instance.loadTemplateFromStringFtl( "failing", "failing", Locale.US, null, false ) ) );
+        }
+        for ( CompletableFuture<HtmlTemplate> future : listFutures )
+        {
+            try
+            {
+                future.get( 10, TimeUnit.SECONDS );
+                fail( "The load should have failed" );
+            }
+            catch( ExecutionException e )
+            {
+                assertNotNull( e.getCause( ) );
+            }
+        }
+        assertEquals( 6, bulkhead.getCompilationCount( ) );
+        assertEquals( 0, bulkhead.getQueueLength( ) );
+    }
+
+    /**
+     * Test of setSoftReset method, of class AbstractFreeMarkerTemplateService.
+     * @throws java.lang.Exception
+     */
+    @Test
+    public void testSoftReset() throws Exception
+    {
+        System.out.println( "setSoftReset" );
+        AbstractFreeMarkerTemplateService instance = getInstance( true );
+        AtomicInteger nParsed = new AtomicInteger( );
+        CountDownLatch warming = new CountDownLatch( 1 );
+        CountDownLatch release = new CountDownLatch( 1 );
+        AtomicReference<String> strWarmingThread = new AtomicReference<>( "idle" );
+        instance.addTemplateSourceTransformer( ( strName, strSource ) -> {
+            nParsed.incrementAndGet( );
+
+            if ( Thread.currentThread( ).getName( ).startsWith( "freemarker-soft-reset" ) && strWarmingThread.compareAndSet( null, "blocked" ) )
+            {
+                warming.countDown( );
+
+                try
+                {
+                    release.await( 10, TimeUnit.SECONDS );
+                }
+                catch( InterruptedException e )
+                {
+                    Thread.currentThread( ).interrupt( );
+                }
+            }
+
+            return strSource;
+        } );
+        instance.setSoftReset( true );
+        instance.setWorkingSetSampling( 1 );
+        Map<String, Object> model = new HashMap<>( );
+        model.put( MARK_VALUE, VALUE_TEST );
+        String strExpected = FileUtils.readFileToString( new File( PATH_TEMPLATES + EXPECTED_2 ) );
+
+        assertEquals( strExpected, instance.loadTemplate( PATH_TEMPLATES, FILE_TEMPLATE_2, Locale.US, model ).getHtml( ) );
+        assertEquals( "soft", instance.loadTemplateFromStringFtl( "soft_template", "soft", Locale.US, null, false ).getHtml( ) );
+        assertEquals( 2, nParsed.get( ) );
+
+        // the new generation is warmed before the switch
+        instance.resetCache( );
+        instance.getPendingReset( ).get( 10, TimeUnit.SECONDS );
+        assertEquals( 4, nParsed.get( ) );
+        assertEquals( strExpected, instance.loadTemplate( PATH_TEMPLATES, FILE_TEMPLATE_2, Locale.US, model ).getHtml( ) );
+        assertEquals( "soft", instance.loadTemplateFromStringFtl( "soft_template", "other", Locale.US, null, false ).getHtml( ) );
+        assertEquals( 4, nParsed.get( ) );
+
+        // the templates provided as strings are kept by the new configuration
+        instance.resetConfiguration( );
+        instance.getPendingReset( ).get( 10, TimeUnit.SECONDS );
+        assertEquals( 6, nParsed.get( ) );
+        assertEquals( "soft", instance.loadTemplateFromStringFtl( "soft_template", "other", Locale.US, null, false ).getHtml( ) );
+        assertEquals( 6, nParsed.get( ) );
+
+        // the rebuild runs on its own thread, and the auto-imports added meanwhile are kept by the new generation
+        strWarmingThread.set( null );
+        instance.resetCache( );
+        assertTrue( warming.await( 10, TimeUnit.SECONDS ) );
+        instance.addAutoImport( "soft", FILE_AUTO_INCLUDE );
+        release.countDown( );
+        instance.getPendingReset( ).get( 10, TimeUnit.SECONDS );
+        assertEquals( FILE_AUTO_INCLUDE, instance.getAutoImports( ).get( "soft" ) );
+        assertEquals( "macro output", instance.loadTemplateFromStringFtl( "<@soft.macro />", Locale.US, null ).getHtml( ) );
+        instance.shutdown( );
+    }
+
+    /**
+     * Test of getHotTemplates, saveWorkingSet and loadWorkingSet methods, of class AbstractFreeMarkerTemplateService.
+     * @throws java.io.IOException
+     */
+    @Test
+    public void testWorkingSet() throws IOException
+    {
+        System.out.println( "getHotTemplates" );
+        AbstractFreeMarkerTemplateService instance = getInstance( true );
+        instance.setWorkingSetSampling( 1 );
+        Map<String, Object> model = new HashMap<>( );
+        model.put( MARK_VALUE, VALUE_TEST );
+
+        for ( int i = 0; i < 5; i++ )
+        {
+            instance.loadTemplate( PATH_TEMPLATES, FILE_TEMPLATE_2, Locale.US, model );
+        }
+        for ( int i = 0; i < 3; i++ )
+        {
+            instance.loadTemplate( PATH_TEMPLATES, FILE_TEMPLATE_1 );
+        }
+        instance.loadTemplateFromStringFtl( "${value}", Locale.US, model );
+
+        // the templates provided as strings are not recorded
+        List<TemplateKey> listHot = instance.getHotTemplates( 10 );
+        assertEquals( 2, listHot.size( ) );
+        assertEquals( new TemplateKey( FILE_TEMPLATE_2, Locale.US ), listHot.get( 0 ) );
+        assertEquals( new TemplateKey( FILE_TEMPLATE_1, null ), listHot.get( 1 ) );
+        assertTrue( instance.getWorkingSet( ).getEstimate( listHot.get( 0 ) ) >= 5 );
+
+        File file = File.createTempFile( "working_set", ".txt" );
+        file.deleteOnExit( );
+        instance.saveWorkingSet( file );
+
+        // the saved templates are loaded in the cache of a new instance
+        AbstractFreeMarkerTemplateService instanceNew = getInstance( true );
+        AtomicInteger nParsed = new AtomicInteger( );
+        instanceNew.addTemplateSourceTransformer( ( strName, strSource ) -> {
+            nParsed.incrementAndGet( );
+            return strSource;
+        } );
+        instanceNew.loadWorkingSet( file );
+        assertEquals( 2, nParsed.get( ) );
+        assertEquals( listHot, instanceNew.getHotTemplates( 2 ) );
+
+        instanceNew.loadTemplate( PATH_TEMPLATES, FILE_TEMPLATE_2, Locale.US, model );
+        assertEquals( 2, nParsed.get( ) );
+
+        // the hot set is bounded and keeps the most requested templates
+        TemplateWorkingSet workingSet = new TemplateWorkingSet( 1024, 2 );
+        for ( int i = 0; i < 100; i++ )
+        {
+            workingSet.record( new TemplateKey( "hot", null ) );
+            workingSet.record( new TemplateKey( "cold" + i, null ) );
+            assertTrue( workingSet.getHotSet( 10 ).size( ) <= 2 );
+        }
+        workingSet.record( new TemplateKey( "cold99", null ) );
+        assertEquals( Arrays.asList( new TemplateKey( "hot", null ), new TemplateKey( "cold99", null ) ), workingSet.getHotSet( 10 ) );
+
+        // a sampled request counts for the requests skipped, and the recording can be disabled
+        workingSet = new TemplateWorkingSet( 1024, 2 );
+        workingSet.setSampling( 4 );
+        for ( int i = 0; i < 4000; i++ )
+        {
+            workingSet.record( "sampled", null );
+        }
+        long lEstimate = workingSet.getEstimate( new TemplateKey( "sampled", null ) );
+        assertTrue( lEstimate > 2000 && lEstimate < 6000 );
+        assertEquals( 0, lEstimate % 4 );
+        workingSet.setSampling( 0 );
+        workingSet.record( "disabled", null );
+        assertEquals( 0, workingSet.getEstimate( new TemplateKey( "disabled", null ) ) );
+        assertEquals( 1, workingSet.getHotSet( 10 ).size( ) );
+    }
+
+    /**
+     * Test of setInvalidationTransport method, of class AbstractFreeMarkerTemplateService.
+     * @throws java.io.IOException
+     */
+    @Test
+    public void testInvalidationTransport() throws IOException
+    {
+        System.out.println( "setInvalidationTransport" );
+        InProcessInvalidationTransport transport = new InProcessInvalidationTransport( );
+        AbstractFreeMarkerTemplateService node1 = getInstance( true );
+        AbstractFreeMarkerTemplateService node2 = getInstance( true );
+        node1.setInvalidationTransport( transport );
+        node2.setInvalidationTransport( transport );
+
+        // string template replaced
+        assertEquals( "A", node1.loadTemplateFromStringFtl( "invalidation", "A", Locale.US, null, false ).getHtml( ) );
+        assertEquals( "A", node2.loadTemplateFromStringFtl( "invalidation", "A", Locale.US, null, false ).getHtml( ) );
+        assertEquals( "B", node1.loadTemplateFromStringFtl( "invalidation", "B", Locale.US, null, true ).getHtml( ) );
+        assertEquals( "B", node2.loadTemplateFromStringFtl( "invalidation", "A", Locale.US, null, false ).getHtml( ) );
+
+        // template file changed
+        File file = new File( PATH_TEMPLATES + "invalidation.html" );
+        file.deleteOnExit( );
+        FileUtils.writeStringToFile( file, "v1", StandardCharsets.UTF_8 );
+        assertEquals( "v1", node2.loadTemplate( PATH_TEMPLATES, file.getName( ), Locale.US, null ).getHtml( ) );
+        FileUtils.writeStringToFile( file, "v2", StandardCharsets.UTF_8 );
+        assertEquals( "v1", node2.loadTemplate( PATH_TEMPLATES, file.getName( ), Locale.US, null ).getHtml( ) );
+        node1.invalidateTemplate( file.getName( ) );
+        assertEquals( "v2", node2.loadTemplate( PATH_TEMPLATES, file.getName( ), Locale.US, null ).getHtml( ) );
+
+        // auto-includes changed
+        node1.addAutoInclude( FILE_AUTO_INCLUDE );
+        assertEquals( Arrays.asList( FILE_AUTO_INCLUDE ), node2.getAutoIncludes( ) );
+        node1.removeAutoInclude( FILE_AUTO_INCLUDE );
+        assertTrue( node2.getAutoIncludes( ).isEmpty( ) );
+
+        node2.setInvalidationTransport( null );
+        node1.addAutoInclude( FILE_AUTO_INCLUDE );
+        assertTrue( node2.getAutoIncludes( ).isEmpty( ) );
+    }
+
+    /**
+     * Test of setSharedSourceCache method, of class AbstractFreeMarkerTemplateService.
+     * @throws java.io.IOException
+     */
+    @Test
+    public void testSharedSourceCache() throws IOException
+    {
+        System.out.println( "setSharedSourceCache" );
+        SharedSourceCache cache = new SharedSourceCache( );
+        AbstractFreeMarkerTemplateService instance1 = getInstance( false );
+        AbstractFreeMarkerTemplateService instance2 = getInstance( true );
+        instance1.setSharedSourceCache( cache );
+        instance2.setSharedSourceCache( cache );
+        Map<String, Object> model = new HashMap<>( );
+        model.put( MARK_VALUE, VALUE_TEST );
+        String strExpected = FileUtils.readFileToString( new File( PATH_TEMPLATES + EXPECTED_2 ) );
+
+        assertEquals( strExpected, instance1.loadTemplate( PATH_TEMPLATES, FILE_TEMPLATE_2, Locale.US, model ).getHtml( ) );
+        assertEquals( strExpected, instance2.loadTemplate( PATH_TEMPLATES, FILE_TEMPLATE_2, Locale.US, model ).getHtml( ) );
+        assertEquals( 1, cache.getMisses( ) );
+        assertEquals( 1, cache.getHits( ) );
+        assertEquals( 1, cache.getSourceCount( ) );
+        assertEquals( 1, cache.getContentCount( ) );
+
+        // the reset of a service only concerns its own reads
+        instance1.resetCache( );
+        assertEquals( 1, cache.getSourceCount( ) );
+        AbstractFreeMarkerTemplateService instance3 = getInstance( true );
+        instance3.setSharedSourceCache( cache );
+        assertEquals( strExpected, instance3.loadTemplate( PATH_TEMPLATES, FILE_TEMPLATE_2, Locale.US, model ).getHtml( ) );
+        assertEquals( 2, cache.getHits( ) );
+        assertEquals( strExpected, instance1.loadTemplate( PATH_TEMPLATES, FILE_TEMPLATE_2, Locale.US, model ).getHtml( ) );
+        assertEquals( 2, cache.getMisses( ) );
+        assertEquals( 1, cache.getContentCount( ) );
+    }
+
+    /**
+     * Test of getModelRequirements method, of class AbstractFreeMarkerTemplateService.
+     * @throws java.io.IOException
+     */
+    @Test
+    public void testGetModelRequirements() throws IOException
+    {
+        System.out.println( "getModelRequirements" );
+        AbstractFreeMarkerTemplateService instance = new AbstractFreeMarkerTemplateServiceImpl( );
+        instance.init( PATH_TEMPLATES );
+        instance.setTemplateUpdateDelay( 0 );
+        File fileTemplate = new File( PATH_TEMPLATES + "requirements.html" );
+        File fileInclude = new File( PATH_TEMPLATES + "requirements_include.html" );
+        File fileLibrary = new File( PATH_TEMPLATES + "requirements_lib.html" );
+        fileTemplate.deleteOnExit( );
+        fileInclude.deleteOnExit( );
+        fileLibrary.deleteOnExit( );
+        FileUtils.writeStringToFile( fileTemplate, "<#import \"requirements_lib.html\" as lib><#assign title = page.title>${title} ${user.name!}"
+                + "<#list items as item>${item.label} ${item?index}</#list><#macro card value>${value} ${site[\"name\"]}</#macro>"
+                + "<@card value=product.price/><#include \"requirements_include.html\">${lib.mode( )}", StandardCharsets.UTF_8 );
+        FileUtils.writeStringToFile( fileInclude, "${footer.text}", StandardCharsets.UTF_8 );
+        FileUtils.writeStringToFile( fileLibrary, "<#function mode><#return config.mode></#function>", StandardCharsets.UTF_8 );
+
+        TemplateModelRequirements requirements = instance.getModelRequirements( PATH_TEMPLATES, fileTemplate.getName( ), Locale.US );
+        assertTrue( requirements.isComplete( ) );
+        assertEquals( new HashSet<>( Arrays.asList( "page", "user", "items", "site", "product", "footer", "config" ) ), requirements.getVariables( ) );
+        assertTrue( requirements.getPaths( ).containsAll( Arrays.asList( "page.title", "user.name", "site.name", "product.price", "footer.text", "config.mode" ) ) );
+        assertTrue( requirements.mayAccess( "items" ) );
+        assertFalse( requirements.mayAccess( "item" ) );
+        assertFalse( requirements.mayAccess( "title" ) );
+        assertSame( requirements, instance.getModelRequirements( PATH_TEMPLATES, fileTemplate.getName( ), Locale.US ) );
+
+        // the requirements are analyzed again when an include is reloaded
+        FileUtils.writeStringToFile( fileInclude, "${footer.text} ${.vars[\"dynamic\"]}", StandardCharsets.UTF_8 );
+        fileInclude.setLastModified( fileInclude.lastModified( ) + 2000 );
+        requirements = instance.getModelRequirements( PATH_TEMPLATES, fileTemplate.getName( ), Locale.US );
+        assertFalse( requirements.isComplete( ) );
+        assertTrue( requirements.mayAccess( "dynamic" ) );
+
+        // within the template update delay, the includes are only checked again once templates are invalidated
+        AbstractFreeMarkerTemplateService instanceDelayed = new AbstractFreeMarkerTemplateServiceImpl( );
+        instanceDelayed.init( PATH_TEMPLATES );
+        instanceDelayed.setTemplateUpdateDelay( 3600 );
+        requirements = instanceDelayed.getModelRequirements( PATH_TEMPLATES, fileTemplate.getName( ), Locale.US );
+        FileUtils.writeStringToFile( fileInclude, "${footer.text}", StandardCharsets.UTF_8 );
+        fileInclude.setLastModified( fileInclude.lastModified( ) + 2000 );
+        assertSame( requirements, instanceDelayed.getModelRequirements( PATH_TEMPLATES, fileTemplate.getName( ), Locale.US ) );
+        instanceDelayed.invalidateTemplate( fileInclude.getName( ) );
+        requirements = instanceDelayed.getModelRequirements( PATH_TEMPLATES, fileTemplate.getName( ), Locale.US );
+        assertTrue( requirements.isComplete( ) );
+    }
+
+    /**
+     * Test of setHtmlAutoEscaping method, of class AbstractFreeMarkerTemplateService.
+     */
+    @Test
+    public void testHtmlAutoEscaping()
+    {
+        System.out.println( "setHtmlAutoEscaping" );
+        AbstractFreeMarkerTemplateService instance = getInstance( true );
+        instance.setHtmlAutoEscaping( true );
+        instance.setCompileThreshold( 1 );
+        StringBuilder sbLong = new StringBuilder( );
+        for ( int i = 0; i < 100; i++ )
+        {
+            sbLong.append( "<b class=\"x\">&'" ).append( i );
+        }
+        String [ ] values = {
+                "<a href=\"x\">Tom & Jerry's</a>", "plain text", "", "a<", ">b", "\u00e9t\u00e9 & \ud83d\ude00", sbLong.toString( )
+        };
+        Map<String, Object> model = new HashMap<>( );
+
+        for ( String strValue : values )
+        {
+            model.put( MARK_VALUE, strValue );
+            String strExpected = "<p>" + StringUtil.XHTMLEnc( strValue ) + "</p>";
+
+            // interpreted, then cached escaped value and compiled template
+            for ( int i = 0; i < 3; i++ )
+            {
+                assertEquals( strExpected, instance.loadTemplateFromStringFtl( "<p>${value}</p>", Locale.US, model ).getHtml( ) );
+            }
+            assertEquals( strValue, instance.loadTemplateFromStringFtl( "${value?no_esc}", Locale.US, model ).getHtml( ) );
+        }
+
+        assertTrue( instance.getCompiledRenderCount( ) > 0 );
+        assertTrue( LuteceHtmlOutputFormat.INSTANCE.getEscapedValueCacheSize( ) > 0 );
+        assertEquals( "&lt;5&gt;", instance.loadTemplateFromStringFtl( "${'<'?esc}${'&'?esc?markup_string?length}${'>'}", Locale.US, null ).getHtml( ) );
+    }
+
+    /**
+     * Test of setFastFormatting method, of class AbstractFreeMarkerTemplateService.
+     */
+    @Test
+    public void testFastFormatting()
+    {
+        System.out.println( "setFastFormatting" );
+        AbstractFreeMarkerTemplateService [ ] instances = new AbstractFreeMarkerTemplateService [ 2];
+        for ( int i = 0; i < instances.length; i++ )
+        {
+            instances [i] = new AbstractFreeMarkerTemplateServiceImpl( )
+            {
+                @Override
+                public String getDefaultPattern( Locale locale )
+                {
+                    return Locale.US.equals( locale ) ? "MM/dd/yy h:mm:ss.SSS 'at' k" : "dd/MM/yyyy HH:mm";
+                }
+            };
+            instances [i].init( PATH_TEMPLATES, i == 0 );
+        }
+        instances [1].setFastFormatting( true );
+
+        Calendar calendar = Calendar.getInstance( );
+        calendar.clear( );
+        calendar.set( 2020, Calendar.MARCH, 15, 23, 5, 7 );
+        calendar.set( Calendar.MILLISECOND, 42 );
+        List<Object> listNumbers = Arrays.asList( 0, 7, 1023, 1024, -5, Long.MIN_VALUE, Long.MAX_VALUE, (short) 3, 0.1, 0.1f, 1234.5, -0.0, -1e-9, 1e20,
+                0.0000005, 0.0000015, 2.5e-7, 1 / 3.0, -2 / 3.0, 123456.1234565, 1e10 + 0.1, Math.pow( 2, 40 ) + 0.1, Double.NaN, Double.NEGATIVE_INFINITY,
+                new java.math.BigDecimal( "1.0000005" ), new java.math.BigDecimal( "-0.0000001" ), new java.math.BigDecimal( "1E+3" ),
+                new java.math.BigInteger( "123456789012345678901234567890" ) );
+        List<Date> listDates = new ArrayList<>( );
+        listDates.add( calendar.getTime( ) );
+        calendar.set( Calendar.HOUR_OF_DAY, 0 );
+        listDates.add( calendar.getTime( ) );
+        calendar.set( Calendar.YEAR, 1500 );
+        listDates.add( calendar.getTime( ) );
+        calendar.set( Calendar.YEAR, 12000 );
+        listDates.add( calendar.getTime( ) );
+        Map<String, Object> model = new HashMap<>( );
+        model.put( "numbers", listNumbers );
+        model.put( "dates", listDates );
+        String strTemplate = "<#list numbers as n>${n} </#list><#list dates as d>${d?date} </#list>";
+
+        for ( Locale locale : new Locale [ ] {
+                Locale.US, Locale.FRANCE, Locale.GERMANY, new Locale( "th", "TH", "TH" ), new Locale( "ja", "JP", "JP" ), Locale.forLanguageTag( "ar-EG" )
+        } )
+        {
+            String strExpected = instances [0].loadTemplateFromStringFtl( strTemplate, locale, model ).getHtml( );
+            assertEquals( strExpected, instances [1].loadTemplateFromStringFtl( strTemplate, locale, model ).getHtml( ) );
+        }
+
+        assertTrue( instances [1].getLocaleRenderSettings( Locale.FRANCE ).getNumberFormat( ).startsWith( "@" + LuteceNumberFormatFactory.NAME ) );
+    }
+
+    /**
+     * Test of setSharedVariableFolding method, of class AbstractFreeMarkerTemplateService.
+     * @throws freemarker.template.TemplateModelException
+     */
+    @Test
+    public void testSharedVariableFolding() throws TemplateModelException
+    {
+        System.out.println( "setSharedVariableFolding" );
+        StringBuilder sbTemplate = new StringBuilder( );
+        sbTemplate.append( "<div>\n" );
+        sbTemplate.append( "  <#if feature && siteName?length gt 3>\n    <b>${siteName}</b>\n  <#elseif model??>\n    ${model}\n  <#else>\n    off\n  </#if>\n" );
+        sbTemplate.append( "  <#if !feature>\n    hidden\n  <#elseif model??>\n    <#if feature>\n      ${siteName} ${model}\n    </#if>\n  </#if>\n" );
+        sbTemplate.append( "  <#if !feature>\n    removed\n  </#if>\n" );
+        sbTemplate.append( "  <#if feature>on<#else>off</#if> ${siteName?upper_case} ${siteName}\n" );
+        sbTemplate.append( "  <#list items as item><#if feature>${item}</#if>${siteName} </#list>\n" );
+        sbTemplate.append( "  <#escape x as x?upper_case>${siteName}</#escape>\n" );
+        sbTemplate.append( "</div>\n" );
+
+        Map<String, Object> model = new HashMap<>( );
+        model.put( "model", "value" );
+        model.put( "items", Arrays.asList( "a", "b" ) );
+
+        String strExpected = null;
+
+        for ( boolean bFolding : new boolean [ ] {
+                false, true
+        } )
+        {
+            AbstractFreeMarkerTemplateService instance = getInstance( true );
+            instance.setSharedVariableFolding( bFolding );
+            instance.setSharedVariable( "siteName", "Lutece" );
+            instance.setSharedVariable( "feature", Boolean.TRUE );
+            String strResult = instance.loadTemplateFromStringFtl( sbTemplate.toString( ), Locale.US, model ).getHtml( );
+
+            if ( strExpected == null )
+            {
+                strExpected = strResult;
+            }
+
+            assertEquals( strExpected, strResult );
+
+            instance.setSharedVariable( "feature", Boolean.FALSE );
+            instance.resetConfiguration( );
+            strResult = instance.loadTemplateFromStringFtl( sbTemplate.toString( ), Locale.US, model ).getHtml( );
+            assertTrue( strResult.contains( "hidden" ) );
+            assertTrue( strResult.contains( "removed" ) );
+        }
+
+        // the folded templates are reloaded when a shared variable changes
+        AbstractFreeMarkerTemplateService instance = getInstance( true );
+        instance.setSharedVariableFolding( true );
+        instance.setSharedVariable( "siteName", "Portal" );
+        instance.setSharedVariable( "feature", Boolean.FALSE );
+        instance.loadTemplateFromStringFtl( sbTemplate.toString( ), Locale.US, model );
+        instance.setSharedVariable( "siteName", "Lutece" );
+        instance.setSharedVariable( "feature", Boolean.TRUE );
+        assertEquals( strExpected, instance.loadTemplateFromStringFtl( sbTemplate.toString( ), Locale.US, model ).getHtml( ) );
+
+        Map<String, Object> mapSharedVariables = new HashMap<>( );
+        mapSharedVariables.put( "siteName", "Lutece" );
+        mapSharedVariables.put( "feature", Boolean.TRUE );
+        Configuration cfg = new Configuration( Configuration.VERSION_2_3_28 );
+        cfg.setObjectWrapper( new DefaultObjectWrapperBuilder( Configuration.VERSION_2_3_28 ).build( ) );
+        cfg.setSharedVariables( mapSharedVariables );
+        cfg.addAutoInclude( "missing_auto_include.ftl" );
+        mapSharedVariables.put( "absent", "value" );
+        SharedVariableFolder folder = new SharedVariableFolder( mapSharedVariables, cfg );
+
+        // the values are evaluated without the auto-includes, and only the shared variables of the configuration are folded
+        assertEquals( "<#-- c --><i>Lutece ${absent}</i>", folder.transform( "test", "<#-- c --><i>${siteName} ${absent}</i>" ) );
+        String strFolded = folder.transform( "test", sbTemplate.toString( ) );
+        assertFalse( strFolded.contains( "removed" ) );
+        assertFalse( strFolded.contains( "<b>${siteName}</b>" ) );
+        assertTrue( strFolded.contains( "<b>Lutece</b>" ) );
+        assertTrue( strFolded.contains( "<#escape x as x?upper_case>${siteName}</#escape>" ) );
+
+        // a shared variable used as a loop variable is not folded
+        String strShadowed = sbTemplate.toString( ) + "<#list items as siteName>${siteName} </#list>\n";
+        strFolded = folder.transform( "test", strShadowed );
+        assertTrue( strFolded.contains( "<b>${siteName}</b>" ) );
+        assertFalse( strFolded.contains( "removed" ) );
+        assertEquals( strExpected + "a b \n", instance.loadTemplateFromStringFtl( strShadowed, Locale.US, model ).getHtml( ) );
+    }
+
+    /**
+     * Test of setIncludeInlining method, of class AbstractFreeMarkerTemplateService.
+     * @throws java.io.IOException
+     */
+    @Test
+    public void testIncludeInlining() throws IOException
+    {
+        System.out.println( "setIncludeInlining" );
+        File fileTemplate = new File( PATH_TEMPLATES + "inlining.html" );
+        File fileFragment = new File( PATH_TEMPLATES + "inlining_fragment.html" );
+        File fileNested = new File( PATH_TEMPLATES + "inlining_nested.html" );
+        File fileMacro = new File( PATH_TEMPLATES + "inlining_macro.html" );
+        fileTemplate.deleteOnExit( );
+        fileFragment.deleteOnExit( );
+        fileNested.deleteOnExit( );
+        fileMacro.deleteOnExit( );
+        FileUtils.writeStringToFile( fileTemplate, "<ul>\n  <#include \"inlining_fragment.html\">\n  <#list items as item>\n"
+                + "    <#include \"inlining_nested.html\">\n  </#list>\n  <#include \"inlining_macro.html\">\n  <@show/>\n</ul>\n", StandardCharsets.UTF_8 );
+        FileUtils.writeStringToFile( fileFragment, "<li>${title}</li>\n<#assign count = items?size>\n<li>${count}</li>\n", StandardCharsets.UTF_8 );
+        FileUtils.writeStringToFile( fileNested, "<li>${item}</li>\n", StandardCharsets.UTF_8 );
+        FileUtils.writeStringToFile( fileMacro, "<#macro show>shown</#macro>\n", StandardCharsets.UTF_8 );
+
+        Map<String, Object> model = new HashMap<>( );
+        model.put( "title", "Title" );
+        model.put( "items", Arrays.asList( "a", "b" ) );
+
+        String strExpected = null;
+
+        for ( boolean bInlining : new boolean [ ] {
+                false, true
+        } )
+        {
+            AbstractFreeMarkerTemplateService instance = getInstance( true );
+            instance.setIncludeInlining( bInlining );
+            instance.setTemplateUpdateDelay( 0 );
+            String strResult = instance.loadTemplate( PATH_TEMPLATES, fileTemplate.getName( ), Locale.US, model ).getHtml( );
+
+            if ( strExpected == null )
+            {
+                strExpected = strResult;
+            }
+
+            assertEquals( strExpected, strResult );
+        }
+
+        // the including template is reloaded when an inlined template changes
+        AbstractFreeMarkerTemplateService instance = getInstance( true );
+        instance.setIncludeInlining( true );
+        instance.setTemplateUpdateDelay( 0 );
+        instance.loadTemplate( PATH_TEMPLATES, fileTemplate.getName( ), Locale.US, model );
+        FileUtils.writeStringToFile( fileNested, "<li>${item?upper_case}</li>\n", StandardCharsets.UTF_8 );
+        fileNested.setLastModified( fileNested.lastModified( ) + 2000 );
+        String strResult = instance.loadTemplate( PATH_TEMPLATES, fileTemplate.getName( ), Locale.US, model ).getHtml( );
+        assertEquals( strExpected.replace( "<li>a</li>", "<li>A</li>" ).replace( "<li>b</li>", "<li>B</li>" ), strResult );
+
+        StringTemplateLoader loader = new StringTemplateLoader( );
+        loader.putTemplate( "dir/fragment.html", "<p>${title}</p>\n" );
+        loader.putTemplate( "dir/macro.html", "<#macro show>shown</#macro>\n" );
+        IncludeInliner inliner = new IncludeInliner( loader );
+        assertEquals( "<div>\n  <p>${title}</p>\n  <#include \"macro.html\">\n  <#include \"fragment.html\" parse=false>\n</div>\n", inliner.inline(
+                "dir/page.html", "<div>\n  <#include \"fragment.html\">\n  <#include \"macro.html\">\n  <#include \"fragment.html\" parse=false>\n</div>\n",
+                StandardCharsets.UTF_8.name( ) ) );
+        assertEquals( "dir/fragment.html", IncludeInliner.resolveName( "dir/sub/page.html", "../fragment.html" ) );
+        assertEquals( "fragment.html", IncludeInliner.resolveName( "dir/page.html", "/fragment.html" ) );
+        assertNull( IncludeInliner.resolveName( "page.html", "../fragment.html" ) );
+    }
+
+    /**
+     * Test of setTemplateCacheBudget method, of class AbstractFreeMarkerTemplateService.
+     * @throws java.io.IOException
+     */
+    @Test
+    public void testTemplateCacheBudget() throws IOException
+    {
+        System.out.println( "setTemplateCacheBudget" );
+        AbstractFreeMarkerTemplateService instance = getInstance( true );
+        instance.setTemplateCacheBudget( 0 );
+        Map<String, Object> model = new HashMap<>( );
+        model.put( MARK_VALUE, VALUE_TEST );
+        String strExpected = FileUtils.readFileToString( new File( PATH_TEMPLATES + EXPECTED_2 ) );
+
+        for ( int i = 0; i < 3; i++ )
+        {
+            assertEquals( strExpected, instance.loadTemplate( PATH_TEMPLATES, FILE_TEMPLATE_2, Locale.US, model ).getHtml( ) );
+        }
+
+        // the size of a template is estimated once from its tree
+        Configuration cfg = new Configuration( Configuration.VERSION_2_3_28 );
+        Template template = new Template( FILE_TEMPLATE_2, FileUtils.readFileToString( new File( PATH_TEMPLATES + FILE_TEMPLATE_2 ) ), cfg );
+        long lWeight = TieredCacheStorage.weighTemplate( template );
+        assertTrue( lWeight > TieredCacheStorage.weighTemplate( new Template( "short", "${value}", cfg ) ) );
+        assertNotNull( template.getCustomAttribute( "lutece.weight" ) );
+        assertEquals( lWeight, TieredCacheStorage.weighTemplate( template ) );
+
+        TieredCacheStorage storage = new TieredCacheStorage( 10000, value -> value.toString( ).length( ) * 1000L );
+        storage.put( "hot", "hot value" );
+        assertTrue( storage.isHot( "hot" ) );
+
+        for ( int i = 0; i < 5; i++ )
+        {
+            assertEquals( "hot value", storage.get( "hot" ) );
+        }
+
+        // the least used template goes to the cold tier
+        storage.put( "cold", "cold value" );
+        assertTrue( storage.isHot( "hot" ) );
+        assertFalse( storage.isHot( "cold" ) );
+        assertTrue( storage.getHotWeight( ) <= storage.getMemoryBudget( ) );
+        assertEquals( 2, storage.getSize( ) );
+        assertEquals( 1, storage.getHotSize( ) );
+        assertEquals( "cold value", storage.get( "cold" ) );
+        assertFalse( storage.isHot( "cold" ) );
+
+        // a cold template used more often than the coldest hot template is promoted
+        for ( int i = 0; i < 5; i++ )
+        {
+            assertEquals( "cold value", storage.get( "cold" ) );
+        }
+
+        assertTrue( storage.isHot( "cold" ) );
+        assertFalse( storage.isHot( "hot" ) );
+
+        // the size of a template checked for update is kept
+        long lHotWeight = storage.getHotWeight( );
+        storage.put( "hot", "hot value" );
+        assertEquals( lHotWeight, storage.getHotWeight( ) );
+
+        storage.remove( "hot" );
+        assertNull( storage.get( "hot" ) );
+        storage.clear( );
+        assertEquals( 0, storage.getSize( ) );
+        assertEquals( 0, storage.getHotWeight( ) );
+    }
+
+    /**
+     * Test of the Java Flight Recorder events of AbstractFreeMarkerTemplateService.
+     * @throws java.io.IOException
+     */
+    @Test
+    public void testFlightRecorderEvents() throws IOException
+    {
+        System.out.println( "flightRecorderEvents" );
+        AbstractFreeMarkerTemplateService instance = getInstance( true );
+        Map<String, Object> model = new HashMap<>( );
+        model.put( MARK_VALUE, VALUE_TEST );
+        File fileRecording = File.createTempFile( "templates", ".jfr" );
+        fileRecording.deleteOnExit( );
+
+        try ( Recording recording = new Recording( ) )
+        {
+            recording.enable( "fr.paris.lutece.template.Lookup" );
+            recording.enable( "fr.paris.lutece.template.Parse" );
+            recording.enable( "fr.paris.lutece.template.Render" );
+            recording.enable( "fr.paris.lutece.template.ConfigurationCreation" );
+            recording.enable( "fr.paris.lutece.template.Reset" );
+            recording.start( );
+            instance.loadTemplate( PATH_TEMPLATES, FILE_TEMPLATE_2, Locale.US, model );
+            instance.loadTemplate( PATH_TEMPLATES, FILE_TEMPLATE_2, Locale.US, model );
+            instance.resetCache( );
+            recording.stop( );
+            recording.dump( fileRecording.toPath( ) );
+        }
+
+        List<RecordedEvent> listEvents = RecordingFile.readAllEvents( fileRecording.toPath( ) );
+        List<Boolean> listHits = new ArrayList<>( );
+        int nRenders = 0;
+
+        for ( RecordedEvent event : listEvents )
+        {
+            String strName = event.getEventType( ).getName( );
+
+            if ( strName.endsWith( "Lookup" ) )
+            {
+                assertEquals( FILE_TEMPLATE_2, event.getString( "template" ) );
+                listHits.add( event.getBoolean( "hit" ) );
+            }
+            else if ( strName.endsWith( "Parse" ) )
+            {
+                assertEquals( FILE_TEMPLATE_2, event.getString( "template" ) );
+                assertTrue( event.getInt( "sourceLength" ) > 0 );
+            }
+            else if ( strName.endsWith( "Render" ) )
+            {
+                assertEquals( "en_US", event.getString( "locale" ) );
+                assertTrue( event.getLong( "outputSize" ) > 0 );
+                nRenders++;
+            }
+        }
+
+        assertEquals( Arrays.asList( false, true ), listHits );
+        assertEquals( 2, nRenders );
+        assertTrue( listEvents.stream( ).anyMatch( event -> event.getEventType( ).getName( ).endsWith( "ConfigurationCreation" ) ) );
+        assertTrue( listEvents.stream( ).anyMatch( event -> event.getEventType( ).getName( ).endsWith( "Reset" ) && event.getBoolean( "cacheOnly" ) ) );
+    }
+
+    /**
+     * Test of setRenderAccounting method, of class AbstractFreeMarkerTemplateService.
+     * @throws java.io.IOException
+     */
+    @Test
+    public void testRenderAccounting() throws IOException
+    {
+        System.out.println( "setRenderAccounting" );
+        File fileTemplate = new File( PATH_TEMPLATES + "accounting.html" );
+        File fileFragment = new File( PATH_TEMPLATES + "accounting_fragment.html" );
+        fileTemplate.deleteOnExit( );
+        fileFragment.deleteOnExit( );
+        FileUtils.writeStringToFile( fileTemplate, "<ul>\n  <#list items as item>\n    <#include \"accounting_fragment.html\">\n  </#list>\n</ul>\n",
+                StandardCharsets.UTF_8 );
+        FileUtils.writeStringToFile( fileFragment, "<li>${item}</li>\n", StandardCharsets.UTF_8 );
+        Map<String, Object> model = new HashMap<>( );
+        model.put( "items", Arrays.asList( "a", "b", "c" ) );
+
+        AbstractFreeMarkerTemplateService plain = getInstance( true );
+        String strExpected = plain.loadTemplate( PATH_TEMPLATES, fileTemplate.getName( ), Locale.US, model ).getHtml( );
+
+        // the accounting directive is not defined without the include accounting
+        assertEquals( "false", plain.loadTemplateFromStringFtl( "${(" + IncludeAccounting.DIRECTIVE_NAME + "??)?c}", Locale.US, model ).getHtml( ) );
+
+        AbstractFreeMarkerTemplateService instance = getInstance( true );
+        instance.setRenderAccounting( true, true );
+
+        for ( int i = 0; i < 2; i++ )
+        {
+            assertEquals( strExpected, instance.loadTemplate( PATH_TEMPLATES, fileTemplate.getName( ), Locale.US, model ).getHtml( ) );
+        }
+
+        RenderAccounting accounting = instance.getRenderAccounting( );
+        TemplateRenderCost cost = accounting.getCost( fileTemplate.getName( ) );
+        assertEquals( 2, cost.getRenderCount( ) );
+        assertEquals( 6, accounting.getCost( fileFragment.getName( ) ).getRenderCount( ) );
+        assertEquals( 2, accounting.getCosts( ).size( ) );
+
+        if ( accounting.isAllocationSupported( ) )
+        {
+            assertTrue( cost.getAllocatedBytes( ) > 0 );
+            assertTrue( cost.getAllocatedBytes( ) >= accounting.getCost( fileFragment.getName( ) ).getAllocatedBytes( ) );
+            assertEquals( fileTemplate.getName( ), accounting.getCosts( ).get( 0 ).getTemplateName( ) );
+        }
+
+        // the included templates are not accounted without the include accounting
+        instance.setRenderAccounting( true, false );
+        instance.loadTemplate( PATH_TEMPLATES, fileTemplate.getName( ), Locale.US, model );
+        assertNull( instance.getRenderAccounting( ).getCost( fileFragment.getName( ) ) );
+        assertEquals( 1, instance.getRenderAccounting( ).getCost( fileTemplate.getName( ) ).getRenderCount( ) );
+
+        instance.setRenderAccounting( false, false );
+        assertNull( instance.getRenderAccounting( ) );
+        assertEquals( strExpected, instance.loadTemplate( PATH_TEMPLATES, fileTemplate.getName( ), Locale.US, model ).getHtml( ) );
+    }
+
+    /**
+     * Test of setJdbcTemplateLoader method, of class AbstractFreeMarkerTemplateService.
+     * @throws java.sql.SQLException
+     * @throws java.io.IOException
+     */
+    @Test
+    public void testJdbcTemplateLoader() throws SQLException, IOException
+    {
+        System.out.println( "setJdbcTemplateLoader" );
+        JdbcDataSource dataSource = new JdbcDataSource( );
+        dataSource.setURL( "jdbc:h2:mem:templates;DB_CLOSE_DELAY=-1" );
+
+        try ( Connection connection = dataSource.getConnection( ); Statement statement = connection.createStatement( ) )
+        {
+            statement.execute( "CREATE TABLE template_store ( template_name VARCHAR(255) PRIMARY KEY, template_source CLOB, revision BIGINT )" );
+            statement.execute( "INSERT INTO template_store VALUES ( 'db_page.html', '<p>${value}</p><#include \"db_footer.html\">', 1 )" );
+            statement.execute( "INSERT INTO template_store VALUES ( 'db_footer.html', '<footer>v1</footer>', 1 )" );
+        }
+
+        JdbcTemplateLoader loader = new JdbcTemplateLoader( dataSource, "template_store" );
+        loader.setRefreshInterval( 0 );
+        AbstractFreeMarkerTemplateService instance = getInstance( true );
+        instance.setJdbcTemplateLoader( loader );
+        instance.setTemplateUpdateDelay( 0 );
+        Map<String, Object> model = new HashMap<>( );
+        model.put( MARK_VALUE, VALUE_TEST );
+
+        assertEquals( "<p>test</p><footer>v1</footer>", instance.loadTemplate( PATH_TEMPLATES, "db_page.html", Locale.US, model ).getHtml( ) );
+
+        // the files are still found first
+        String strExpected = FileUtils.readFileToString( new File( PATH_TEMPLATES + EXPECTED_2 ), StandardCharsets.UTF_8 );
+        assertEquals( strExpected, instance.loadTemplate( PATH_TEMPLATES, FILE_TEMPLATE_2, Locale.US, model ).getHtml( ) );
+
+        // the unchanged sources are not read again, each of the two lookups checks all the known revisions with one query
+        long lQueries = loader.getQueryCount( );
+        assertEquals( "<p>test</p><footer>v1</footer>", instance.loadTemplate( PATH_TEMPLATES, "db_page.html", Locale.US, model ).getHtml( ) );
+        assertEquals( 2, loader.getQueryCount( ) - lQueries );
+
+        // the string templates are found before the store is queried
+        lQueries = loader.getQueryCount( );
+        assertEquals( "<b>test</b>", instance.loadTemplateFromStringFtl( "<b>${value}</b>", Locale.US, model ).getHtml( ) );
+        assertEquals( 0, loader.getQueryCount( ) - lQueries );
+
+        try ( Connection connection = dataSource.getConnection( ); Statement statement = connection.createStatement( ) )
+        {
+            statement.execute( "UPDATE template_store SET template_source = '<footer>v2</footer>', revision = 2 WHERE template_name = 'db_footer.html'" );
+        }
+
+        assertEquals( "<p>test</p><footer>v2</footer>", instance.loadTemplate( PATH_TEMPLATES, "db_page.html", Locale.US, model ).getHtml( ) );
+
+        // the names missing from the store, as the localized names, are forgotten after the miss time to live
+        assertNull( loader.findTemplateSource( "db_absent.html" ) );
+        assertTrue( loader.getKnownTemplateCount( ) > 2 );
+        loader.setMissTimeToLive( 0 );
+        assertNotNull( loader.findTemplateSource( "db_page.html" ) );
+        assertEquals( 2, loader.getKnownTemplateCount( ) );
+
+        try ( Connection connection = dataSource.getConnection( ); Statement statement = connection.createStatement( ) )
+        {
+            statement.execute( "DROP TABLE template_store" );
+        }
+    }
+
+    /**
+     * Test of the source transformers on the templates included with parse=false, of class AbstractFreeMarkerTemplateService.
+     * @throws java.io.IOException
+     */
+    @Test
+    public void testRawIncludeNotTransformed() throws IOException
+    {
+        System.out.println( "rawIncludeNotTransformed" );
+        File fileTemplate = new File( PATH_TEMPLATES + "raw_include.html" );
+        File fileRaw = new File( PATH_TEMPLATES + "raw_include.js" );
+        fileTemplate.deleteOnExit( );
+        fileRaw.deleteOnExit( );
+        String strRaw = "var s  =  \"a    b\";\n\n    // ${value} <#include \"template1.html\">\n  <!-- comment -->\n";
+        FileUtils.writeStringToFile( fileTemplate, "<script>\n<#include \"raw_include.js\" parse=false>\n</script>\n", StandardCharsets.UTF_8 );
+        FileUtils.writeStringToFile( fileRaw, strRaw, StandardCharsets.UTF_8 );
+
+        AbstractFreeMarkerTemplateService instance = getInstance( true );
+        instance.setMinifyTemplates( true );
+        instance.setSharedVariableFolding( true );
+        instance.setIncludeInlining( true );
+        instance.setRenderAccounting( true, true );
+        instance.setSharedVariable( MARK_VALUE, VALUE_TEST );
+
+        // the raw bytes of the included file are output unchanged, while the including template is minified
+        String strResult = instance.loadTemplate( PATH_TEMPLATES, fileTemplate.getName( ), Locale.US, new HashMap<>( ) ).getHtml( );
+        assertEquals( "<script>\n" + strRaw + "</script>\n", strResult );
+    }
+
     /**
      * Test of resetConfiguration method, of class AbstractFreeMarkerTemplateService.
      */
@@ -232,6 +1635,29 @@ public class AbstractFreeMarkerTemplateServiceTest
     }
     
 
+    /**
+     * A model bean
+     */
+    public static class TestBean
+    {
+        /**
+         * @return the name
+         */
+        public String getName( )
+        {
+            return VALUE_TEST;
+        }
+
+        /**
+         * @param strName the name
+         * @return the greeting
+         */
+        public String hello( String strName )
+        {
+            return "hello " + strName;
+        }
+    }
+
     /**
      * Test of setSharedVariable method, of class AbstractFreeMarkerTemplateService.
      */
@@ -0,0 +1,318 @@
+/*
+ * Copyright (c) 2002-2020, City of Paris
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ *
+ *  1. Redistributions of source code must retain the above copyright notice
+ *     and the following disclaimer.
+ *
+ *  2. Redistributions in binary form must reproduce the above copyright notice
+ *     and the following disclaimer in the documentation and/or other materials
+ *     provided with the distribution.
+ *
+ *  3. Neither the name of 'Mairie de Paris' nor 'Lutece' nor the names of its
+ *     contributors may be used to endorse or promote products derived from
+ *     this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDERS OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ *
+ * License 1.0
+ */
+
+package fr.paris.lutece.portal.service.template;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import org.apache.commons.io.FileUtils;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+/**
+ * Differential test of the compiled templates : the compiled renders must match the interpreted renders byte for byte
+ */
+public class CompiledTemplateTest
+{
+    private static final String PATH_TEMPLATES = "target/test-classes/";
+    private static final String FILE_AUTO_INCLUDE = "auto_include.html";
+
+    private static final List<String> TEMPLATES = Arrays.asList(
+            "",
+            "static text only",
+            "${title}",
+            "<h1>${title}</h1>\n<p>${page.description}</p>\n",
+            "  ${title}  \n\t${page.author.name}\r\n${title}${title}",
+            "<#-- comment -->\n${title}",
+            "<#noparse>${title}</#noparse>",
+            "${title?upper_case}",
+            "${count}",
+            "${page.count}",
+            "<#if title??>${title}</#if>",
+            "[=title] ${title} &lt;&amp;&gt; éè €",
+            "<#if title??>${title}<#else>none</#if>",
+            "<#if missing??>${missing}<#elseif page.description?has_content>${page.description}<#else>none</#if>",
+            "${missing!\"default\"} [${missing!}] ${title!'x'} ${(page.missing.name)!\"deep\"} ${'\\'quoted\\' \\l\\g'}",
+            "<#if title == \"Title é\" && !(missing??)>equal</#if><#if title != 'x' || missing??> different</#if>",
+            "<#if flag>yes</#if><#if !flag>no</#if><#if flag == true && empty?has_content == false> empty</#if>",
+            "<#list items as item>${item.name}<#if item.flag> on</#if>\n</#list>",
+            "<#list tags as tag><#list tags as other>${tag}${other} </#list></#list>",
+            "<#list items as title>${title.name}</#list> ${title}",
+            "<#list empty as e>x</#list>",
+            "${title?html} ${page.author.name?html}",
+            "<#list items as item>${item.count}</#list>",
+            "<#list tags as tag>${tag_index}</#list>",
+            "<#macro m>m</#macro><#if m??>macro</#if>",
+            "<#list missing![] as item>${item}</#list>" );
+
+    private static final List<String> ESCAPED_TEMPLATES = Arrays.asList(
+            "${title} ${page.author.name}",
+            "${page.author.name?no_esc} ${page.author.name?esc}",
+            "<#list items as item><p>${item.name}</p></#list>",
+            "${missing!\"<default>\"}" );
+
+    private static final List<String> REPO_TEMPLATES = Arrays.asList( "template1.html", "template2.html", "template3.html", "template_minify.html" );
+
+    /**
+     * Test of the compiled renders against the interpreted renders
+     */
+    @Test
+    public void testCompiledRenders( )
+    {
+        System.out.println( "compiledRenders" );
+        Map<String, Object> model = getModel( );
+
+        AbstractFreeMarkerTemplateService interpreted = getInstance( 0 );
+        AbstractFreeMarkerTemplateService compiled = getInstance( 1 );
+
+        for ( String strTemplate : TEMPLATES )
+        {
+            String strExpected = interpreted.loadTemplateFromStringFtl( strTemplate, Locale.US, model ).getHtml( );
+
+            for ( int i = 0; i < 3; i++ )
+            {
+                assertEquals( strTemplate, strExpected, compiled.loadTemplateFromStringFtl( strTemplate, Locale.US, model ).getHtml( ) );
+            }
+        }
+
+        assertEquals( 19 * 3, compiled.getCompiledRenderCount( ) );
+        assertEquals( 0, interpreted.getCompiledRenderCount( ) );
+    }
+
+    /**
+     * Test of the compiled renders with the HTML auto-escaping
+     */
+    @Test
+    public void testCompiledRendersWithAutoEscaping( )
+    {
+        System.out.println( "compiledRendersWithAutoEscaping" );
+        Map<String, Object> model = getModel( );
+
+        AbstractFreeMarkerTemplateService interpreted = getInstance( 0, true );
+        AbstractFreeMarkerTemplateService compiled = getInstance( 1, true );
+
+        for ( String strTemplate : ESCAPED_TEMPLATES )
+        {
+            String strExpected = interpreted.loadTemplateFromStringFtl( strTemplate, Locale.US, model ).getHtml( );
+
+            for ( int i = 0; i < 3; i++ )
+            {
+                assertEquals( strTemplate, strExpected, compiled.loadTemplateFromStringFtl( strTemplate, Locale.US, model ).getHtml( ) );
+            }
+        }
+
+        assertEquals( ESCAPED_TEMPLATES.size( ) * 3, compiled.getCompiledRenderCount( ) );
+    }
+
+    /**
+     * Differential test of the compiled renders over the templates of the repository
+     */
+    @Test
+    public void testCompiledRendersOfRepositoryTemplates( )
+    {
+        System.out.println( "compiledRendersOfRepositoryTemplates" );
+
+        for ( boolean bHtmlAutoEscaping : new boolean [ ] {
+                false, true
+        } )
+        {
+            AbstractFreeMarkerTemplateService interpreted = getInstance( 0, bHtmlAutoEscaping );
+            AbstractFreeMarkerTemplateService compiled = getInstance( 1, bHtmlAutoEscaping );
+            interpreted.addPluginAutoInclude( FILE_AUTO_INCLUDE );
+            compiled.addPluginAutoInclude( FILE_AUTO_INCLUDE );
+
+            for ( String strValue : Arrays.asList( "test", "other", "<b>" ) )
+            {
+                Map<String, Object> model = getModel( );
+                model.put( "value", strValue );
+
+                for ( String strFile : REPO_TEMPLATES )
+                {
+                    String strExpected = interpreted.loadTemplate( PATH_TEMPLATES, strFile, Locale.US, model ).getHtml( );
+
+                    for ( int i = 0; i < 3; i++ )
+                    {
+                        assertEquals( strFile, strExpected, compiled.loadTemplate( PATH_TEMPLATES, strFile, Locale.US, model ).getHtml( ) );
+                    }
+                }
+            }
+
+            // the templates calling macros are left to the interpreter
+            assertEquals( ( REPO_TEMPLATES.size( ) - 1 ) * 3 * 3, compiled.getCompiledRenderCount( ) );
+        }
+    }
+
+    /**
+     * Test of the compiled renders with an auto-included macro library
+     */
+    @Test
+    public void testCompiledRendersWithAutoInclude( )
+    {
+        System.out.println( "compiledRendersWithAutoInclude" );
+        Map<String, Object> model = getModel( );
+
+        AbstractFreeMarkerTemplateService interpreted = getInstance( 0 );
+        AbstractFreeMarkerTemplateService compiled = getInstance( 1 );
+        interpreted.addPluginAutoInclude( FILE_AUTO_INCLUDE );
+        compiled.addPluginAutoInclude( FILE_AUTO_INCLUDE );
+
+        String strTemplate = "<p>${title}</p>";
+        String strExpected = interpreted.loadTemplateFromStringFtl( strTemplate, Locale.US, model ).getHtml( );
+        assertEquals( strExpected, compiled.loadTemplateFromStringFtl( strTemplate, Locale.US, model ).getHtml( ) );
+        assertEquals( 1, compiled.getCompiledRenderCount( ) );
+
+        // a value that is not a string falls back to the interpreter
+        model.put( "title", 3.5 );
+        strExpected = interpreted.loadTemplateFromStringFtl( strTemplate, Locale.US, model ).getHtml( );
+        assertEquals( strExpected, compiled.loadTemplateFromStringFtl( strTemplate, Locale.US, model ).getHtml( ) );
+        assertEquals( 1, compiled.getCompiledRenderCount( ) );
+        assertEquals( 1, compiled.getInterpretedRenderCount( ) );
+    }
+
+    /**
+     * Test of the compiled renders after a change of an auto-included macro library
+     * @throws java.io.IOException
+     */
+    @Test
+    public void testCompiledRendersWithModifiedAutoInclude( ) throws IOException
+    {
+        System.out.println( "compiledRendersWithModifiedAutoInclude" );
+        Map<String, Object> model = getModel( );
+        File fileAutoInclude = new File( PATH_TEMPLATES + "compiled_auto_include.html" );
+        fileAutoInclude.deleteOnExit( );
+        FileUtils.writeStringToFile( fileAutoInclude, "<#ftl strip_whitespace=false><#macro m>m</#macro> \n", StandardCharsets.UTF_8 );
+
+        AbstractFreeMarkerTemplateService compiled = getInstance( 1 );
+        compiled.setTemplateUpdateDelay( 0 );
+        compiled.addPluginAutoInclude( "compiled_auto_include.html" );
+
+        String strTemplate = "${title}";
+        assertEquals( " \nTitle é", compiled.loadTemplateFromStringFtl( strTemplate, Locale.US, model ).getHtml( ) );
+        assertEquals( " \nTitle é", compiled.loadTemplateFromStringFtl( strTemplate, Locale.US, model ).getHtml( ) );
+        assertEquals( 2, compiled.getCompiledRenderCount( ) );
+
+        // the modified auto-include is reloaded and the template compiled again
+        FileUtils.writeStringToFile( fileAutoInclude, "<#ftl strip_whitespace=false><#macro m>m</#macro>   \n", StandardCharsets.UTF_8 );
+        fileAutoInclude.setLastModified( fileAutoInclude.lastModified( ) + 2000 );
+        assertEquals( "   \nTitle é", compiled.loadTemplateFromStringFtl( strTemplate, Locale.US, model ).getHtml( ) );
+        assertEquals( 3, compiled.getCompiledRenderCount( ) );
+    }
+
+    /**
+     * Build the model
+     * @return the model
+     */
+    private static Map<String, Object> getModel( )
+    {
+        Map<String, Object> author = new HashMap<>( );
+        author.put( "name", "Jane <Doe>" );
+        Map<String, Object> page = new HashMap<>( );
+        page.put( "description", "A \"quoted\" & escaped description" );
+        page.put( "author", author );
+        page.put( "count", 1234567 );
+        Map<String, Object> model = new HashMap<>( );
+        model.put( "title", "Title é" );
+        model.put( "page", page );
+        model.put( "count", 12.5 );
+        model.put( "flag", Boolean.TRUE );
+        model.put( "tags", Arrays.asList( "x", "y" ) );
+        model.put( "empty", Collections.emptyList( ) );
+        model.put( "items", Arrays.asList( getItem( "A & B", true, 1 ), getItem( "<C>", false, 2 ) ) );
+
+        return model;
+    }
+
+    /**
+     * Build an item of a list
+     * @param strName the name
+     * @param bFlag the flag
+     * @param nCount the count
+     * @return the item
+     */
+    private static Map<String, Object> getItem( String strName, boolean bFlag, int nCount )
+    {
+        Map<String, Object> item = new HashMap<>( );
+        item.put( "name", strName );
+        item.put( "flag", bFlag );
+        item.put( "count", nCount );
+
+        return item;
+    }
+
+    /**
+     * Get an instance of the service
+     * @param nCompileThreshold the compile threshold
+     * @return the service
+     */
+    private static AbstractFreeMarkerTemplateService getInstance( int nCompileThreshold )
+    {
+        return getInstance( nCompileThreshold, false );
+    }
+
+    /**
+     * Get an instance of the service
+     * @param nCompileThreshold the compile threshold
+     * @param bHtmlAutoEscaping true to escape the values in HTML
+     * @return the service
+     */
+    private static AbstractFreeMarkerTemplateService getInstance( int nCompileThreshold, boolean bHtmlAutoEscaping )
+    {
+        AbstractFreeMarkerTemplateService instance = new AbstractFreeMarkerTemplateService( )
+        {
+            @Override
+            public String getAbsolutePathFromRelativePath( String strPath )
+            {
+                return new File( strPath ).getAbsolutePath( );
+            }
+
+            @Override
+            public String getDefaultPattern( Locale locale )
+            {
+                return "dd/MM/yyyy";
+            }
+        };
+        instance.setHtmlAutoEscaping( bHtmlAutoEscaping );
+        instance.init( PATH_TEMPLATES, true );
+        instance.setCompileThreshold( nCompileThreshold );
+
+        return instance;
+    }
+}
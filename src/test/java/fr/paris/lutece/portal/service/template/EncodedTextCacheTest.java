@@ -0,0 +1,144 @@
+/*
+ * Copyright (c) 2002-2020, City of Paris
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ *
+ *  1. Redistributions of source code must retain the above copyright notice
+ *     and the following disclaimer.
+ *
+ *  2. Redistributions in binary form must reproduce the above copyright notice
+ *     and the following disclaimer in the documentation and/or other materials
+ *     provided with the distribution.
+ *
+ *  3. Neither the name of 'Mairie de Paris' nor 'Lutece' nor the names of its
+ *     contributors may be used to endorse or promote products derived from
+ *     this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDERS OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ *
+ * License 1.0
+ */
+package fr.paris.lutece.portal.service.template;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.util.Collections;
+
+import freemarker.template.Configuration;
+import freemarker.template.Template;
+import freemarker.template.TemplateException;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+/**
+ * Test of the cache of the encoded static text
+ */
+public class EncodedTextCacheTest
+{
+    private static final String TEXT_1 = "<p>a static text long enough to be cached</p>";
+    private static final String TEXT_2 = "<p>another static text été €</p>";
+
+    /**
+     * Test of the register and getEncoded methods, of class EncodedTextCache.
+     * @throws java.io.IOException
+     * @throws freemarker.template.TemplateException
+     */
+    @Test
+    public void testRegisteredTextBlocks( ) throws IOException, TemplateException
+    {
+        System.out.println( "registeredTextBlocks" );
+        EncodedTextCache cache = new EncodedTextCache( StandardCharsets.UTF_8 );
+        Template template = new Template( "test", TEXT_1 + "${value}" + TEXT_2 + "<#if value??>short</#if>",
+                new Configuration( Configuration.VERSION_2_3_28 ) );
+        cache.register( template );
+
+        // the short text blocks are not cached
+        assertEquals( 2, cache.size( ) );
+
+        // an array with the same content as a text block, such as a reused buffer, is not a text block
+        assertNull( cache.getEncoded( TEXT_1.toCharArray( ) ) );
+
+        String strExpected = TEXT_1 + "x" + TEXT_2 + "short";
+
+        for ( int i = 0; i < 2; i++ )
+        {
+            ByteArrayOutputStream out = new ByteArrayOutputStream( );
+            Writer writer = new EncodedOutputWriter( out, cache );
+            template.process( Collections.singletonMap( "value", "x" ), writer );
+            writer.flush( );
+            assertEquals( strExpected, new String( out.toByteArray( ), StandardCharsets.UTF_8 ) );
+            cache.clear( );
+        }
+
+        assertEquals( 2, cache.size( ) );
+    }
+
+    /**
+     * Test of the text blocks registered by content, as when the arrays of the text blocks can not be read
+     * @throws java.io.IOException
+     * @throws freemarker.template.TemplateException
+     */
+    @Test
+    public void testTextBlocksRegisteredByContent( ) throws IOException, TemplateException
+    {
+        System.out.println( "textBlocksRegisteredByContent" );
+        EncodedTextCache cache = new EncodedTextCache( StandardCharsets.UTF_8, false );
+        Template template = new Template( "test", TEXT_1 + "${value}" + TEXT_2 + "<#noparse>" + TEXT_1 + "</#noparse>",
+                new Configuration( Configuration.VERSION_2_3_28 ) );
+        cache.register( template );
+
+        // the blocks with the same content share their entry
+        assertEquals( 2, cache.size( ) );
+        assertArrayEquals( TEXT_1.getBytes( StandardCharsets.UTF_8 ), cache.getEncoded( TEXT_1.toCharArray( ) ) );
+
+        ByteArrayOutputStream out = new ByteArrayOutputStream( );
+        Writer writer = new EncodedOutputWriter( out, cache );
+        template.process( Collections.singletonMap( "value", "x" ), writer );
+        writer.close( );
+        assertEquals( TEXT_1 + "x" + TEXT_2 + TEXT_1, new String( out.toByteArray( ), StandardCharsets.UTF_8 ) );
+    }
+
+    /**
+     * Test of the surrogate pairs split between writes, of class EncodedOutputWriter.
+     * @throws java.io.IOException
+     */
+    @Test
+    public void testSplitSurrogatePairs( ) throws IOException
+    {
+        System.out.println( "splitSurrogatePairs" );
+        String strText = "a\uD83D\uDE00b\uD83D\uDE01";
+        ByteArrayOutputStream out = new ByteArrayOutputStream( );
+        Writer writer = new EncodedOutputWriter( out, new EncodedTextCache( StandardCharsets.UTF_8 ) );
+
+        for ( int i = 0; i < strText.length( ); i++ )
+        {
+            writer.write( strText.charAt( i ) );
+        }
+
+        writer.write( strText, 0, 2 );
+        writer.write( strText.toCharArray( ), 2, strText.length( ) - 2 );
+
+        // the lone surrogates are replaced as by String.getBytes
+        writer.write( "\uD83D" );
+        writer.write( "\uD83Dc\uD83D" );
+        writer.close( );
+
+        String strExpected = strText + strText + "\uD83D\uD83Dc\uD83D";
+        assertArrayEquals( strExpected.getBytes( StandardCharsets.UTF_8 ), out.toByteArray( ) );
+    }
+}
@@ -0,0 +1,95 @@
+/*
+ * Copyright (c) 2002-2020, City of Paris
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ *
+ *  1. Redistributions of source code must retain the above copyright notice
+ *     and the following disclaimer.
+ *
+ *  2. Redistributions in binary form must reproduce the above copyright notice
+ *     and the following disclaimer in the documentation and/or other materials
+ *     provided with the distribution.
+ *
+ *  3. Neither the name of 'Mairie de Paris' nor 'Lutece' nor the names of its
+ *     contributors may be used to endorse or promote products derived from
+ *     this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDERS OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ *
+ * License 1.0
+ */
+
+
+package fr.paris.lutece.util.html;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.StringWriter;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+/**
+ * HtmlTemplate Test
+ */
+public class HtmlTemplateTest
+{
+    private static final String HEADER = "<header>é</header>";
+    private static final String BODY = "<div>@content@</div>";
+    private static final String CONTENT = "contenu";
+
+    /**
+     * Test of the compact representation of HtmlTemplate.
+     * @throws java.io.IOException
+     */
+    @Test
+    public void testCompactContent() throws IOException
+    {
+        System.out.println( "compactContent" );
+        HtmlTemplate header = HtmlTemplate.fromUtf8Bytes( HEADER.getBytes( StandardCharsets.UTF_8 ) );
+        HtmlTemplate page = HtmlTemplate.fromFragments( Arrays.asList( header, new HtmlTemplate( BODY ) ) );
+
+        ByteArrayOutputStream out = new ByteArrayOutputStream( );
+        page.writeTo( out );
+        assertEquals( HEADER + BODY, new String( out.toByteArray( ), StandardCharsets.UTF_8 ) );
+
+        StringWriter writer = new StringWriter( );
+        page.writeTo( writer );
+        assertEquals( HEADER + BODY, writer.toString( ) );
+
+        // the compact form is kept once the String has been computed
+        assertEquals( HEADER, header.getHtml( ) );
+        out.reset( );
+        header.writeTo( out );
+        assertEquals( HEADER, new String( out.toByteArray( ), StandardCharsets.UTF_8 ) );
+        assertEquals( HEADER + BODY, page.getHtml( ) );
+        assertSame( page.getHtml( ), page.getHtml( ) );
+
+        HtmlTemplate copy = new HtmlTemplate( page );
+        page.substitute( "@content@", CONTENT );
+        assertEquals( HEADER + "<div>" + CONTENT + "</div>", page.getHtml( ) );
+        assertEquals( HEADER + BODY, copy.getHtml( ) );
+
+        // the fragments of a copy are not shared with the original
+        HtmlTemplate body = new HtmlTemplate( BODY );
+        page = HtmlTemplate.fromFragments( Arrays.asList( header, body ) );
+        copy = new HtmlTemplate( page );
+        body.substitute( "@content@", CONTENT );
+        assertEquals( HEADER + "<div>" + CONTENT + "</div>", page.getHtml( ) );
+        assertEquals( HEADER + BODY, copy.getHtml( ) );
+    }
+}